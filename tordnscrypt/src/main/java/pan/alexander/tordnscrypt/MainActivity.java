@@ -77,6 +77,7 @@ import pan.alexander.tordnscrypt.dialogs.ChangeModeDialog;
 import pan.alexander.tordnscrypt.dialogs.NotificationDialogFragment;
 import pan.alexander.tordnscrypt.dnscrypt_fragment.DNSCryptRunFragment;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor;
 import pan.alexander.tordnscrypt.help.HelpActivity;
 import pan.alexander.tordnscrypt.main_fragment.MainFragment;
 import pan.alexander.tordnscrypt.main_fragment.ViewPagerAdapter;
@@ -113,7 +114,9 @@ import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.ROOT_IS
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.RUN_MODULES_WITH_ROOT;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.VPN_SERVICE_ENABLED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.FAULT;
+import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RESTARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
+import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.PROXY_MODE;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
@@ -138,11 +141,15 @@ public class MainActivity extends LangAppCompatActivity
     public Lazy<ApManager> apManager;
     @Inject
     public Lazy<CachedExecutor> executor;
+    @Inject
+    public Lazy<TorControlInteractor> torControlInteractor;
 
     public boolean childLockActive = false;
     public AccelerateDevelop accelerateDevelop;
 
     private static final int CODE_IS_AP_ON = 100;
+    private static final long NEW_TOR_IDENTITY_CHECK_INTERVAL_MS = 1000;
+    private static final long NEW_TOR_IDENTITY_TIMEOUT_MS = 30000;
     private static final int CODE_IS_VPN_ALLOWED = 110;
 
     private volatile boolean vpnRequested;
@@ -617,7 +624,7 @@ public class MainActivity extends LangAppCompatActivity
             if (rotateAnimation == null || animatingImage == null) {
                 rotateAnimation = new RotateAnimation(0, 360, Animation.RELATIVE_TO_SELF, 0.5f, Animation.RELATIVE_TO_SELF, 0.5f);
                 rotateAnimation.setDuration(1000);
-                rotateAnimation.setRepeatCount(3);
+                rotateAnimation.setRepeatCount(Animation.INFINITE);
 
                 LayoutInflater inflater = getLayoutInflater();
                 animatingImage = (ImageView) inflater.inflate(R.layout.icon_image_new_tor_identity, null);
@@ -628,20 +635,43 @@ public class MainActivity extends LangAppCompatActivity
                 newIdentityMenuItem.setActionView(animatingImage);
             }
 
-            ModulesRestarter.restartTor(this);
+            ModulesRestarter.newTorIdentity(this);
+
+            waitForNewTorIdentity(newIdentityMenuItem, System.currentTimeMillis());
+        }
+    }
+
+    private void waitForNewTorIdentity(MenuItem newIdentityMenuItem, long requestTime) {
+        if (isFinishing() || handler == null) {
+            return;
+        }
 
-            if (isFinishing() || handler == null) {
+        handler.postDelayed(() -> {
+            if (isFinishing() || newIdentityMenuItem.getActionView() == null) {
                 return;
             }
 
-            handler.postDelayed(() -> {
-                if (!isFinishing() && newIdentityMenuItem.getActionView() != null) {
-                    Toast.makeText(this, this.getText(R.string.toast_new_tor_identity), Toast.LENGTH_SHORT).show();
-                    newIdentityMenuItem.getActionView().clearAnimation();
-                    newIdentityMenuItem.setActionView(null);
-                }
-            }, 3000);
-        }
+            if (isNewTorIdentityInProgress()
+                    && System.currentTimeMillis() - requestTime < NEW_TOR_IDENTITY_TIMEOUT_MS) {
+                waitForNewTorIdentity(newIdentityMenuItem, requestTime);
+                return;
+            }
+
+            if (modulesStatus.getTorState() == RUNNING) {
+                Toast.makeText(this, this.getText(R.string.toast_new_tor_identity), Toast.LENGTH_SHORT).show();
+            }
+            newIdentityMenuItem.getActionView().clearAnimation();
+            newIdentityMenuItem.setActionView(null);
+        }, NEW_TOR_IDENTITY_CHECK_INTERVAL_MS);
+    }
+
+    //Tor is restarted if the new identity cannot be requested with the control socket
+    private boolean isNewTorIdentityInProgress() {
+        ModuleState torState = modulesStatus.getTorState();
+        return torState == RESTARTING
+                || torState == STARTING
+                || torState == RUNNING && !modulesStatus.isTorReady()
+                || torState == RUNNING && torControlInteractor.get().isNewIdentityInProgress();
     }
 
     @SuppressLint("UnsafeOptInUsageWarning")
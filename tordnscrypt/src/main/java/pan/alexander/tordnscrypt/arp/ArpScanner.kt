@@ -25,6 +25,7 @@ import pan.alexander.tordnscrypt.di.arp.ArpSubcomponent
 import pan.alexander.tordnscrypt.utils.delegates.MutableLazy
 import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import pan.alexander.tordnscrypt.vpn.service.VpnVerdictCache
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
@@ -159,10 +160,22 @@ class ArpScanner @Inject constructor(
         @Volatile
         @JvmStatic
         var arpAttackDetected = false
+            set(value) {
+                if (field != value) {
+                    field = value
+                    VpnVerdictCache.invalidate()
+                }
+            }
 
         @Volatile
         @JvmStatic
         var dhcpGatewayAttackDetected = false
+            set(value) {
+                if (field != value) {
+                    field = value
+                    VpnVerdictCache.invalidate()
+                }
+            }
 
         private var arpSubcomponent: ArpSubcomponent? by MutableLazy {
             App.instance.daggerComponent.arpSubcomponent().create()
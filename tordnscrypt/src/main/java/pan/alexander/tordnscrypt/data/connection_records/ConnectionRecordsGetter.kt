@@ -25,7 +25,7 @@ import android.content.Intent
 import android.content.ServiceConnection
 import android.os.IBinder
 import android.util.Log
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionJournal
 import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN
@@ -44,6 +44,7 @@ class ConnectionRecordsGetter @Inject constructor(
         override fun onServiceConnected(name: ComponentName, service: IBinder) {
             if (service is VPNBinder) {
                 serviceVPN = WeakReference(service.service)
+                service.service?.dnsQueryRawRecords?.onChangedListener = onRecordsChangedListener
             }
         }
 
@@ -57,20 +58,28 @@ class ConnectionRecordsGetter @Inject constructor(
     @Volatile
     private var serviceVPN: WeakReference<ServiceVPN?>? = null
 
-    fun getConnectionRawRecords(): Map<ConnectionData, Boolean> {
+    @Volatile
+    private var onRecordsChangedListener: (() -> Unit)? = null
+
+    fun getConnectionRawRecordsSince(sequence: Long): ConnectionJournal.Batch {
         if (bound.compareAndSet(false, true)) {
             logi("ConnectionRecordsGetter bind to VPN service")
             bindToVPNService()
         }
 
         val rawRecords = try {
-            serviceVPN?.get()?.dnsQueryRawRecords ?: emptyMap<ConnectionData, Boolean>()
+            serviceVPN?.get()?.dnsQueryRawRecords?.readSince(sequence)
         } catch (e: Exception) {
-            logw("ConnectionRecordsGetter getConnectionRawRecords", e)
-            emptyMap<ConnectionData, Boolean>()
+            logw("ConnectionRecordsGetter getConnectionRawRecordsSince", e)
+            null
         }
 
-        return rawRecords
+        return rawRecords ?: ConnectionJournal.Batch(emptyList(), sequence, false)
+    }
+
+    fun setOnRecordsChangedListener(listener: (() -> Unit)?) {
+        onRecordsChangedListener = listener
+        serviceVPN?.get()?.dnsQueryRawRecords?.onChangedListener = listener
     }
 
     fun clearConnectionRawRecords() {
@@ -97,6 +106,8 @@ class ConnectionRecordsGetter @Inject constructor(
         if (bound.compareAndSet(true, false)) {
             logi("ConnectionRecordsGetter unbind VPN service")
 
+            serviceVPN?.get()?.dnsQueryRawRecords?.onChangedListener = null
+
             try {
                 serviceConnection.let { context.unbindService(it) }
             } catch (e: Exception) {
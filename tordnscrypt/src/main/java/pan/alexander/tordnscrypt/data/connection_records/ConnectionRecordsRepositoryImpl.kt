@@ -22,6 +22,7 @@ package pan.alexander.tordnscrypt.data.connection_records
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecordsRepository
 import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecord
+import pan.alexander.tordnscrypt.domain.connection_records.RawConnectionRecords
 import pan.alexander.tordnscrypt.domain.connection_records.RawConnectionRecordsMapper
 import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord
 import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord
@@ -42,37 +43,73 @@ class ConnectionRecordsRepositoryImpl @Inject constructor(
     @Volatile
     private var savedMode = modulesStatus.mode
 
-    override fun getRawConnectionRecords(): List<ConnectionRecord?> =
+    @Volatile
+    private var vpnRecordsSequence = 0L
+
+    @Volatile
+    private var nflogRecordsSequence = 0L
+
+    override fun getNewRawConnectionRecords(): RawConnectionRecords =
         if (isVpnMode()) {
 
-            if (modulesStatus.mode != savedMode) {
+            val modeChanged = modulesStatus.mode != savedMode
+            if (modeChanged) {
                 stopNflogRecordsGetter()
                 savedMode = modulesStatus.mode
             }
 
-            rawConnectionRecordsMapper.map(connectionRecordsGetter.getConnectionRawRecords())
+            val batch = connectionRecordsGetter.getConnectionRawRecordsSince(vpnRecordsSequence)
+            vpnRecordsSequence = batch.lastSequence
+
+            RawConnectionRecords(
+                rawConnectionRecordsMapper.map(batch.records),
+                batch.reset || modeChanged
+            )
 
         } else if (isFixTTL()) {
-            rawConnectionRecordsMapper.map(
-                connectionRecordsGetter.getConnectionRawRecords()
-                        + nflogRecordsGetter.getConnectionRawRecords().filter {
-                    when (val record = it.key) {
-                        is PacketRecord -> record.uid != SPECIAL_UID_KERNEL
-                        is DnsRecord -> true
-                    }
-                }
+
+            var vpnBatch = connectionRecordsGetter.getConnectionRawRecordsSince(vpnRecordsSequence)
+            var nflogBatch = nflogRecordsGetter.getConnectionRawRecordsSince(nflogRecordsSequence)
+
+            //Records of both sources are merged, so both must be read completely after any reset
+            val reset = vpnBatch.reset || nflogBatch.reset
+            if (reset) {
+                vpnBatch = connectionRecordsGetter.getConnectionRawRecordsSince(0)
+                nflogBatch = nflogRecordsGetter.getConnectionRawRecordsSince(0)
+            }
+
+            vpnRecordsSequence = vpnBatch.lastSequence
+            nflogRecordsSequence = nflogBatch.lastSequence
+
+            RawConnectionRecords(
+                rawConnectionRecordsMapper.map(
+                    (vpnBatch.records + nflogBatch.records.filter {
+                        when (it) {
+                            is PacketRecord -> it.uid != SPECIAL_UID_KERNEL
+                            is DnsRecord -> true
+                        }
+                    }).distinct()
+                ),
+                reset
             )
 
         } else if (isRootMode()) {
 
-            if (modulesStatus.mode != savedMode) {
+            val modeChanged = modulesStatus.mode != savedMode
+            if (modeChanged) {
                 stopConnectionRecordsGetter()
                 savedMode = modulesStatus.mode
             }
 
-            rawConnectionRecordsMapper.map(nflogRecordsGetter.getConnectionRawRecords())
+            val batch = nflogRecordsGetter.getConnectionRawRecordsSince(nflogRecordsSequence)
+            nflogRecordsSequence = batch.lastSequence
+
+            RawConnectionRecords(
+                rawConnectionRecordsMapper.map(batch.records),
+                batch.reset || modeChanged
+            )
         } else {
-            emptyList()
+            RawConnectionRecords(emptyList(), false)
         }
 
     override fun clearConnectionRawRecords() {
@@ -89,6 +126,11 @@ class ConnectionRecordsRepositoryImpl @Inject constructor(
         }
     }
 
+    override fun setOnRawRecordsChangedListener(listener: (() -> Unit)?) {
+        connectionRecordsGetter.setOnRecordsChangedListener(listener)
+        nflogRecordsGetter.setOnRecordsChangedListener(listener)
+    }
+
     private fun stopConnectionRecordsGetter() = with(connectionRecordsGetter) {
         clearConnectionRawRecords()
         connectionRawRecordsNoMoreRequired()
@@ -20,9 +20,8 @@
 package pan.alexander.tordnscrypt.data.connection_records
 
 import kotlinx.coroutines.ExperimentalCoroutinesApi
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionJournal
 import pan.alexander.tordnscrypt.nflog.NflogManager
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 @ExperimentalCoroutinesApi
@@ -30,8 +29,12 @@ class NflogRecordsGetter @Inject constructor(
     private val nflogManager: NflogManager
 ) {
 
-    fun getConnectionRawRecords(): ConcurrentHashMap<ConnectionData, Boolean> =
-        nflogManager.getRealTimeLogs()
+    fun getConnectionRawRecordsSince(sequence: Long): ConnectionJournal.Batch =
+        nflogManager.getRealTimeLogs().readSince(sequence)
 
     fun clearConnectionRawRecords() = nflogManager.clearRealTimeLogs()
+
+    fun setOnRecordsChangedListener(listener: (() -> Unit)?) {
+        nflogManager.getRealTimeLogs().onChangedListener = listener
+    }
 }
@@ -0,0 +1,149 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.dns_query_stats
+
+import pan.alexander.tordnscrypt.data.log_reader.LogTailFollower
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryLogEntry
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryLogRepository
+import pan.alexander.tordnscrypt.settings.PathVars
+import java.text.ParseException
+import java.text.SimpleDateFormat
+import java.util.Locale
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val QUERY_LOG = "query.log"
+private const val NX_LOG = "nx.log"
+private const val INITIAL_TAIL_BYTES = 1024 * 1024L
+private const val RETURN_CODE_REJECT = "REJECT"
+private const val LTSV_TIME_KEY = "time:"
+
+/**
+ * Follows the dnscrypt-proxy query log and suspicious log in the tsv or ltsv format.
+ * Fields are separated by tabs.
+ * tsv: [2023-01-01 10:11:12] 127.0.0.1 example.com A PASS 10ms server
+ * ltsv: time:1672567872 host:127.0.0.1 message:example.com type:A return:PASS ...
+ * The suspicious log has the same fields up to the query type.
+ */
+@Singleton
+class DnsQueryLogRepositoryImpl @Inject constructor(
+    pathVars: PathVars
+) : DnsQueryLogRepository {
+
+    private val queryLogFollower = LogTailFollower(
+        "${pathVars.appDataDir}/cache/$QUERY_LOG",
+        INITIAL_TAIL_BYTES
+    )
+    private val nxLogFollower = LogTailFollower(
+        "${pathVars.appDataDir}/cache/$NX_LOG",
+        INITIAL_TAIL_BYTES
+    )
+
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.ROOT)
+    private var savedMinuteText = ""
+    private var savedEpochMinute = -1L
+
+    @Synchronized
+    override fun readNewEntries(onEntry: (DnsQueryLogEntry) -> Unit) {
+        queryLogFollower.follow(EntriesListener(false, onEntry))
+        nxLogFollower.follow(EntriesListener(true, onEntry))
+    }
+
+    private inner class EntriesListener(
+        private val nxDomain: Boolean,
+        private val onEntry: (DnsQueryLogEntry) -> Unit
+    ) : LogTailFollower.OnLineListener {
+
+        //Statistics are kept when a log is cleared, only new entries are read afterwards
+        override fun onReset() = Unit
+
+        override fun onLine(line: String) {
+            val fields = line.split('\t')
+            val entry = if (line.startsWith(LTSV_TIME_KEY)) {
+                parseLtsv(fields, nxDomain)
+            } else {
+                parseTsv(fields, nxDomain)
+            }
+            entry?.let(onEntry)
+        }
+    }
+
+    private fun parseTsv(fields: List<String>, nxDomain: Boolean): DnsQueryLogEntry? {
+        if (fields.size < 4 || !nxDomain && fields.size < 5) {
+            return null
+        }
+
+        return DnsQueryLogEntry(
+            epochMinute = parseMinute(fields[0]),
+            client = fields[1],
+            domain = normalizeDomain(fields[2]),
+            blocked = !nxDomain && fields[4] == RETURN_CODE_REJECT,
+            nxDomain = nxDomain
+        )
+    }
+
+    private fun parseLtsv(fields: List<String>, nxDomain: Boolean): DnsQueryLogEntry? {
+        var time = -1L
+        var client = ""
+        var domain = ""
+        var returnCode = ""
+        for (field in fields) {
+            val value = field.substringAfter(':')
+            when (field.substringBefore(':')) {
+                "time" -> time = value.toLongOrNull() ?: -1L
+                "host" -> client = value
+                "message" -> domain = value
+                "return" -> returnCode = value
+            }
+        }
+
+        if (domain.isEmpty()) {
+            return null
+        }
+
+        return DnsQueryLogEntry(
+            epochMinute = if (time >= 0) time / 60 else -1,
+            client = client,
+            domain = normalizeDomain(domain),
+            blocked = !nxDomain && returnCode == RETURN_CODE_REJECT,
+            nxDomain = nxDomain
+        )
+    }
+
+    //[2023-01-01 10:11:12] in the local time
+    private fun parseMinute(field: String): Long {
+        val minuteText = field.removePrefix("[").take(16)
+        if (minuteText == savedMinuteText) {
+            return savedEpochMinute
+        }
+
+        savedMinuteText = minuteText
+        savedEpochMinute = try {
+            dateFormat.parse(minuteText)?.time?.div(60_000) ?: -1
+        } catch (e: ParseException) {
+            -1
+        }
+
+        return savedEpochMinute
+    }
+
+    private fun normalizeDomain(domain: String): String =
+        domain.trimEnd('.').lowercase(Locale.ROOT)
+}
@@ -95,7 +95,8 @@ class DnsDataSourceImpl @Inject constructor(
         fun createDohResolver(
             domain: String,
             @Assisted("type") type: Int,
-            @Assisted("timeout") timeout: Int = Resolver.DNS_DEFAULT_TIMEOUT_SEC
+            @Assisted("timeout") timeout: Int = Resolver.DNS_DEFAULT_TIMEOUT_SEC,
+            method: DohDnsClient.Method = DohDnsClient.Method.POST
         ): DohResolver
     }
 }
@@ -21,48 +21,74 @@ package pan.alexander.tordnscrypt.data.dns_resolver
 
 import pan.alexander.tordnscrypt.utils.dns.Record
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsRepository
+import pan.alexander.tordnscrypt.domain.dns_resolver.DomainIpsRecord
+import pan.alexander.tordnscrypt.domain.dns_resolver.ReverseDnsRecord
 import javax.inject.Inject
 
 class DnsRepositoryImpl @Inject constructor(
     private val dnsDataSource: DnsDataSource
 ) : DnsRepository {
 
-    override fun resolveDomainUDP(domain: String, port: Int, timeout: Int): Set<String> {
-        return dnsDataSource.resolveDomainUDP(domain, port, timeout)
-            ?.filter { isRecordValid(it) }
-            ?.flatMap {
-                when {
-                    it.isA || it.isAAAA -> listOf(it.value.trim())
-                    it.isCname -> resolveDomainUDP("https://${it.value}", port, timeout)
-                    else -> emptyList()
-                }
-            }
-            ?.toHashSet() ?: emptySet()
-    }
+    override fun resolveDomainUDP(domain: String, port: Int, timeout: Int): Set<String> =
+        resolveDomainWithTtlUDP(domain, port, timeout).ips
 
-    override fun resolveDomainDOH(domain: String, timeout: Int): Set<String> {
-        return dnsDataSource.resolveDomainDOH(domain, timeout)
-            ?.filter { isRecordValid(it) }
-            ?.flatMap {
-                when {
-                    it.isA || it.isAAAA -> listOf(it.value.trim())
-                    it.isCname -> resolveDomainDOH("https://${it.value}", timeout)
-                    else -> emptyList()
-                }
-            }
-            ?.toHashSet() ?: emptySet()
-    }
+    override fun resolveDomainDOH(domain: String, timeout: Int): Set<String> =
+        resolveDomainWithTtlDOH(domain, timeout).ips
+
+    override fun resolveDomainWithTtlUDP(domain: String, port: Int, timeout: Int): DomainIpsRecord =
+        getDomainIpsRecord(dnsDataSource.resolveDomainUDP(domain, port, timeout)) {
+            resolveDomainWithTtlUDP("https://$it", port, timeout)
+        }
+
+    override fun resolveDomainWithTtlDOH(domain: String, timeout: Int): DomainIpsRecord =
+        getDomainIpsRecord(dnsDataSource.resolveDomainDOH(domain, timeout)) {
+            resolveDomainWithTtlDOH("https://$it", timeout)
+        }
 
-    override fun reverseResolveDomainUDP(ip: String, port: Int, timeout: Int): String {
+    override fun reverseResolveDomainUDP(ip: String, port: Int, timeout: Int): ReverseDnsRecord? {
         return dnsDataSource.reverseResolveUDP(ip, port, timeout)
-            ?.getOrNull(0)?.value ?: ""
+            ?.getOrNull(0)?.let { ReverseDnsRecord(it.value ?: "", it.ttl) }
     }
 
-    override fun reverseResolveDomainDOH(ip: String, timeout: Int): String {
+    override fun reverseResolveDomainDOH(ip: String, timeout: Int): ReverseDnsRecord? {
         return dnsDataSource.reverseResolveDOH(ip, timeout)
-        ?.getOrNull(0)?.value ?: ""
+            ?.getOrNull(0)?.let { ReverseDnsRecord(it.value ?: "", it.ttl) }
     }
 
+    private fun getDomainIpsRecord(
+        records: Array<Record>?,
+        resolveCname: (String) -> DomainIpsRecord
+    ): DomainIpsRecord {
+        val ips = hashSetOf<String>()
+        var ttl = Int.MAX_VALUE
+        val time = System.currentTimeMillis() / 1000
+
+        records?.filter { isRecordValid(it) }?.forEach {
+            when {
+                it.isA || it.isAAAA -> {
+                    ips.add(it.value.trim())
+                    ttl = minOf(ttl, getRemainingTtl(it, time))
+                }
+                it.isCname -> {
+                    val cnameRecord = resolveCname(it.value)
+                    if (cnameRecord.ips.isNotEmpty()) {
+                        ips.addAll(cnameRecord.ips)
+                        ttl = minOf(ttl, cnameRecord.ttlSeconds, getRemainingTtl(it, time))
+                    }
+                }
+            }
+        }
+
+        return DomainIpsRecord(ips, if (ips.isEmpty()) 0 else ttl)
+    }
+
+    private fun getRemainingTtl(record: Record, time: Long): Int =
+        if (record.ttl == Record.TTL_Forever) {
+            Int.MAX_VALUE
+        } else {
+            (record.timeStamp + record.ttl - time).coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+        }
+
     private fun isRecordValid(record: Record?): Boolean {
         return record?.value != null && record.value.isNotEmpty() && !record.isExpired
     }
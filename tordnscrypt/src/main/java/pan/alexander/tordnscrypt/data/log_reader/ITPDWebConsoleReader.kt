@@ -0,0 +1,137 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.log_reader
+
+import pan.alexander.tordnscrypt.domain.log_reader.itpd.ITPDConsoleStatus
+import pan.alexander.tordnscrypt.utils.Constants.TOR_BROWSER_USER_AGENT
+import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.regex.Pattern
+
+private const val CONNECT_TIMEOUT = 1
+private const val READ_TIMEOUT = 3
+
+private const val NETWORK_STATUS_LABEL = "<b>Network status:</b>"
+private const val SUCCESS_RATE_LABEL = "<b>Tunnel creation success rate:</b>"
+private val statisticsLabels = arrayOf(
+    NETWORK_STATUS_LABEL,
+    SUCCESS_RATE_LABEL,
+    "<b>Received:</b> ",
+    "<b>Sent:</b>",
+    "<b>Transit:</b>",
+    "<b>Routers:</b>",
+    "<b>Client Tunnels:</b>",
+    "<b>Uptime:</b>"
+)
+private val patternSuccessRate = Pattern.compile("Tunnel creation success rate:\\D+(\\d+)%")
+private val patternTags = Pattern.compile("<[^>]*>")
+
+/**
+ * Reads the router statistics from the i2pd web console.
+ * The response is consumed completely and the connection is not disconnected,
+ * so HttpURLConnection can reuse the socket if i2pd keeps it alive.
+ * Validators are sent back as conditional request headers, in which case
+ * an unchanged page is not downloaded again.
+ */
+class ITPDWebConsoleReader(port: Int) {
+
+    private val url = URL("http://127.0.0.1:$port/")
+
+    private var savedETag: String? = null
+    private var savedLastModified: String? = null
+    private var status: ITPDConsoleStatus? = null
+
+    @Synchronized
+    fun readStatus(): ITPDConsoleStatus? {
+        var connection: HttpURLConnection? = null
+        try {
+            connection = url.openConnection() as HttpURLConnection
+            status = tryReadStatus(connection)
+        } catch (e: IOException) {
+            //Expected while i2pd is starting
+            logw("ITPDWebConsoleReader ${e.message} ${e.cause}")
+            connection?.disconnect()
+            resetStatus()
+        }
+        return status
+    }
+
+    private fun tryReadStatus(connection: HttpURLConnection): ITPDConsoleStatus? {
+        connection.apply {
+            requestMethod = "GET"
+            useCaches = false
+            setRequestProperty("User-Agent", TOR_BROWSER_USER_AGENT)
+            savedETag?.let { setRequestProperty("If-None-Match", it) }
+            savedLastModified?.let { setRequestProperty("If-Modified-Since", it) }
+            connectTimeout = CONNECT_TIMEOUT * 1000
+            readTimeout = READ_TIMEOUT * 1000
+        }
+
+        when (connection.responseCode) {
+            HttpURLConnection.HTTP_NOT_MODIFIED -> {
+                connection.inputStream.close()
+                return status
+            }
+            HttpURLConnection.HTTP_OK -> {
+                savedETag = connection.getHeaderField("ETag")
+                savedLastModified = connection.getHeaderField("Last-Modified")
+            }
+            else -> {
+                connection.errorStream?.use { it.readBytes() }
+                resetStatus()
+                return null
+            }
+        }
+
+        var networkStatus = ""
+        var successRate = -1
+        val lines = mutableListOf<String>()
+
+        connection.inputStream.bufferedReader().use { reader ->
+            //The whole page is read, otherwise the connection cannot be reused
+            reader.forEachLine { line ->
+                if (statisticsLabels.any { line.contains(it) }) {
+                    lines.add(line)
+
+                    if (line.contains(NETWORK_STATUS_LABEL)) {
+                        networkStatus = patternTags.matcher(
+                            line.substringAfter(NETWORK_STATUS_LABEL)
+                        ).replaceAll("").trim()
+                    } else if (line.contains(SUCCESS_RATE_LABEL)) {
+                        val matcher = patternSuccessRate.matcher(line)
+                        if (matcher.find()) {
+                            successRate = matcher.group(1)?.toIntOrNull() ?: successRate
+                        }
+                    }
+                }
+            }
+        }
+
+        return ITPDConsoleStatus(networkStatus, successRate, lines)
+    }
+
+    private fun resetStatus() {
+        savedETag = null
+        savedLastModified = null
+        status = null
+    }
+}
@@ -0,0 +1,176 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.log_reader;
+
+import android.os.Build;
+import android.system.Os;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import pan.alexander.tordnscrypt.utils.filemanager.FileShortener;
+
+/**
+ * Follows a growing text file by offset. Each call reads only the bytes appended since
+ * the previous one and passes complete lines to the listener. Truncation and replacement
+ * of the file are detected by the file size and inode, in which case reading restarts
+ * from the last part of the file. Shortening by FileShortener only shifts the offset.
+ * Not thread safe, calls should be synchronized by the owner.
+ */
+public class LogTailFollower {
+    private final static int READ_BUFFER_SIZE = 8 * 1024;
+    private final static int MAX_LINE_BYTES = 32 * 1024;
+    private final static Charset CHARSET = Charset.forName("UTF-8");
+
+    public interface OnLineListener {
+        //Lines read before are no longer valid
+        void onReset();
+
+        void onLine(String line);
+    }
+
+    private final String filePath;
+    private final long initialTailBytes;
+
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private long position = -1;
+    private long inode;
+    private long removedBytes;
+    private boolean skipFirstLine;
+
+    /**
+     * @param initialTailBytes how much of an existing file is read when it is opened
+     *                         for the first time, after truncation or replacement.
+     */
+    public LogTailFollower(String filePath, long initialTailBytes) {
+        this.filePath = filePath;
+        this.initialTailBytes = initialTailBytes;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * @return false if the file does not exist.
+     */
+    public boolean follow(OnLineListener listener) throws IOException {
+        File file = new File(filePath);
+
+        if (!file.exists()) {
+            if (position != 0) {
+                reset(0, listener);
+            }
+            return false;
+        }
+
+        //The file was shortened by FileShortener, its content moved to the beginning
+        long currentRemovedBytes = FileShortener.getRemovedBytes(filePath);
+        if (position >= 0 && currentRemovedBytes != removedBytes) {
+            long shift = currentRemovedBytes - removedBytes;
+            position = position >= shift ? position - shift : -1;
+        }
+        removedBytes = currentRemovedBytes;
+
+        long size = file.length();
+        long currentInode = getInode();
+        if (position < 0 || size < position || currentInode != inode) {
+            inode = currentInode;
+            reset(size, listener);
+        }
+
+        if (size > position) {
+            readAppended(listener);
+        }
+
+        return true;
+    }
+
+    private void reset(long size, OnLineListener listener) {
+        partialLine.reset();
+        position = Math.max(0, size - initialTailBytes);
+        skipFirstLine = position > 0;
+        listener.onReset();
+    }
+
+    private void readAppended(OnLineListener listener) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(filePath);
+             FileChannel channel = inputStream.getChannel()) {
+
+            int read;
+            buffer.clear();
+            while ((read = channel.read(buffer, position)) > 0) {
+                position += read;
+                byte[] bytes = buffer.array();
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == '\n') {
+                        partialLine.write(bytes, lineStart, i - lineStart);
+                        onLine(listener);
+                        lineStart = i + 1;
+                    }
+                }
+                partialLine.write(bytes, lineStart, read - lineStart);
+                if (partialLine.size() > MAX_LINE_BYTES) {
+                    //Not a text log, do not keep growing
+                    partialLine.reset();
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    private void onLine(OnLineListener listener) {
+        if (skipFirstLine) {
+            //The first line after a seek is most likely incomplete
+            skipFirstLine = false;
+            partialLine.reset();
+            return;
+        }
+
+        byte[] bytes = partialLine.toByteArray();
+        partialLine.reset();
+
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+
+        listener.onLine(new String(bytes, 0, length, CHARSET));
+    }
+
+    private long getInode() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+
+        try {
+            return Os.stat(filePath).st_ino;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
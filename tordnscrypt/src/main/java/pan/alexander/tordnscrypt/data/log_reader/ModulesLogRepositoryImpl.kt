@@ -20,10 +20,20 @@
 package pan.alexander.tordnscrypt.data.log_reader
 
 import android.content.Context
+import android.os.FileObserver
+import pan.alexander.tordnscrypt.domain.log_reader.ModuleLog
 import pan.alexander.tordnscrypt.domain.log_reader.ModulesLogRepository
+import pan.alexander.tordnscrypt.domain.log_reader.itpd.ITPDConsoleStatus
 import pan.alexander.tordnscrypt.settings.PathVars
+import java.io.File
 import javax.inject.Inject
 
+private const val DNSCRYPT_LOG = "DnsCrypt.log"
+private const val TOR_LOG = "Tor.log"
+private const val ITPD_LOG = "i2pd.log"
+private const val LOGS_OBSERVER_MASK = FileObserver.MODIFY or FileObserver.CREATE or
+        FileObserver.MOVED_TO or FileObserver.DELETE
+
 class ModulesLogRepositoryImpl @Inject constructor(
     val applicationContext: Context,
     pathVars: PathVars
@@ -33,12 +43,13 @@ class ModulesLogRepositoryImpl @Inject constructor(
     private var dnsCryptLogFileReader: OwnFileReader? = null
     private var torLogFileReader: OwnFileReader? = null
     private var itpdLogFileReader: OwnFileReader? = null
-    private var itpdHtmlFileReader: HtmlReader? = null
+    private var itpdWebConsoleReader: ITPDWebConsoleReader? = null
+    private var logsObserver: FileObserver? = null
 
     override fun getDNSCryptLog(): List<String> {
         dnsCryptLogFileReader = dnsCryptLogFileReader ?: OwnFileReader(
             applicationContext,
-            "$appDataDir/logs/DnsCrypt.log"
+            "$appDataDir/logs/$DNSCRYPT_LOG"
         )
         return dnsCryptLogFileReader?.readLastLines() ?: emptyList()
     }
@@ -46,7 +57,7 @@ class ModulesLogRepositoryImpl @Inject constructor(
     override fun getTorLog(): List<String> {
         torLogFileReader = torLogFileReader ?: OwnFileReader(
             applicationContext,
-            "$appDataDir/logs/Tor.log"
+            "$appDataDir/logs/$TOR_LOG"
         )
         return torLogFileReader?.readLastLines() ?: emptyList()
     }
@@ -54,13 +65,43 @@ class ModulesLogRepositoryImpl @Inject constructor(
     override fun getITPDLog(): List<String> {
         itpdLogFileReader = itpdLogFileReader ?: OwnFileReader(
             applicationContext,
-            "$appDataDir/logs/i2pd.log"
+            "$appDataDir/logs/$ITPD_LOG"
         )
         return itpdLogFileReader?.readLastLines() ?: emptyList()
     }
 
-    override fun getITPDHtmlData(): List<String> {
-        itpdHtmlFileReader = itpdHtmlFileReader ?: HtmlReader(7070)
-        return itpdHtmlFileReader?.readLines() ?: emptyList()
+    override fun getITPDConsoleStatus(): ITPDConsoleStatus? {
+        itpdWebConsoleReader = itpdWebConsoleReader ?: ITPDWebConsoleReader(7070)
+        return itpdWebConsoleReader?.readStatus()
+    }
+
+    @Synchronized
+    override fun startLogsObserver(onLogChanged: (ModuleLog) -> Unit): Boolean {
+        stopLogsObserver()
+
+        val logsDir = File("$appDataDir/logs")
+        if (!logsDir.isDirectory) {
+            return false
+        }
+
+        //The directory is watched, so that recreated log files are noticed too
+        @Suppress("DEPRECATION")
+        logsObserver = object : FileObserver(logsDir.path, LOGS_OBSERVER_MASK) {
+            override fun onEvent(event: Int, path: String?) {
+                when (path) {
+                    DNSCRYPT_LOG -> onLogChanged(ModuleLog.DNSCRYPT)
+                    TOR_LOG -> onLogChanged(ModuleLog.TOR)
+                    ITPD_LOG -> onLogChanged(ModuleLog.ITPD)
+                }
+            }
+        }.apply { startWatching() }
+
+        return true
+    }
+
+    @Synchronized
+    override fun stopLogsObserver() {
+        logsObserver?.stopWatching()
+        logsObserver = null
     }
 }
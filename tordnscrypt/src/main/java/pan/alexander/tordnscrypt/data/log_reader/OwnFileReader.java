@@ -22,114 +22,99 @@ package pan.alexander.tordnscrypt.data.log_reader;
 import android.content.Context;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
 
 import pan.alexander.tordnscrypt.utils.filemanager.FileShortener;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
 
 import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
 
+/**
+ * Follows the tail of a module log file. Only bytes appended since the previous call are read,
+ * the last lines are kept in memory. Truncation and replacement of the file are detected
+ * by the file size and inode, in which case the tail is read again.
+ * Each reader has its own state, so readers of different modules never wait for each other.
+ */
 public class OwnFileReader {
-    //private final static long TOO_LONG_FILE_LENGTH = 1024 * 100;
     private final static int MAX_LINES_QUANTITY = 80;
-    private final static int MAX_LINES_HYSTERESIS = 50;
-
-
-    private static final ReentrantLock reentrantLock = new ReentrantLock();
+    private final static int INITIAL_TAIL_BYTES = 32 * 1024;
 
     private final Context context;
     private final String filePath;
+    private final LogTailFollower logTailFollower;
+
+    private final ArrayDeque<String> lastLines = new ArrayDeque<>(MAX_LINES_QUANTITY);
+    private List<String> lastLinesSnapshot = Collections.emptyList();
+    private boolean linesChanged;
 
     public OwnFileReader(Context context, String filePath) {
         this.context = context;
         this.filePath = filePath;
+        this.logTailFollower = new LogTailFollower(filePath, INITIAL_TAIL_BYTES);
     }
 
-    public List<String> readLastLines() {
-
-        List<String> lines = new LinkedList<>();
-
-        boolean fileIsTooLong = false;
+    public synchronized List<String> readLastLines() {
 
         try {
-            reentrantLock.lockInterruptibly();
-
             File file = new File(filePath);
 
-            if (!file.exists()) {
-                return Collections.emptyList();
+            if (context != null && file.exists() && !file.canRead()) {
+                restoreAccess(file);
             }
 
-            if (context != null && !file.canRead()) {
-                if (!file.setReadable(true)) {
-                    Log.w(LOG_TAG, "Impossible to read file " + filePath + " Try restore access");
+            if (file.exists()) {
+                FileShortener.shortenTooTooLongFile(filePath);
+            }
 
-                    FileManager fileManager = new FileManager();
-                    fileManager.restoreAccess(context, filePath);
-                }
+            logTailFollower.follow(lineListener);
 
-                if (file.canRead()) {
-                    Log.i(LOG_TAG, "Access to " + filePath + " restored");
-                } else {
-                    Log.e(LOG_TAG, "Impossible to read file " + filePath);
-                }
-            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Impossible to read file " + filePath + " " + e.getMessage() + " " + e.getCause());
+        }
 
-            FileShortener.shortenTooTooLongFile(filePath);
+        if (linesChanged) {
+            linesChanged = false;
+            lastLinesSnapshot = lastLines.isEmpty()
+                    ? Collections.emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(lastLines));
+        }
 
-            try (FileInputStream fstream = new FileInputStream(filePath);
-                 InputStreamReader reader = new InputStreamReader(fstream);
-                 BufferedReader br = new BufferedReader(reader)) {
+        return lastLinesSnapshot;
+    }
 
-                for (String line; (line = br.readLine()) != null; ) {
-                    lines.add(line);
-                    if (lines.size() > MAX_LINES_QUANTITY + MAX_LINES_HYSTERESIS) {
-                        lines.remove(0);
-                        fileIsTooLong = true;
-                    }
-                }
-            }
+    private final LogTailFollower.OnLineListener lineListener = new LogTailFollower.OnLineListener() {
+        @Override
+        public void onReset() {
+            lastLines.clear();
+            linesChanged = true;
+        }
 
-            if (fileIsTooLong) {
-                lines = lines.subList(lines.size() - MAX_LINES_QUANTITY, lines.size());
-                shortenTooLongFile(lines);
+        @Override
+        public void onLine(String line) {
+            if (lastLines.size() >= MAX_LINES_QUANTITY) {
+                lastLines.pollFirst();
             }
-
-        }  catch (Exception e) {
-            Log.e(LOG_TAG, "Impossible to read file " + filePath + " " + e.getMessage() + " " + e.getCause());
-        } finally {
-            reentrantLock.unlock();
+            lastLines.addLast(line);
+            linesChanged = true;
         }
+    };
 
-        return lines;
-    }
+    private void restoreAccess(File file) {
+        if (!file.setReadable(true)) {
+            Log.w(LOG_TAG, "Impossible to read file " + filePath + " Try restore access");
 
-    private void shortenTooLongFile(List<String> lines) {
-        File file = new File(filePath);
-        if (!file.isFile()) {
-            return;
+            FileManager fileManager = new FileManager();
+            fileManager.restoreAccess(context, filePath);
         }
 
-        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
-            if (lines != null && lines.size() != 0) {
-                StringBuilder buffer = new StringBuilder();
-                for (String line : lines) {
-                    buffer.append(line).append("\n");
-                }
-                writer.println(buffer);
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Unable to rewrite too long file" + filePath + e.getMessage() + " " + e.getCause());
+        if (file.canRead()) {
+            Log.i(LOG_TAG, "Access to " + filePath + " restored");
+        } else {
+            Log.e(LOG_TAG, "Impossible to read file " + filePath);
         }
     }
-
 }
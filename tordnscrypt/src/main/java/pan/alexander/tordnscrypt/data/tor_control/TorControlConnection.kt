@@ -0,0 +1,172 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.tor_control
+
+import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import java.io.BufferedReader
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+
+private const val REPLY_TIMEOUT_SEC = 5L
+private const val REPLY_CODE_LENGTH = 3
+private const val ASYNC_EVENT_CODE_PREFIX = '6'
+
+/**
+ * Tor control protocol over an already connected stream.
+ * Replies arrive in the order the commands were sent, asynchronous events (650)
+ * can be interleaved with them and are handed to [onEvent] on the reader thread.
+ */
+class TorControlConnection(
+    private val socket: Closeable,
+    inputStream: InputStream,
+    private val outputStream: OutputStream,
+    private val onEvent: (List<String>) -> Unit,
+    private val onClosed: () -> Unit
+) {
+
+    private val reader = BufferedReader(InputStreamReader(inputStream, Charsets.US_ASCII))
+    private val pendingReplies = ConcurrentLinkedQueue<ArrayBlockingQueue<Reply>>()
+
+    @Volatile
+    var isClosed = false
+        private set
+
+    fun start() {
+        Thread({ readLoop() }, "TorControlConnection").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * @return reply lines without the status codes.
+     * @throws IOException if the connection is closed, the reply timed out or Tor rejected the command.
+     */
+    @Throws(IOException::class)
+    fun sendCommand(command: String): List<String> {
+        val replyHolder = ArrayBlockingQueue<Reply>(1)
+
+        synchronized(outputStream) {
+            if (isClosed) {
+                throw IOException("Tor control connection is closed")
+            }
+            pendingReplies.add(replyHolder)
+            outputStream.write("$command\r\n".toByteArray(Charsets.US_ASCII))
+            outputStream.flush()
+        }
+
+        val reply = try {
+            replyHolder.poll(REPLY_TIMEOUT_SEC, TimeUnit.SECONDS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            null
+        } ?: throw IOException("Tor control reply timeout ${command.substringBefore(' ')}")
+
+        if (reply.code == null) {
+            throw IOException("Tor control connection is closed")
+        } else if (!reply.code.startsWith("2")) {
+            throw IOException("Tor control ${command.substringBefore(' ')} ${reply.code} ${reply.lines}")
+        }
+
+        return reply.lines
+    }
+
+    fun close() {
+        synchronized(outputStream) {
+            if (isClosed) {
+                return
+            }
+            isClosed = true
+        }
+
+        try {
+            socket.close()
+        } catch (e: IOException) {
+            logw("TorControlConnection close", e)
+        }
+
+        while (true) {
+            val replyHolder = pendingReplies.poll() ?: break
+            replyHolder.offer(Reply(null, emptyList()))
+        }
+
+        onClosed()
+    }
+
+    private fun readLoop() {
+        try {
+            while (!isClosed) {
+                val reply = readReply() ?: break
+                if (reply.code?.firstOrNull() == ASYNC_EVENT_CODE_PREFIX) {
+                    onEvent(reply.lines)
+                } else {
+                    pendingReplies.poll()?.offer(reply)
+                }
+            }
+        } catch (e: IOException) {
+            if (!isClosed) {
+                logw("TorControlConnection read", e)
+            }
+        } catch (e: Exception) {
+            logw("TorControlConnection read", e)
+        } finally {
+            close()
+        }
+    }
+
+    //Returns null on the end of stream
+    private fun readReply(): Reply? {
+        val lines = mutableListOf<String>()
+        while (true) {
+            val line = reader.readLine() ?: return null
+            if (line.length < REPLY_CODE_LENGTH + 1) {
+                continue
+            }
+
+            val code = line.substring(0, REPLY_CODE_LENGTH)
+            val separator = line[REPLY_CODE_LENGTH]
+            lines.add(line.substring(REPLY_CODE_LENGTH + 1))
+
+            when (separator) {
+                ' ' -> return Reply(code, lines)
+                '+' -> readDataLines(lines)
+            }
+        }
+    }
+
+    //Data replies end with a single dot, leading dots are escaped
+    private fun readDataLines(lines: MutableList<String>) {
+        while (true) {
+            val line = reader.readLine() ?: return
+            if (line == ".") {
+                return
+            }
+            lines.add(if (line.startsWith("..")) line.substring(1) else line)
+        }
+    }
+
+    private class Reply(val code: String?, val lines: List<String>)
+}
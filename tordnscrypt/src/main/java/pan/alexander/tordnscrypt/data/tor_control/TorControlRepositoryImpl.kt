@@ -0,0 +1,139 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.data.tor_control
+
+import android.net.LocalSocket
+import android.net.LocalSocketAddress
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlRepository
+import pan.alexander.tordnscrypt.settings.PathVars
+import java.io.File
+import java.io.IOException
+import java.util.Locale
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val COOKIE_LENGTH = 32
+
+@Singleton
+class TorControlRepositoryImpl @Inject constructor(
+    private val pathVars: PathVars
+) : TorControlRepository {
+
+    @Volatile
+    private var connection: TorControlConnection? = null
+
+    @Synchronized
+    override fun connect(onEvent: (List<String>) -> Unit, onDisconnected: () -> Unit) {
+        if (connection?.isClosed == false) {
+            return
+        }
+
+        val cookie = readCookie()
+
+        val socket = LocalSocket()
+        try {
+            socket.connect(
+                LocalSocketAddress(
+                    pathVars.torControlSocketPath,
+                    LocalSocketAddress.Namespace.FILESYSTEM
+                )
+            )
+        } catch (e: IOException) {
+            socket.close()
+            throw e
+        }
+
+        val newConnection = TorControlConnection(
+            socket,
+            socket.inputStream,
+            socket.outputStream,
+            onEvent,
+            onDisconnected
+        )
+        newConnection.start()
+
+        try {
+            newConnection.sendCommand("AUTHENTICATE ${cookie.toHex()}")
+        } catch (e: IOException) {
+            newConnection.close()
+            throw e
+        }
+
+        connection = newConnection
+    }
+
+    @Synchronized
+    override fun disconnect() {
+        connection?.close()
+        connection = null
+    }
+
+    override fun isConnected(): Boolean = connection?.isClosed == false
+
+    override fun setEvents(events: List<String>) {
+        getConnection().sendCommand("SETEVENTS ${events.joinToString(" ")}")
+    }
+
+    override fun getInfo(key: String): String {
+        val prefix = "$key="
+        return getConnection().sendCommand("GETINFO $key")
+            .firstOrNull { it.startsWith(prefix) }
+            ?.substring(prefix.length)
+            ?: throw IOException("Tor control GETINFO $key no value")
+    }
+
+    override fun getInfoLines(key: String): List<String> {
+        val prefix = "$key="
+        val reply = getConnection().sendCommand("GETINFO $key")
+        val index = reply.indexOfFirst { it.startsWith(prefix) }
+        if (index < 0) {
+            throw IOException("Tor control GETINFO $key no value")
+        }
+        val value = reply[index].substring(prefix.length)
+        //Multiline values are sent as a data reply and followed by the final OK line
+        return if (value.isNotEmpty()) {
+            listOf(value)
+        } else {
+            reply.subList(index + 1, reply.size - 1).filter { it.isNotEmpty() }
+        }
+    }
+
+    override fun signal(signal: String) {
+        getConnection().sendCommand("SIGNAL $signal")
+    }
+
+    override fun closeCircuit(circuitId: String) {
+        getConnection().sendCommand("CLOSECIRCUIT $circuitId")
+    }
+
+    private fun getConnection(): TorControlConnection =
+        connection?.takeIf { !it.isClosed } ?: throw IOException("Tor control is not connected")
+
+    private fun readCookie(): ByteArray {
+        val cookie = File(pathVars.torControlCookiePath).readBytes()
+        if (cookie.size != COOKIE_LENGTH) {
+            throw IOException("Tor control cookie has wrong length ${cookie.size}")
+        }
+        return cookie
+    }
+
+    private fun ByteArray.toHex(): String =
+        joinToString("") { String.format(Locale.ROOT, "%02X", it.toInt() and 0xFF) }
+}
@@ -35,6 +35,7 @@ import pan.alexander.tordnscrypt.dialogs.*
 
 import pan.alexander.tordnscrypt.dnscrypt_fragment.DNSCryptFragmentReceiver
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import pan.alexander.tordnscrypt.help.HelpActivity
 import pan.alexander.tordnscrypt.help.HelpActivityReceiver
 import pan.alexander.tordnscrypt.installer.Installer
@@ -47,6 +48,7 @@ import pan.alexander.tordnscrypt.proxy.ProxyFragment
 import pan.alexander.tordnscrypt.settings.*
 import pan.alexander.tordnscrypt.settings.dnscrypt_relays.PreferencesDNSCryptRelays
 import pan.alexander.tordnscrypt.settings.dnscrypt_servers.PreferencesDNSCryptServers
+import pan.alexander.tordnscrypt.settings.dnscrypt_settings.DnsQueryStatsFragment
 import pan.alexander.tordnscrypt.settings.dnscrypt_settings.PreferencesDNSFragment
 import pan.alexander.tordnscrypt.settings.firewall.FirewallFragment
 import pan.alexander.tordnscrypt.settings.tor_apps.UnlockTorAppsFragment
@@ -83,6 +85,7 @@ interface AppComponent {
     fun getPathVars(): dagger.Lazy<PathVars>
     fun getPreferenceRepository(): dagger.Lazy<PreferenceRepository>
     fun getCachedExecutor(): CachedExecutor
+    fun getTorControlInteractor(): dagger.Lazy<TorControlInteractor>
 
     @Component.Builder
     interface Builder {
@@ -109,6 +112,7 @@ interface AppComponent {
     fun inject(fragment: PreferencesITPDFragment)
     fun inject(fragment: PreferencesDNSCryptRelays)
     fun inject(fragment: PreferencesDNSFragment)
+    fun inject(fragment: DnsQueryStatsFragment)
     fun inject(fragment: UpdateModulesDialogFragment)
     fun inject(fragment: NotificationHelper)
     fun inject(fragment: ExtendedDialogFragment)
@@ -24,15 +24,19 @@ import dagger.Module
 import pan.alexander.tordnscrypt.data.bridges.DefaultVanillaBridgeRepositoryImpl
 import pan.alexander.tordnscrypt.data.bridges.RequestBridgesRepositoryImpl
 import pan.alexander.tordnscrypt.data.connection_checker.ConnectionCheckerRepositoryImpl
+import pan.alexander.tordnscrypt.data.dns_query_stats.DnsQueryLogRepositoryImpl
 import pan.alexander.tordnscrypt.data.dns_resolver.DnsRepositoryImpl
 import pan.alexander.tordnscrypt.data.preferences.PreferenceRepositoryImpl
 import pan.alexander.tordnscrypt.data.resources.ResourceRepositoryImpl
+import pan.alexander.tordnscrypt.data.tor_control.TorControlRepositoryImpl
 import pan.alexander.tordnscrypt.domain.bridges.DefaultVanillaBridgeRepository
 import pan.alexander.tordnscrypt.domain.bridges.RequestBridgesRepository
 import pan.alexander.tordnscrypt.domain.connection_checker.ConnectionCheckerRepository
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryLogRepository
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsRepository
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
 import pan.alexander.tordnscrypt.domain.resources.ResourceRepository
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlRepository
 
 @Module
 abstract class RepositoryModule {
@@ -62,4 +66,14 @@ abstract class RepositoryModule {
     abstract fun provideRequestBridgesRepository(
         bridgesRepository: RequestBridgesRepositoryImpl
     ): RequestBridgesRepository
+
+    @Binds
+    abstract fun provideTorControlRepository(
+        torControlRepository: TorControlRepositoryImpl
+    ): TorControlRepository
+
+    @Binds
+    abstract fun provideDnsQueryLogRepository(
+        dnsQueryLogRepository: DnsQueryLogRepositoryImpl
+    ): DnsQueryLogRepository
 }
@@ -23,6 +23,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.Html;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.view.ScaleGestureDetector;
 import android.widget.Toast;
@@ -40,7 +41,9 @@ import pan.alexander.tordnscrypt.TopFragment;
 import pan.alexander.tordnscrypt.dialogs.NotificationDialogFragment;
 import pan.alexander.tordnscrypt.dialogs.NotificationHelper;
 import pan.alexander.tordnscrypt.dialogs.RequestIgnoreBatteryOptimizationDialog;
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionLogRow;
 import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecordsInteractorInterface;
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionRecordsUpdate;
 import pan.alexander.tordnscrypt.domain.log_reader.DNSCryptInteractorInterface;
 import pan.alexander.tordnscrypt.domain.connection_records.OnConnectionRecordsUpdatedListener;
 import pan.alexander.tordnscrypt.domain.log_reader.LogDataModel;
@@ -51,6 +54,7 @@ import pan.alexander.tordnscrypt.modules.ModulesKiller;
 import pan.alexander.tordnscrypt.modules.ModulesRunner;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
+import pan.alexander.tordnscrypt.utils.parsers.HtmlLinesSpanner;
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPNHelper;
 
 import static pan.alexander.tordnscrypt.di.SharedPreferencesModule.DEFAULT_PREFERENCES_NAME;
@@ -67,6 +71,9 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.UNDEFINED;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.VPN_MODE;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -92,7 +99,9 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
 
     private volatile LogDataModel savedLogData;
     private volatile int savedLinesLength;
-    private volatile String savedConnectionRecords = "";
+    private final HtmlLinesSpanner logLinesSpanner = new HtmlLinesSpanner();
+    private volatile Spanned savedConnectionRecords = new SpannableStringBuilder();
+    private final Map<Long, ConnectionRowSpanned> connectionRowsSpanned = new HashMap<>();
     private boolean fixedDNSCryptReady;
     private boolean fixedDNSCryptError;
 
@@ -171,7 +180,10 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
             fixedModuleState = STOPPED;
             savedLogData = null;
             savedLinesLength = 0;
-            savedConnectionRecords = "";
+            savedConnectionRecords = new SpannableStringBuilder();
+            synchronized (connectionRowsSpanned) {
+                connectionRowsSpanned.clear();
+            }
             fixedDNSCryptReady = false;
             fixedDNSCryptError = false;
         }
@@ -315,10 +327,13 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
         }
 
         Spanned htmlLines;
-        if (savedConnectionRecords.isEmpty()) {
-            htmlLines = Html.fromHtml(dnsCryptLogData.getLines());
+        Spanned connectionRecords = savedConnectionRecords;
+        if (connectionRecords.length() == 0) {
+            htmlLines = logLinesSpanner.toSpanned(lastLines);
         } else {
-            htmlLines = Html.fromHtml(dnsCryptLogData.getLines() + "<br />" + savedConnectionRecords);
+            htmlLines = new SpannableStringBuilder(logLinesSpanner.toSpanned(lastLines))
+                    .append("\n\n")
+                    .append(connectionRecords);
         }
 
         if (!isActive() || htmlLines == null) {
@@ -400,24 +415,24 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
     }
 
     @Override
-    public void onConnectionRecordsUpdated(@NonNull String connectionRecords) {
+    public void onConnectionRecordsUpdated(@NonNull ConnectionRecordsUpdate update) {
         String logLines = "";
         if (savedLogData != null) {
             logLines = savedLogData.getLines();
         }
-        displayDnsResponses(logLines, connectionRecords);
+        displayDnsResponses(logLines, update);
     }
 
-    private void displayDnsResponses(String savedLogLines, String connectionRecords) {
+    private void displayDnsResponses(String savedLogLines, ConnectionRecordsUpdate update) {
 
         if (modulesStatus.getMode() != VPN_MODE
                 && modulesStatus.getMode() != ROOT_MODE
                 && !isFixTTL()
                 || isRealTimeLogsDisabled()) {
-            if (!savedConnectionRecords.isEmpty()) {
-                savedConnectionRecords = "";
+            if (savedConnectionRecords.length() > 0) {
+                savedConnectionRecords = new SpannableStringBuilder();
 
-                Spanned htmlLines = Html.fromHtml(savedLogLines);
+                Spanned htmlLines = logLinesSpanner.toSpanned(savedLogLines);
 
                 if (!isActive()) {
                     return;
@@ -439,16 +454,21 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
             return;
         }
 
+        Spanned connectionRecords = formatConnectionRecords(update);
+
         if (!dnsCryptLogAutoScroll) {
             return;
         }
 
-        if (connectionRecords.equals(savedConnectionRecords) && !savedLogLines.isEmpty()) {
-            return;
+        Spanned htmlLines;
+        if (connectionRecords.length() == 0) {
+            htmlLines = logLinesSpanner.toSpanned(savedLogLines);
+        } else {
+            htmlLines = new SpannableStringBuilder(logLinesSpanner.toSpanned(savedLogLines))
+                    .append("\n\n")
+                    .append(connectionRecords);
         }
 
-        Spanned htmlLines = Html.fromHtml(savedLogLines + "<br />" + connectionRecords);
-
         if (!isActive()) {
             return;
         }
@@ -463,11 +483,51 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterInter
                     }
                 }
             } else {
-                savedConnectionRecords = "";
+                savedConnectionRecords = new SpannableStringBuilder();
             }
         });
     }
 
+    //Only new and changed rows are parsed, spans of other rows are reused
+    private Spanned formatConnectionRecords(ConnectionRecordsUpdate update) {
+        synchronized (connectionRowsSpanned) {
+            if (update.getReset()) {
+                connectionRowsSpanned.clear();
+            }
+
+            Map<Long, ConnectionRowSpanned> rowsSpanned = new HashMap<>();
+            SpannableStringBuilder connectionRecords = new SpannableStringBuilder();
+
+            for (ConnectionLogRow row : update.getRows()) {
+                ConnectionRowSpanned rowSpanned = connectionRowsSpanned.get(row.getId());
+                if (rowSpanned == null || !rowSpanned.html.equals(row.getHtml())) {
+                    rowSpanned = new ConnectionRowSpanned(row.getHtml(), Html.fromHtml(row.getHtml()));
+                }
+                rowsSpanned.put(row.getId(), rowSpanned);
+
+                if (connectionRecords.length() > 0) {
+                    connectionRecords.append('\n');
+                }
+                connectionRecords.append(rowSpanned.spanned);
+            }
+
+            connectionRowsSpanned.clear();
+            connectionRowsSpanned.putAll(rowsSpanned);
+
+            return connectionRecords;
+        }
+    }
+
+    private static class ConnectionRowSpanned {
+        private final String html;
+        private final Spanned spanned;
+
+        private ConnectionRowSpanned(String html, Spanned spanned) {
+            this.html = html;
+            this.spanned = spanned;
+        }
+    }
+
     /* For testing purposes
     String strDiffCalc(String s1, String s2) {
 
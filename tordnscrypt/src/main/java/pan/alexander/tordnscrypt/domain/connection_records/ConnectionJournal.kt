@@ -0,0 +1,124 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.connection_records
+
+import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Fixed-capacity, time-ordered journal of connection records.
+ * Every added record gets the next sequence number and is written into a ring slot,
+ * overwriting the oldest record, so eviction does not require sorting or copying.
+ * A record equal to one already in the journal is moved to the head, as remove and put did before.
+ * Writers are serialized, readers never lock and can consume only records added since a known sequence.
+ */
+class ConnectionJournal(capacity: Int) {
+
+    private val capacity = Integer.highestOneBit(maxOf(capacity, 2) - 1) shl 1
+    private val mask = this.capacity - 1
+    private val slots = AtomicReferenceArray<Entry?>(this.capacity)
+
+    //Guarded by this
+    private val index = HashMap<ConnectionData, Entry>()
+
+    @Volatile
+    private var head = 0L
+
+    @Volatile
+    private var clearedAt = 0L
+
+    /**
+     * Called on the writer thread after records were added or cleared, so it must return quickly.
+     */
+    @Volatile
+    var onChangedListener: (() -> Unit)? = null
+
+    @Synchronized
+    fun add(record: ConnectionData) {
+        val sequence = head + 1
+        val slot = (sequence and mask.toLong()).toInt()
+
+        slots.get(slot)?.let { evicted ->
+            if (index[evicted.record] === evicted) {
+                index.remove(evicted.record)
+            }
+        }
+
+        val entry = Entry(sequence, record)
+        index.put(record, entry)?.let { previous ->
+            slots.compareAndSet((previous.sequence and mask.toLong()).toInt(), previous, null)
+        }
+
+        slots.set(slot, entry)
+        head = sequence
+
+        onChangedListener?.invoke()
+    }
+
+    @Synchronized
+    fun clear() {
+        for (i in 0 until capacity) {
+            slots.set(i, null)
+        }
+        index.clear()
+        clearedAt = head + 1
+        head = clearedAt
+
+        onChangedListener?.invoke()
+    }
+
+    fun getLastSequence(): Long = head
+
+    /**
+     * @return all records in the journal, oldest first.
+     */
+    fun getRecords(): List<ConnectionData> = readSince(0).records
+
+    /**
+     * @param sequence the last sequence already consumed by the reader, see [Batch.lastSequence].
+     * @return records added after the sequence, oldest first.
+     * If the journal was cleared or the reader fell behind by more than the capacity,
+     * [Batch.reset] is set and the batch contains all records in the journal.
+     */
+    fun readSince(sequence: Long): Batch {
+        val last = head
+        val oldest = maxOf(last - capacity + 1, 1)
+        val reset = sequence < clearedAt || sequence + 1 < oldest || sequence > last
+
+        val from = if (reset) oldest else sequence + 1
+        val records = ArrayList<ConnectionData>((last - from + 1).toInt().coerceIn(0, capacity))
+        for (i in from..last) {
+            val entry = slots.get((i and mask.toLong()).toInt())
+            if (entry != null && entry.sequence == i) {
+                records.add(entry.record)
+            }
+        }
+
+        return Batch(records, last, reset)
+    }
+
+    class Batch(
+        val records: List<ConnectionData>,
+        val lastSequence: Long,
+        val reset: Boolean
+    )
+
+    private class Entry(val sequence: Long, val record: ConnectionData)
+}
@@ -23,7 +23,7 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.os.Build
 import androidx.preference.PreferenceManager
-import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor
+import pan.alexander.tordnscrypt.domain.dns_resolver.ReverseDnsService
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
 import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.Companion.SPECIAL_UID_CONNECTIVITY_CHECK
@@ -33,77 +33,95 @@ import pan.alexander.tordnscrypt.utils.Constants.META_ADDRESS
 import pan.alexander.tordnscrypt.utils.connectionchecker.NetworkChecker
 import pan.alexander.tordnscrypt.utils.connectivitycheck.ConnectivityCheckManager
 import pan.alexander.tordnscrypt.utils.enums.OperationMode
-import pan.alexander.tordnscrypt.utils.executors.CachedExecutor
-import pan.alexander.tordnscrypt.utils.logger.Logger.loge
 import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.*
 import pan.alexander.tordnscrypt.vpn.VpnUtils
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN.LINES_IN_DNS_QUERY_RAW_RECORDS
 import pan.alexander.tordnscrypt.vpn.service.VpnBuilder
-import java.util.concurrent.ArrayBlockingQueue
-import java.util.concurrent.Future
+import java.util.Collections
+import java.util.IdentityHashMap
 import javax.inject.Inject
 
-private const val REVERSE_LOOKUP_QUEUE_CAPACITY = 32
-private const val IP_TO_HOST_ADDRESS_MAP_SIZE = LINES_IN_DNS_QUERY_RAW_RECORDS
+private const val MAX_CONVERTED_RECORDS = LINES_IN_DNS_QUERY_RAW_RECORDS
+private const val MAX_RECORDS_AWAITING_REVERSE_DNS = 64
 private const val DNS_REVERSE_LOOKUP_SUFFIX = ".in-addr.arpa"
 
-class ConnectionRecordsConverter @Inject constructor(
-    context: Context,
-    preferenceRepository: PreferenceRepository,
-    private val dnsInteractor: dagger.Lazy<DnsInteractor>,
-    private val cachedExecutor: CachedExecutor,
-    private val connectivityCheckManager: ConnectivityCheckManager
+class ConnectionRecordsConverter internal constructor(
+    private val settings: Settings,
+    private val peekReverseDns: (ip: String) -> String?,
+    private val resolveReverseDnsAsync: (ip: String) -> Unit,
+    private val getConnectivityCheckIps: () -> Set<String>
 ) {
 
-    private val sharedPreferences: SharedPreferences =
-        PreferenceManager.getDefaultSharedPreferences(context)
-    private val blockIPv6: Boolean = sharedPreferences.getBoolean(BLOCK_IPv6, true)
-    private val meteredNetwork = NetworkChecker.isMeteredNetwork(context)
-    private val vpnDNS = VpnBuilder.vpnDnsSet
+    @Inject
+    constructor(
+        context: Context,
+        preferenceRepository: PreferenceRepository,
+        reverseDnsService: ReverseDnsService,
+        connectivityCheckManager: ConnectivityCheckManager
+    ) : this(
+        Settings.load(context, preferenceRepository),
+        reverseDnsService::peek,
+        reverseDnsService::resolveAsync,
+        connectivityCheckManager::getConnectivityCheckIps
+    )
+
+    private val blockIPv6 = settings.blockIPv6
+    private val meteredNetwork = settings.meteredNetwork
+    private val vpnDNS = settings.vpnDNS
     private val modulesStatus = ModulesStatus.getInstance()
-    private val fixTTL = (modulesStatus.isFixTTL && modulesStatus.mode == OperationMode.ROOT_MODE
-            && !modulesStatus.isUseModulesWithRoot)
-    private var compatibilityMode = (sharedPreferences.getBoolean(COMPATIBILITY_MODE, false)
-            || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
-            && modulesStatus.mode == OperationMode.VPN_MODE
+    private val fixTTL = settings.fixTTL
+    private val compatibilityMode = settings.compatibilityMode
 
-    private val dnsQueryLogRecords = ArrayList<ConnectionRecord>()
+    private val dnsQueryLogRecords = IndexedConnectionRecords()
     private val dnsQueryLogRecordsSublist = ArrayList<ConnectionRecord>()
-    private val reverseLookupQueue = ArrayBlockingQueue<String>(REVERSE_LOOKUP_QUEUE_CAPACITY, true)
-    private val ipToHostAddressMap = mutableMapOf<IpToTime, String>()
-    private var futureTask: Future<*>? = null
-
-    private val firewallEnabled = preferenceRepository.getBoolPreference(FIREWALL_ENABLED)
-    private var appsAllowed = mutableSetOf<Int>()
-    private val appsLanAllowed = mutableListOf<Int>()
-
-    init {
-        if (firewallEnabled) {
-            preferenceRepository.getStringSetPreference(APPS_ALLOW_LAN_PREF)
-                .forEach { appsLanAllowed.add(it.toInt()) }
-
-            var tempSet: MutableSet<String>? = null
-            if (NetworkChecker.isWifiActive(context) || NetworkChecker.isEthernetActive(context)) {
-                tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_WIFI_PREF)
-            } else if (NetworkChecker.isCellularActive(context)) {
-                tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_GSM_PREF)
-            } else if (NetworkChecker.isRoaming(context)) {
-                tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_ROAMING)
-            }
+    private val changedRecords: MutableSet<ConnectionRecord> =
+        Collections.newSetFromMap(IdentityHashMap())
+    private val recordsAwaitingReverseDns = ArrayList<ConnectionRecord>()
+
+    private val firewallEnabled = settings.firewallEnabled
+    private val appsAllowed = settings.appsAllowed
+    private val appsLanAllowed = settings.appsLanAllowed
+
+    /**
+     * Converts only raw records that were not seen before, the state is kept between calls.
+     * Records that were added or modified by this call are available with [getChangedRecords].
+     */
+    fun convertRecords(rawRecords: RawConnectionRecords): List<ConnectionRecord> {
 
-            tempSet?.forEach { appsAllowed.add(it.toInt()) }
+        changedRecords.clear()
+
+        if (rawRecords.reset) {
+            dnsQueryLogRecords.clear()
+            recordsAwaitingReverseDns.clear()
         }
-    }
 
-    fun convertRecords(dnsQueryRawRecords: List<ConnectionRecord?>): List<ConnectionRecord> {
+        applyResolvedReverseDns()
 
-        dnsQueryLogRecords.clear()
+        rawRecords.records.forEach { addRecord(it) }
 
-        startReverseLookupQueue()
+        if (dnsQueryLogRecords.size > MAX_CONVERTED_RECORDS + MAX_CONVERTED_RECORDS / 4) {
+            dnsQueryLogRecords.trimToSize(MAX_CONVERTED_RECORDS)
+        }
 
-        dnsQueryRawRecords.forEach { addRecord(it) }
+        return dnsQueryLogRecords.toList()
+    }
 
-        return dnsQueryLogRecords
+    /**
+     * @return records added or modified by the last [convertRecords] call, compared by identity.
+     */
+    fun getChangedRecords(): Set<ConnectionRecord> = changedRecords
+
+    private fun applyResolvedReverseDns() {
+        val iterator = recordsAwaitingReverseDns.iterator()
+        while (iterator.hasNext()) {
+            val record = iterator.next()
+            val host = peekReverseDns(record.daddr) ?: continue
+            if (host.isNotEmpty() && host != record.daddr) {
+                record.reverseDNS = host
+                changedRecords.add(record)
+            }
+            iterator.remove()
+        }
     }
 
     private fun addRecord(dnsQueryRawRecord: ConnectionRecord?) {
@@ -126,35 +144,24 @@ class ConnectionRecordsConverter @Inject constructor(
         setQueryBlocked(dnsQueryRawRecord)
 
         if (dnsQueryRawRecord.blocked) {
-            dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
+            dnsQueryLogRecords.removeEqual(dnsQueryRawRecord)
         }
 
         dnsQueryLogRecords.add(dnsQueryRawRecord)
+        changedRecords.add(dnsQueryRawRecord)
     }
 
     private fun isIdenticalRecord(dnsQueryRawRecord: ConnectionRecord): Boolean {
 
-        for (i in dnsQueryLogRecords.size - 1 downTo 0) {
-            val record = dnsQueryLogRecords[i]
-
-            if (dnsQueryRawRecord.aName == record.aName
-                && dnsQueryRawRecord.qName == record.qName
-                && dnsQueryRawRecord.hInfo == record.hInfo
-                && dnsQueryRawRecord.rCode == record.rCode
-                && dnsQueryRawRecord.saddr == record.saddr
-            ) {
+        val record = dnsQueryLogRecords.findSameAnswerWithAddress(dnsQueryRawRecord) ?: return false
 
-                if (dnsQueryRawRecord.daddr.isNotEmpty() && record.daddr.isNotEmpty()) {
-                    if (!record.daddr.contains(dnsQueryRawRecord.daddr.trim())) {
-                        dnsQueryLogRecords[i] =
-                            record.apply { daddr = daddr + ", " + dnsQueryRawRecord.daddr.trim() }
-                    }
-                    return true
-                }
-            }
+        val ip = dnsQueryRawRecord.daddr.trim()
+        if (!dnsQueryLogRecords.hasAddress(record, ip)) {
+            dnsQueryLogRecords.appendAddress(record, ip)
+            changedRecords.add(record)
         }
 
-        return false
+        return true
     }
 
     private fun isRootMode() =
@@ -171,8 +178,7 @@ class ConnectionRecordsConverter @Inject constructor(
             if (compatibilityMode && dnsQueryRawRecord.uid == SPECIAL_UID_KERNEL
                 || fixTTL && dnsQueryRawRecord.uid == SPECIAL_UID_KERNEL
                 || appsAllowed.contains(SPECIAL_UID_CONNECTIVITY_CHECK)
-                && connectivityCheckManager.getConnectivityCheckIps()
-                    .contains(dnsQueryRawRecord.daddr)
+                && getConnectivityCheckIps().contains(dnsQueryRawRecord.daddr)
             ) {
                 false
             } else if (isIpInLanRange(dnsQueryRawRecord.daddr)) {
@@ -184,21 +190,13 @@ class ConnectionRecordsConverter @Inject constructor(
             false
         }
 
-        for (index in dnsQueryLogRecords.size - 1 downTo 0) {
-            val record = dnsQueryLogRecords[index]
-            if (savedRecord == null && record.daddr.contains(dnsQueryRawRecord.daddr) && record.uid == -1000) {
-                record.blocked = uidBlocked
-                record.unused = false
-                dnsQueryLogRecordsSublist.add(record)
-                savedRecord = record
-            } else if (savedRecord != null && savedRecord.aName == record.cName) {
-                record.blocked = uidBlocked
-                record.unused = false
-                dnsQueryLogRecordsSublist.add(record)
-                savedRecord = record
-            } else if (savedRecord != null && savedRecord.aName != record.cName) {
-                break
-            }
+        var record = dnsQueryLogRecords.findLastDnsRecordWithIp(dnsQueryRawRecord.daddr)
+        while (record != null) {
+            record.blocked = uidBlocked
+            record.unused = false
+            dnsQueryLogRecordsSublist.add(record)
+            savedRecord = record
+            record = dnsQueryLogRecords.findCNameParent(record)
         }
 
         if (savedRecord != null) {
@@ -215,11 +213,12 @@ class ConnectionRecordsConverter @Inject constructor(
         } else if (vpnDNS == null || !vpnDNS.contains(dnsQueryRawRecord.daddr)) {
 
             if (!meteredNetwork && dnsQueryRawRecord.daddr.isNotEmpty()) {
-                val host = ipToHostAddressMap[IpToTime(dnsQueryRawRecord.daddr)]
+                val host = peekReverseDns(dnsQueryRawRecord.daddr)
 
                 if (host == null) {
-                    makeReverseLookup(dnsQueryRawRecord.daddr)
-                } else if (host != dnsQueryRawRecord.daddr) {
+                    resolveReverseDnsAsync(dnsQueryRawRecord.daddr)
+                    awaitReverseDns(dnsQueryRawRecord)
+                } else if (host.isNotEmpty() && host != dnsQueryRawRecord.daddr) {
                     dnsQueryRawRecord.reverseDNS = host
                 }
             }
@@ -228,55 +227,25 @@ class ConnectionRecordsConverter @Inject constructor(
 
             dnsQueryRawRecord.unused = false
 
-            dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
+            dnsQueryLogRecords.removeEqual(dnsQueryRawRecord)
             dnsQueryLogRecords.add(dnsQueryRawRecord)
+            changedRecords.add(dnsQueryRawRecord)
         }
 
         if (dnsQueryLogRecordsSublist.isNotEmpty()) {
-            dnsQueryLogRecords.removeAll(dnsQueryLogRecordsSublist.toSet())
-            dnsQueryLogRecords.addAll(dnsQueryLogRecordsSublist.reversed())
+            dnsQueryLogRecordsSublist.forEach { dnsQueryLogRecords.removeEqual(it) }
+            for (i in dnsQueryLogRecordsSublist.size - 1 downTo 0) {
+                dnsQueryLogRecords.add(dnsQueryLogRecordsSublist[i])
+            }
+            changedRecords.addAll(dnsQueryLogRecordsSublist)
         }
     }
 
-    private fun makeReverseLookup(ip: String) {
-        if (!reverseLookupQueue.contains(ip)) {
-            reverseLookupQueue.offer(ip)
-        }
-    }
-
-    private fun startReverseLookupQueue() {
-
-        if (futureTask?.isDone == false) {
-            return
-        }
-
-        futureTask = cachedExecutor.submit {
-            try {
-
-                while (!Thread.currentThread().isInterrupted) {
-                    val ip = reverseLookupQueue.take()
-
-                    val host = dnsInteractor.get().reverseResolve(ip)
-
-                    if (ipToHostAddressMap.size >= IP_TO_HOST_ADDRESS_MAP_SIZE) {
-
-                        ipToHostAddressMap.keys.sortedBy { it.time }.let {
-                            for (i in 0..it.size / 3) {
-                                ipToHostAddressMap.remove(it[i])
-                            }
-                        }
-                    }
-
-                    if (host.isNotBlank()) {
-                        ipToHostAddressMap[IpToTime(ip, System.currentTimeMillis())] = host
-                    }
-                }
-
-            } catch (ignored: InterruptedException) {
-            } catch (e: Exception) {
-                loge("DNSQueryLogRecordsConverter reverse lookup exception", e)
-            }
+    private fun awaitReverseDns(dnsQueryRawRecord: ConnectionRecord) {
+        if (recordsAwaitingReverseDns.size >= MAX_RECORDS_AWAITING_REVERSE_DNS) {
+            recordsAwaitingReverseDns.removeAt(0)
         }
+        recordsAwaitingReverseDns.add(dnsQueryRawRecord)
     }
 
     private fun setQueryBlocked(dnsQueryRawRecord: ConnectionRecord): Boolean {
@@ -310,12 +279,7 @@ class ConnectionRecordsConverter @Inject constructor(
     }
 
     fun onStop() {
-        futureTask?.let {
-            if (!it.isDone) {
-                it.cancel(true)
-                futureTask = null
-            }
-        }
+        recordsAwaitingReverseDns.clear()
     }
 
     private fun isIpInLanRange(destAddress: String): Boolean {
@@ -323,31 +287,61 @@ class ConnectionRecordsConverter @Inject constructor(
             return false
         }
 
-        for (address in VpnUtils.nonTorList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true
-            }
-        }
-        return false
+        return VpnUtils.isIpInLanRange(destAddress)
     }
 
-    private class IpToTime(
-        val ip: String,
-        val time: Long = 0
+    /**
+     * Preferences and network state the records are converted with, read once per converter.
+     */
+    internal class Settings(
+        val blockIPv6: Boolean,
+        val meteredNetwork: Boolean,
+        val vpnDNS: Set<String>?,
+        val fixTTL: Boolean,
+        val compatibilityMode: Boolean,
+        val firewallEnabled: Boolean,
+        val appsAllowed: Set<Int>,
+        val appsLanAllowed: Set<Int>
     ) {
-        override fun equals(other: Any?): Boolean {
-            if (this === other) return true
-            if (javaClass != other?.javaClass) return false
-
-            other as IpToTime
-
-            if (ip != other.ip) return false
+        companion object {
+            fun load(context: Context, preferenceRepository: PreferenceRepository): Settings {
+                val sharedPreferences: SharedPreferences =
+                    PreferenceManager.getDefaultSharedPreferences(context)
+                val modulesStatus = ModulesStatus.getInstance()
+
+                val firewallEnabled = preferenceRepository.getBoolPreference(FIREWALL_ENABLED)
+                val appsAllowed = mutableSetOf<Int>()
+                val appsLanAllowed = mutableSetOf<Int>()
+                if (firewallEnabled) {
+                    preferenceRepository.getStringSetPreference(APPS_ALLOW_LAN_PREF)
+                        .forEach { appsLanAllowed.add(it.toInt()) }
+
+                    var tempSet: MutableSet<String>? = null
+                    if (NetworkChecker.isWifiActive(context) || NetworkChecker.isEthernetActive(context)) {
+                        tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_WIFI_PREF)
+                    } else if (NetworkChecker.isCellularActive(context)) {
+                        tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_GSM_PREF)
+                    } else if (NetworkChecker.isRoaming(context)) {
+                        tempSet = preferenceRepository.getStringSetPreference(APPS_ALLOW_ROAMING)
+                    }
 
-            return true
-        }
+                    tempSet?.forEach { appsAllowed.add(it.toInt()) }
+                }
 
-        override fun hashCode(): Int {
-            return ip.hashCode()
+                return Settings(
+                    blockIPv6 = sharedPreferences.getBoolean(BLOCK_IPv6, true),
+                    meteredNetwork = NetworkChecker.isMeteredNetwork(context),
+                    vpnDNS = VpnBuilder.vpnDnsSet,
+                    fixTTL = modulesStatus.isFixTTL && modulesStatus.mode == OperationMode.ROOT_MODE
+                            && !modulesStatus.isUseModulesWithRoot,
+                    compatibilityMode = (sharedPreferences.getBoolean(COMPATIBILITY_MODE, false)
+                            || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                            && modulesStatus.mode == OperationMode.VPN_MODE,
+                    firewallEnabled = firewallEnabled,
+                    appsAllowed = appsAllowed,
+                    appsLanAllowed = appsLanAllowed
+                )
+            }
         }
     }
 }
@@ -43,8 +43,15 @@ class ConnectionRecordsInteractor @Inject constructor(
     private val listeners: HashMap<Class<*>, WeakReference<OnConnectionRecordsUpdatedListener>> =
         hashMapOf()
 
+    //A new listener needs all rows, not only the changed ones
+    @Volatile
+    private var listenerAdded = false
+
     fun <T : OnConnectionRecordsUpdatedListener> addListener(listener: T?) {
-        listener?.let { listeners[it.javaClass] = WeakReference(it) }
+        listener?.let {
+            listeners[it.javaClass] = WeakReference(it)
+            listenerAdded = true
+        }
     }
 
     fun <T : OnConnectionRecordsUpdatedListener> removeListener(listener: T?) {
@@ -71,6 +78,13 @@ class ConnectionRecordsInteractor @Inject constructor(
         connectionRecordsRepository.clearConnectionRawRecords()
     }
 
+    /**
+     * @param listener is called on the thread that adds raw records, whenever new records arrive.
+     */
+    fun setOnRawRecordsChangedListener(listener: (() -> Unit)?) {
+        connectionRecordsRepository.setOnRawRecordsChangedListener(listener)
+    }
+
     fun stopConverter(forceStop: Boolean = false) {
         if (listeners.isEmpty() || forceStop) {
             connectionRecordsRepository.connectionRawRecordsNoMoreRequired()
@@ -85,53 +99,36 @@ class ConnectionRecordsInteractor @Inject constructor(
             return
         }
 
-        var rawConnections: List<ConnectionRecord?> = emptyList()
-
-        try {
-            rawConnections = connectionRecordsRepository.getRawConnectionRecords()
+        val rawConnections = try {
+            connectionRecordsRepository.getNewRawConnectionRecords()
         } catch (e: Exception) {
             Log.e(
                 LOG_TAG,
-                "ConnectionRecordsInteractor getRawConnectionRecords exception ${e.message} ${e.cause}"
+                "ConnectionRecordsInteractor getNewRawConnectionRecords exception ${e.message} ${e.cause}"
             )
-        }
-
-        if (rawConnections.isEmpty()) {
             return
         }
 
-        var connectionRecords: List<ConnectionRecord>? = emptyList()
-
-        try {
-            connectionRecords = converter.get().convertRecords(rawConnections)
-        } catch (e: Exception) {
-            Log.e(
-                LOG_TAG,
-                "ConnectionRecordsInteractor convertRecords exception ${e.message} ${e.cause}"
+        val update = try {
+            val connectionRecords = converter.get().convertRecords(rawConnections)
+            val reset = rawConnections.reset || listenerAdded
+            listenerAdded = false
+            parser.formatRows(
+                connectionRecords,
+                converter.get().getChangedRecords(),
+                reset
             )
-        }
-
-        if (connectionRecords?.isEmpty() == true) {
-            return
-        }
-
-        var records: String? = ""
-        try {
-            records = parser.formatLines(connectionRecords ?: emptyList())
         } catch (e: Exception) {
             Log.e(
                 LOG_TAG,
-                "ConnectionRecordsInteractor formatLines exception ${e.message} ${e.cause}"
+                "ConnectionRecordsInteractor convertRecords exception ${e.message} ${e.cause}"
             )
-        }
-
-        if (records.isNullOrBlank()) {
-            return
-        }
+            null
+        } ?: return
 
         listeners.forEach { listener ->
             if (listener.value.get()?.isActive() == true) {
-                listener.value.get()?.onConnectionRecordsUpdated(records)
+                listener.value.get()?.onConnectionRecordsUpdated(update)
             } else {
                 removeListener(listener.value.get())
 
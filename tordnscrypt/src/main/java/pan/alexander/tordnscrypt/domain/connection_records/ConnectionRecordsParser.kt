@@ -50,7 +50,30 @@ class ConnectionRecordsParser @Inject constructor(
             Constants.STANDARD_ADDRESS_LOCAL_PC
         ) ?: Constants.STANDARD_ADDRESS_LOCAL_PC
 
-    fun formatLines(connectionRecords: List<ConnectionRecord>): String {
+    private var displayedRows: MutableMap<ConnectionRecord, ConnectionLogRow> = IdentityHashMap()
+    private var displayedRowsList: List<ConnectionLogRow> = emptyList()
+    private var nextRowId = 0L
+
+    /**
+     * Formats only records that were not displayed before or were changed by the converter,
+     * rows of other records are reused.
+     *
+     * @return null if displayed rows did not change.
+     */
+    fun formatRows(
+        connectionRecords: List<ConnectionRecord>,
+        changedRecords: Set<ConnectionRecord>,
+        reset: Boolean
+    ): ConnectionRecordsUpdate? {
+
+        if (!reset && changedRecords.isEmpty()) {
+            return null
+        }
+
+        if (reset) {
+            displayedRows = IdentityHashMap()
+            displayedRowsList = emptyList()
+        }
 
         val fixTTL =
             modulesStatus.isFixTTL && modulesStatus.mode == OperationMode.ROOT_MODE && !modulesStatus.isUseModulesWithRoot
@@ -71,93 +94,126 @@ class ConnectionRecordsParser @Inject constructor(
             Constants.STANDARD_USB_MODEM_INTERFACE_RANGE
         }
 
-        val lines = StringBuilder()
-
-        lines.append("<br />")
-
         var start = 0
         val logSize: Int = connectionRecords.size
         if (logSize > MAX_LINES_IN_LOG) {
             start = logSize - MAX_LINES_IN_LOG
         }
 
+        val rows = ArrayList<ConnectionLogRow>(logSize - start)
+        val insertedRows = mutableListOf<ConnectionLogRow>()
+        val updatedRows = mutableListOf<ConnectionLogRow>()
+        val rowsOfRecords = IdentityHashMap<ConnectionRecord, ConnectionLogRow>()
+
         for (i in start until logSize) {
 
             val record = connectionRecords[i]
 
-            if (TopFragment.appVersion.startsWith("g") && record.blocked && record.blockedByIpv6
-                /*remove artifacts*/
-                || (record.aName.trim() == "=" || record.qName.trim() == "=")
-                && record.uid == -1000
-            ) {
-                continue
+            var row = displayedRows[record]
+            if (row == null || changedRecords.contains(record)) {
+                val line = formatLine(record, fixTTL, apAddresses, usbAddresses) ?: continue
+                if (row == null) {
+                    row = ConnectionLogRow(nextRowId++, line)
+                    insertedRows.add(row)
+                } else if (row.html != line) {
+                    row = row.copy(html = line)
+                    updatedRows.add(row)
+                }
             }
 
-            if (record.blocked) {
-                lines.append("<font color=#f08080>")
-            } else if (record.uid != -1000 && record.daddr.trim().isNotEmpty()) {
-                lines.append("<font color=#E7AD42>")
-            } else if (record.unused) {
-                lines.append("<font color=#9e9e9e>")
-            } else {
-                lines.append("<font color=#009688>")
-            }
+            rows.add(row)
+            rowsOfRecords[record] = row
+        }
 
-            if (record.uid != -1000) {
-                var appName = installedAppNamesStorage.get().getAppNameByUid(record.uid) ?: ""
-                if (appName.isEmpty() || record.uid == 1000) {
-                    appName =
-                        applicationContext.packageManager.getNameForUid(record.uid) ?: "Undefined"
-                }
+        //Rows can be removed or moved without any content changes
+        val rowsChanged = rows != displayedRowsList
+        displayedRows = rowsOfRecords
+        displayedRowsList = rows
 
-                if (Tethering.apIsOn && fixTTL && record.saddr.contains(apAddresses)) {
-                    lines.append("<b>").append("WiFi").append("</b>").append(" -> ")
-                } else if (Tethering.usbTetherOn && fixTTL && record.saddr.contains(usbAddresses)) {
-                    lines.append("<b>").append("USB").append("</b>").append(" -> ")
-                } else if (Tethering.ethernetOn && fixTTL && record.saddr.contains(
-                        localEthernetDeviceAddress
-                    )
-                ) {
-                    lines.append("<b>").append("LAN").append("</b>").append(" -> ")
-                } else if (appName.isNotEmpty()) {
-                    lines.append("<b>").append(appName).append("</b>").append(" -> ")
-                } else {
-                    lines.append("<b>").append("Unknown UID").append(record.uid).append("</b>")
-                        .append(" -> ")
-                }
-            }
+        if (!reset && !rowsChanged) {
+            return null
+        }
 
-            if (record.aName.trim().isNotEmpty()) {
-                lines.append(record.aName.lowercase(Locale.ROOT))
-                if (record.blocked && record.blockedByIpv6) {
-                    lines.append(" ipv6")
-                }
-            } else if (record.qName.trim().isNotEmpty()) {
-                lines.append(record.qName.lowercase(Locale.ROOT))
-            }
+        return ConnectionRecordsUpdate(rows, insertedRows, updatedRows, reset)
+    }
+
+    private fun formatLine(
+        record: ConnectionRecord,
+        fixTTL: Boolean,
+        apAddresses: String,
+        usbAddresses: String
+    ): String? {
+
+        if (TopFragment.appVersion.startsWith("g") && record.blocked && record.blockedByIpv6
+            /*remove artifacts*/
+            || (record.aName.trim() == "=" || record.qName.trim() == "=")
+            && record.uid == -1000
+        ) {
+            return null
+        }
+
+        val lines = StringBuilder()
 
-            if (record.cName.trim().isNotEmpty() && record.uid == -1000) {
-                lines.append(" -> ").append(record.cName.lowercase(Locale.ROOT))
+        if (record.blocked) {
+            lines.append("<font color=#f08080>")
+        } else if (record.uid != -1000 && record.daddr.trim().isNotEmpty()) {
+            lines.append("<font color=#E7AD42>")
+        } else if (record.unused) {
+            lines.append("<font color=#9e9e9e>")
+        } else {
+            lines.append("<font color=#009688>")
+        }
+
+        if (record.uid != -1000) {
+            var appName = installedAppNamesStorage.get().getAppNameByUid(record.uid) ?: ""
+            if (appName.isEmpty() || record.uid == 1000) {
+                appName =
+                    applicationContext.packageManager.getNameForUid(record.uid) ?: "Undefined"
             }
-            if (record.daddr.trim().isNotEmpty()
-                && (!record.daddr.contains(META_ADDRESS)
-                        && !record.daddr.contains(LOOPBACK_ADDRESS)
-                        || record.uid != -1000)
+
+            if (Tethering.apIsOn && fixTTL && record.saddr.contains(apAddresses)) {
+                lines.append("<b>").append("WiFi").append("</b>").append(" -> ")
+            } else if (Tethering.usbTetherOn && fixTTL && record.saddr.contains(usbAddresses)) {
+                lines.append("<b>").append("USB").append("</b>").append(" -> ")
+            } else if (Tethering.ethernetOn && fixTTL && record.saddr.contains(
+                    localEthernetDeviceAddress
+                )
             ) {
-                if (record.uid == -1000) {
-                    lines.append(" -> ")
-                }
-                if (record.uid != -1000 && record.reverseDNS.isNotEmpty()) {
-                    lines.append(record.reverseDNS).append(" -> ")
-                }
-                lines.append(record.daddr)
+                lines.append("<b>").append("LAN").append("</b>").append(" -> ")
+            } else if (appName.isNotEmpty()) {
+                lines.append("<b>").append(appName).append("</b>").append(" -> ")
+            } else {
+                lines.append("<b>").append("Unknown UID").append(record.uid).append("</b>")
+                    .append(" -> ")
             }
-            lines.append("</font>")
+        }
 
-            if (i < connectionRecords.size - 1) {
-                lines.append("<br />")
+        if (record.aName.trim().isNotEmpty()) {
+            lines.append(record.aName.lowercase(Locale.ROOT))
+            if (record.blocked && record.blockedByIpv6) {
+                lines.append(" ipv6")
+            }
+        } else if (record.qName.trim().isNotEmpty()) {
+            lines.append(record.qName.lowercase(Locale.ROOT))
+        }
+
+        if (record.cName.trim().isNotEmpty() && record.uid == -1000) {
+            lines.append(" -> ").append(record.cName.lowercase(Locale.ROOT))
+        }
+        if (record.daddr.trim().isNotEmpty()
+            && (!record.daddr.contains(META_ADDRESS)
+                    && !record.daddr.contains(LOOPBACK_ADDRESS)
+                    || record.uid != -1000)
+        ) {
+            if (record.uid == -1000) {
+                lines.append(" -> ")
+            }
+            if (record.uid != -1000 && record.reverseDNS.isNotEmpty()) {
+                lines.append(record.reverseDNS).append(" -> ")
             }
+            lines.append(record.daddr)
         }
+        lines.append("</font>")
 
         return lines.toString()
     }
@@ -20,7 +20,8 @@
 package pan.alexander.tordnscrypt.domain.connection_records
 
 interface ConnectionRecordsRepository {
-    fun getRawConnectionRecords(): List<ConnectionRecord?>
+    fun getNewRawConnectionRecords(): RawConnectionRecords
     fun clearConnectionRawRecords()
     fun connectionRawRecordsNoMoreRequired()
+    fun setOnRawRecordsChangedListener(listener: (() -> Unit)?)
 }
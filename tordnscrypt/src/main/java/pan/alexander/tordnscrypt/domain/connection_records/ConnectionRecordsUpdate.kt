@@ -0,0 +1,34 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.connection_records
+
+/**
+ * @param rows all displayed rows, oldest first.
+ * @param insertedRows rows that were not displayed by the previous update.
+ * @param updatedRows rows with the same id as before, but a new content.
+ * @param reset previously displayed rows should be dropped.
+ * Rows of the previous update that are absent from [rows] were removed.
+ */
+class ConnectionRecordsUpdate(
+    val rows: List<ConnectionLogRow>,
+    val insertedRows: List<ConnectionLogRow>,
+    val updatedRows: List<ConnectionLogRow>,
+    val reset: Boolean
+)
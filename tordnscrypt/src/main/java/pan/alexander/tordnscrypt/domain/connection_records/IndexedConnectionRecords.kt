@@ -0,0 +1,250 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.connection_records
+
+import java.util.IdentityHashMap
+
+/**
+ * Ordered list of converted connection records with the indexes used by [ConnectionRecordsConverter]:
+ * record value -> records, DNS answer -> records with addresses, exact IP -> DNS records.
+ * Records are kept in a linked list, so removals and moves to the end do not shift the list.
+ * Only [appendAddress] may change a record that is in the list.
+ */
+class IndexedConnectionRecords {
+
+    private var head: Node? = null
+    private var tail: Node? = null
+    private var nextPosition = 0L
+
+    private val nodes = IdentityHashMap<ConnectionRecord, Node>()
+    private val recordIndex = HashMap<RecordKey, MutableList<Node>>()
+    private val answerIndex = HashMap<AnswerKey, MutableList<Node>>()
+    private val ipIndex = HashMap<String, MutableList<Node>>()
+
+    private var cachedList: List<ConnectionRecord>? = null
+
+    val size: Int
+        get() = nodes.size
+
+    fun isEmpty() = nodes.isEmpty()
+
+    fun isNotEmpty() = nodes.isNotEmpty()
+
+    fun add(record: ConnectionRecord) {
+        nodes[record]?.let { unlink(it) }
+
+        val node = Node(record, nextPosition++)
+        node.prev = tail
+        tail?.next = node
+        tail = node
+        if (head == null) {
+            head = node
+        }
+
+        nodes[record] = node
+        index(node)
+        cachedList = null
+    }
+
+    fun remove(record: ConnectionRecord) {
+        nodes[record]?.let { unlink(it) }
+    }
+
+    /**
+     * Removes all records equal to the record, including the record itself.
+     */
+    fun removeEqual(record: ConnectionRecord) {
+        recordIndex[RecordKey(record)]?.toList()?.forEach { unlink(it) }
+    }
+
+    /**
+     * @return the last record with the same DNS answer as the record and any address,
+     * or null if the record has no address.
+     */
+    fun findSameAnswerWithAddress(record: ConnectionRecord): ConnectionRecord? {
+        if (record.daddr.isEmpty()) {
+            return null
+        }
+        return answerIndex[AnswerKey(record)]?.maxByOrNull { it.position }?.record
+    }
+
+    /**
+     * @return true if the ip is one of the record addresses.
+     */
+    fun hasAddress(record: ConnectionRecord, ip: String): Boolean =
+        nodes[record]?.ips?.contains(ip) == true
+
+    /**
+     * Adds the ip to the comma separated addresses of the record and reindexes it.
+     */
+    fun appendAddress(record: ConnectionRecord, ip: String) {
+        val node = nodes[record] ?: return
+        unindex(node)
+        record.daddr = record.daddr + ", " + ip
+        index(node)
+        cachedList = null
+    }
+
+    /**
+     * @return the last DNS record with exactly this ip among its addresses.
+     */
+    fun findLastDnsRecordWithIp(ip: String): ConnectionRecord? =
+        ipIndex[ip]?.maxByOrNull { it.position }?.record
+
+    /**
+     * @return the directly preceding record if its CNAME is the record name.
+     */
+    fun findCNameParent(record: ConnectionRecord): ConnectionRecord? {
+        val parent = nodes[record]?.prev?.record ?: return null
+        return if (parent.cName == record.aName) parent else null
+    }
+
+    fun trimToSize(maxSize: Int) {
+        while (nodes.size > maxSize) {
+            head?.let { unlink(it) } ?: break
+        }
+    }
+
+    fun clear() {
+        head = null
+        tail = null
+        nodes.clear()
+        recordIndex.clear()
+        answerIndex.clear()
+        ipIndex.clear()
+        cachedList = null
+    }
+
+    /**
+     * @return records in the list order. The same list is returned until the records are changed.
+     */
+    fun toList(): List<ConnectionRecord> {
+        cachedList?.let { return it }
+
+        val list = ArrayList<ConnectionRecord>(nodes.size)
+        var node = head
+        while (node != null) {
+            list.add(node.record)
+            node = node.next
+        }
+        cachedList = list
+        return list
+    }
+
+    private fun unlink(node: Node) {
+        node.prev?.next = node.next
+        node.next?.prev = node.prev
+        if (head === node) {
+            head = node.next
+        }
+        if (tail === node) {
+            tail = node.prev
+        }
+        node.prev = null
+        node.next = null
+
+        nodes.remove(node.record)
+        unindex(node)
+        cachedList = null
+    }
+
+    private fun index(node: Node) {
+        val record = node.record
+
+        node.key = RecordKey(record)
+        recordIndex.getOrPut(node.key) { ArrayList(1) }.add(node)
+
+        if (record.daddr.isNotEmpty()) {
+            node.answerKey = AnswerKey(record).also {
+                answerIndex.getOrPut(it) { ArrayList(1) }.add(node)
+            }
+        }
+
+        if (record.uid == -1000) {
+            node.ips = splitAddresses(record.daddr)
+            node.ips.forEach { ipIndex.getOrPut(it) { ArrayList(1) }.add(node) }
+        } else {
+            node.ips = emptySet()
+        }
+    }
+
+    private fun unindex(node: Node) {
+        removeFromIndex(recordIndex, node.key, node)
+        node.answerKey?.let { removeFromIndex(answerIndex, it, node) }
+        node.answerKey = null
+        node.ips.forEach { removeFromIndex(ipIndex, it, node) }
+        node.ips = emptySet()
+    }
+
+    private fun <K> removeFromIndex(index: HashMap<K, MutableList<Node>>, key: K, node: Node) {
+        val list = index[key] ?: return
+        list.remove(node)
+        if (list.isEmpty()) {
+            index.remove(key)
+        }
+    }
+
+    private fun splitAddresses(addresses: String): Set<String> {
+        if (addresses.isBlank()) {
+            return emptySet()
+        }
+        if (!addresses.contains(',')) {
+            return setOf(addresses.trim())
+        }
+        return addresses.split(',').map { it.trim() }.filter { it.isNotEmpty() }.toHashSet()
+    }
+
+    private class Node(val record: ConnectionRecord, val position: Long) {
+        var prev: Node? = null
+        var next: Node? = null
+        lateinit var key: RecordKey
+        var answerKey: AnswerKey? = null
+        var ips: Set<String> = emptySet()
+    }
+
+    //Immutable copy of the fields used by ConnectionRecord.equals, as daddr can be changed
+    private data class RecordKey(
+        val qName: String,
+        val aName: String,
+        val cName: String,
+        val hInfo: String,
+        val rCode: Int,
+        val saddr: String,
+        val daddr: String,
+        val uid: Int
+    ) {
+        constructor(record: ConnectionRecord) : this(
+            record.qName, record.aName, record.cName, record.hInfo,
+            record.rCode, record.saddr, record.daddr, record.uid
+        )
+    }
+
+    private data class AnswerKey(
+        val qName: String,
+        val aName: String,
+        val hInfo: String,
+        val rCode: Int,
+        val saddr: String
+    ) {
+        constructor(record: ConnectionRecord) : this(
+            record.qName, record.aName, record.hInfo, record.rCode, record.saddr
+        )
+    }
+}
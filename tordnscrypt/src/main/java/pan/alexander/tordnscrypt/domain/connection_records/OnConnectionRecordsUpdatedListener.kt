@@ -20,6 +20,6 @@
 package pan.alexander.tordnscrypt.domain.connection_records
 
 interface OnConnectionRecordsUpdatedListener {
-    fun onConnectionRecordsUpdated(connectionRecords: String)
+    fun onConnectionRecordsUpdated(update: ConnectionRecordsUpdate)
     fun isActive(): Boolean
 }
@@ -0,0 +1,34 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_query_stats
+
+/**
+ * A query from the dnscrypt-proxy query log or the suspicious (NXDOMAIN) log.
+ * @param epochMinute minutes since the epoch when the query was logged, -1 if unknown.
+ * @param blocked the query was rejected by the blacklists.
+ * @param nxDomain the entry comes from the suspicious log.
+ */
+data class DnsQueryLogEntry(
+    val epochMinute: Long,
+    val client: String,
+    val domain: String,
+    val blocked: Boolean,
+    val nxDomain: Boolean
+)
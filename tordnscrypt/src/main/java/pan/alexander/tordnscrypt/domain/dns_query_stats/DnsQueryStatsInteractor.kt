@@ -0,0 +1,109 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_query_stats
+
+import pan.alexander.tordnscrypt.utils.logger.Logger.loge
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val DOMAINS_SKETCH_CAPACITY = 512
+private const val CLIENTS_SKETCH_CAPACITY = 64
+private const val RATE_MINUTES = 60
+
+/**
+ * Collects statistics of DNS queries from the dnscrypt-proxy query logs.
+ * Logs are followed incrementally and every query updates fixed size sketches,
+ * so memory use does not grow however long the proxy runs.
+ */
+@Singleton
+class DnsQueryStatsInteractor @Inject constructor(
+    private val dnsQueryLogRepository: DnsQueryLogRepository
+) {
+    private val domains = SpaceSavingSketch(DOMAINS_SKETCH_CAPACITY)
+    private val blockedDomains = SpaceSavingSketch(DOMAINS_SKETCH_CAPACITY)
+    private val nxDomains = SpaceSavingSketch(DOMAINS_SKETCH_CAPACITY)
+    private val clients = SpaceSavingSketch(CLIENTS_SKETCH_CAPACITY)
+    private val queriesRate = MinuteRateCounter(RATE_MINUTES)
+    private val blockedRate = MinuteRateCounter(RATE_MINUTES)
+
+    private var totalQueries = 0L
+    private var blockedQueries = 0L
+    private var nxDomainQueries = 0L
+
+    /**
+     * Reads new log entries and returns the statistics. Should not be called on the main thread.
+     * @param topCount maximum number of items in each top list.
+     */
+    @Synchronized
+    fun updateStatistics(topCount: Int): DnsQueryStatistics {
+        try {
+            dnsQueryLogRepository.readNewEntries { addEntry(it) }
+        } catch (e: Exception) {
+            loge("DnsQueryStatsInteractor updateStatistics", e)
+        }
+
+        val currentMinute = System.currentTimeMillis() / 60_000
+
+        return DnsQueryStatistics(
+            totalQueries,
+            blockedQueries,
+            nxDomainQueries,
+            domains.getTop(topCount),
+            blockedDomains.getTop(topCount),
+            nxDomains.getTop(topCount),
+            clients.getTop(topCount),
+            queriesRate.getCounts(currentMinute).toList(),
+            blockedRate.getCounts(currentMinute).toList()
+        )
+    }
+
+    @Synchronized
+    fun clearStatistics() {
+        domains.clear()
+        blockedDomains.clear()
+        nxDomains.clear()
+        clients.clear()
+        queriesRate.clear()
+        blockedRate.clear()
+        totalQueries = 0
+        blockedQueries = 0
+        nxDomainQueries = 0
+    }
+
+    private fun addEntry(entry: DnsQueryLogEntry) {
+        //NXDOMAIN queries are also in the query log if it is enabled, so they are counted separately
+        if (entry.nxDomain) {
+            nxDomainQueries++
+            nxDomains.add(entry.domain)
+            return
+        }
+
+        totalQueries++
+        domains.add(entry.domain)
+        clients.add(entry.client)
+        queriesRate.add(entry.epochMinute)
+
+        if (entry.blocked) {
+            blockedQueries++
+            blockedDomains.add(entry.domain)
+            blockedRate.add(entry.epochMinute)
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_query_stats
+
+/**
+ * Counts events per minute for the last [minutes] minutes in a ring of buckets.
+ */
+class MinuteRateCounter(private val minutes: Int) {
+
+    private val bucketMinutes = LongArray(minutes) { -1 }
+    private val counts = IntArray(minutes)
+
+    fun add(epochMinute: Long) {
+        if (epochMinute < 0) {
+            return
+        }
+
+        val index = (epochMinute % minutes).toInt()
+        when {
+            bucketMinutes[index] == epochMinute -> counts[index]++
+            bucketMinutes[index] < epochMinute -> {
+                bucketMinutes[index] = epochMinute
+                counts[index] = 1
+            }
+            //Older than the window
+            else -> return
+        }
+    }
+
+    /**
+     * @return events per minute up to and including [currentEpochMinute], the oldest minute first.
+     */
+    fun getCounts(currentEpochMinute: Long): IntArray =
+        IntArray(minutes) { position ->
+            val minute = currentEpochMinute - minutes + 1 + position
+            val index = (minute % minutes).toInt()
+            if (minute >= 0 && bucketMinutes[index] == minute) counts[index] else 0
+        }
+
+    fun clear() {
+        bucketMinutes.fill(-1)
+        counts.fill(0)
+    }
+}
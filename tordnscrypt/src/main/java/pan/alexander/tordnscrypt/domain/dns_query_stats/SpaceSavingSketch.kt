@@ -0,0 +1,69 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_query_stats
+
+/**
+ * Space-Saving heavy hitters sketch.
+ * At most [capacity] counters are kept, so memory does not depend on the number of distinct items.
+ * When a new item arrives and the sketch is full, it replaces the item with the smallest count
+ * and inherits that count as its possible overestimation.
+ * Frequent items are never evicted and their counts are accurate within [DnsQueryStatItem.error].
+ */
+class SpaceSavingSketch(private val capacity: Int) {
+
+    private class Counter(val item: String, var count: Long, var error: Long)
+
+    private val counters = HashMap<String, Counter>(capacity * 2)
+
+    fun add(item: String) {
+        val counter = counters[item]
+        if (counter != null) {
+            counter.count++
+            return
+        }
+
+        if (counters.size < capacity) {
+            counters[item] = Counter(item, 1, 0)
+            return
+        }
+
+        //Linear search is fine for hundreds of counters and the DNS query rate
+        var min: Counter? = null
+        for (candidate in counters.values) {
+            if (min == null || candidate.count < min.count) {
+                min = candidate
+            }
+        }
+        min ?: return
+
+        counters.remove(min.item)
+        counters[item] = Counter(item, min.count + 1, min.count)
+    }
+
+    fun getTop(count: Int): List<DnsQueryStatItem> =
+        counters.values
+            .sortedByDescending { it.count }
+            .take(count)
+            .map { DnsQueryStatItem(it.item, it.count, it.error) }
+
+    fun clear() {
+        counters.clear()
+    }
+}
@@ -19,10 +19,14 @@
 
 package pan.alexander.tordnscrypt.domain.dns_resolver
 
-import kotlinx.coroutines.ObsoleteCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
 import pan.alexander.tordnscrypt.settings.tor_ips.DomainIpEntity
 import pan.alexander.tordnscrypt.utils.dns.Resolver
 
+const val DNS_RESOLVE_ALL_CONCURRENCY = 16
+const val DNS_RESOLVE_ALL_DEADLINE_SEC = 60
+
 interface DnsInteractor {
 
     fun resolveDomain(
@@ -34,11 +38,39 @@ interface DnsInteractor {
         timeout: Int
     ): Set<String>
 
+    /**
+     * Same as [resolveDomain], also returns how long the resolved IPs remain valid.
+     */
+    fun resolveDomainWithTtl(
+        domain: String,
+        timeout: Int
+    ): DomainIpsRecord
+
     fun reverseResolve(ip: String): String
 
-    @ObsoleteCoroutinesApi
     suspend fun resolveDomainOrIp(
         domainIps: Set<DomainIpEntity>,
         timeout: Int = Resolver.DNS_DEFAULT_TIMEOUT_SEC
     ): Set<DomainIpEntity>
+
+    /**
+     * Resolves domains and reverse resolves IPs, at most [concurrency] at a time.
+     * Duplicate names are resolved once, results are emitted in order of completion.
+     * Names that are not resolved within [deadlineSec] are emitted with an error.
+     * Each lookup runs in its own job and is interrupted when the flow collection is cancelled,
+     * or when its name is emitted by [cancelledNames], then the name is emitted with an error.
+     * Every name is emitted exactly once.
+     */
+    fun resolveAll(
+        names: Collection<String>,
+        timeout: Int = Resolver.DNS_DEFAULT_TIMEOUT_SEC,
+        concurrency: Int = DNS_RESOLVE_ALL_CONCURRENCY,
+        deadlineSec: Int = DNS_RESOLVE_ALL_DEADLINE_SEC,
+        cancelledNames: Flow<String> = emptyFlow()
+    ): Flow<DnsResolveResult>
+
+    /**
+     * Same as [resolveAll] with default limits, blocks the calling thread until all results are ready.
+     */
+    fun resolveAllBlocking(names: Collection<String>): List<DnsResolveResult>
 }
@@ -21,12 +21,19 @@ package pan.alexander.tordnscrypt.domain.dns_resolver
 
 import android.util.Log
 import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.actor
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import pan.alexander.tordnscrypt.di.CoroutinesModule
 import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.settings.tor_ips.DomainEntity
 import pan.alexander.tordnscrypt.settings.tor_ips.DomainIpEntity
 import pan.alexander.tordnscrypt.settings.tor_ips.IpEntity
+import pan.alexander.tordnscrypt.utils.Constants.IPv4_REGEX
+import pan.alexander.tordnscrypt.utils.Constants.IPv6_REGEX
 import pan.alexander.tordnscrypt.utils.dns.Resolver
 import pan.alexander.tordnscrypt.utils.enums.ModuleState
 import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
@@ -34,6 +41,7 @@ import java.io.IOException
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
+import javax.inject.Named
 
 private const val DELAY_ERROR_RETRY = 100L
 private const val ERROR_RETRY_COUNT = 1
@@ -41,110 +49,146 @@ private const val ERROR_RETRY_COUNT = 1
 class DnsInteractorImpl @Inject constructor(
     private val pathVars: PathVars,
     private val dnsRepository: DnsRepository,
+    private val reverseDnsService: ReverseDnsService,
+    @Named(CoroutinesModule.DISPATCHER_IO)
+    private val dispatcherIo: CoroutineDispatcher
 ) : DnsInteractor {
     private val modulesStatus = ModulesStatus.getInstance()
+    private val ipRegex = Regex("$IPv4_REGEX|$IPv6_REGEX")
 
     override fun resolveDomain(domain: String): Set<String> =
         resolveDomain(domain, Resolver.DNS_DEFAULT_TIMEOUT_SEC)
 
     override fun resolveDomain(domain: String, timeout: Int): Set<String> =
+        resolveDomainWithTtl(domain, timeout).ips
+
+    override fun resolveDomainWithTtl(domain: String, timeout: Int): DomainIpsRecord =
         when {
             modulesStatus.dnsCryptState == ModuleState.RUNNING && modulesStatus.isDnsCryptReady -> {
-                dnsRepository.resolveDomainUDP(domain, pathVars.dnsCryptPort.toInt(), timeout)
+                dnsRepository.resolveDomainWithTtlUDP(domain, pathVars.dnsCryptPort.toInt(), timeout)
             }
             modulesStatus.torState == ModuleState.RUNNING && modulesStatus.isTorReady -> {
-                dnsRepository.resolveDomainUDP(domain, pathVars.torDNSPort.toInt(), timeout)
+                dnsRepository.resolveDomainWithTtlUDP(domain, pathVars.torDNSPort.toInt(), timeout)
             }
             else -> {
-                dnsRepository.resolveDomainDOH(domain, timeout)
+                dnsRepository.resolveDomainWithTtlDOH(domain, timeout)
             }
         }
 
     override fun reverseResolve(ip: String): String =
-        when {
-            modulesStatus.dnsCryptState == ModuleState.RUNNING && modulesStatus.isDnsCryptReady -> {
-                dnsRepository.reverseResolveDomainUDP(
-                    ip,
-                    pathVars.dnsCryptPort.toInt(),
-                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
-                )
-            }
-            modulesStatus.torState == ModuleState.RUNNING && modulesStatus.isTorReady -> {
-                dnsRepository.reverseResolveDomainUDP(
-                    ip,
-                    pathVars.torDNSPort.toInt(),
-                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
-                )
-            }
-            else -> {
-                dnsRepository.reverseResolveDomainDOH(
-                    ip,
-                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
-                )
-            }
-        }
+        reverseDnsService.resolve(ip)
 
-    @ObsoleteCoroutinesApi
     override suspend fun resolveDomainOrIp(
         domainIps: Set<DomainIpEntity>,
         timeout: Int
     ): Set<DomainIpEntity> {
-        val result = Collections.newSetFromMap(ConcurrentHashMap<DomainIpEntity, Boolean>())
-
-        coroutineScope {
-            val channel = actor<Triple<DomainIpEntity, Deferred<DomainIpEntity>, Int>> {
-                for (triple in channel) {
-                    launch {
-                        supervisorScope {
-                            try {
-                                val hostIp = triple.second.await()
-                                result.add(hostIp)
-                                if (result.size == domainIps.size) {
-                                    channel.close()
-                                }
-                            } catch (e: IOException) {
-                                if (triple.third < ERROR_RETRY_COUNT) {
-                                    channel.send(
-                                        Triple(
-                                            triple.first,
-                                            async { resolveDomainOrIp(triple.first, timeout) },
-                                            triple.third + 1
-                                        )
-                                    )
-
-                                } else {
-                                    Log.e(
-                                        LOG_TAG,
-                                        "DnsInteractor ${e.javaClass} ${e.message}\n${e.cause}"
-                                    )
-                                    result.add(triple.first)
-                                    if (result.size == domainIps.size) {
-                                        channel.close()
-                                    }
-                                }
-                            } catch (e: Exception) {
-                                Log.e(
-                                    LOG_TAG,
-                                    "DnsInteractor ${e.javaClass} ${e.message}\n${e.cause}"
-                                )
-                                channel.close()
-                            }
+        val entities = domainIps.associateBy {
+            when (it) {
+                is DomainEntity -> it.domain
+                is IpEntity -> it.ip
+            }
+        }
+
+        val result = hashSetOf<DomainIpEntity>()
+        resolveAll(entities.keys, timeout).collect {
+            val entity = entities[it.name] ?: return@collect
+            result.add(
+                when {
+                    !it.isSuccessful -> entity
+                    entity is DomainEntity -> DomainEntity(entity.domain, it.values, entity.isActive)
+                    entity is IpEntity -> IpEntity(
+                        entity.ip,
+                        it.values.firstOrNull() ?: entity.domain,
+                        entity.isActive
+                    )
+                    else -> entity
+                }
+            )
+        }
+        return result
+    }
+
+    override fun resolveAll(
+        names: Collection<String>,
+        timeout: Int,
+        concurrency: Int,
+        deadlineSec: Int,
+        cancelledNames: Flow<String>
+    ): Flow<DnsResolveResult> = channelFlow {
+        val pending = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+        names.filterTo(pending) { it.isNotBlank() }
+        val cancelled = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+        val semaphore = Semaphore(concurrency.coerceAtLeast(1))
+
+        withTimeoutOrNull(deadlineSec * 1000L) {
+            val lookups = pending.toList().associateWith { name ->
+                launch {
+                    val result = semaphore.withPermit {
+                        resolveWithRetry(name, timeout)
+                    }
+                    //Whoever removes the name from pending must emit its result
+                    withContext(NonCancellable) {
+                        if (pending.remove(name)) {
+                            send(result)
                         }
                     }
                 }
             }
 
-            supervisorScope {
-                domainIps.map {
-                    Triple(it, async { resolveDomainOrIp(it, timeout) }, 0)
-                }.map {
-                    channel.send(it)
+            val cancellation = launch {
+                cancelledNames.collect { name ->
+                    val lookup = lookups[name] ?: return@collect
+                    cancelled.add(name)
+                    lookup.cancel()
                 }
             }
 
+            lookups.values.joinAll()
+            cancellation.cancel()
         }
 
-        return result
+        pending.forEach {
+            if (cancelled.contains(it)) {
+                send(DnsResolveResult(it, emptySet(), IOException("DnsInteractor $it cancelled")))
+            } else {
+                send(DnsResolveResult(it, emptySet(), IOException("DnsInteractor $it deadline exceeded")))
+            }
+        }
+    }
+
+    override fun resolveAllBlocking(names: Collection<String>): List<DnsResolveResult> =
+        runBlocking {
+            resolveAll(names).toList()
+        }
+
+    private suspend fun resolveWithRetry(name: String, timeout: Int): DnsResolveResult {
+        var attempt = 0
+        while (true) {
+            try {
+                val values = runInterruptible(dispatcherIo) {
+                    if (name.matches(ipRegex)) {
+                        //The first failure is cached, so the retry has to bypass it
+                        setOf(reverseDnsService.resolve(name, retryFailed = attempt > 0))
+                            .filterTo(hashSetOf()) { it.isNotEmpty() }
+                    } else {
+                        resolveDomain(name, timeout)
+                    }
+                }
+                return DnsResolveResult(name, values)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: IOException) {
+                if (attempt++ < ERROR_RETRY_COUNT) {
+                    delay(DELAY_ERROR_RETRY)
+                } else {
+                    Log.e(LOG_TAG, "DnsInteractor resolve $name ${e.javaClass} ${e.message}\n${e.cause}")
+                    return DnsResolveResult(name, emptySet(), e)
+                }
+            } catch (e: Exception) {
+                Log.e(LOG_TAG, "DnsInteractor resolve $name ${e.javaClass} ${e.message}\n${e.cause}")
+                return DnsResolveResult(name, emptySet(), e)
+            }
+        }
     }
 
     suspend fun resolveDomainOrIpOld(
@@ -22,6 +22,8 @@ package pan.alexander.tordnscrypt.domain.dns_resolver
 interface DnsRepository {
     fun resolveDomainUDP(domain: String, port: Int, timeout: Int): Set<String>
     fun resolveDomainDOH(domain: String, timeout: Int): Set<String>
-    fun reverseResolveDomainUDP(ip: String, port: Int, timeout: Int): String
-    fun reverseResolveDomainDOH(ip: String, timeout: Int): String
+    fun resolveDomainWithTtlUDP(domain: String, port: Int, timeout: Int): DomainIpsRecord
+    fun resolveDomainWithTtlDOH(domain: String, timeout: Int): DomainIpsRecord
+    fun reverseResolveDomainUDP(ip: String, port: Int, timeout: Int): ReverseDnsRecord?
+    fun reverseResolveDomainDOH(ip: String, timeout: Int): ReverseDnsRecord?
 }
@@ -0,0 +1,34 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_resolver
+
+/**
+ * Result of resolving a single name by [DnsInteractor.resolveAll].
+ * @param name domain or IP as it was passed to resolveAll.
+ * @param values IPs of the domain or host names of the IP, empty on error.
+ */
+data class DnsResolveResult(
+    val name: String,
+    val values: Set<String>,
+    val error: Exception? = null
+) {
+    val isSuccessful: Boolean
+        get() = error == null
+}
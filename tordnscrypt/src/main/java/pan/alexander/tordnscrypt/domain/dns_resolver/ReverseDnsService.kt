@@ -0,0 +1,221 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.dns_resolver
+
+import pan.alexander.tordnscrypt.modules.ModulesStatus
+import pan.alexander.tordnscrypt.settings.PathVars
+import pan.alexander.tordnscrypt.utils.dns.Resolver
+import pan.alexander.tordnscrypt.utils.enums.ModuleState
+import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import java.io.IOException
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val CACHE_SIZE = 512
+private const val MIN_POSITIVE_TTL_SEC = 60
+private const val MAX_POSITIVE_TTL_SEC = 24 * 60 * 60
+private const val NEGATIVE_TTL_SEC = 10 * 60
+private const val FAILURE_TTL_SEC = 60
+private const val DEFAULT_PARALLELISM = 4
+private const val PENDING_LOOKUPS_MAX = 256
+private const val WORKER_KEEP_ALIVE_SEC = 30L
+
+/**
+ * Reverse DNS lookups shared by the whole app.
+ * Results are kept in an LRU cache for the TTL of the PTR record, IPs without a PTR record
+ * are cached as empty hosts for a shorter time. Failed lookups are cached as failures,
+ * so they are not repeated and are not mistaken for IPs without a host.
+ * Concurrent requests for the same IP wait for a single lookup.
+ */
+@Singleton
+class ReverseDnsService @Inject constructor(
+    private val pathVars: PathVars,
+    private val dnsRepository: DnsRepository
+) {
+
+    private val modulesStatus = ModulesStatus.getInstance()
+
+    //Guarded by itself
+    private val cache = object : LinkedHashMap<String, CachedHost>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CachedHost>?) =
+            size > CACHE_SIZE
+    }
+
+    private val inFlight = ConcurrentHashMap<String, FutureTask<String>>()
+
+    private val executor by lazy {
+        val threadNumber = AtomicInteger()
+        ThreadPoolExecutor(
+            DEFAULT_PARALLELISM,
+            DEFAULT_PARALLELISM,
+            WORKER_KEEP_ALIVE_SEC,
+            TimeUnit.SECONDS,
+            LinkedBlockingQueue(PENDING_LOOKUPS_MAX)
+        ) {
+            Thread(it, "ReverseDnsService-${threadNumber.incrementAndGet()}").apply {
+                isDaemon = true
+            }
+        }.apply { allowCoreThreadTimeOut(true) }
+    }
+
+    /**
+     * @return cached host, an empty string if the IP is known to have no host,
+     * or null if the IP is not in the cache or its last lookup failed. Never blocks.
+     */
+    fun peek(ip: String): String? = getCached(ip)?.host
+
+    /**
+     * Starts a lookup in the background if the IP is neither cached nor being resolved.
+     * Lookups that do not fit in the pending queue are dropped.
+     */
+    fun resolveAsync(ip: String) {
+        if (getCached(ip) != null) {
+            return
+        }
+
+        val task = newLookup(ip) ?: return
+        try {
+            executor.execute(task)
+        } catch (e: RejectedExecutionException) {
+            inFlight.remove(ip, task)
+        }
+    }
+
+    /**
+     * Resolves the IP on the calling thread, or waits for the lookup that is already running.
+     * @return host or an empty string if the IP has no host.
+     * @param retryFailed repeat the lookup instead of failing when its last failure is cached.
+     * @throws IOException if the lookup failed, also while the failure is cached.
+     */
+    @Throws(IOException::class)
+    fun resolve(ip: String, retryFailed: Boolean = false): String {
+        getCached(ip)?.let { cachedHost ->
+            cachedHost.host?.let { return it }
+            if (!retryFailed) {
+                throw IOException("Reverse lookup of $ip failed recently")
+            }
+        }
+
+        val task = newLookup(ip)
+        if (task != null) {
+            task.run()
+            return getResult(task)
+        }
+
+        return inFlight[ip]?.let { getResult(it) } ?: resolve(ip, retryFailed)
+    }
+
+    fun setParallelism(parallelism: Int) {
+        val threads = parallelism.coerceAtLeast(1)
+        if (threads > executor.maximumPoolSize) {
+            executor.maximumPoolSize = threads
+            executor.corePoolSize = threads
+        } else {
+            executor.corePoolSize = threads
+            executor.maximumPoolSize = threads
+        }
+    }
+
+    fun clearCache() = synchronized(cache) {
+        cache.clear()
+    }
+
+    //Returns null if a lookup for the IP is already in flight
+    private fun newLookup(ip: String): FutureTask<String>? {
+        val task = FutureTask { lookup(ip) }
+        return if (inFlight.putIfAbsent(ip, task) == null) task else null
+    }
+
+    private fun lookup(ip: String): String {
+        try {
+            val record = reverseResolve(ip)
+            if (record == null || record.host.isEmpty()) {
+                putToCache(ip, "", NEGATIVE_TTL_SEC)
+                return ""
+            }
+            val ttl = record.ttlSeconds.coerceIn(MIN_POSITIVE_TTL_SEC, MAX_POSITIVE_TTL_SEC)
+            putToCache(ip, record.host, ttl)
+            return record.host
+        } catch (e: Exception) {
+            putToCache(ip, null, FAILURE_TTL_SEC)
+            throw e
+        } finally {
+            inFlight.remove(ip)
+        }
+    }
+
+    private fun reverseResolve(ip: String): ReverseDnsRecord? =
+        when {
+            modulesStatus.dnsCryptState == ModuleState.RUNNING && modulesStatus.isDnsCryptReady -> {
+                dnsRepository.reverseResolveDomainUDP(
+                    ip,
+                    pathVars.dnsCryptPort.toInt(),
+                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
+                )
+            }
+            modulesStatus.torState == ModuleState.RUNNING && modulesStatus.isTorReady -> {
+                dnsRepository.reverseResolveDomainUDP(
+                    ip,
+                    pathVars.torDNSPort.toInt(),
+                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
+                )
+            }
+            else -> {
+                dnsRepository.reverseResolveDomainDOH(
+                    ip,
+                    Resolver.DNS_DEFAULT_TIMEOUT_SEC
+                )
+            }
+        }
+
+    private fun getCached(ip: String): CachedHost? = synchronized(cache) {
+        val cachedHost = cache[ip] ?: return null
+        if (cachedHost.isExpired()) {
+            cache.remove(ip)
+            return null
+        }
+        cachedHost
+    }
+
+    //Null host marks a failed lookup
+    private fun putToCache(ip: String, host: String?, ttlSec: Int) = synchronized(cache) {
+        cache[ip] = CachedHost(host, System.currentTimeMillis() + ttlSec * 1000L)
+    }
+
+    private fun getResult(task: FutureTask<String>): String =
+        try {
+            task.get()
+        } catch (e: ExecutionException) {
+            when (val cause = e.cause) {
+                is IOException -> throw cause
+                is RuntimeException -> throw cause
+                else -> {
+                    logw("ReverseDnsService lookup", cause ?: e)
+                    ""
+                }
+            }
+        }
+
+    private class CachedHost(val host: String?, private val expiresAt: Long) {
+        fun isExpired() = System.currentTimeMillis() > expiresAt
+    }
+}
@@ -27,10 +27,20 @@ import java.util.*
 
 abstract class AbstractLogParser {
 
+    //Formatted lines of the previous call, so that only new lines are formatted
+    private var formattedLinesCache = HashMap<String, String>()
+    private var savedLines: List<String> = emptyList()
+    private var savedFormattedLines = ""
+
     abstract fun parseLog(): LogDataModel
 
     fun formatLines(lines: List<String>): String {
+        if (lines == savedLines) {
+            return savedFormattedLines
+        }
+
         val stringBuilder = StringBuilder()
+        val formattedLines = HashMap<String, String>(lines.size * 2)
 
         try {
             for (line in lines) {
@@ -39,28 +49,13 @@ abstract class AbstractLogParser {
                     continue
                 }
 
-                //s = Html.escapeHtml(s);
-                var encodedLine = TextUtils.htmlEncode(line)
-                val encodedLineLowerCase = encodedLine.lowercase(Locale.ROOT)
-
-                if (encodedLineLowerCase.contains("[notice]") || encodedLineLowerCase.contains("/info")) {
-                    encodedLine = "<font color=#808080>" + encodedLine.replace("[notice]", "")
-                        .replace("[NOTICE]", "") + "</font>"
-                } else if (encodedLineLowerCase.contains("[warn]") || encodedLineLowerCase.contains("/warn")) {
-                    encodedLine = "<font color=#ffa500>$encodedLine</font>"
-                } else if (encodedLineLowerCase.contains("[warning]")) {
-                    encodedLine = "<font color=#ffa500>$encodedLine</font>"
-                } else if (encodedLineLowerCase.contains("[error]") || encodedLineLowerCase.contains("/error")) {
-                    encodedLine = "<font color=#f08080>$encodedLine</font>"
-                } else if (encodedLineLowerCase.contains("[critical]")) {
-                    encodedLine = "<font color=#990000>$encodedLine</font>"
-                } else if (encodedLineLowerCase.contains("[fatal]")) {
-                    encodedLine = "<font color=#990000>$encodedLine</font>"
-                } else if (encodedLineLowerCase.isNotEmpty()) {
-                    encodedLine = "<font color=#6897bb>$encodedLine</font>"
-                }
-                if (encodedLine.isNotBlank()) {
-                    stringBuilder.append(encodedLine)
+                val formattedLine = formattedLines[line]
+                    ?: formattedLinesCache[line]
+                    ?: formatLine(line)
+                formattedLines[line] = formattedLine
+
+                if (formattedLine.isNotBlank()) {
+                    stringBuilder.append(formattedLine)
                     stringBuilder.append("<br />")
                 }
             }
@@ -68,12 +63,42 @@ abstract class AbstractLogParser {
             Log.e(LOG_TAG, "LogParser formatLines exception ${e.message} ${e.cause}")
         }
 
+        formattedLinesCache = formattedLines
+
         val lastBrIndex: Int = stringBuilder.lastIndexOf("<br />")
 
-        return if (lastBrIndex > 0) {
+        savedLines = lines
+        savedFormattedLines = if (lastBrIndex > 0) {
             stringBuilder.substring(0, lastBrIndex)
         } else {
             stringBuilder.toString()
         }
+
+        return savedFormattedLines
+    }
+
+    private fun formatLine(line: String): String {
+        //s = Html.escapeHtml(s);
+        var encodedLine = TextUtils.htmlEncode(line)
+        val encodedLineLowerCase = encodedLine.lowercase(Locale.ROOT)
+
+        if (encodedLineLowerCase.contains("[notice]") || encodedLineLowerCase.contains("/info")) {
+            encodedLine = "<font color=#808080>" + encodedLine.replace("[notice]", "")
+                .replace("[NOTICE]", "") + "</font>"
+        } else if (encodedLineLowerCase.contains("[warn]") || encodedLineLowerCase.contains("/warn")) {
+            encodedLine = "<font color=#ffa500>$encodedLine</font>"
+        } else if (encodedLineLowerCase.contains("[warning]")) {
+            encodedLine = "<font color=#ffa500>$encodedLine</font>"
+        } else if (encodedLineLowerCase.contains("[error]") || encodedLineLowerCase.contains("/error")) {
+            encodedLine = "<font color=#f08080>$encodedLine</font>"
+        } else if (encodedLineLowerCase.contains("[critical]")) {
+            encodedLine = "<font color=#990000>$encodedLine</font>"
+        } else if (encodedLineLowerCase.contains("[fatal]")) {
+            encodedLine = "<font color=#990000>$encodedLine</font>"
+        } else if (encodedLineLowerCase.isNotEmpty()) {
+            encodedLine = "<font color=#6897bb>$encodedLine</font>"
+        }
+
+        return encodedLine
     }
 }
@@ -31,12 +31,14 @@ import pan.alexander.tordnscrypt.domain.log_reader.itpd.OnITPDHtmlUpdatedListene
 import pan.alexander.tordnscrypt.domain.log_reader.itpd.OnITPDLogUpdatedListener
 import pan.alexander.tordnscrypt.domain.log_reader.tor.OnTorLogUpdatedListener
 import pan.alexander.tordnscrypt.domain.log_reader.tor.TorInteractor
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import javax.inject.Inject
 
 @LogReaderScope
 class LogReaderInteractors @Inject constructor(
     modulesLogRepository: ModulesLogRepository,
-    private val connectionRecordsInteractor: ConnectionRecordsInteractor
+    private val connectionRecordsInteractor: ConnectionRecordsInteractor,
+    torControlInteractor: TorControlInteractor
 ) :
     DNSCryptInteractorInterface,
     TorInteractorInterface,
@@ -44,7 +46,7 @@ class LogReaderInteractors @Inject constructor(
     ConnectionRecordsInteractorInterface {
 
     private val dnsCryptInteractor = DNSCryptInteractor(modulesLogRepository)
-    private val torInteractor = TorInteractor(modulesLogRepository)
+    private val torInteractor = TorInteractor(modulesLogRepository, torControlInteractor)
     private val itpdInteractor = ITPDInteractor(modulesLogRepository)
     private val itpdHtmlInteractor = ITPDHtmlInteractor(modulesLogRepository)
 
@@ -53,7 +55,9 @@ class LogReaderInteractors @Inject constructor(
         torInteractor,
         itpdInteractor,
         itpdHtmlInteractor,
-        connectionRecordsInteractor
+        connectionRecordsInteractor,
+        modulesLogRepository,
+        torControlInteractor
     )
 
     override fun <T: OnDNSCryptLogUpdatedListener> addOnDNSCryptLogUpdatedListener(onDNSCryptLogUpdatedListener: T) {
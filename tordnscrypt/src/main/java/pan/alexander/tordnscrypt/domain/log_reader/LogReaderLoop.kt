@@ -26,23 +26,49 @@ import pan.alexander.tordnscrypt.domain.log_reader.dnscrypt.DNSCryptInteractor
 import pan.alexander.tordnscrypt.domain.log_reader.itpd.ITPDHtmlInteractor
 import pan.alexander.tordnscrypt.domain.log_reader.itpd.ITPDInteractor
 import pan.alexander.tordnscrypt.domain.log_reader.tor.TorInteractor
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
 import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
 import java.lang.Exception
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.ReentrantLock
 
 private const val TIMER_INITIAL_DELAY = 1L
 private const val TIMER_INITIAL_PERIOD = 1L
 private const val TIMER_MAIN_PERIOD = 5L
+private const val TIMER_OBSERVED_PERIOD = 30L
 private const val COUNTER_STARTING = 30
 private const val COUNTER_STOPPING = 5
 
+//Changes that arrive within this time are parsed together
+private const val CHANGES_COALESCING_DELAY_MS = 100L
+//New connection records arrive with every packet, so they are converted not more often than this
+private const val CONNECTION_RECORDS_MIN_INTERVAL_MS = 1000L
+private const val CHANGES_EXECUTOR_KEEP_ALIVE_SEC = 10L
+
+private const val SOURCE_DNSCRYPT_LOG = 1
+private const val SOURCE_TOR_LOG = 1 shl 1
+private const val SOURCE_ITPD_LOG = 1 shl 2
+private const val SOURCE_CONNECTION_RECORDS = 1 shl 3
+private const val SOURCES_MODULES_LOGS = SOURCE_DNSCRYPT_LOG or SOURCE_TOR_LOG or SOURCE_ITPD_LOG
+
+/**
+ * Parses the modules logs and the connection records on a timer.
+ * When change notifications are available, a changed log, new connection records
+ * or a Tor control event wake only the corresponding parser, and the timer is slowed down to a heartbeat
+ * that is still needed for the i2pd web console and the modules states.
+ */
 class LogReaderLoop(
     dnsCryptInteractor: DNSCryptInteractor,
     torInteractor: TorInteractor,
     itpdInteractor: ITPDInteractor,
-    itpdHtmlInteractor: ITPDHtmlInteractor,
-    private val connectionRecordsInteractor: ConnectionRecordsInteractor
+    private val itpdHtmlInteractor: ITPDHtmlInteractor,
+    private val connectionRecordsInteractor: ConnectionRecordsInteractor,
+    private val modulesLogRepository: ModulesLogRepository,
+    private val torControlInteractor: TorControlInteractor
 ) {
     private val reentrantLock = ReentrantLock()
 
@@ -60,6 +86,20 @@ class LogReaderLoop(
     private var counterStarting = COUNTER_STARTING
     private var counterStopping = COUNTER_STOPPING
 
+    @Volatile
+    private var logsObserved = false
+    private val changedSources = AtomicInteger()
+    private val changesParsingScheduled = AtomicBoolean()
+    private val recordsParsingScheduled = AtomicBoolean()
+    @Volatile
+    private var recordsConvertedAt = 0L
+    private val changesExecutor by lazy {
+        ScheduledThreadPoolExecutor(1).apply {
+            setKeepAliveTime(CHANGES_EXECUTOR_KEEP_ALIVE_SEC, TimeUnit.SECONDS)
+            allowCoreThreadTimeOut(true)
+        }
+    }
+
     fun startLogsParser(period: Long = TIMER_INITIAL_PERIOD) {
 
         if (!reentrantLock.tryLock()) {
@@ -91,6 +131,8 @@ class LogReaderLoop(
 
         timer?.stopExecutor()
 
+        startChangesObservers()
+
         timer = ScheduledExecutor(TIMER_INITIAL_DELAY, period)
 
         timer?.execute { parseLogs() }
@@ -101,6 +143,7 @@ class LogReaderLoop(
         try {
             timer?.stopExecutor()
             timer = null
+            stopChangesObservers()
             connectionRecordsInteractor.stopConverter(true)
             App.instance.subcomponentsManager.releaseLogReaderScope()
             Log.i(LOG_TAG, "LogReaderLoop stopLogsParser")
@@ -111,6 +154,91 @@ class LogReaderLoop(
         }
     }
 
+    private fun startChangesObservers() {
+        if (timer != null) {
+            return
+        }
+
+        logsObserved = modulesLogRepository.startLogsObserver {
+            when (it) {
+                ModuleLog.DNSCRYPT -> onSourceChanged(SOURCE_DNSCRYPT_LOG)
+                ModuleLog.TOR -> onSourceChanged(SOURCE_TOR_LOG)
+                ModuleLog.ITPD -> onSourceChanged(SOURCE_ITPD_LOG)
+            }
+        }
+
+        connectionRecordsInteractor.setOnRawRecordsChangedListener {
+            onSourceChanged(SOURCE_CONNECTION_RECORDS)
+        }
+
+        torControlInteractor.setOnStatusChangedListener {
+            onSourceChanged(SOURCE_TOR_LOG)
+        }
+    }
+
+    private fun stopChangesObservers() {
+        modulesLogRepository.stopLogsObserver()
+        connectionRecordsInteractor.setOnRawRecordsChangedListener(null)
+        torControlInteractor.setOnStatusChangedListener(null)
+        logsObserved = false
+    }
+
+    private fun onSourceChanged(source: Int) {
+        var sources: Int
+        do {
+            sources = changedSources.get()
+        } while ((sources and source) == 0 && !changedSources.compareAndSet(sources, sources or source))
+
+        if (source == SOURCE_CONNECTION_RECORDS) {
+            if (recordsParsingScheduled.compareAndSet(false, true)) {
+                val delay = recordsConvertedAt + CONNECTION_RECORDS_MIN_INTERVAL_MS -
+                        System.currentTimeMillis()
+                changesExecutor.schedule(
+                    { parseChangedSources(SOURCE_CONNECTION_RECORDS, recordsParsingScheduled) },
+                    delay.coerceIn(CHANGES_COALESCING_DELAY_MS, CONNECTION_RECORDS_MIN_INTERVAL_MS),
+                    TimeUnit.MILLISECONDS
+                )
+            }
+        } else if (changesParsingScheduled.compareAndSet(false, true)) {
+            changesExecutor.schedule(
+                { parseChangedSources(SOURCES_MODULES_LOGS, changesParsingScheduled) },
+                CHANGES_COALESCING_DELAY_MS,
+                TimeUnit.MILLISECONDS
+            )
+        }
+    }
+
+    private fun parseChangedSources(sourcesMask: Int, parsingScheduled: AtomicBoolean) {
+        parsingScheduled.set(false)
+        var sources: Int
+        do {
+            sources = changedSources.get()
+        } while (!changedSources.compareAndSet(sources, sources and sourcesMask.inv()))
+        sources = sources and sourcesMask
+
+        try {
+            synchronized(logReaderFacade) {
+                if ((sources and SOURCE_DNSCRYPT_LOG) != 0) {
+                    logReaderFacade.parseDNSCryptLog()
+                }
+
+                if ((sources and SOURCE_TOR_LOG) != 0) {
+                    logReaderFacade.parseTorLog()
+                }
+
+                if ((sources and SOURCE_ITPD_LOG) != 0) {
+                    logReaderFacade.parseITPDLog()
+                }
+
+                if ((sources and SOURCE_CONNECTION_RECORDS) != 0) {
+                    convertConnectionRecords()
+                }
+            }
+        } catch (e: Exception) {
+            loge("LogReaderLoop parseChangedSources", e)
+        }
+    }
+
     private fun parseLogs() {
         if (logReaderFacade.isAnyListenerAvailable()) {
             counterStopping = COUNTER_STOPPING
@@ -123,15 +251,18 @@ class LogReaderLoop(
             return
         }
 
-        logReaderFacade.parseDNSCryptLog()
+        synchronized(logReaderFacade) {
 
-        logReaderFacade.parseTorLog()
+            logReaderFacade.parseDNSCryptLog()
 
-        logReaderFacade.parseITPDLog()
+            logReaderFacade.parseTorLog()
 
-        logReaderFacade.parseITPDHTML()
+            logReaderFacade.parseITPDLog()
 
-        logReaderFacade.convertConnectionRecords()
+            logReaderFacade.parseITPDHTML()
+
+            convertConnectionRecords()
+        }
 
         if (logReaderFacade.isModulesStateNotChanging()) {
             counterStarting--
@@ -140,8 +271,21 @@ class LogReaderLoop(
         }
 
         if (counterStarting == 0) {
-            startLogsParser(TIMER_MAIN_PERIOD)
+            startLogsParser(getMainPeriod())
             counterStarting = COUNTER_STARTING
         }
     }
-}
\ No newline at end of file
+
+    private fun convertConnectionRecords() {
+        recordsConvertedAt = System.currentTimeMillis()
+        logReaderFacade.convertConnectionRecords()
+    }
+
+    //The i2pd web console can only be polled
+    private fun getMainPeriod() =
+        if (logsObserved && !itpdHtmlInteractor.hasAnyListener()) {
+            TIMER_OBSERVED_PERIOD
+        } else {
+            TIMER_MAIN_PERIOD
+        }
+}
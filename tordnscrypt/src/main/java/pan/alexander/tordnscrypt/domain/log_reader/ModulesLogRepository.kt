@@ -19,9 +19,23 @@
 
 package pan.alexander.tordnscrypt.domain.log_reader
 
+import pan.alexander.tordnscrypt.domain.log_reader.itpd.ITPDConsoleStatus
+
 interface ModulesLogRepository {
     fun getDNSCryptLog(): List<String>
     fun getTorLog(): List<String>
     fun getITPDLog(): List<String>
-    fun getITPDHtmlData(): List<String>
+
+    /**
+     * @return null if the i2pd web console is not available.
+     */
+    fun getITPDConsoleStatus(): ITPDConsoleStatus?
+
+    /**
+     * Starts watching the modules log files.
+     * @param onLogChanged is called on a background thread whenever a log file is modified.
+     * @return false if change notifications are not available.
+     */
+    fun startLogsObserver(onLogChanged: (ModuleLog) -> Unit): Boolean
+    fun stopLogsObserver()
 }
\ No newline at end of file
@@ -66,7 +66,7 @@ class ITPDHtmlInteractor(private val modulesLogRepository: ModulesLogRepository)
     }
 
     private fun parseHtml() {
-        if (listeners.isEmpty()) {
+        if (listeners.isEmpty() || modulesStatus.itpdState == ModuleState.STOPPED) {
             return
         }
 
@@ -22,55 +22,42 @@ package pan.alexander.tordnscrypt.domain.log_reader.itpd
 import pan.alexander.tordnscrypt.domain.log_reader.LogDataModel
 import pan.alexander.tordnscrypt.domain.log_reader.ModulesLogRepository
 import java.util.*
-import java.util.regex.Pattern
-
-private val patternBootstrappedPercents = Pattern.compile("Tunnel creation success rate:\\D+(\\d+)%")
 
 class ITPDHtmlParser(val modulesLogRepository: ModulesLogRepository) {
     private var startedSuccessfully = false
     private var startedWithError = false
     private var percentsSaved = 0
     private var linesSaved = listOf<String>()
-    private var linesSavedHash = 0
+    private var linesFormatted = ""
 
     fun parseHtmlLines(): LogDataModel {
-        val lines = modulesLogRepository.getITPDHtmlData()
+        val status = modulesLogRepository.getITPDConsoleStatus()
 
-        val linesHash = lines.hashCode()
+        val lines = status?.lines ?: emptyList()
 
-        if (linesHash != linesSavedHash) {
+        if (lines != linesSaved) {
             linesSaved = lines
-            linesSavedHash = linesHash
+            linesFormatted = formatLines(lines)
         }
 
-        if (!startedSuccessfully) {
-
-            var errorFound = false
-
-            for (line in lines) {
-                val matcher = patternBootstrappedPercents.matcher(line)
-
-                if (matcher.find()) {
-                    percentsSaved = matcher.group(1)?.toInt() ?: percentsSaved
-
-                    when (percentsSaved) {
-                        0 -> {
-                            startedSuccessfully = false
-                            startedWithError = errorFound
-                        }
-                        else -> {
-                            startedSuccessfully = true
-                            startedWithError = false
-                        }
-                    }
-
-                    break
-                } else if (line.contains("Network status")) {
-                    if (line.lowercase(Locale.ROOT).contains("error")) {
-                        startedSuccessfully = false
-                        startedWithError = true
-                        errorFound = true
-                    }
+        if (!startedSuccessfully && status != null) {
+
+            val errorFound = status.networkStatus.lowercase(Locale.ROOT).contains("error")
+
+            when (status.tunnelCreationSuccessRate) {
+                -1 -> if (errorFound) {
+                    startedSuccessfully = false
+                    startedWithError = true
+                }
+                0 -> {
+                    percentsSaved = 0
+                    startedSuccessfully = false
+                    startedWithError = errorFound
+                }
+                else -> {
+                    percentsSaved = status.tunnelCreationSuccessRate
+                    startedSuccessfully = true
+                    startedWithError = false
                 }
             }
         }
@@ -79,7 +66,7 @@ class ITPDHtmlParser(val modulesLogRepository: ModulesLogRepository) {
             startedSuccessfully,
             startedWithError,
             percentsSaved,
-            formatLines(linesSaved),
+            linesFormatted,
             linesSaved.hashCode()
         )
     }
@@ -87,22 +74,12 @@ class ITPDHtmlParser(val modulesLogRepository: ModulesLogRepository) {
     private fun formatLines(lines: List<String>): String {
         val output = StringBuilder()
 
+        //Only the statistics lines are returned by the repository
         lines.forEach { line ->
-            var formattedLine = line
-            if (line.contains("<b>Network status:</b>")
-                || line.contains("<b>Tunnel creation success rate:</b>")
-                || line.contains("<b>Received:</b> ")
-                || line.contains("<b>Sent:</b>")
-                || line.contains("<b>Transit:</b>")
-                || line.contains("<b>Routers:</b>")
-                || line.contains("<b>Client Tunnels:</b>")
-                || line.contains("<b>Uptime:</b>")
-            ) {
-                formattedLine = formattedLine
-                    .replace("<div class=\"content\">", "")
+            output.append(
+                line.replace("<div class=\"content\">", "")
                     .replace("<br>", "<br />")
-                output.append(formattedLine)
-            }
+            )
         }
 
         if (output.contains("<br />")) {
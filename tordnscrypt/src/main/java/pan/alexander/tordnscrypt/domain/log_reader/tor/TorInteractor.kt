@@ -21,13 +21,17 @@ package pan.alexander.tordnscrypt.domain.log_reader.tor
 
 import android.util.Log
 import pan.alexander.tordnscrypt.domain.log_reader.ModulesLogRepository
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG
 import pan.alexander.tordnscrypt.utils.enums.ModuleState
 import java.lang.Exception
 import java.lang.ref.WeakReference
 
-class TorInteractor(private val modulesLogRepository: ModulesLogRepository) {
+class TorInteractor(
+    private val modulesLogRepository: ModulesLogRepository,
+    private val torControlInteractor: TorControlInteractor
+) {
     private val listeners: HashMap<Class<*>, WeakReference<OnTorLogUpdatedListener>> = hashMapOf()
     private var parser: TorLogParser? = null
     private val modulesStatus = ModulesStatus.getInstance()
@@ -73,7 +77,7 @@ class TorInteractor(private val modulesLogRepository: ModulesLogRepository) {
 
         resetParserState()
 
-        parser = parser ?: TorLogParser(modulesLogRepository)
+        parser = parser ?: TorLogParser(modulesLogRepository, torControlInteractor)
 
         val torLogData = parser?.parseLog()
 
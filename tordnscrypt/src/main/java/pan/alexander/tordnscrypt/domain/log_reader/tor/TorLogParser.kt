@@ -22,12 +22,17 @@ package pan.alexander.tordnscrypt.domain.log_reader.tor
 import pan.alexander.tordnscrypt.domain.log_reader.LogDataModel
 import pan.alexander.tordnscrypt.domain.log_reader.AbstractLogParser
 import pan.alexander.tordnscrypt.domain.log_reader.ModulesLogRepository
+import pan.alexander.tordnscrypt.domain.tor_control.TorBootstrapStatus
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import java.util.regex.Pattern
 
 private const val COUNT_DOWN_TIMER = 5
 private val patternBootstrappedPercents = Pattern.compile("Bootstrapped +(\\d+)%")
 
-class TorLogParser(private val modulesLogRepository: ModulesLogRepository) : AbstractLogParser() {
+class TorLogParser(
+    private val modulesLogRepository: ModulesLogRepository,
+    private val torControlInteractor: TorControlInteractor
+) : AbstractLogParser() {
     private var startedSuccessfully = false
     private var startedWithError = false
     private var percentsSaved = -1
@@ -42,7 +47,14 @@ class TorLogParser(private val modulesLogRepository: ModulesLogRepository) : Abs
             linesSaved = lines
         }
 
-        if (!startedSuccessfully) {
+        val controlStatus = torControlInteractor.run {
+            connectIfNeeded()
+            getBootstrapStatus()
+        }
+
+        if (controlStatus != null) {
+            applyControlStatus(controlStatus)
+        } else if (!startedSuccessfully) {
 
             var errorFound = false
 
@@ -95,4 +107,12 @@ class TorLogParser(private val modulesLogRepository: ModulesLogRepository) : Abs
             linesSaved.size
         )
     }
+
+    //Exact state reported by the control protocol takes priority over the log lines
+    private fun applyControlStatus(status: TorBootstrapStatus) {
+        startedSuccessfully = status.progress == 100
+        startedWithError = !startedSuccessfully && status.problem
+        percentsSaved = if (startedSuccessfully) -1 else status.progress
+        errorCountDownCounter = COUNT_DOWN_TIMER
+    }
 }
\ No newline at end of file
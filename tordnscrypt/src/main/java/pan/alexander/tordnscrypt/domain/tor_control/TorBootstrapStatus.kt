@@ -0,0 +1,77 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.tor_control
+
+import java.util.regex.Pattern
+
+private val keywordArgumentPattern = Pattern.compile("(\\w+)=(\"(?:[^\"\\\\]|\\\\.)*\"|\\S*)")
+
+/**
+ * Bootstrap phase as reported by the Tor control protocol, for example
+ * NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY="Done"
+ */
+data class TorBootstrapStatus(
+    val progress: Int,
+    val tag: String,
+    val summary: String,
+    val warning: String,
+    val problem: Boolean
+) {
+    companion object {
+
+        /**
+         * @param status "severity BOOTSTRAP arguments" part of the status/bootstrap-phase value
+         * or of the STATUS_CLIENT event.
+         */
+        fun parse(status: String): TorBootstrapStatus? {
+            val parts = status.trim().split(" ", limit = 3)
+            if (parts.size < 3 || parts[1] != "BOOTSTRAP") {
+                return null
+            }
+
+            val arguments = parseKeywordArguments(parts[2])
+            val progress = arguments["PROGRESS"]?.toIntOrNull() ?: return null
+
+            return TorBootstrapStatus(
+                progress = progress,
+                tag = arguments["TAG"] ?: "",
+                summary = arguments["SUMMARY"] ?: "",
+                warning = arguments["WARNING"] ?: "",
+                //Tor recommends to ignore problems that are expected to resolve by themselves
+                problem = parts[0] == "WARN" && arguments["RECOMMENDATION"] == "warn"
+            )
+        }
+
+        fun parseKeywordArguments(arguments: String): Map<String, String> {
+            val result = mutableMapOf<String, String>()
+            val matcher = keywordArgumentPattern.matcher(arguments)
+            while (matcher.find()) {
+                val value = matcher.group(2) ?: ""
+                result[matcher.group(1) ?: continue] =
+                    if (value.length >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value.substring(1, value.length - 1).replace("\\\"", "\"")
+                    } else {
+                        value
+                    }
+            }
+            return result
+        }
+    }
+}
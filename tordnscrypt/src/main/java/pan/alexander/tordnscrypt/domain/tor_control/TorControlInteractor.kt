@@ -0,0 +1,245 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.tor_control
+
+import pan.alexander.tordnscrypt.modules.ModulesStatus
+import pan.alexander.tordnscrypt.utils.enums.ModuleState
+import pan.alexander.tordnscrypt.utils.logger.Logger.logi
+import pan.alexander.tordnscrypt.utils.logger.Logger.logw
+import java.io.IOException
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val CONNECT_RETRY_INTERVAL_MS = 3000L
+private const val EVENT_STATUS_CLIENT = "STATUS_CLIENT"
+private const val EVENT_WARN = "WARN"
+private const val EVENT_SIGNAL = "SIGNAL"
+private const val BOOTSTRAP_PHASE_KEY = "status/bootstrap-phase"
+private const val CIRCUIT_STATUS_KEY = "circuit-status"
+private const val SIGNAL_NEWNYM = "NEWNYM"
+private const val CIRCUIT_PURPOSE_GENERAL = "PURPOSE=GENERAL"
+
+//Tor applies NEWNYM at most once per 10 seconds and delays more frequent signals
+private const val NEWNYM_RATE_LIMIT_MS = 10000L
+private const val NEWNYM_CONFIRMATION_TIMEOUT_MS = 5000L
+
+/**
+ * Tracks Tor bootstrap and circuit state with the control protocol.
+ * State changes are pushed by Tor as STATUS_CLIENT events, so they are known
+ * immediately and do not depend on log lines that could be truncated.
+ * While the control socket is not available, [getBootstrapStatus] returns null
+ * and the state should be taken from the log.
+ * It is also used to change Tor identity with SIGNAL NEWNYM without restarting Tor.
+ */
+@Singleton
+class TorControlInteractor @Inject constructor(
+    private val torControlRepository: TorControlRepository
+) {
+    private val modulesStatus = ModulesStatus.getInstance()
+
+    @Volatile
+    private var bootstrapStatus: TorBootstrapStatus? = null
+
+    @Volatile
+    private var circuitEstablished = false
+
+    @Volatile
+    private var lastWarning = ""
+
+    @Volatile
+    private var lastNewIdentityTime = 0L
+
+    //A new identity is pending until the SIGNAL NEWNYM event or this time
+    @Volatile
+    private var newIdentityDeadline = 0L
+
+    @Volatile
+    private var onStatusChangedListener: (() -> Unit)? = null
+
+    //Guarded by this
+    private var lastConnectAttemptTime = 0L
+    private var connectionFailureLogged = false
+
+    /**
+     * @param listener is called on the control connection thread when the Tor state changes.
+     */
+    fun setOnStatusChangedListener(listener: (() -> Unit)?) {
+        onStatusChangedListener = listener
+    }
+
+    /**
+     * Connects to Tor if it is running and is not connected yet, or disconnects if Tor is stopped.
+     * Attempts are rate limited, so it can be called on every log parsing.
+     */
+    @Synchronized
+    fun connectIfNeeded() {
+        if (modulesStatus.torState != ModuleState.RUNNING) {
+            if (torControlRepository.isConnected()) {
+                torControlRepository.disconnect()
+            }
+            return
+        } else if (torControlRepository.isConnected()) {
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        if (now - lastConnectAttemptTime < CONNECT_RETRY_INTERVAL_MS) {
+            return
+        }
+        lastConnectAttemptTime = now
+
+        try {
+            torControlRepository.connect({ onEvent(it) }, { onDisconnected() })
+            torControlRepository.setEvents(listOf(EVENT_STATUS_CLIENT, EVENT_WARN, EVENT_SIGNAL))
+            bootstrapStatus = TorBootstrapStatus.parse(
+                torControlRepository.getInfo(BOOTSTRAP_PHASE_KEY)
+            )
+            connectionFailureLogged = false
+            logi("TorControlInteractor connected, bootstrap $bootstrapStatus")
+            onStatusChangedListener?.invoke()
+        } catch (e: Exception) {
+            //Expected while Tor is starting or if it runs with root
+            if (!connectionFailureLogged) {
+                connectionFailureLogged = true
+                logw("TorControlInteractor connect ${e.message}")
+            }
+            torControlRepository.disconnect()
+        }
+    }
+
+    fun disconnect() {
+        torControlRepository.disconnect()
+    }
+
+    /**
+     * @return the last known bootstrap phase or null if the control socket is not connected.
+     */
+    fun getBootstrapStatus(): TorBootstrapStatus? =
+        if (torControlRepository.isConnected()) bootstrapStatus else null
+
+    /**
+     * Asks Tor for the current bootstrap phase.
+     * @return null if the control socket is not connected.
+     */
+    fun requestBootstrapPhase(): TorBootstrapStatus? =
+        try {
+            TorBootstrapStatus.parse(torControlRepository.getInfo(BOOTSTRAP_PHASE_KEY))?.also {
+                bootstrapStatus = it
+            }
+        } catch (e: IOException) {
+            logw("TorControlInteractor requestBootstrapPhase ${e.message}")
+            null
+        }
+
+    fun isCircuitEstablished(): Boolean = torControlRepository.isConnected() && circuitEstablished
+
+    fun getLastWarning(): String = lastWarning
+
+    /**
+     * Asks Tor to use new circuits for new connections. Tor delays the signal if the previous one
+     * was less than 10 seconds ago, so completion is reported by the SIGNAL NEWNYM event
+     * and can be checked with [isNewIdentityInProgress]. Should not be called on the main thread.
+     * @param closeCircuits also close existing general purpose circuits, which drops open streams.
+     * @return false if the control socket is not available and Tor should be restarted instead.
+     */
+    fun requestNewIdentity(closeCircuits: Boolean): Boolean {
+        connectIfNeeded()
+
+        if (!torControlRepository.isConnected()) {
+            return false
+        } else if (isNewIdentityInProgress()) {
+            return true
+        }
+
+        val now = System.currentTimeMillis()
+        newIdentityDeadline = maxOf(now, lastNewIdentityTime + NEWNYM_RATE_LIMIT_MS) +
+                NEWNYM_CONFIRMATION_TIMEOUT_MS
+
+        try {
+            torControlRepository.signal(SIGNAL_NEWNYM)
+            if (closeCircuits) {
+                closeGeneralCircuits()
+            }
+        } catch (e: IOException) {
+            logw("TorControlInteractor requestNewIdentity ${e.message}")
+            newIdentityDeadline = 0
+            return false
+        }
+
+        logi("TorControlInteractor new identity requested")
+
+        return true
+    }
+
+    fun isNewIdentityInProgress(): Boolean = System.currentTimeMillis() < newIdentityDeadline
+
+    private fun closeGeneralCircuits() {
+        val circuitIds = torControlRepository.getInfoLines(CIRCUIT_STATUS_KEY)
+            .map { it.split(" ") }
+            .filter { it.contains(CIRCUIT_PURPOSE_GENERAL) }
+            .map { it.first() }
+
+        for (circuitId in circuitIds) {
+            try {
+                torControlRepository.closeCircuit(circuitId)
+            } catch (e: IOException) {
+                //The circuit may already be closed
+                logw("TorControlInteractor closeCircuit $circuitId ${e.message}")
+            }
+        }
+    }
+
+    private fun onEvent(lines: List<String>) {
+        val event = lines.firstOrNull() ?: return
+        val type = event.substringBefore(' ')
+        val body = event.substringAfter(' ', "")
+
+        when (type) {
+            EVENT_STATUS_CLIENT -> onStatusClientEvent(body)
+            EVENT_WARN -> lastWarning = body
+            EVENT_SIGNAL -> if (body == SIGNAL_NEWNYM) onNewIdentity() else return
+            else -> return
+        }
+
+        onStatusChangedListener?.invoke()
+    }
+
+    private fun onStatusClientEvent(status: String) {
+        val action = status.split(" ", limit = 3).getOrNull(1)
+        when (action) {
+            "BOOTSTRAP" -> TorBootstrapStatus.parse(status)?.let { bootstrapStatus = it }
+            "CIRCUIT_ESTABLISHED" -> circuitEstablished = true
+            "CIRCUIT_NOT_ESTABLISHED" -> circuitEstablished = false
+        }
+    }
+
+    private fun onNewIdentity() {
+        lastNewIdentityTime = System.currentTimeMillis()
+        newIdentityDeadline = 0
+        logi("TorControlInteractor new identity applied")
+    }
+
+    private fun onDisconnected() {
+        bootstrapStatus = null
+        circuitEstablished = false
+        newIdentityDeadline = 0
+        onStatusChangedListener?.invoke()
+    }
+}
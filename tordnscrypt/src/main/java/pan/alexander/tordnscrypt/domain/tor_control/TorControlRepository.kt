@@ -0,0 +1,57 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.tor_control
+
+import java.io.IOException
+
+interface TorControlRepository {
+    /**
+     * Connects to the Tor control socket and authenticates with the cookie.
+     * @param onEvent receives lines of asynchronous events, without the 650 status code.
+     * @param onDisconnected is called once when the connection is closed by either side.
+     */
+    @Throws(IOException::class)
+    fun connect(onEvent: (List<String>) -> Unit, onDisconnected: () -> Unit)
+
+    fun disconnect()
+
+    fun isConnected(): Boolean
+
+    @Throws(IOException::class)
+    fun setEvents(events: List<String>)
+
+    /**
+     * @return value of the GETINFO key.
+     */
+    @Throws(IOException::class)
+    fun getInfo(key: String): String
+
+    /**
+     * @return value of the GETINFO key split into lines, for keys like circuit-status.
+     */
+    @Throws(IOException::class)
+    fun getInfoLines(key: String): List<String>
+
+    @Throws(IOException::class)
+    fun signal(signal: String)
+
+    @Throws(IOException::class)
+    fun closeCircuit(circuitId: String)
+}
@@ -20,6 +20,10 @@
 package pan.alexander.tordnscrypt.iptables;
 
 interface IptablesConstants {
+    String TABLE_FILTER = "filter";
+    String TABLE_NAT = "nat";
+    String TABLE_MANGLE = "mangle";
+
     String FILTER_OUTPUT_CORE = "tordnscrypt";
     String FILTER_OUTPUT_FIREWALL = "ipro_fwl_output";
     String FILTER_FIREWALL_LAN = "ipro_fwl_lan";
@@ -22,6 +22,8 @@ package pan.alexander.tordnscrypt.iptables
 import android.content.Context
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
 import pan.alexander.tordnscrypt.iptables.IptablesConstants.*
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets.Companion.SET_CONNECTIVITY_CHECK
+import pan.alexander.tordnscrypt.iptables.IptablesIpSets.Companion.SET_FIREWALL_LAN
 import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData
@@ -52,7 +54,8 @@ class IptablesFirewall @Inject constructor(
     private val context: Context,
     private val preferences: PreferenceRepository,
     private val pathVars: PathVars,
-    private val connectivityCheckManager: dagger.Lazy<ConnectivityCheckManager>
+    private val connectivityCheckManager: dagger.Lazy<ConnectivityCheckManager>,
+    private val iptablesIpSets: dagger.Lazy<IptablesIpSets>
 ) {
 
     private val numberRegex by lazy { Regex("-?$NUMBER_REGEX") }
@@ -67,31 +70,42 @@ class IptablesFirewall @Inject constructor(
     private val uidSpecialAllowed by lazy { hashSetOf<Int>() }
     private val uidLanAllowed by lazy { hashSetOf<Int>() }
 
-    fun getFirewallRules(tetheringActive: Boolean): List<String> {
+    fun getFirewallRules(
+        chainRules: IptablesRestoreTransaction.Builder,
+        tetheringActive: Boolean
+    ): List<String> {
 
         prepareUidAllowed()
 
         val iptables = getIptables()
 
         return sequenceOf(
-            "$iptables -F $FILTER_OUTPUT_FIREWALL 2> /dev/null",
+            chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_FIREWALL),
             "$iptables -D OUTPUT -j $FILTER_OUTPUT_FIREWALL 2> /dev/null || true",
-            "$iptables -N $FILTER_OUTPUT_FIREWALL 2> /dev/null",
+            chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_FIREWALL),
             "$iptables -I OUTPUT 2 -j $FILTER_OUTPUT_FIREWALL",
-            "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner --uid-owner $ownUID -j RETURN"
+            chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner --uid-owner $ownUID -j RETURN")
         ).plus(
-            getTetheringRules(iptables, tetheringActive)
+            getTetheringRules(chainRules, tetheringActive)
         ).plus(
-            getLanRules(iptables)
+            getLanRules(chainRules)
         ).plus(
-            getAppRulesByConnectionType(iptables)
+            getAppRulesByConnectionType(chainRules)
         ).plus(
-            getSpecialRules(iptables)
+            getSpecialRules(iptables, chainRules)
         ).plus(
-            "$iptables -A $FILTER_OUTPUT_FIREWALL -j REJECT"
+            chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -j REJECT")
         ).toList()
     }
 
+    /**
+     * Content of the sets that firewall rules refer to when ipset is supported.
+     */
+    fun getIpSetsContent(): Map<String, Collection<String>> = mapOf(
+        SET_FIREWALL_LAN to getLanDestinations(),
+        SET_CONNECTIVITY_CHECK to connectivityCheckManager.get().getConnectivityCheckIps()
+    )
+
     fun getFastUpdateFirewallRules(): List<String> {
 
         val iptables = getIptables()
@@ -115,39 +129,45 @@ class IptablesFirewall @Inject constructor(
         )
     }
 
-    private fun getLanRules(iptables: String): List<String> =
+    private fun getLanRules(chainRules: IptablesRestoreTransaction.Builder): List<String> =
         sequenceOf(
-            "$iptables -F $FILTER_FIREWALL_LAN 2> /dev/null",
-            "$iptables -N $FILTER_FIREWALL_LAN 2> /dev/null"
+            chainRules.flushChain(TABLE_FILTER, FILTER_FIREWALL_LAN),
+            chainRules.newChain(TABLE_FILTER, FILTER_FIREWALL_LAN)
         ).plus(
-            VpnUtils.nonTorList
-                .asSequence()
-                .filter { it != "127.0.0.0/8" } //exclude localhost
-                .map {
-                    "$iptables -A $FILTER_OUTPUT_FIREWALL -d $it -j $FILTER_FIREWALL_LAN"
+            if (iptablesIpSets.get().isSupported()) {
+                sequenceOf(
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, "${iptablesIpSets.get().getMatch(SET_FIREWALL_LAN)} -j $FILTER_FIREWALL_LAN")
+                )
+            } else {
+                getLanDestinations().asSequence().map {
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -d $it -j $FILTER_FIREWALL_LAN")
                 }
+            }
         ).plus(
-            "$iptables -A $FILTER_OUTPUT_FIREWALL -m mark --mark $FIREWALL_RETURN_MARK -j RETURN"
+            chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m mark --mark $FIREWALL_RETURN_MARK -j RETURN")
         ).plus(
-            getAppLanRules(iptables, uidLanAllowed)
+            getAppLanRules(chainRules, uidLanAllowed)
         ).plus(
-            "$iptables -A $FILTER_FIREWALL_LAN -m mark --mark $FIREWALL_RETURN_MARK -j RETURN"
+            chainRules.appendRule(TABLE_FILTER, FILTER_FIREWALL_LAN, " -m mark --mark $FIREWALL_RETURN_MARK -j RETURN")
         ).plus(
-            "$iptables -A $FILTER_FIREWALL_LAN -j REJECT"
+            chainRules.appendRule(TABLE_FILTER, FILTER_FIREWALL_LAN, " -j REJECT")
         ).toList()
 
-    private fun getAppLanRules(iptables: String, uids: Set<Int>) = with(IptablesUtils) {
+    private fun getLanDestinations() =
+        VpnUtils.nonTorList.filter { it != "127.0.0.0/8" } //exclude localhost
+
+    private fun getAppLanRules(chainRules: IptablesRestoreTransaction.Builder, uids: Set<Int>) = with(IptablesUtils) {
         uids.groupToRanges().map { range ->
             when {
                 range.size == 1 ->
                     when {
-                        range.first() >= 0 -> "$iptables -A $FILTER_FIREWALL_LAN -m owner --uid-owner ${range.first()} -j MARK --set-mark $FIREWALL_RETURN_MARK 2> /dev/null || true"
-                        range.first() == SPECIAL_UID_KERNEL -> "$iptables -A $FILTER_FIREWALL_LAN -m owner ! --uid-owner 0:999999999 -j MARK --set-mark $FIREWALL_RETURN_MARK 2> /dev/null || true"
+                        range.first() >= 0 -> chainRules.appendOptionalRule(TABLE_FILTER, FILTER_FIREWALL_LAN, " -m owner --uid-owner ${range.first()} -j MARK --set-mark $FIREWALL_RETURN_MARK")
+                        range.first() == SPECIAL_UID_KERNEL -> chainRules.appendOptionalRule(TABLE_FILTER, FILTER_FIREWALL_LAN, " -m owner ! --uid-owner 0:999999999 -j MARK --set-mark $FIREWALL_RETURN_MARK")
                         else -> ""
                     }
                 range.size > 1 ->
                     when {
-                        range.first() >= 0 -> "$iptables -A $FILTER_FIREWALL_LAN -m owner --uid-owner ${range.first()}:${range.last()} -j MARK --set-mark $FIREWALL_RETURN_MARK 2> /dev/null || true"
+                        range.first() >= 0 -> chainRules.appendOptionalRule(TABLE_FILTER, FILTER_FIREWALL_LAN, " -m owner --uid-owner ${range.first()}:${range.last()} -j MARK --set-mark $FIREWALL_RETURN_MARK")
                         else -> ""
                     }
                 else -> ""
@@ -155,48 +175,57 @@ class IptablesFirewall @Inject constructor(
         }
     }
 
-    private fun getAppRulesByConnectionType(iptables: String): List<String> = with(IptablesUtils) {
+    private fun getAppRulesByConnectionType(chainRules: IptablesRestoreTransaction.Builder): List<String> = with(IptablesUtils) {
         uidAllowed.groupToRanges().map {
             when {
                 it.size == 1 ->
-                    "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner --uid-owner ${it.first()} -j RETURN"
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner --uid-owner ${it.first()} -j RETURN")
                 it.size > 1 ->
-                    "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner --uid-owner ${it.first()}:${it.last()} -j RETURN"
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner --uid-owner ${it.first()}:${it.last()} -j RETURN")
                 else -> ""
             }
         }
     }
 
-    private fun getSpecialRules(iptables: String): List<String> =
+    private fun getSpecialRules(
+        iptables: String,
+        chainRules: IptablesRestoreTransaction.Builder
+    ): List<String> =
         sequenceOf(
-            "$iptables -t mangle -F $MANGLE_FIREWALL_ALLOW 2> /dev/null",
+            chainRules.flushChain(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW),
             "$iptables -t mangle -D OUTPUT -j $MANGLE_FIREWALL_ALLOW 2> /dev/null || true",
-            "$iptables -t mangle -N $MANGLE_FIREWALL_ALLOW 2> /dev/null"
+            chainRules.newChain(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW)
         ).plus(
             uidSpecialAllowed.flatMap {
                 when (it) {
                     SPECIAL_UID_KERNEL -> {
                         arrayListOf(
-                            "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner ! --uid-owner 0:999999999 -j RETURN"
+                            chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner ! --uid-owner 0:999999999 -j RETURN")
                         )
                     }
                     SPECIAL_UID_NTP -> {
                         arrayListOf(
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p udp --sport $SPECIAL_PORT_NTP -m owner --uid-owner 1000 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true",
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p udp --dport $SPECIAL_PORT_NTP -m owner --uid-owner 1000 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true",
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p udp --sport $SPECIAL_PORT_NTP -m owner --uid-owner 1000 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK"),
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p udp --dport $SPECIAL_PORT_NTP -m owner --uid-owner 1000 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK"),
                         )
                     }
                     SPECIAL_UID_AGPS -> {
                         arrayListOf(
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p tcp --dport $SPECIAL_PORT_AGPS1 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true",
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p udp --dport $SPECIAL_PORT_AGPS1 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true",
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p tcp --dport $SPECIAL_PORT_AGPS2 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true",
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -p udp --dport $SPECIAL_PORT_AGPS2 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true"
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p tcp --dport $SPECIAL_PORT_AGPS1 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK"),
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p udp --dport $SPECIAL_PORT_AGPS1 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK"),
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p tcp --dport $SPECIAL_PORT_AGPS2 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK"),
+                            chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -p udp --dport $SPECIAL_PORT_AGPS2 -j CONNMARK --set-mark $FIREWALL_RETURN_MARK")
                         )
                     }
                     SPECIAL_UID_CONNECTIVITY_CHECK -> {
-                        connectivityCheckManager.get().getConnectivityCheckIps().map { ip ->
-                            "$iptables -t mangle -A $MANGLE_FIREWALL_ALLOW -d $ip -j CONNMARK --set-mark $FIREWALL_RETURN_MARK || true"
+                        if (iptablesIpSets.get().isSupported()) {
+                            arrayListOf(
+                                chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, "${iptablesIpSets.get().getMatch(SET_CONNECTIVITY_CHECK)} -j CONNMARK --set-mark $FIREWALL_RETURN_MARK")
+                            )
+                        } else {
+                            connectivityCheckManager.get().getConnectivityCheckIps().map { ip ->
+                                chainRules.appendOptionalRule(TABLE_MANGLE, MANGLE_FIREWALL_ALLOW, " -d $ip -j CONNMARK --set-mark $FIREWALL_RETURN_MARK")
+                            }
                         }
                     }
                     else -> emptyList()
@@ -205,17 +234,20 @@ class IptablesFirewall @Inject constructor(
         ).plus(
             arrayListOf(
                 "$iptables -t mangle -I OUTPUT -j $MANGLE_FIREWALL_ALLOW",
-                "$iptables -A $FILTER_OUTPUT_FIREWALL -m connmark --mark $FIREWALL_RETURN_MARK -j RETURN"
+                chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m connmark --mark $FIREWALL_RETURN_MARK -j RETURN")
             )
         ).toList()
 
 
-    private fun getTetheringRules(iptables: String, tetheringActive: Boolean): List<String> =
+    private fun getTetheringRules(
+        chainRules: IptablesRestoreTransaction.Builder,
+        tetheringActive: Boolean
+    ): List<String> =
         if (tetheringActive) {
             val dnsTetherUid = Utils.getDnsTetherUid(ownUID)
             arrayListOf(
-                "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner --uid-owner $dnsTetherUid -p tcp --sport 53 -j RETURN",
-                "$iptables -A $FILTER_OUTPUT_FIREWALL -m owner --uid-owner $dnsTetherUid -p udp --sport 53 -j RETURN"
+                chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner --uid-owner $dnsTetherUid -p tcp --sport 53 -j RETURN"),
+                chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_FIREWALL, " -m owner --uid-owner $dnsTetherUid -p udp --sport 53 -j RETURN")
             )
         } else {
             emptyList()
@@ -0,0 +1,121 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables
+
+import com.jrummyapps.android.shell.Shell
+import pan.alexander.tordnscrypt.settings.PathVars
+import pan.alexander.tordnscrypt.utils.logger.Logger.loge
+import pan.alexander.tordnscrypt.utils.logger.Logger.logi
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val IPSET = "ipset"
+private const val PROBE_NAME = "ipro_ipset_probe"
+private const val PROBE_SUCCESS = "ipset_supported"
+private val ipv4NetRegex by lazy { Regex("^\\d{1,3}(\\.\\d{1,3}){3}(/\\d{1,2})?$") }
+
+/**
+ * Keeps lists of addresses in hash:net ipsets, so that a list is matched by a single iptables rule
+ * and its members can be changed without touching the rules.
+ */
+@Singleton
+class IptablesIpSets @Inject constructor(
+    private val pathVars: PathVars
+) {
+
+    @Volatile
+    private var probedIptables: String? = null
+
+    @Volatile
+    private var supported = false
+
+    /**
+     * Checks once for each iptables binary that the ipset utility exists and that the kernel supports the set match.
+     * Should not be called on the main thread.
+     */
+    @Synchronized
+    fun isSupported(): Boolean {
+        val iptables = pathVars.iptablesPath
+        if (iptables == probedIptables) {
+            return supported
+        }
+
+        supported = try {
+            Shell.SU.run(getProbeCommand(iptables)).stdout.any { it.contains(PROBE_SUCCESS) }
+        } catch (e: Exception) {
+            loge("IptablesIpSets isSupported", e)
+            false
+        }
+        probedIptables = iptables
+
+        logi("Iptables ipset ${if (supported) "is supported" else "is not supported"}")
+
+        return supported
+    }
+
+    fun getMatch(set: String) = " -m set --match-set $set dst"
+
+    /**
+     * Fills a temporary set and swaps it with the live one, so the rules never see a partially filled set.
+     */
+    fun getFillCommand(set: String, entries: Collection<String>): String {
+        val tmp = "${set}_tmp"
+        val addEntries = entries.filter { it.matches(ipv4NetRegex) }.let { ips ->
+            if (ips.isEmpty()) {
+                ""
+            } else {
+                "printf 'add $tmp %s\\n' ${ips.joinToString(" ")} | $IPSET -! restore && "
+            }
+        }
+        return "$IPSET -! create $set hash:net && " +
+                "$IPSET -! create $tmp hash:net && " +
+                "$IPSET flush $tmp && " +
+                addEntries +
+                "$IPSET swap $tmp $set && " +
+                "$IPSET destroy $tmp"
+    }
+
+    fun getAddCommand(set: String, entry: String) = "$IPSET -! add $set $entry"
+
+    fun getDeleteCommand(set: String, entry: String) = "$IPSET -! del $set $entry"
+
+    /**
+     * Sets can be destroyed only when no rules refer to them.
+     */
+    fun getDestroyCommands(): List<String> =
+        ALL_SETS.map { "$IPSET destroy $it 2> /dev/null || true" }
+
+    private fun getProbeCommand(iptables: String) =
+        "$IPSET -! create $PROBE_NAME hash:net; " +
+                "${iptables}-N $PROBE_NAME 2> /dev/null; " +
+                "${iptables}-A $PROBE_NAME${getMatch(PROBE_NAME)} -j RETURN && echo $PROBE_SUCCESS; " +
+                "${iptables}-F $PROBE_NAME; " +
+                "${iptables}-X $PROBE_NAME; " +
+                "$IPSET destroy $PROBE_NAME"
+
+    companion object {
+        const val SET_TOR_IPS = "ipro_tor_ips"
+        const val SET_NON_TOR = "ipro_non_tor"
+        const val SET_FIREWALL_LAN = "ipro_fwl_lan_ips"
+        const val SET_CONNECTIVITY_CHECK = "ipro_conn_check"
+
+        private val ALL_SETS = listOf(SET_TOR_IPS, SET_NON_TOR, SET_FIREWALL_LAN, SET_CONNECTIVITY_CHECK)
+    }
+}
@@ -0,0 +1,312 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_FILTER;
+
+/**
+ * Applies the rules of InviZible chains with one iptables-restore --noflush payload,
+ * so that each table is replaced in a single transaction instead of reloading the ruleset for every rule.
+ * The rules are collected by {@link Builder} together with the shell commands that create them.
+ * The shell commands are kept as a fallback in case iptables-restore fails,
+ * for example because the binary is missing, too old or some match is not supported by the kernel.
+ */
+public final class IptablesRestoreTransaction {
+
+    private static final String COMMAND_FLUSH = "-F";
+    private static final String COMMAND_NEW = "-N";
+    private static final String COMMAND_APPEND = "-A";
+
+    private final Map<String, Map<String, List<String>>> tables;
+    private final List<String> fallbackCommands;
+    private final List<String> commands;
+    private final int restoreCommandIndex;
+
+    private IptablesRestoreTransaction(
+            Map<String, Map<String, List<String>>> tables,
+            List<String> fallbackCommands,
+            List<String> commands,
+            int restoreCommandIndex
+    ) {
+        this.tables = tables;
+        this.fallbackCommands = fallbackCommands;
+        this.commands = commands;
+        this.restoreCommandIndex = restoreCommandIndex;
+    }
+
+    /**
+     * @return content for iptables-restore, chains declared in a table are flushed or created.
+     */
+    String getPayload() {
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, Map<String, List<String>>> table : tables.entrySet()) {
+            payload.append('*').append(table.getKey()).append('\n');
+            for (String chain : table.getValue().keySet()) {
+                payload.append(':').append(chain).append(" - [0:0]\n");
+            }
+            for (Map.Entry<String, List<String>> chain : table.getValue().entrySet()) {
+                for (String rule : chain.getValue()) {
+                    payload.append("-A ").append(chain.getKey()).append(rule).append('\n');
+                }
+            }
+            payload.append("COMMIT\n");
+        }
+        return payload.toString();
+    }
+
+    /**
+     * @return rules of the chains by table and chain, each rule as iptables arguments after the chain name.
+     */
+    Map<String, Map<String, List<String>>> getTables() {
+        return tables;
+    }
+
+    /**
+     * @param iptablesRestore path to iptables-restore with options.
+     * @param payloadPath     path to the file with the {@link #getPayload()} content.
+     * @return commands where the chain commands are replaced by iptables-restore,
+     * which runs them itself only if the payload could not be applied.
+     */
+    List<String> getCommands(String iptablesRestore, String payloadPath) {
+        StringBuilder fallback = new StringBuilder();
+        for (String command : fallbackCommands) {
+            fallback.append(command).append("; ");
+        }
+
+        return getCommands(Collections.singletonList(
+                iptablesRestore.trim() + " --noflush < '" + payloadPath + "' 2> /dev/null"
+                        + " || { " + fallback + "}"
+        ));
+    }
+
+    /**
+     * @param chainCommands commands that change the chains instead of the payload.
+     * @return commands where the chain commands are replaced by the given commands,
+     * other commands, like jumps to the chains, are kept in their order.
+     */
+    List<String> getCommands(List<String> chainCommands) {
+        List<String> result = new ArrayList<>(commands.subList(0, restoreCommandIndex));
+        result.addAll(chainCommands);
+        result.addAll(commands.subList(restoreCommandIndex + 1, commands.size()));
+        return result;
+    }
+
+    /**
+     * Converts iptables-restore arguments into shell arguments.
+     */
+    static String toShellArguments(String arguments) {
+        StringBuilder result = new StringBuilder();
+        for (String argument : splitArguments(arguments)) {
+            result.append(' ');
+            if (argument.matches("[\\w./:,=+@%!-]+")) {
+                result.append(argument);
+            } else {
+                result.append('\'').append(argument).append('\'');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Splits iptables-restore arguments as iptables-restore does.
+     * Arguments are separated by spaces, an argument that contains spaces is enclosed in double quotes.
+     */
+    static List<String> splitArguments(String arguments) {
+        List<String> result = new ArrayList<>();
+        StringBuilder argument = new StringBuilder();
+        boolean inArgument = false;
+        boolean quoted = false;
+        for (int i = 0; i < arguments.length(); i++) {
+            char c = arguments.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inArgument = true;
+            } else if ((c == ' ' || c == '\t') && !quoted) {
+                if (inArgument) {
+                    result.add(argument.toString());
+                    argument.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                argument.append(c);
+                inArgument = true;
+            }
+        }
+        if (inArgument) {
+            result.add(argument.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Creates shell commands for the chains and remembers the rules they add.
+     * The chains should be changed only by the commands of the builder,
+     * other commands of the same list are executed as is.
+     * It is public only to be passed to {@link IptablesFirewall}.
+     */
+    public static final class Builder {
+
+        private final String iptables;
+        private final Map<String, ChainCommand> chainCommands = new HashMap<>();
+
+        /**
+         * @param iptables path to iptables with options.
+         */
+        Builder(String iptables) {
+            this.iptables = iptables;
+        }
+
+        String flushChain(String table, String chain) {
+            return addCommand(new ChainCommand(table, COMMAND_FLUSH, chain, ""), " 2> /dev/null");
+        }
+
+        String newChain(String table, String chain) {
+            return addCommand(new ChainCommand(table, COMMAND_NEW, chain, ""), " 2> /dev/null");
+        }
+
+        /**
+         * @param arguments iptables-restore arguments after the chain name, starting with a space.
+         */
+        String appendRule(String table, String chain, String arguments) {
+            return addCommand(new ChainCommand(table, COMMAND_APPEND, chain, arguments), "");
+        }
+
+        /**
+         * The rule is skipped by the fallback commands if the kernel does not support it.
+         *
+         * @param arguments iptables-restore arguments after the chain name, starting with a space.
+         */
+        String appendOptionalRule(String table, String chain, String arguments) {
+            return addCommand(new ChainCommand(table, COMMAND_APPEND, chain, arguments), " 2> /dev/null || true");
+        }
+
+        private String addCommand(ChainCommand chainCommand, String suffix) {
+            String command = iptables
+                    + (TABLE_FILTER.equals(chainCommand.table) ? "" : "-t " + chainCommand.table + " ")
+                    + chainCommand.command + " " + chainCommand.chain
+                    + toShellArguments(chainCommand.arguments)
+                    + suffix;
+            chainCommands.put(command, chainCommand);
+            return command;
+        }
+
+        /**
+         * @param commands shell commands, some of them created by the builder, possibly joined with "; ".
+         * @return null if the commands contain no chains of the builder,
+         * or the rules of a chain are added without flushing or creating the chain first.
+         */
+        @Nullable
+        IptablesRestoreTransaction build(List<String> commands) {
+            Map<String, Map<String, List<String>>> tables = new LinkedHashMap<>();
+            List<String> fallbackCommands = new ArrayList<>();
+            List<String> resultCommands = new ArrayList<>();
+            int restoreCommandIndex = -1;
+
+            for (String command : commands) {
+                String[] atoms = command.split("; ");
+                List<ChainCommand> atomChainCommands = new ArrayList<>(atoms.length);
+                for (String atom : atoms) {
+                    ChainCommand chainCommand = chainCommands.get(atom);
+                    if (chainCommand != null) {
+                        atomChainCommands.add(chainCommand);
+                    }
+                }
+
+                if (atomChainCommands.isEmpty()) {
+                    resultCommands.add(command);
+                    continue;
+                } else if (atomChainCommands.size() < atoms.length) {
+                    return null;
+                }
+
+                for (ChainCommand chainCommand : atomChainCommands) {
+                    if (!chainCommand.addTo(tables)) {
+                        return null;
+                    }
+                }
+
+                fallbackCommands.add(command);
+                if (restoreCommandIndex < 0) {
+                    restoreCommandIndex = resultCommands.size();
+                    resultCommands.add("");
+                }
+            }
+
+            if (restoreCommandIndex < 0) {
+                return null;
+            }
+
+            return new IptablesRestoreTransaction(
+                    tables,
+                    fallbackCommands,
+                    resultCommands,
+                    restoreCommandIndex
+            );
+        }
+    }
+
+    private static final class ChainCommand {
+        final String table;
+        final String command;
+        final String chain;
+        final String arguments;
+
+        private ChainCommand(String table, String command, String chain, String arguments) {
+            this.table = table;
+            this.command = command;
+            this.chain = chain;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @return false if the command cannot be described by the payload,
+         * as it changes the chain that was not declared yet or flushes the added rules.
+         */
+        boolean addTo(Map<String, Map<String, List<String>>> tables) {
+            Map<String, List<String>> chains = tables.get(table);
+            if (chains == null) {
+                chains = new LinkedHashMap<>();
+                tables.put(table, chains);
+            }
+
+            List<String> rules = chains.get(chain);
+            if (COMMAND_APPEND.equals(command)) {
+                if (rules == null) {
+                    return false;
+                }
+                rules.add(arguments);
+            } else if (rules == null) {
+                chains.put(chain, new ArrayList<>());
+            } else if (COMMAND_FLUSH.equals(command) && !rules.isEmpty()) {
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -20,13 +20,16 @@
 package pan.alexander.tordnscrypt.iptables;
 
 import java.util.List;
+import java.util.Set;
 
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 
 public interface IptablesRules {
     List<String> configureIptables(ModuleState dnsCryptState, ModuleState torState, ModuleState itpdState);
     List<String> fastUpdate();
+    List<String> reconcileIptables(List<String> commands);
     void refreshFixTTLRules();
+    void refreshTorIpsRules(Set<String> ipsToAdd, Set<String> ipsToRemove);
     List<String> clearAll();
     void sendToRootExecService(List<String> commands);
     void unregisterReceiver();
@@ -0,0 +1,374 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_FILTER;
+
+/**
+ * Compares the rules of InviZible chains that were applied last time with the desired ones
+ * and returns only the commands that delete and insert the changed rules.
+ * The live rules from iptables-save are used to make sure that the chains still contain the applied rules.
+ */
+final class IptablesRulesReconciler {
+
+    private static final Map<String, String> OPTION_ALIASES = new HashMap<>();
+    private static final List<String> INVERTIBLE_VALUE_OPTIONS = Arrays.asList("-s", "-d", "-p", "-i", "-o");
+
+    static {
+        OPTION_ALIASES.put("--source", "-s");
+        OPTION_ALIASES.put("--src", "-s");
+        OPTION_ALIASES.put("--destination", "-d");
+        OPTION_ALIASES.put("--dst", "-d");
+        OPTION_ALIASES.put("--protocol", "-p");
+        OPTION_ALIASES.put("--in-interface", "-i");
+        OPTION_ALIASES.put("--out-interface", "-o");
+        OPTION_ALIASES.put("--match", "-m");
+        OPTION_ALIASES.put("--jump", "-j");
+        OPTION_ALIASES.put("--goto", "-g");
+        OPTION_ALIASES.put("--source-port", "--sport");
+        OPTION_ALIASES.put("--destination-port", "--dport");
+        OPTION_ALIASES.put("--to-port", "--to-ports");
+    }
+
+    private IptablesRulesReconciler() {
+    }
+
+    /**
+     * @param iptables  path to iptables with options.
+     * @param applied   rules that were applied last time.
+     * @param desired   rules that should be applied now.
+     * @param liveRules output of iptables-save for the tables of the applied rules.
+     * @return commands to change the applied rules into the desired rules,
+     * or null if the chains should be rebuilt completely.
+     */
+    @Nullable
+    static List<String> getChanges(
+            String iptables,
+            IptablesRestoreTransaction applied,
+            IptablesRestoreTransaction desired,
+            List<String> liveRules
+    ) {
+        Map<String, Map<String, List<String>>> appliedTables = applied.getTables();
+        Map<String, Map<String, List<String>>> desiredTables = desired.getTables();
+        if (!appliedTables.keySet().equals(desiredTables.keySet())) {
+            return null;
+        }
+
+        Map<String, Map<String, List<String>>> liveTables = parseLiveRules(liveRules, appliedTables);
+
+        List<String> changes = new ArrayList<>();
+
+        for (Map.Entry<String, Map<String, List<String>>> table : appliedTables.entrySet()) {
+            Map<String, List<String>> appliedChains = table.getValue();
+            Map<String, List<String>> desiredChains = desiredTables.get(table.getKey());
+            Map<String, List<String>> liveChains = liveTables.get(table.getKey());
+            if (desiredChains == null || liveChains == null || !appliedChains.keySet().equals(desiredChains.keySet())) {
+                return null;
+            }
+
+            String prefix = iptables + (TABLE_FILTER.equals(table.getKey()) ? "" : "-t " + table.getKey() + " ");
+
+            for (Map.Entry<String, List<String>> chain : appliedChains.entrySet()) {
+                List<String> liveChain = liveChains.get(chain.getKey());
+                if (liveChain == null || !isSameRules(chain.getValue(), liveChain)) {
+                    return null;
+                }
+
+                changes.addAll(getChainChanges(prefix, chain.getKey(), chain.getValue(), desiredChains.get(chain.getKey())));
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Deletes rules by position from the end, so that positions of the remaining rules are not shifted,
+     * then inserts new rules from the beginning into their final positions.
+     */
+    private static List<String> getChainChanges(String prefix, String chain, List<String> applied, List<String> desired) {
+        int[][] common = getCommonSubsequenceLengths(applied, desired);
+        boolean[] appliedKept = new boolean[applied.size()];
+        boolean[] desiredKept = new boolean[desired.size()];
+        int i = 0;
+        int j = 0;
+        while (i < applied.size() && j < desired.size()) {
+            if (applied.get(i).equals(desired.get(j))) {
+                appliedKept[i++] = true;
+                desiredKept[j++] = true;
+            } else if (common[i + 1][j] >= common[i][j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        List<String> changes = new ArrayList<>();
+        for (int position = applied.size() - 1; position >= 0; position--) {
+            if (!appliedKept[position]) {
+                changes.add(prefix + "-D " + chain + " " + (position + 1));
+            }
+        }
+        for (int position = 0; position < desired.size(); position++) {
+            if (!desiredKept[position]) {
+                changes.add(prefix + "-I " + chain + " " + (position + 1) + IptablesRestoreTransaction.toShellArguments(desired.get(position)));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return table where [i][j] is the length of the longest common subsequence
+     * of applied rules starting from i and desired rules starting from j.
+     */
+    private static int[][] getCommonSubsequenceLengths(List<String> applied, List<String> desired) {
+        int[][] lengths = new int[applied.size() + 1][desired.size() + 1];
+        for (int i = applied.size() - 1; i >= 0; i--) {
+            for (int j = desired.size() - 1; j >= 0; j--) {
+                if (applied.get(i).equals(desired.get(j))) {
+                    lengths[i][j] = lengths[i + 1][j + 1] + 1;
+                } else {
+                    lengths[i][j] = Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+                }
+            }
+        }
+        return lengths;
+    }
+
+    private static Map<String, Map<String, List<String>>> parseLiveRules(
+            List<String> liveRules,
+            Map<String, Map<String, List<String>>> tables
+    ) {
+        Map<String, Map<String, List<String>>> liveTables = new LinkedHashMap<>();
+        Map<String, List<String>> liveChains = null;
+        for (String line : liveRules) {
+            line = line.trim();
+            if (line.startsWith("*")) {
+                Map<String, List<String>> chains = tables.get(line.substring(1));
+                if (chains != null) {
+                    liveChains = new LinkedHashMap<>();
+                    liveTables.put(line.substring(1), liveChains);
+                } else {
+                    liveChains = null;
+                }
+            } else if (liveChains == null) {
+                continue;
+            } else if (line.startsWith(":")) {
+                String chain = line.substring(1).split(" ", 2)[0];
+                liveChains.put(chain, new ArrayList<>());
+            } else if (line.startsWith("-A ")) {
+                String[] rule = line.split(" ", 3);
+                List<String> chainRules = liveChains.get(rule[1]);
+                if (chainRules != null && rule.length > 2) {
+                    chainRules.add(" " + rule[2]);
+                }
+            }
+        }
+        return liveTables;
+    }
+
+    /**
+     * Positional changes are correct only if the chains contain exactly the applied rules,
+     * so every rule is compared option by option in the form iptables-save prints it.
+     */
+    private static boolean isSameRules(List<String> rules, List<String> liveRules) {
+        if (rules.size() != liveRules.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < rules.size(); i++) {
+            if (!normalizeRule(rules.get(i)).equals(normalizeRule(liveRules.get(i)))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param rule iptables-restore arguments after the chain name.
+     * @return options of the rule with their values, as iptables-save prints them, in a fixed order.
+     */
+    static List<String> normalizeRule(String rule) {
+        List<List<String>> options = new ArrayList<>();
+        List<String> option = null;
+        boolean inverted = false;
+        for (String argument : IptablesRestoreTransaction.splitArguments(rule)) {
+            if (argument.equals("!")) {
+                inverted = true;
+            } else if (isOptionName(argument) || option == null) {
+                option = new ArrayList<>();
+                if (inverted) {
+                    option.add("!");
+                    inverted = false;
+                }
+                String name = OPTION_ALIASES.get(argument);
+                option.add(name == null ? argument : name);
+                options.add(option);
+            } else if (inverted) {
+                option.add(0, "!");
+                option.add(argument);
+                inverted = false;
+            } else {
+                option.add(argument);
+            }
+        }
+
+        String protocol = "";
+        String target = "";
+        boolean hasRejectWith = false;
+        for (List<String> values : options) {
+            String name = getOptionName(values);
+            if (values.size() < 2) {
+                continue;
+            }
+            String value = values.get(values.size() - 1);
+            if (name.equals("-p")) {
+                protocol = value.toLowerCase(Locale.ROOT);
+            } else if (name.equals("-j")) {
+                target = value;
+            } else if (name.equals("--reject-with")) {
+                hasRejectWith = true;
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (List<String> values : options) {
+            String normalized = normalizeOption(values, protocol);
+            if (normalized != null) {
+                result.add(normalized);
+            }
+        }
+        if (target.equals("REJECT") && !hasRejectWith) {
+            result.add("--reject-with icmp-port-unreachable");
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Nullable
+    private static String normalizeOption(List<String> values, String protocol) {
+        String name = getOptionName(values);
+        List<String> result = new ArrayList<>(values);
+        int last = result.size() - 1;
+        if (result.get(last).equals(name)) {
+            return join(" ", result);
+        }
+        String value = result.get(last);
+
+        // The old syntax -o !tun0 is printed as ! -o tun0
+        if (INVERTIBLE_VALUE_OPTIONS.contains(name) && value.startsWith("!") && value.length() > 1
+                && last > 0 && !result.get(0).equals("!")) {
+            result.add(0, "!");
+            last++;
+            value = value.substring(1);
+        }
+
+        switch (name) {
+            case "-s":
+            case "-d":
+                if (!value.contains("/")) {
+                    value += "/32";
+                }
+                break;
+            case "-p":
+                value = value.toLowerCase(Locale.ROOT);
+                if (value.equals("all")) {
+                    return null;
+                }
+                break;
+            case "-m":
+                if (value.equals(protocol)) {
+                    return null;
+                }
+                break;
+            case "--state":
+            case "--ctstate":
+                String[] states = value.split(",");
+                Arrays.sort(states);
+                value = join(",", Arrays.asList(states));
+                break;
+            case "--uid-owner":
+            case "--gid-owner":
+                value = value.replace(':', '-');
+                break;
+            case "--mark":
+                value = toHexMark(value);
+                break;
+            case "--set-mark":
+                if (!value.contains("/")) {
+                    result.set(result.indexOf(name), "--set-xmark");
+                    value = toHexMark(value) + "/0xffffffff";
+                }
+                break;
+            case "--limit-burst":
+                if (value.equals("5")) {
+                    return null;
+                }
+                break;
+        }
+
+        result.set(last, value);
+        return join(" ", result);
+    }
+
+    private static String getOptionName(List<String> values) {
+        return values.get(0).equals("!") ? values.get(1) : values.get(0);
+    }
+
+    private static boolean isOptionName(String argument) {
+        return argument.length() > 1 && argument.charAt(0) == '-' && !Character.isDigit(argument.charAt(1));
+    }
+
+    /**
+     * iptables-save prints marks and masks in hex.
+     */
+    private static String toHexMark(String mark) {
+        String[] parts = mark.split("/");
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                parts[i] = "0x" + Long.toHexString(Long.decode(parts[i]));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return join("/", Arrays.asList(parts));
+    }
+
+    private static String join(String delimiter, List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                result.append(delimiter);
+            }
+            result.append(values.get(i));
+        }
+        return result.toString();
+    }
+}
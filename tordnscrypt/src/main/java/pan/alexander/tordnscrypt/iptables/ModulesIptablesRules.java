@@ -27,12 +27,21 @@ import android.util.Pair;
 
 import androidx.preference.PreferenceManager;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.jrummyapps.android.shell.CommandResult;
+import com.jrummyapps.android.shell.Shell;
+
 import dagger.Lazy;
 import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.arp.ArpScanner;
@@ -50,6 +59,10 @@ import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_PREROUTING_CORE;
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_FILTER;
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_NAT;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.SET_NON_TOR;
+import static pan.alexander.tordnscrypt.iptables.IptablesIpSets.SET_TOR_IPS;
 import static pan.alexander.tordnscrypt.iptables.Tethering.usbModemAddressesRange;
 import static pan.alexander.tordnscrypt.iptables.Tethering.vpnInterfaceName;
 import static pan.alexander.tordnscrypt.iptables.Tethering.wifiAPAddressesRange;
@@ -67,6 +80,7 @@ import static pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS;
 import static pan.alexander.tordnscrypt.utils.Constants.NETWORK_STACK_DEFAULT_UID;
 import static pan.alexander.tordnscrypt.utils.Constants.NFLOG_GROUP;
 import static pan.alexander.tordnscrypt.utils.Constants.NFLOG_PREFIX;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.ALL_THROUGH_TOR;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.ARP_SPOOFING_BLOCK_INTERNET;
@@ -98,8 +112,8 @@ import javax.inject.Named;
 public class ModulesIptablesRules extends IptablesRulesSender {
 
     private static final int DELAY_ENABLING_INTERNET_SEC = 3;
-    private static final String ONION_HEX = "'|056f6e696f6e00|'";
-    private static final String TOR_PROJECT_ORG_HEX = "'|0a746f7270726f6a656374036f726700|'";
+    private static final String ONION_HEX = "|056f6e696f6e00|";
+    private static final String TOR_PROJECT_ORG_HEX = "|0a746f7270726f6a656374036f726700|";
 
     @Inject
     public Lazy<PreferenceRepository> preferenceRepository;
@@ -112,11 +126,17 @@ public class ModulesIptablesRules extends IptablesRulesSender {
     public Lazy<IptablesFirewall> iptablesFirewall;
     @Inject
     public Lazy<KillSwitchNotification> killSwitchNotification;
+    @Inject
+    public Lazy<IptablesIpSets> iptablesIpSets;
     private static boolean killSwitchActive;
+    private static String iptablesRestorePayload = "";
+    private volatile IptablesRestoreTransaction preparedRules;
+    private volatile IptablesRestoreTransaction appliedRules;
 
     String iptables = "iptables ";
     String ip6tables = "ip6tables ";
     String busybox = "busybox ";
+    boolean useIpSets;
 
     public ModulesIptablesRules(Context context) {
         super(context, App.getInstance().getDaggerComponent().getPathVars().get());
@@ -129,6 +149,7 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         iptables = pathVars.getIptablesPath();
         ip6tables = pathVars.getIp6tablesPath();
         busybox = pathVars.getBusyboxPath();
+        useIpSets = iptablesIpSets.get().isSupported();
 
         SharedPreferences shPref = PreferenceManager.getDefaultSharedPreferences(context);
         PreferenceRepository preferences = preferenceRepository.get();
@@ -166,7 +187,17 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             appUID = "0";
         }
 
-        Pair<String, String> bypassLanNatToBypassLanFilter = getBypassLanRules();
+        Map<String, Collection<String>> ipSetsContent = new LinkedHashMap<>();
+        if (useIpSets) {
+            ipSetsContent.put(SET_NON_TOR, VpnUtils.nonTorList);
+            if (firewallEnabled) {
+                ipSetsContent.putAll(firewall.getIpSetsContent());
+            }
+        }
+
+        IptablesRestoreTransaction.Builder chainRules = new IptablesRestoreTransaction.Builder(iptables);
+
+        Pair<String, String> bypassLanNatToBypassLanFilter = getBypassLanRules(chainRules);
         String bypassLanNat = bypassLanNatToBypassLanFilter.first;
         String bypassLanFilter = bypassLanNatToBypassLanFilter.second;
 
@@ -175,11 +206,11 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String kernelRedirectNatTCP = "";
         String kernelRejectNonTCPFilter = "";
         if (routeAllThroughTor && (clearnetApps.contains("-1") || (ttlFix && useProxy && clearnetAppsForProxy.contains("-1")))) {
-            kernelBypassNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -m owner ! --uid-owner 0:999999999 -j RETURN || true";
-            kernelBypassFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -p all -m owner ! --uid-owner 0:999999999 -j RETURN || true";
+            kernelBypassNat = chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -m owner ! --uid-owner 0:999999999 -j RETURN");
+            kernelBypassFilter = chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p all -m owner ! --uid-owner 0:999999999 -j RETURN");
         } else if (!routeAllThroughTor && unlockApps.contains("-1") && (!clearnetAppsForProxy.contains("-1") || !useProxy || !ttlFix)) {
-            kernelRedirectNatTCP = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -m owner ! --uid-owner 0:999999999 -j REDIRECT --to-port " + pathVars.getTorTransPort() + " || true";
-            kernelRejectNonTCPFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " ! -p tcp -m owner ! --uid-owner 0:999999999 -j REJECT || true";
+            kernelRedirectNatTCP = chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -m owner ! --uid-owner 0:999999999 -j REDIRECT --to-port " + pathVars.getTorTransPort());
+            kernelRejectNonTCPFilter = chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " ! -p tcp -m owner ! --uid-owner 0:999999999 -j REJECT");
         }
 
         String torSitesBypassNat = "";
@@ -199,17 +230,24 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             StringBuilder torAppsBypassNatBuilder = new StringBuilder();
             StringBuilder torAppsBypassFilterBuilder = new StringBuilder();
 
-            for (String torClearnetIP : clearnetIPs) {
-                if (torClearnetIP.matches(IPv4_REGEX)) {
-                    torSitesBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
-                    torSitesBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all -d ").append(torClearnetIP).append(" -j RETURN; ");
+            if (useIpSets) {
+                String destination = iptablesIpSets.get().getMatch(SET_TOR_IPS);
+                torSitesBypassNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, getTorSiteNatRule(destination, true))).append("; ");
+                torSitesBypassFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, getTorSiteFilterRule(destination, true))).append("; ");
+                ipSetsContent.put(SET_TOR_IPS, clearnetIPs);
+            } else {
+                for (String torClearnetIP : clearnetIPs) {
+                    if (torClearnetIP.matches(IPv4_REGEX)) {
+                        torSitesBypassNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, getTorSiteNatRule(" -d " + torClearnetIP, true))).append("; ");
+                        torSitesBypassFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, getTorSiteFilterRule(" -d " + torClearnetIP, true))).append("; ");
+                    }
                 }
             }
 
             for (String torClearnetApp : clearnetApps) {
                 if (torClearnetApp.matches("^\\d+$")) {
-                    torAppsBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all -m owner --uid-owner ").append(torClearnetApp).append(" -j RETURN; ");
-                    torAppsBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all -m owner --uid-owner ").append(torClearnetApp).append(" -j RETURN; ");
+                    torAppsBypassNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -m owner --uid-owner " + torClearnetApp + " -j RETURN")).append("; ");
+                    torAppsBypassFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p all -m owner --uid-owner " + torClearnetApp + " -j RETURN")).append("; ");
                 }
             }
 
@@ -223,17 +261,24 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             StringBuilder torAppsRedirectNatBuilder = new StringBuilder();
             StringBuilder torAppsRejectNonTCPFilterBuilder = new StringBuilder();
 
-            for (String unlockIP : unlockIPs) {
-                if (unlockIP.matches(IPv4_REGEX)) {
-                    torSitesRedirectNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d ").append(unlockIP).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append("; ");
-                    torSitesRejectNonTCPFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " ! -p tcp -d ").append(unlockIP).append(" -j REJECT; ");
+            if (useIpSets) {
+                String destination = iptablesIpSets.get().getMatch(SET_TOR_IPS);
+                torSitesRedirectNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, getTorSiteNatRule(destination, false))).append("; ");
+                torSitesRejectNonTCPFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, getTorSiteFilterRule(destination, false))).append("; ");
+                ipSetsContent.put(SET_TOR_IPS, unlockIPs);
+            } else {
+                for (String unlockIP : unlockIPs) {
+                    if (unlockIP.matches(IPv4_REGEX)) {
+                        torSitesRedirectNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, getTorSiteNatRule(" -d " + unlockIP, false))).append("; ");
+                        torSitesRejectNonTCPFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, getTorSiteFilterRule(" -d " + unlockIP, false))).append("; ");
+                    }
                 }
             }
 
             for (String unlockApp : unlockApps) {
                 if (unlockApp.matches("^\\d+$")) {
-                    torAppsRedirectNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -m owner --uid-owner ").append(unlockApp).append(" -j REDIRECT --to-port ").append(pathVars.getTorTransPort()).append("; ");
-                    torAppsRejectNonTCPFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " ! -p tcp -m owner --uid-owner ").append(unlockApp).append(" -j REJECT; ");
+                    torAppsRedirectNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -m owner --uid-owner " + unlockApp + " -j REDIRECT --to-port " + pathVars.getTorTransPort())).append("; ");
+                    torAppsRejectNonTCPFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " ! -p tcp -m owner --uid-owner " + unlockApp + " -j REJECT")).append("; ");
                 }
             }
 
@@ -247,9 +292,9 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String blockHttpRuleNatTCP = "";
         String blockHttpRuleNatUDP = "";
         if (blockHttp) {
-            blockRejectAddressFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -d " + rejectAddress + " -j REJECT";
-            blockHttpRuleNatTCP = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport " + HTTP_PORT + " -j DNAT --to-destination " + rejectAddress;
-            blockHttpRuleNatUDP = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport " + HTTP_PORT + " -j DNAT --to-destination " + rejectAddress;
+            blockRejectAddressFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d " + rejectAddress + " -j REJECT");
+            blockHttpRuleNatTCP = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport " + HTTP_PORT + " -j DNAT --to-destination " + rejectAddress);
+            blockHttpRuleNatUDP = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport " + HTTP_PORT + " -j DNAT --to-destination " + rejectAddress);
         }
 
         String blockTlsRuleNatTCP = "";
@@ -257,12 +302,12 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String blockGDNSNat = "";
         if (ignoreSystemDNS) {
             if (!blockHttp) {
-                blockRejectAddressFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -d " + rejectAddress + " -j REJECT";
+                blockRejectAddressFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d " + rejectAddress + " -j REJECT");
             }
-            blockTlsRuleNatTCP = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport " + DNS_OVER_TLS_PORT + " -j DNAT --to-destination " + rejectAddress;
-            blockTlsRuleNatUDP = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport " + DNS_OVER_TLS_PORT + " -j DNAT --to-destination " + rejectAddress;
-            blockGDNSNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -d " + G_DNG_41 + " -j DNAT --to-destination " + rejectAddress + "; "
-                    + iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -d " + G_DNS_42 + " -j DNAT --to-destination " + rejectAddress;
+            blockTlsRuleNatTCP = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport " + DNS_OVER_TLS_PORT + " -j DNAT --to-destination " + rejectAddress);
+            blockTlsRuleNatUDP = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport " + DNS_OVER_TLS_PORT + " -j DNAT --to-destination " + rejectAddress);
+            blockGDNSNat = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -d " + G_DNG_41 + " -j DNAT --to-destination " + rejectAddress) + "; "
+                    + chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -d " + G_DNS_42 + " -j DNAT --to-destination " + rejectAddress);
         }
 
         String unblockHOTSPOT = iptables + "-D FORWARD -j DROP 2> /dev/null || true";
@@ -279,11 +324,11 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String dnsCryptRootDNSAllowedNat = "";
         String dnsCryptRootDNSAllowedFilter = "";
         if (dnsCryptSystemDNSAllowed) {
-            dnsCryptSystemDNSAllowedFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT";
-            dnsCryptSystemDNSAllowedNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT";
+            dnsCryptSystemDNSAllowedFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT");
+            dnsCryptSystemDNSAllowedNat = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT");
             if (!runModulesWithRoot) {
-                dnsCryptRootDNSAllowedNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT";
-                dnsCryptRootDNSAllowedFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT";
+                dnsCryptRootDNSAllowedNat = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT");
+                dnsCryptRootDNSAllowedFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT");
             }
         }
 
@@ -298,11 +343,11 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String torRootDNSAllowedNat = "";
         String torRootDNSAllowedFilter = "";
         if (!torReady && (useDefaultBridges && bridgesSnowflakeDefault || useOwnBridges && bridgesSnowflakeOwn)) {
-            torSystemDNSAllowedFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT";
-            torSystemDNSAllowedNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT";
+            torSystemDNSAllowedFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT");
+            torSystemDNSAllowedNat = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT");
             if (!runModulesWithRoot) {
-                torRootDNSAllowedNat = iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT";
-                torRootDNSAllowedFilter = iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT";
+                torRootDNSAllowedNat = chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT");
+                torRootDNSAllowedFilter = chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp --dport 53 -m owner --uid-owner 0 -j ACCEPT");
             }
         }
 
@@ -316,8 +361,8 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             StringBuilder proxyAppsBypassFilterBuilder = new StringBuilder();
 
             for (String clearnetAppForProxy : clearnetAppsForProxy) {
-                proxyAppsBypassNatBuilder.append(iptables).append("-t nat -A " + NAT_OUTPUT_CORE + " -p all -m owner --uid-owner ").append(clearnetAppForProxy).append(" -j RETURN; ");
-                proxyAppsBypassFilterBuilder.append(iptables).append("-A " + FILTER_OUTPUT_CORE + " -p all -m owner --uid-owner ").append(clearnetAppForProxy).append(" -j RETURN; ");
+                proxyAppsBypassNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -m owner --uid-owner " + clearnetAppForProxy + " -j RETURN")).append("; ");
+                proxyAppsBypassFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p all -m owner --uid-owner " + clearnetAppForProxy + " -j RETURN")).append("; ");
             }
 
             proxyAppsBypassNat = removeRedundantSymbols(proxyAppsBypassNatBuilder);
@@ -328,10 +373,10 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         String nflogPackets = "";
         if (showConnectionLogs) {
             nflogDns = TextUtils.join("; ", Arrays.asList(
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getDNSCryptPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP + " 2> /dev/null || true",
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -p tcp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getDNSCryptPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP + " 2> /dev/null || true",
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getTorDNSPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP + " 2> /dev/null || true",
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -p tcp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getTorDNSPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP + " 2> /dev/null || true"
+                    chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getDNSCryptPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP),
+                    chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p tcp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getDNSCryptPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP),
+                    chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getTorDNSPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP),
+                    chainRules.appendOptionalRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p tcp -s " + LOOPBACK_ADDRESS + " --sport " + pathVars.getTorDNSPort() + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP)
             ));
             nflogPackets = TextUtils.join("; ", Arrays.asList(
                     iptables + "-t mangle -D OUTPUT -p all -m owner ! --uid-owner " + appUID + " -m limit --limit 1000/min -j NFLOG --nflog-prefix " + NFLOG_PREFIX + " --nflog-group " + NFLOG_GROUP + " 2> /dev/null || true",
@@ -342,18 +387,21 @@ public class ModulesIptablesRules extends IptablesRulesSender {
 
         if (arpSpoofingDetection && blockInternetWhenArpAttackDetected && mitmDetected) {
 
-            commands = getBlockingRules(appUID, blockHOTSPOT, unblockHOTSPOT);
+            commands = getBlockingRules(chainRules, appUID, blockHOTSPOT, unblockHOTSPOT);
 
         } else if (killSwitch && dnsCryptState != RUNNING && torState != RUNNING && itpdState != RUNNING) {
 
             showKillSwitchNotification();
 
-            commands = getBlockingRules(appUID, blockHOTSPOT, unblockHOTSPOT);
+            commands = getBlockingRules(chainRules, appUID, blockHOTSPOT, unblockHOTSPOT);
 
         } else if (dnsCryptState == RUNNING && torState == RUNNING) {
 
             cancelKillSwitchNotificationIfNeeded();
 
+            List<String> commandsTether = tethering.activateTethering(false, true);
+            String tetheringDhcpRules = tethering.getDhcpOutputRules(chainRules);
+
             if (!routeAllThroughTor) {
 
                 commands = new ArrayList<>(Arrays.asList(
@@ -369,39 +417,40 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                         ip6tables + "-I OUTPUT -j DROP",
                         ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                        iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                        iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                         iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
                         busybox + "sleep 1 || true",
-                        iptables + "-t nat -N " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -I OUTPUT -j " + NAT_OUTPUT_CORE,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -d 127.0.0.1/32 -j RETURN",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -d 127.0.0.1/32 -j RETURN"),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
                         dnsCryptSystemDNSAllowedNat,
                         dnsCryptRootDNSAllowedNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
                         //handle onion websites
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + ONION_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort() + " 2> /dev/null || true",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + TOR_PROJECT_ORG_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort() + " 2> /dev/null || true",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
+                        chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + ONION_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + TOR_PROJECT_ORG_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
                         bypassLanNat,
                         blockHttpRuleNatTCP,
                         blockHttpRuleNatUDP,
                         blockTlsRuleNatTCP,
                         blockTlsRuleNatUDP,
                         blockGDNSNat,
-                        iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
+                        tetheringDhcpRules,
                         nflogDns,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
                         dnsCryptSystemDNSAllowedFilter,
                         dnsCryptRootDNSAllowedFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
                         blockRejectAddressFilter,
                         proxyAppsBypassNat,
                         //Redirect TCP sites to Tor
@@ -416,7 +465,7 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         //Block all except TCP for Tor apps
                         torAppsRejectNonTCPFilter,
                         kernelRejectNonTCPFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m state --state ESTABLISHED,RELATED -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m state --state ESTABLISHED,RELATED -j RETURN"),
                         iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                         nflogPackets,
                         unblockHOTSPOT,
@@ -437,26 +486,26 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                         ip6tables + "-I OUTPUT -j DROP",
                         ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                        iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                        iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                         iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
                         busybox + "sleep 1 || true",
-                        iptables + "-t nat -N " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -I OUTPUT -j " + NAT_OUTPUT_CORE,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -d 127.0.0.1/32 -j RETURN",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -d 127.0.0.1/32 -j RETURN"),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
                         dnsCryptSystemDNSAllowedNat,
                         dnsCryptRootDNSAllowedNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
                         //handle onion websites
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + ONION_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort() + " 2> /dev/null || true",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + TOR_PROJECT_ORG_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort() + " 2> /dev/null || true",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -m owner --uid-owner " + appUID + " -j RETURN",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
+                        chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + ONION_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendOptionalRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -m string --algo bm --from 16 --to 128 --hex-string " + TOR_PROJECT_ORG_HEX + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -m owner --uid-owner " + appUID + " -j RETURN"),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
                         bypassLanNat,
                         blockHttpRuleNatTCP,
                         blockHttpRuleNatUDP,
@@ -467,25 +516,26 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         torAppsBypassNat,
                         kernelBypassNat,
                         proxyAppsBypassNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
-                        iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
+                        chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
+                        tetheringDhcpRules,
                         nflogDns,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p all -j RETURN",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner --uid-owner " + appUID + " -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p all -j RETURN"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m owner --uid-owner " + appUID + " -j RETURN"),
                         dnsCryptSystemDNSAllowedFilter,
                         dnsCryptRootDNSAllowedFilter,
                         blockRejectAddressFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m state --state ESTABLISHED,RELATED -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m state --state ESTABLISHED,RELATED -j RETURN"),
                         torSitesBypassFilter,
                         torAppsBypassFilter,
                         kernelBypassFilter,
                         proxyAppsBypassFilter,
                         bypassLanFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -j REJECT",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -j REJECT"),
                         iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                         nflogPackets,
                         unblockHOTSPOT,
@@ -493,12 +543,11 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                 ));
             }
 
-            List<String> commandsTether = tethering.activateTethering(false);
             if (commandsTether.size() > 0) {
                 commands.addAll(commandsTether);
             }
             if (firewallEnabled) {
-                commands.addAll(firewall.getFirewallRules(tethering.isTetheringActive()));
+                commands.addAll(firewall.getFirewallRules(chainRules, tethering.isTetheringActive()));
             } else {
                 commands.addAll(firewall.getClearFirewallRules());
             }
@@ -507,6 +556,9 @@ public class ModulesIptablesRules extends IptablesRulesSender {
 
             cancelKillSwitchNotificationIfNeeded();
 
+            List<String> commandsTether = tethering.activateTethering(false, true);
+            String tetheringDhcpRules = tethering.getDhcpOutputRules(chainRules);
+
             commands = new ArrayList<>(Arrays.asList(
                     iptables + "-F " + FILTER_OUTPUT_BLOCKING + " 2> /dev/null",
                     iptables + "-D OUTPUT -j " + FILTER_OUTPUT_BLOCKING + " 2> /dev/null || true",
@@ -520,47 +572,47 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                     ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                     ip6tables + "-I OUTPUT -j DROP",
                     ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                    iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                    chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                     iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                    iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                    chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                     iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
                     busybox + "sleep 1 || true",
-                    iptables + "-t nat -N " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                    chainRules.newChain(TABLE_NAT, NAT_OUTPUT_CORE),
                     iptables + "-t nat -I OUTPUT -j " + NAT_OUTPUT_CORE,
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -d 127.0.0.1/32 -j RETURN",
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort(),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -d 127.0.0.1/32 -j RETURN"),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d 10.191.0.1 -j DNAT --to-destination 127.0.0.1:" + pathVars.getITPDHttpProxyPort()),
                     dnsCryptSystemDNSAllowedNat,
                     dnsCryptRootDNSAllowedNat,
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort(),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getDNSCryptPort()),
                     blockHttpRuleNatTCP,
                     blockHttpRuleNatUDP,
                     blockTlsRuleNatTCP,
                     blockTlsRuleNatUDP,
                     blockGDNSNat,
-                    iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                    chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
+                    tetheringDhcpRules,
                     nflogDns,
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT",
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getDNSCryptPort() + " -j ACCEPT"),
                     dnsCryptSystemDNSAllowedFilter,
                     dnsCryptRootDNSAllowedFilter,
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT",
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -p udp -d " + pathVars.getDNSCryptFallbackRes() + " --dport 53 -m owner --uid-owner " + appUID + " -j ACCEPT"),
                     blockRejectAddressFilter,
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -m state --state ESTABLISHED,RELATED -j RETURN",
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m state --state ESTABLISHED,RELATED -j RETURN"),
                     iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                     nflogPackets,
                     unblockHOTSPOT,
                     blockHOTSPOT
             ));
 
-            List<String> commandsTether = tethering.activateTethering(false);
             if (commandsTether.size() > 0) {
                 commands.addAll(commandsTether);
             }
             if (firewallEnabled) {
-                commands.addAll(firewall.getFirewallRules(tethering.isTetheringActive()));
+                commands.addAll(firewall.getFirewallRules(chainRules, tethering.isTetheringActive()));
             } else {
                 commands.addAll(firewall.getClearFirewallRules());
             }
@@ -582,7 +634,7 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                     unblockHOTSPOT
             ));
 
-            List<String> commandsTether = tethering.activateTethering(false);
+            List<String> commandsTether = tethering.activateTethering(false, false);
             if (commandsTether.size() > 0) {
                 commands.addAll(commandsTether);
             }
@@ -591,6 +643,9 @@ public class ModulesIptablesRules extends IptablesRulesSender {
 
             cancelKillSwitchNotificationIfNeeded();
 
+            List<String> commandsTether = tethering.activateTethering(false, true);
+            String tetheringDhcpRules = tethering.getDhcpOutputRules(chainRules);
+
             if (!routeAllThroughTor) {
                 commands = new ArrayList<>(Arrays.asList(
                         iptables + "-F " + FILTER_OUTPUT_BLOCKING + " 2> /dev/null",
@@ -605,29 +660,30 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                         ip6tables + "-I OUTPUT -j DROP",
                         ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                        iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                        iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                         iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
                         busybox + "sleep 1 || true",
-                        iptables + "-t nat -N " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -I OUTPUT -j " + NAT_OUTPUT_CORE,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -d 127.0.0.1/32 -j RETURN",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -d 127.0.0.1/32 -j RETURN"),
                         torSystemDNSAllowedNat,
                         torRootDNSAllowedNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
                         bypassLanNat,
                         blockHttpRuleNatTCP,
                         blockHttpRuleNatUDP,
                         blockTlsRuleNatTCP,
                         blockTlsRuleNatUDP,
                         blockGDNSNat,
-                        iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
+                        tetheringDhcpRules,
                         nflogDns,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
                         torSystemDNSAllowedFilter,
                         torRootDNSAllowedFilter,
                         blockRejectAddressFilter,
@@ -645,7 +701,7 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         //Block all except TCP for Tor apps
                         torAppsRejectNonTCPFilter,
                         kernelRejectNonTCPFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m state --state ESTABLISHED,RELATED -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m state --state ESTABLISHED,RELATED -j RETURN"),
                         iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                         nflogPackets,
                         unblockHOTSPOT,
@@ -665,19 +721,19 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                         ip6tables + "-I OUTPUT -j DROP",
                         ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                        iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                        iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                         iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
-                        iptables + "-t nat -N " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.newChain(TABLE_NAT, NAT_OUTPUT_CORE),
                         iptables + "-t nat -I OUTPUT -j " + NAT_OUTPUT_CORE,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p all -d 127.0.0.1/32 -j RETURN",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p all -d 127.0.0.1/32 -j RETURN"),
                         torSystemDNSAllowedNat,
                         torRootDNSAllowedNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort(),
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -m owner --uid-owner " + appUID + " -j RETURN",
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p udp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp --dport 53 -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorDNSPort()),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -m owner --uid-owner " + appUID + " -j RETURN"),
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -d " + pathVars.getTorVirtAdrNet() + " -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
                         bypassLanNat,
                         blockHttpRuleNatTCP,
                         blockHttpRuleNatUDP,
@@ -688,23 +744,24 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                         torAppsBypassNat,
                         kernelBypassNat,
                         proxyAppsBypassNat,
-                        iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -p tcp -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort(),
-                        iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                        chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, " -p tcp -j DNAT --to-destination 127.0.0.1:" + pathVars.getTorTransPort()),
+                        chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
+                        tetheringDhcpRules,
                         nflogDns,
                         torSystemDNSAllowedFilter,
                         torRootDNSAllowedFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -d 127.0.0.1/32 -p all -j RETURN",
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner --uid-owner " + appUID + " -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p udp -m udp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p tcp -m tcp --dport " + pathVars.getTorDNSPort() + " -j ACCEPT"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -d 127.0.0.1/32 -p all -j RETURN"),
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m owner --uid-owner " + appUID + " -j RETURN"),
                         blockRejectAddressFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -m state --state ESTABLISHED,RELATED -j RETURN",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m state --state ESTABLISHED,RELATED -j RETURN"),
                         torSitesBypassFilter,
                         torAppsBypassFilter,
                         kernelBypassFilter,
                         proxyAppsBypassFilter,
                         bypassLanFilter,
-                        iptables + "-A " + FILTER_OUTPUT_CORE + " -j REJECT",
+                        chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -j REJECT"),
                         iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                         nflogPackets,
                         unblockHOTSPOT,
@@ -714,12 +771,11 @@ public class ModulesIptablesRules extends IptablesRulesSender {
             }
 
 
-            List<String> commandsTether = tethering.activateTethering(false);
             if (commandsTether.size() > 0) {
                 commands.addAll(commandsTether);
             }
             if (firewallEnabled) {
-                commands.addAll(firewall.getFirewallRules(tethering.isTetheringActive()));
+                commands.addAll(firewall.getFirewallRules(chainRules, tethering.isTetheringActive()));
             } else {
                 commands.addAll(firewall.getClearFirewallRules());
             }
@@ -736,20 +792,122 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                     iptables + "-A " + FILTER_OUTPUT_BLOCKING + " -j DROP",
                     iptables + "-I OUTPUT -j " + FILTER_OUTPUT_BLOCKING
             )));
-            commands = tethering.activateTethering(false);
+            commands = tethering.activateTethering(false, false);
             if (firewallEnabled) {
-                commands.addAll(firewall.getFirewallRules(tethering.isTetheringActive()));
+                commands.addAll(firewall.getFirewallRules(chainRules, tethering.isTetheringActive()));
             } else {
                 commands.addAll(firewall.getClearFirewallRules());
             }
             commands.add(iptables + "-D OUTPUT -j " + FILTER_OUTPUT_BLOCKING + " 2> /dev/null || true");
         }
 
-        return commands;
+        if (useIpSets) {
+            commands = addIpSetsFillCommands(commands, ipSetsContent);
+        }
+
+        return getAtomicCommands(chainRules, commands);
+    }
+
+    /**
+     * Sets must be filled before iptables-restore, as it rejects rules that refer to missing sets.
+     */
+    private List<String> addIpSetsFillCommands(List<String> commands, Map<String, Collection<String>> ipSetsContent) {
+        IptablesIpSets ipSets = iptablesIpSets.get();
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Collection<String>> set : ipSetsContent.entrySet()) {
+            String match = ipSets.getMatch(set.getKey());
+            for (String command : commands) {
+                if (command.contains(match)) {
+                    result.add(ipSets.getFillCommand(set.getKey(), set.getValue()));
+                    break;
+                }
+            }
+        }
+        result.addAll(commands);
+        return result;
     }
 
-    public List<String> getBlockingRules(String appUID, String blockHOTSPOT, String unblockHOTSPOT) {
-        Pair<String, String> bypassLanNatToBypassLanFilter = getBypassLanRules();
+    /**
+     * Rules of the InviZible chains are applied by iptables-restore in one transaction per table,
+     * the original commands remain as a fallback in case iptables-restore fails.
+     * The blocking chain must be filled before the core chains are flushed, so it is not built by chainRules.
+     */
+    private List<String> getAtomicCommands(IptablesRestoreTransaction.Builder chainRules, List<String> commands) {
+        IptablesRestoreTransaction transaction = chainRules.build(commands);
+        preparedRules = transaction;
+
+        String iptablesRestore = pathVars.getIptablesRestorePath();
+        if (transaction == null || iptablesRestore.isEmpty()) {
+            return commands;
+        }
+
+        String payloadPath = pathVars.getIptablesRestorePayloadPath();
+        String payload = transaction.getPayload();
+        if (!payload.equals(iptablesRestorePayload) || !new File(payloadPath).isFile()) {
+            try (FileWriter writer = new FileWriter(payloadPath)) {
+                writer.write(payload);
+                iptablesRestorePayload = payload;
+            } catch (IOException e) {
+                loge("ModulesIptablesRules getAtomicCommands", e);
+                return commands;
+            }
+        }
+
+        return transaction.getCommands(iptablesRestore, payloadPath);
+    }
+
+    /**
+     * Replaces rebuilding of the chains with deletions and insertions of the changed rules if the chains
+     * still contain the rules applied last time, otherwise returns the commands that rebuild the chains.
+     * Other commands, like jumps to the chains and ipset fills, are always executed.
+     * Should not be called on the main thread.
+     */
+    @Override
+    public List<String> reconcileIptables(List<String> commands) {
+        IptablesRestoreTransaction applied = appliedRules;
+        IptablesRestoreTransaction desired = preparedRules;
+        appliedRules = desired;
+
+        String iptablesSave = pathVars.getIptablesSavePath();
+        if (applied == null || desired == null || iptablesSave.isEmpty() || isLastIptablesCommandsReturnError()) {
+            return commands;
+        }
+
+        List<String> liveRules = getLiveRules(iptablesSave, applied.getTables().keySet());
+        if (liveRules.isEmpty()) {
+            return commands;
+        }
+
+        List<String> changes = IptablesRulesReconciler.getChanges(iptables, applied, desired, liveRules);
+        if (changes == null) {
+            return commands;
+        }
+
+        logi("ModulesIptablesRules reconcile iptables, " + changes.size() + " chain commands instead of iptables-restore");
+
+        return desired.getCommands(changes);
+    }
+
+    @SuppressWarnings("deprecation")
+    private List<String> getLiveRules(String iptablesSave, Set<String> tables) {
+        List<String> liveRules = new ArrayList<>();
+        try {
+            for (String table : tables) {
+                CommandResult result = Shell.SU.run(iptablesSave + "-t " + table);
+                if (!result.isSuccessful()) {
+                    return Collections.emptyList();
+                }
+                liveRules.addAll(result.stdout);
+            }
+        } catch (Exception e) {
+            loge("ModulesIptablesRules getLiveRules", e);
+            return Collections.emptyList();
+        }
+        return liveRules;
+    }
+
+    public List<String> getBlockingRules(IptablesRestoreTransaction.Builder chainRules, String appUID, String blockHOTSPOT, String unblockHOTSPOT) {
+        Pair<String, String> bypassLanNatToBypassLanFilter = getBypassLanRules(chainRules);
         String bypassLanFilter = bypassLanNatToBypassLanFilter.second;
         String criticalUidsAllowed = getCriticalUidsAllowedRules();
         return new ArrayList<>(Arrays.asList(
@@ -765,14 +923,14 @@ public class ModulesIptablesRules extends IptablesRulesSender {
                 ip6tables + "-D OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT 2> /dev/null || true",
                 ip6tables + "-I OUTPUT -j DROP",
                 ip6tables + "-I OUTPUT -m owner --uid-owner " + appUID + " -j ACCEPT",
-                iptables + "-t nat -F " + NAT_OUTPUT_CORE + " 2> /dev/null",
+                chainRules.flushChain(TABLE_NAT, NAT_OUTPUT_CORE),
                 iptables + "-t nat -D OUTPUT -j " + NAT_OUTPUT_CORE + " 2> /dev/null || true",
-                iptables + "-F " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                chainRules.flushChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                 iptables + "-D OUTPUT -j " + FILTER_OUTPUT_CORE + " 2> /dev/null || true",
                 busybox + "sleep 1 || true",
-                iptables + "-N " + FILTER_OUTPUT_CORE + " 2> /dev/null",
+                chainRules.newChain(TABLE_FILTER, FILTER_OUTPUT_CORE),
                 bypassLanFilter,
-                iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner ! --uid-owner " + appUID + " -j REJECT",
+                chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, " -m owner ! --uid-owner " + appUID + " -j REJECT"),
                 iptables + "-I OUTPUT -j " + FILTER_OUTPUT_CORE,
                 unblockHOTSPOT,
                 blockHOTSPOT,
@@ -875,6 +1033,9 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         ));
 
         commands.addAll(iptablesFirewall.get().getClearFirewallRules());
+        commands.addAll(iptablesIpSets.get().getDestroyCommands());
+
+        appliedRules = null;
 
         return commands;
     }
@@ -898,6 +1059,120 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         }
     }
 
+    /**
+     * Adds and removes rules of single Tor unlock or clearnet IPs without rebuilding the chains.
+     * If the IPs are kept in ipset, only the set members are changed.
+     * Otherwise new rules are inserted before the rule of an IP that is already in the list,
+     * as the position of rules in the chains matters.
+     */
+    @Override
+    public void refreshTorIpsRules(Set<String> ipsToAdd, Set<String> ipsToRemove) {
+        iptables = pathVars.getIptablesPath();
+        busybox = pathVars.getBusyboxPath();
+        //The rules may have been configured by another instance, such as the one of the previous loop
+        useIpSets = iptablesIpSets.get().isSupported();
+
+        if (useIpSets) {
+            refreshTorIpsSet(ipsToAdd, ipsToRemove);
+            return;
+        }
+
+        //Inserted rules are not known to the reconciler, so the next update rebuilds the chains
+        appliedRules = null;
+
+        SharedPreferences shPref = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean routeAllThroughTor = shPref.getBoolean(ALL_THROUGH_TOR, true);
+        Set<String> ips = preferenceRepository.get().getStringSetPreference(
+                routeAllThroughTor ? IPS_FOR_CLEARNET : IPS_TO_UNLOCK
+        );
+
+        String anchorIP = null;
+        for (String ip : ips) {
+            if (ip.matches(IPv4_REGEX) && !ipsToAdd.contains(ip)) {
+                anchorIP = ip;
+                break;
+            }
+        }
+
+        List<String> commands = new ArrayList<>();
+
+        for (String ip : ipsToRemove) {
+            if (ip.matches(IPv4_REGEX)) {
+                commands.add(iptables + "-t nat -D " + NAT_OUTPUT_CORE + getTorSiteNatRule(" -d " + ip, routeAllThroughTor) + " 2> /dev/null || true");
+                commands.add(iptables + "-D " + FILTER_OUTPUT_CORE + getTorSiteFilterRule(" -d " + ip, routeAllThroughTor) + " 2> /dev/null || true");
+            }
+        }
+
+        for (String ip : ipsToAdd) {
+            if (!ip.matches(IPv4_REGEX)) {
+                continue;
+            }
+
+            if (anchorIP == null) {
+                //There are no rules of the list yet, so the place for new rules is unknown
+                ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true);
+                return;
+            }
+
+            commands.add(getInsertRuleBeforeCommand("-t nat ", NAT_OUTPUT_CORE, anchorIP, getTorSiteNatRule(" -d " + ip, routeAllThroughTor)));
+            commands.add(getInsertRuleBeforeCommand("", FILTER_OUTPUT_CORE, anchorIP, getTorSiteFilterRule(" -d " + ip, routeAllThroughTor)));
+        }
+
+        if (!commands.isEmpty()) {
+            sendToRootExecService(commands);
+
+            logi("ModulesIptablesRules Refresh Tor IPs rules added " + ipsToAdd.size() + " removed " + ipsToRemove.size());
+        }
+    }
+
+    private void refreshTorIpsSet(Set<String> ipsToAdd, Set<String> ipsToRemove) {
+        IptablesIpSets ipSets = iptablesIpSets.get();
+        List<String> commands = new ArrayList<>();
+
+        for (String ip : ipsToRemove) {
+            if (ip.matches(IPv4_REGEX)) {
+                commands.add(ipSets.getDeleteCommand(SET_TOR_IPS, ip));
+            }
+        }
+
+        for (String ip : ipsToAdd) {
+            if (ip.matches(IPv4_REGEX)) {
+                commands.add(ipSets.getAddCommand(SET_TOR_IPS, ip));
+            }
+        }
+
+        if (!commands.isEmpty()) {
+            sendToRootExecService(commands);
+
+            logi("ModulesIptablesRules Refresh Tor IPs set added " + ipsToAdd.size() + " removed " + ipsToRemove.size());
+        }
+    }
+
+    private String getTorSiteNatRule(String destination, boolean routeAllThroughTor) {
+        if (routeAllThroughTor) {
+            return " -p all" + destination + " -j RETURN";
+        } else {
+            return " -p tcp" + destination + " -j REDIRECT --to-port " + pathVars.getTorTransPort();
+        }
+    }
+
+    private String getTorSiteFilterRule(String destination, boolean routeAllThroughTor) {
+        if (routeAllThroughTor) {
+            return " -p all" + destination + " -j RETURN";
+        } else {
+            return " ! -p tcp" + destination + " -j REJECT";
+        }
+    }
+
+    private String getInsertRuleBeforeCommand(String table, String chain, String anchorIP, String rule) {
+        //The first line of the -S output is the chain itself
+        return "n=$(" + iptables + table + "-S " + chain
+                + " | " + busybox + "grep -n -m 1 -F -e ' -d " + anchorIP + "/32 '"
+                + " | " + busybox + "cut -d: -f1)"
+                + " && [ -n \"$n\" ] && " + iptables + table + "-I " + chain + " $((n - 1))" + rule
+                + " || echo 'Unable to insert" + rule + "'";
+    }
+
     public static void denySystemDNS(Context context, PathVars pathVars) {
 
         String iptables = pathVars.getIptablesPath();
@@ -966,35 +1241,34 @@ public class ModulesIptablesRules extends IptablesRulesSender {
         }
     }
 
-    private Pair<String, String> getBypassLanRules() {
-        String bypassLanNat;
-        String bypassLanFilter;
-        StringBuilder nonTorRanges = new StringBuilder();
-        for (String address : VpnUtils.nonTorList) {
-            nonTorRanges.append(address).append(" ");
+    private Pair<String, String> getBypassLanRules(IptablesRestoreTransaction.Builder chainRules) {
+        String ownerMatch = "";
+        if (!lan) {
+            ownerMatch = " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID;
         }
-        if (lan) {
-            nonTorRanges.deleteCharAt(nonTorRanges.lastIndexOf(" "));
-
-            bypassLanNat = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -d $_lan -j RETURN; " +
-                    "done";
-            bypassLanFilter = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -d $_lan -j RETURN; " +
-                    "done";
-        } else {
-            bypassLanNat = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d $_lan -j RETURN; " +
-                    "done";
-            bypassLanFilter = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_OUTPUT_CORE + " -m owner --uid-owner " + NETWORK_STACK_DEFAULT_UID + " -d $_lan -j RETURN; " +
-                    "done";
+
+        if (useIpSets) {
+            String destination = iptablesIpSets.get().getMatch(SET_NON_TOR);
+            return new Pair<>(
+                    chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, ownerMatch + destination + " -j RETURN"),
+                    chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, ownerMatch + destination + " -j RETURN")
+            );
+        }
+
+        //Rules are listed one by one instead of a shell loop to allow moving them into iptables-restore payload
+        StringBuilder bypassLanNatBuilder = new StringBuilder();
+        StringBuilder bypassLanFilterBuilder = new StringBuilder();
+        for (String address : VpnUtils.nonTorList) {
+            bypassLanNatBuilder.append(chainRules.appendRule(TABLE_NAT, NAT_OUTPUT_CORE, ownerMatch + " -d " + address + " -j RETURN"))
+                    .append("; ");
+            bypassLanFilterBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, ownerMatch + " -d " + address + " -j RETURN"))
+                    .append("; ");
         }
-        return new Pair<>(bypassLanNat, bypassLanFilter);
+
+        return new Pair<>(
+                removeRedundantSymbols(bypassLanNatBuilder),
+                removeRedundantSymbols(bypassLanFilterBuilder)
+        );
     }
 
     private String getCriticalUidsAllowedRules() {
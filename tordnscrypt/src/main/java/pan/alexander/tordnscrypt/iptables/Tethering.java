@@ -44,6 +44,7 @@ import static pan.alexander.tordnscrypt.di.SharedPreferencesModule.DEFAULT_PREFE
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_FORWARD_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.FILTER_OUTPUT_CORE;
 import static pan.alexander.tordnscrypt.iptables.IptablesConstants.NAT_PREROUTING_CORE;
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_FILTER;
 import static pan.alexander.tordnscrypt.utils.Constants.HTTP_PORT;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
@@ -83,6 +84,14 @@ public class Tethering {
     @Inject
     public Provider<InternetSharingChecker> internetSharingChecker;
 
+    //Each rule is inserted at the top of FILTER_OUTPUT_CORE, so the last one becomes the first
+    private static final List<String> DHCP_OUTPUT_RULES = Arrays.asList(
+            " -p udp -m udp --dport 67 -j ACCEPT",
+            " -p udp -m udp --dport 68 -j ACCEPT",
+            " -p udp -m udp --sport 67 -j ACCEPT",
+            " -p udp -m udp --sport 68 -j ACCEPT"
+    );
+
     private String iptables = "iptables ";
 
     private final ModulesStatus modulesStatus = ModulesStatus.getInstance();
@@ -92,8 +101,12 @@ public class Tethering {
         this.context = context;
     }
 
+    /**
+     * @param outputChainRebuilt true if FILTER_OUTPUT_CORE is rebuilt together with the tethering rules,
+     *                           then DHCP rules should be added to it by {@link #getDhcpOutputRules}.
+     */
     @NonNull
-    List<String> activateTethering(boolean privacyMode) {
+    List<String> activateTethering(boolean privacyMode, boolean outputChainRebuilt) {
 
         if (context == null) {
             return new ArrayList<>();
@@ -124,23 +137,30 @@ public class Tethering {
 
         setInterfaceNames();
 
+        String dhcpRules = "";
+        if (!outputChainRebuilt) {
+            StringBuilder dhcpRulesBuilder = new StringBuilder();
+            for (String rule : DHCP_OUTPUT_RULES) {
+                dhcpRulesBuilder.append(iptables).append("-D ").append(FILTER_OUTPUT_CORE).append(rule).append(" 2> /dev/null || true; ");
+                dhcpRulesBuilder.append(iptables).append("-I ").append(FILTER_OUTPUT_CORE).append(rule).append("; ");
+            }
+            dhcpRules = removeRedundantSymbols(dhcpRulesBuilder);
+        }
+
         String bypassLanPrerouting = "";
         String bypassLanForward = "";
         if (lan) {
-            StringBuilder nonTorRanges = new StringBuilder();
+            StringBuilder bypassLanPreroutingBuilder = new StringBuilder();
+            StringBuilder bypassLanForwardBuilder = new StringBuilder();
             for (String address : VpnUtils.nonTorList) {
-                nonTorRanges.append(address).append(" ");
+                bypassLanPreroutingBuilder.append(iptables).append("-t nat -A ").append(NAT_PREROUTING_CORE)
+                        .append(" -d ").append(address).append(" -j ACCEPT; ");
+                bypassLanForwardBuilder.append(iptables).append("-A ").append(FILTER_FORWARD_CORE)
+                        .append(" -d ").append(address).append(" -j ACCEPT; ");
             }
-            nonTorRanges.deleteCharAt(nonTorRanges.lastIndexOf(" "));
-
-            bypassLanPrerouting = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -d $_lan -j ACCEPT; " +
-                    "done";
-            bypassLanForward = "non_tor=\"" + nonTorRanges + "\"; " +
-                    "for _lan in $non_tor; do " +
-                    iptables + "-A " + FILTER_FORWARD_CORE + " -d $_lan -j ACCEPT; " +
-                    "done";
+
+            bypassLanPrerouting = removeRedundantSymbols(bypassLanPreroutingBuilder);
+            bypassLanForward = removeRedundantSymbols(bypassLanForwardBuilder);
         }
 
         String torSitesBypassPrerouting = "";
@@ -282,14 +302,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         blockHttpRulePreroutingTCPwifi,
                         blockHttpRulePreroutingUDPwifi,
@@ -329,14 +342,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
@@ -404,14 +410,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
@@ -468,14 +467,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
@@ -517,14 +509,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + ethernetInterfaceName + " -d " + addressLocalPC + " -j ACCEPT || true",
@@ -578,14 +563,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
@@ -640,14 +618,7 @@ public class Tethering {
                         iptables + "-t nat -A PREROUTING -j " + NAT_PREROUTING_CORE,
                         iptables + "-A FORWARD -j " + FILTER_FORWARD_CORE,
                         busybox + "sleep 1 || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --dport 68 -j ACCEPT",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-D " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT 2> /dev/null || true",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 67 -j ACCEPT",
-                        iptables + "-I " + FILTER_OUTPUT_CORE + " -p udp -m udp --sport 68 -j ACCEPT",
+                        dhcpRules,
                         busybox + "sleep 1 || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + wifiAPInterfaceName + " -d " + wifiAPAddressesRange + " -j ACCEPT || true",
                         iptables + "-t nat -A " + NAT_PREROUTING_CORE + " -i " + usbModemInterfaceName + " -d " + usbModemAddressesRange + " -j ACCEPT || true",
@@ -714,6 +685,25 @@ public class Tethering {
         return cleanupCommands(tetheringCommands);
     }
 
+    /**
+     * Allows DHCP of tethered devices at the top of FILTER_OUTPUT_CORE,
+     * the result should follow the creation of the chain.
+     * Should be called after {@link #activateTethering}.
+     *
+     * @return commands of the chain builder joined with "; ", or an empty string if tethering is off.
+     */
+    String getDhcpOutputRules(IptablesRestoreTransaction.Builder chainRules) {
+        if (!isTetheringActive()) {
+            return "";
+        }
+
+        StringBuilder dhcpRulesBuilder = new StringBuilder();
+        for (int i = DHCP_OUTPUT_RULES.size() - 1; i >= 0; i--) {
+            dhcpRulesBuilder.append(chainRules.appendRule(TABLE_FILTER, FILTER_OUTPUT_CORE, DHCP_OUTPUT_RULES.get(i))).append("; ");
+        }
+        return removeRedundantSymbols(dhcpRulesBuilder);
+    }
+
     List<String> fastUpdate() {
         List<String> tetheringCommands = new ArrayList<>();
         boolean tetherIptablesRulesIsClean = preferenceRepository.get()
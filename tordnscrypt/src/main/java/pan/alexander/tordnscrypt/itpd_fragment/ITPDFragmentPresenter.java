@@ -57,6 +57,7 @@ import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 import pan.alexander.tordnscrypt.utils.filemanager.FileShortener;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
+import pan.alexander.tordnscrypt.utils.parsers.HtmlLinesSpanner;
 
 import static pan.alexander.tordnscrypt.TopFragment.ITPDVersion;
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.RUN_MODULES_WITH_ROOT;
@@ -95,6 +96,7 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterInterface,
     private ScaleGestureDetector scaleGestureDetector;
 
     private volatile int previousLastLinesLength;
+    private final HtmlLinesSpanner logLinesSpanner = new HtmlLinesSpanner();
     private boolean fixedITPDReady;
 
 
@@ -488,11 +490,11 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterInterface,
     public void onITPDLogUpdated(@NonNull LogDataModel itpdLogData) {
         final String lastLines = itpdLogData.getLines();
 
-        if (lastLines.isEmpty()) {
+        if (lastLines.isEmpty() || lastLines.length() == previousLastLinesLength) {
             return;
         }
 
-        Spanned htmlLastLines = Html.fromHtml(lastLines);
+        Spanned htmlLastLines = logLinesSpanner.toSpanned(lastLines);
 
         if (!isActive() || htmlLastLines == null) {
             return;
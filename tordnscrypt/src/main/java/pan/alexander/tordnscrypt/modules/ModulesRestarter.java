@@ -28,6 +28,7 @@ import java.util.List;
 
 import eu.chainfire.libsuperuser.Shell;
 import pan.alexander.tordnscrypt.App;
+import pan.alexander.tordnscrypt.di.AppComponent;
 import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.utils.filemanager.FileManager;
 
@@ -44,6 +45,19 @@ public class ModulesRestarter {
         ModulesAux.speedupModulesStateLoopTimer(context);
     }
 
+    /**
+     * Changes Tor identity with the control protocol and restarts Tor only if the control
+     * socket is not available, so open circuits survive in the usual case.
+     */
+    public static void newTorIdentity(Context context) {
+        AppComponent appComponent = App.getInstance().getDaggerComponent();
+        appComponent.getCachedExecutor().submit(() -> {
+            if (!appComponent.getTorControlInteractor().get().requestNewIdentity(false)) {
+                restartTor(context);
+            }
+        });
+    }
+
     public static void restartITPD(Context context) {
         ModulesActionSender.INSTANCE.sendIntent(context, ModulesServiceActions.ACTION_RESTART_ITPD);
         ModulesAux.speedupModulesStateLoopTimer(context);
@@ -209,6 +209,8 @@ public class ModulesStarterHelper {
 
                 useTorSchedulerVanilla(lines);
 
+                useTorControlSocket(lines);
+
                 correctObfsModulePath(lines);
 
                 torCmdString = torPath + " -f "
@@ -386,6 +388,54 @@ public class ModulesStarterHelper {
         }
     }
 
+    //Tor bootstrap and state are tracked with the control protocol when the socket is accessible
+    private void useTorControlSocket(List<String> lines) {
+        String controlPortLine = "ControlPort unix:" + pathVars.getTorControlSocketPath() + " RelaxDirModeCheck";
+        String cookieAuthenticationLine = "CookieAuthentication 1";
+        String cookieAuthFileLine = "CookieAuthFile " + pathVars.getTorControlCookiePath();
+
+        boolean controlPortFound = false;
+        boolean cookieAuthenticationFound = false;
+        boolean cookieAuthFileFound = false;
+        boolean changed = false;
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.equals(controlPortLine)) {
+                controlPortFound = true;
+            } else if (line.startsWith("CookieAuthentication ")) {
+                cookieAuthenticationFound = true;
+                if (!line.equals(cookieAuthenticationLine)) {
+                    lines.set(i, cookieAuthenticationLine);
+                    changed = true;
+                }
+            } else if (line.startsWith("CookieAuthFile ")) {
+                cookieAuthFileFound = true;
+                if (!line.equals(cookieAuthFileLine)) {
+                    lines.set(i, cookieAuthFileLine);
+                    changed = true;
+                }
+            }
+        }
+
+        if (!controlPortFound) {
+            lines.add(controlPortLine);
+            changed = true;
+        }
+        if (!cookieAuthenticationFound) {
+            lines.add(cookieAuthenticationLine);
+            changed = true;
+        }
+        if (!cookieAuthFileFound) {
+            lines.add(cookieAuthFileLine);
+            changed = true;
+        }
+
+        if (changed) {
+            FileManager.writeTextFileSynchronous(context, torConfPath, lines);
+        }
+    }
+
     private void correctObfsModulePath(List<String> lines) {
         PreferenceRepository preferences = preferenceRepository.get();
         String savedObfsBinaryPath = preferences.getStringPreference("ObfsBinaryPath").trim();
@@ -25,12 +25,14 @@ import android.content.SharedPreferences;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Handler;
+import android.util.Pair;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
 
 import java.util.List;
+import java.util.Set;
 
 import dagger.Lazy;
 import pan.alexander.tordnscrypt.App;
@@ -173,6 +175,8 @@ public class ModulesStateLoop implements Runnable,
 
             updateFixTTLRules();
 
+            updateTorIpsRules(operationMode, rootIsAvailable);
+
             updateIptablesRules(
                     modulesStatus.getDnsCryptState(),
                     modulesStatus.getTorState(),
@@ -256,6 +260,21 @@ public class ModulesStateLoop implements Runnable,
         }
     }
 
+    private void updateTorIpsRules(OperationMode operationMode, boolean rootIsAvailable) {
+        Pair<Set<String>, Set<String>> update = modulesStatus.takeRequestedTorIpsUpdate();
+
+        //Full update includes Tor IPs
+        if (update == null || modulesStatus.isIptablesRulesUpdateRequested()) {
+            return;
+        }
+
+        if (iptablesRules != null && rootIsAvailable && operationMode == ROOT_MODE) {
+            iptablesRules.refreshTorIpsRules(update.first, update.second);
+        }
+
+        ServiceVPNHelper.updateIpsForTor("Tor IPs changed", modulesService);
+    }
+
     private void updateIptablesRules(ModuleState dnsCryptState, ModuleState torState,
                                      ModuleState itpdState, OperationMode operationMode,
                                      boolean rootIsAvailable, boolean useModulesWithRoot) {
@@ -372,6 +391,8 @@ public class ModulesStateLoop implements Runnable,
 
                 if (hashCode == savedIptablesCommandsHash && !iptablesRules.isLastIptablesCommandsReturnError()) {
                     commands = iptablesRules.fastUpdate();
+                } else {
+                    commands = iptablesRules.reconcileIptables(commands);
                 }
 
                 savedIptablesCommandsHash = hashCode;
@@ -20,11 +20,17 @@
 package pan.alexander.tordnscrypt.modules;
 
 import android.content.Context;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Set;
 
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.enums.OperationMode;
+import pan.alexander.tordnscrypt.vpn.service.VpnVerdictCache;
 
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.UNDEFINED;
 
@@ -47,6 +53,10 @@ public final class ModulesStatus {
     private volatile boolean itpdReady;
     private volatile boolean deviceInteractive = true;
 
+    //Guarded by this
+    private final Set<String> requestedTorIpsToAdd = new HashSet<>();
+    private final Set<String> requestedTorIpsToRemove = new HashSet<>();
+
     private static volatile ModulesStatus modulesStatus;
 
     private ModulesStatus() {
@@ -65,7 +75,10 @@ public final class ModulesStatus {
     }
 
     public void setUseModulesWithRoot(final boolean useModulesWithRoot) {
-        this.useModulesWithRoot = useModulesWithRoot;
+        if (this.useModulesWithRoot != useModulesWithRoot) {
+            this.useModulesWithRoot = useModulesWithRoot;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public ModuleState getDnsCryptState() {
@@ -81,15 +94,24 @@ public final class ModulesStatus {
     }
 
     public void setDnsCryptState(ModuleState dnsCryptState) {
-        this.dnsCryptState = dnsCryptState;
+        if (this.dnsCryptState != dnsCryptState) {
+            this.dnsCryptState = dnsCryptState;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public void setTorState(ModuleState torState) {
-        this.torState = torState;
+        if (this.torState != torState) {
+            this.torState = torState;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public void setItpdState(ModuleState itpdState) {
-        this.itpdState = itpdState;
+        if (this.itpdState != itpdState) {
+            this.itpdState = itpdState;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public boolean isUseModulesWithRoot() {
@@ -101,7 +123,10 @@ public final class ModulesStatus {
     }
 
     void setRootAvailable(boolean rootIsAvailable) {
-        this.rootAvailable = rootIsAvailable;
+        if (this.rootAvailable != rootIsAvailable) {
+            this.rootAvailable = rootIsAvailable;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     synchronized boolean isIptablesRulesUpdateRequested() {
@@ -117,6 +142,42 @@ public final class ModulesStatus {
         ModulesAux.makeModulesStateExtraLoop(context);
     }
 
+    /**
+     * Requests to add and remove only these Tor unlock or clearnet IPs instead of updating all rules.
+     * Requests made before they are applied are merged.
+     */
+    public synchronized void requestTorIpsUpdate(Context context, Set<String> ipsToAdd, Set<String> ipsToRemove) {
+        for (String ip : ipsToRemove) {
+            if (!requestedTorIpsToAdd.remove(ip)) {
+                requestedTorIpsToRemove.add(ip);
+            }
+        }
+        for (String ip : ipsToAdd) {
+            if (!requestedTorIpsToRemove.remove(ip)) {
+                requestedTorIpsToAdd.add(ip);
+            }
+        }
+        ModulesAux.makeModulesStateExtraLoop(context);
+    }
+
+    /**
+     * @return IPs to add and IPs to remove or null if there is no request.
+     */
+    @Nullable
+    synchronized Pair<Set<String>, Set<String>> takeRequestedTorIpsUpdate() {
+        if (requestedTorIpsToAdd.isEmpty() && requestedTorIpsToRemove.isEmpty()) {
+            return null;
+        }
+
+        Pair<Set<String>, Set<String>> update = new Pair<>(
+                new HashSet<>(requestedTorIpsToAdd),
+                new HashSet<>(requestedTorIpsToRemove)
+        );
+        requestedTorIpsToAdd.clear();
+        requestedTorIpsToRemove.clear();
+        return update;
+    }
+
     boolean isFixTTLRulesUpdateRequested() {
         return requestFixTTLRulesUpdate;
     }
@@ -143,7 +204,10 @@ public final class ModulesStatus {
     }
 
     public void setFixTTL(boolean fixTTL) {
-        this.fixTTL = fixTTL;
+        if (this.fixTTL != fixTTL) {
+            this.fixTTL = fixTTL;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public OperationMode getMode() {
@@ -151,7 +215,10 @@ public final class ModulesStatus {
     }
 
     public void setMode(OperationMode mode) {
-        this.mode = mode;
+        if (this.mode != mode) {
+            this.mode = mode;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public boolean isSystemDNSAllowed() {
@@ -159,7 +226,10 @@ public final class ModulesStatus {
     }
 
     public void setSystemDNSAllowed(boolean systemDNSAllowed) {
-        this.systemDNSAllowed = systemDNSAllowed;
+        if (this.systemDNSAllowed != systemDNSAllowed) {
+            this.systemDNSAllowed = systemDNSAllowed;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public boolean isDnsCryptReady() {
@@ -167,7 +237,10 @@ public final class ModulesStatus {
     }
 
     public void setDnsCryptReady(boolean dnsCryptReady) {
-        this.dnsCryptReady = dnsCryptReady;
+        if (this.dnsCryptReady != dnsCryptReady) {
+            this.dnsCryptReady = dnsCryptReady;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public boolean isTorReady() {
@@ -175,7 +248,10 @@ public final class ModulesStatus {
     }
 
     public void setTorReady(boolean torReady) {
-        this.torReady = torReady;
+        if (this.torReady != torReady) {
+            this.torReady = torReady;
+            VpnVerdictCache.invalidate();
+        }
     }
 
     public boolean isItpdReady() {
@@ -30,7 +30,7 @@ import pan.alexander.tordnscrypt.di.CoroutinesModule
 import pan.alexander.tordnscrypt.di.modulesservice.ModulesServiceScope
 import pan.alexander.tordnscrypt.domain.connection_checker.ConnectionCheckerInteractor
 import pan.alexander.tordnscrypt.domain.connection_checker.OnInternetConnectionCheckedListener
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionJournal
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.Constants.NFLOG_GROUP
 import pan.alexander.tordnscrypt.utils.Constants.NFLOG_PREFIX
@@ -39,7 +39,6 @@ import pan.alexander.tordnscrypt.utils.logger.Logger.logi
 import pan.alexander.tordnscrypt.utils.logger.Logger.logw
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN.LINES_IN_DNS_QUERY_RAW_RECORDS
 import java.io.File
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Named
 import kotlin.Exception
@@ -62,11 +61,7 @@ class NflogManager @Inject constructor(
     @Volatile
     private var nfLogStartFailed = false
 
-    private val connectionDataRecords = ConcurrentHashMap<ConnectionData, Boolean>(
-        16,
-        0.75f,
-        2
-    )
+    private val connectionJournal = ConnectionJournal(LINES_IN_DNS_QUERY_RAW_RECORDS)
 
     private val coroutineScope by lazy {
         CoroutineScope(
@@ -342,19 +337,7 @@ class NflogManager @Inject constructor(
     private fun handleConnectionRecordLine(line: String) {
         try {
             nflogParser.parse(line)?.let {
-                connectionDataRecords.remove(it)
-                connectionDataRecords.put(it, true)
-            }
-
-            if (connectionDataRecords.size >= LINES_IN_DNS_QUERY_RAW_RECORDS) {
-                connectionDataRecords.keys()
-                    .toList()
-                    .sortedBy { it.time }
-                    .take(LINES_IN_DNS_QUERY_RAW_RECORDS / 5).let {
-                        for (record in it) {
-                            connectionDataRecords.remove(record)
-                        }
-                    }
+                connectionJournal.add(it)
             }
         } catch (e: Exception) {
             loge("NflogManager parseLine $line", e)
@@ -366,10 +349,10 @@ class NflogManager @Inject constructor(
         STOP
     }
 
-    fun getRealTimeLogs() = connectionDataRecords
+    fun getRealTimeLogs() = connectionJournal
 
     fun clearRealTimeLogs() {
-        connectionDataRecords.clear()
+        connectionJournal.clear()
     }
 
     override fun onConnectionChecked(available: Boolean) {
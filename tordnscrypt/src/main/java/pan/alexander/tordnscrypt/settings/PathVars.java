@@ -138,6 +138,52 @@ public class PathVars {
         return path;
     }
 
+    /**
+     * @return empty string if iptables-restore is not available for the selected iptables.
+     */
+    public String getIptablesRestorePath() {
+        String iptablesSelector = preferences.getString(USE_IPTABLES, "2");
+        if (iptablesSelector == null) {
+            iptablesSelector = "2";
+        }
+
+        boolean waitIptables = preferences.getBoolean(WAIT_IPTABLES, true);
+
+        String path;
+        switch (iptablesSelector) {
+            case "1":
+                //Only iptables and ip6tables are bundled with the app
+                return "";
+            case "2":
+            default:
+                path = "iptables-restore ";
+                break;
+        }
+
+        if (waitIptables) {
+            path += "-w ";
+        }
+
+        return path;
+    }
+
+    /**
+     * @return empty string if iptables-save is not available for the selected iptables.
+     */
+    public String getIptablesSavePath() {
+        String iptablesSelector = preferences.getString(USE_IPTABLES, "2");
+        if (iptablesSelector == null) {
+            iptablesSelector = "2";
+        }
+
+        if (iptablesSelector.equals("1")) {
+            //Only iptables and ip6tables are bundled with the app
+            return "";
+        }
+
+        return "iptables-save ";
+    }
+
     public String getBusyboxPath() {
 
         String busyBoxSelector = preferences.getString("pref_common_use_busybox", "1");
@@ -342,6 +388,10 @@ public class PathVars {
         return appDataDir + "/app_data/dnscrypt-proxy/captive-portals.txt";
     }
 
+    public String getIptablesRestorePayloadPath() {
+        return appDataDir + "/cache/iptables_restore.rules";
+    }
+
     public String getCacheDirPath(Context context) {
         String cacheDirPath = "/storage/emulated/0/Android/data/" + context.getPackageName() + "/cache";
 
@@ -381,6 +431,14 @@ public class PathVars {
         return appDataDir + "/app_data/tor/tor.conf";
     }
 
+    public String getTorControlSocketPath() {
+        return appDataDir + "/app_data/tor/control.sock";
+    }
+
+    public String getTorControlCookiePath() {
+        return appDataDir + "/app_data/tor/control_auth_cookie";
+    }
+
     public String getItpdConfPath() {
         return appDataDir + "/app_data/i2pd/i2pd.conf";
     }
@@ -51,6 +51,7 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.dialogs.progressDialogs.PleaseWaitProgressDialog;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
 import pan.alexander.tordnscrypt.proxy.ProxyFragment;
+import pan.alexander.tordnscrypt.settings.dnscrypt_settings.DnsQueryStatsFragment;
 import pan.alexander.tordnscrypt.settings.dnscrypt_settings.PreferencesDNSFragment;
 import pan.alexander.tordnscrypt.settings.firewall.FirewallFragment;
 import pan.alexander.tordnscrypt.settings.tor_bridges.PreferencesTorBridges;
@@ -154,6 +155,10 @@ public class SettingsActivity extends LangAppCompatActivity {
             frag.setArguments(bundle);
             fSupportTrans.replace(android.R.id.content, frag);
             fSupportTrans.commit();
+        } else if (Objects.equals(intent.getAction(), "open_query_stats")) {
+            DnsQueryStatsFragment frag = new DnsQueryStatsFragment();
+            fSupportTrans.replace(android.R.id.content, frag);
+            fSupportTrans.commit();
         } else if (Objects.equals(intent.getAction(), "forwarding_rules_Pref")) {
             dialogFragment = PleaseWaitProgressDialog.getInstance();
             dialogFragment.show(getSupportFragmentManager(), "PleaseWaitProgressDialog");
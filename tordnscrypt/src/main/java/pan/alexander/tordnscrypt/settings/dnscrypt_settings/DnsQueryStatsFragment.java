@@ -0,0 +1,200 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.settings.dnscrypt_settings;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.text.Html;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+
+import dagger.Lazy;
+import pan.alexander.tordnscrypt.App;
+import pan.alexander.tordnscrypt.R;
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryStatItem;
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryStatistics;
+import pan.alexander.tordnscrypt.domain.dns_query_stats.DnsQueryStatsInteractor;
+import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
+
+/**
+ * Shows the most queried, blocked and nonexistent domains from the dnscrypt-proxy query logs
+ * and refreshes them while visible.
+ */
+public class DnsQueryStatsFragment extends Fragment {
+
+    private static final int TOP_COUNT = 20;
+    private static final long REFRESH_INTERVAL_MS = 2000;
+
+    @Inject
+    public Lazy<DnsQueryStatsInteractor> dnsQueryStatsInteractor;
+    @Inject
+    public Lazy<CachedExecutor> cachedExecutor;
+    @Inject
+    public Handler handler;
+
+    private TextView tvDnsQueryStats;
+    //Accessed on the main thread only, true while a refresh is running in the executor
+    private boolean refreshStarted;
+    private final Runnable refreshRunnable = this::refreshStatistics;
+
+    public DnsQueryStatsFragment() {
+        // Required empty public constructor
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        App.getInstance().getDaggerComponent().inject(this);
+        super.onCreate(savedInstanceState);
+    }
+
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_dns_query_stats, container, false);
+        tvDnsQueryStats = view.findViewById(R.id.tvDnsQueryStats);
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        Activity activity = getActivity();
+        if (activity != null) {
+            activity.setTitle(R.string.title_dnscrypt_query_stats);
+        }
+
+        handler.removeCallbacks(refreshRunnable);
+        handler.post(refreshRunnable);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        handler.removeCallbacks(refreshRunnable);
+    }
+
+    private void refreshStatistics() {
+        //A refresh that is still running after a quick onPause -> onResume continues the loop
+        if (!isResumed() || refreshStarted) {
+            return;
+        }
+
+        refreshStarted = true;
+
+        Future<?> refresh = cachedExecutor.get().submit(() -> {
+            DnsQueryStatistics statistics = dnsQueryStatsInteractor.get().updateStatistics(TOP_COUNT);
+
+            Activity activity = getActivity();
+            Spanned text = activity == null ? null : Html.fromHtml(formatStatistics(activity, statistics));
+
+            handler.post(() -> {
+                refreshStarted = false;
+
+                if (!isResumed()) {
+                    return;
+                }
+
+                if (text != null && tvDnsQueryStats != null) {
+                    tvDnsQueryStats.setText(text);
+                }
+
+                //The next refresh is scheduled after this one is finished
+                handler.postDelayed(refreshRunnable, REFRESH_INTERVAL_MS);
+            });
+        });
+
+        if (refresh == null) {
+            refreshStarted = false;
+        }
+    }
+
+    private String formatStatistics(Context context, DnsQueryStatistics statistics) {
+        List<Integer> queriesPerMinute = statistics.getQueriesPerMinute();
+        List<Integer> blockedPerMinute = statistics.getBlockedPerMinute();
+
+        StringBuilder html = new StringBuilder();
+
+        html.append(context.getString(
+                R.string.dnscrypt_query_stats_totals,
+                statistics.getTotalQueries(),
+                statistics.getBlockedQueries(),
+                statistics.getNxDomainQueries()
+        ));
+        html.append("<br />");
+        html.append(context.getString(
+                R.string.dnscrypt_query_stats_rate,
+                queriesPerMinute.get(queriesPerMinute.size() - 1),
+                blockedPerMinute.get(blockedPerMinute.size() - 1),
+                sum(queriesPerMinute),
+                sum(blockedPerMinute)
+        ));
+
+        appendItems(context, html, R.string.dnscrypt_query_stats_top_domains, statistics.getTopDomains());
+        appendItems(context, html, R.string.dnscrypt_query_stats_top_blocked, statistics.getTopBlockedDomains());
+        appendItems(context, html, R.string.dnscrypt_query_stats_top_nx, statistics.getTopNxDomains());
+        appendItems(context, html, R.string.dnscrypt_query_stats_top_clients, statistics.getTopClients());
+
+        return html.toString();
+    }
+
+    private void appendItems(Context context, StringBuilder html, int title, List<DnsQueryStatItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        html.append("<br /><br /><b>").append(context.getString(title)).append("</b>");
+
+        for (DnsQueryStatItem item : items) {
+            html.append("<br />");
+            //Counts of rare items are approximate
+            if (item.getError() > 0) {
+                html.append("~");
+            }
+            html.append(item.getCount())
+                    .append(" ")
+                    .append(TextUtils.htmlEncode(item.getName()));
+        }
+    }
+
+    private int sum(List<Integer> values) {
+        int sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
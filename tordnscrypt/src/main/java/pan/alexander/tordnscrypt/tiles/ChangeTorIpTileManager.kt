@@ -27,6 +27,7 @@ import androidx.annotation.RequiresApi
 import kotlinx.coroutines.*
 import pan.alexander.tordnscrypt.R
 import pan.alexander.tordnscrypt.di.CoroutinesModule
+import pan.alexander.tordnscrypt.domain.tor_control.TorControlInteractor
 import pan.alexander.tordnscrypt.modules.ModulesRestarter
 import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.tiles.ModulesControlTileManager.Companion.UPDATE_INTERVAL_SEC
@@ -40,7 +41,8 @@ class ChangeTorIpTileManager @Inject constructor(
     @Named(CoroutinesModule.SUPERVISOR_JOB_IO_DISPATCHER_SCOPE)
     private val baseCoroutineScope: CoroutineScope,
     private val coroutineExceptionHandler: CoroutineExceptionHandler,
-    private val context: Context
+    private val context: Context,
+    private val torControlInteractor: TorControlInteractor
 ) {
 
     private val modulesStatus = ModulesStatus.getInstance()
@@ -82,6 +84,8 @@ class ChangeTorIpTileManager @Inject constructor(
         val newTileLabel: String
         if (modulesStatus.torState == ModuleState.RUNNING && !modulesStatus.isTorReady
             || modulesStatus.torState == ModuleState.RESTARTING
+            || modulesStatus.torState == ModuleState.RUNNING
+            && torControlInteractor.isNewIdentityInProgress()
         ) {
             newTileState = Tile.STATE_ACTIVE
             newTileLabel = context.getString(R.string.tile_changing_tor_ip)
@@ -130,7 +134,7 @@ class ChangeTorIpTileManager @Inject constructor(
 
     fun tileClicked(tile: Tile) {
         if (tile.state == Tile.STATE_INACTIVE) {
-            ModulesRestarter.restartTor(context)
+            ModulesRestarter.newTorIdentity(context)
             tile.state = Tile.STATE_ACTIVE
             tile.updateTile()
         }
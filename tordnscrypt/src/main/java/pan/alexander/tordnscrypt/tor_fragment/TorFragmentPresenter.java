@@ -22,7 +22,6 @@ package pan.alexander.tordnscrypt.tor_fragment;
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.text.Html;
 import android.text.Spanned;
 import android.util.Log;
 import android.view.ScaleGestureDetector;
@@ -55,6 +54,7 @@ import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
 import pan.alexander.tordnscrypt.utils.integrity.Verifier;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
+import pan.alexander.tordnscrypt.utils.parsers.HtmlLinesSpanner;
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPNHelper;
 
 import static pan.alexander.tordnscrypt.TopFragment.TOP_BROADCAST;
@@ -98,6 +98,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterInterface,
 
     private volatile LogDataModel savedLogData = null;
     private volatile int savedLinesLength;
+    private final HtmlLinesSpanner logLinesSpanner = new HtmlLinesSpanner();
     private boolean fixedTorReady;
     private boolean fixedTorError;
 
@@ -366,7 +367,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterInterface,
             return;
         }
 
-        Spanned htmlText = Html.fromHtml(lastLines);
+        Spanned htmlText = logLinesSpanner.toSpanned(lastLines);
 
         if (!isActive() || htmlText == null) {
             return;
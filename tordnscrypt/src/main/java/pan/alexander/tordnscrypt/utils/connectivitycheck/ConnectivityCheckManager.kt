@@ -19,16 +19,25 @@
 
 package pan.alexander.tordnscrypt.utils.connectivitycheck
 
+import android.content.Context
 import kotlinx.coroutines.*
 import pan.alexander.tordnscrypt.di.CoroutinesModule
 import pan.alexander.tordnscrypt.di.modulesservice.ModulesServiceScope
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor
+import pan.alexander.tordnscrypt.domain.dns_resolver.DomainIpsRecord
+import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
+import pan.alexander.tordnscrypt.modules.ModulesService
+import pan.alexander.tordnscrypt.modules.ModulesStatus
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.Constants.IPv4_REGEX
 import pan.alexander.tordnscrypt.utils.Constants.IPv6_REGEX
+import pan.alexander.tordnscrypt.utils.enums.OperationMode
 import pan.alexander.tordnscrypt.utils.logger.Logger.loge
+import pan.alexander.tordnscrypt.utils.logger.Logger.logi
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.FIREWALL_ENABLED
 import java.io.File
-import java.util.concurrent.atomic.AtomicBoolean
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Named
 
@@ -38,13 +47,24 @@ private const val GSTATIC_CONNECTIVITY_CHECK_DEFAULT_IPS =
 private const val ANDROID_CONNECTIVITY_CHECK_URL = "connectivitycheck.android.com"
 private const val ANDROID_CONNECTIVITY_CHECK_DEFAULT_IPS =
     "64.233.162.102, 64.233.162.113, 64.233.162.101, 142.250.180.238, 64.233.162.100, 142.250.180.206, 142.251.39.46, 64.233.162.139, 64.233.162.138, 172.217.20.14"
-private const val GET_CONNECTIVITY_CHECK_IPS_TIME_INTERVAL_HRS = 1
 private const val ATTEMPTS_RESOLVE_DOMAIN = 3
 private const val RESOLVE_TIMEOUT_SEC = 10
-
+private const val REFRESH_BEFORE_TTL_EXPIRES_FACTOR = 0.8
+private const val REFRESH_MIN_INTERVAL_SEC = 300L
+private const val REFRESH_MAX_INTERVAL_SEC = 3600L
+private const val REFRESH_RETRY_INTERVAL_SEC = 300L
+
+/**
+ * Keeps the IPs of the connectivity check hosts that are allowed to bypass the firewall and Tor.
+ * The IPs are loaded from the dnscrypt captive portals file once, then the hosts are resolved
+ * in the background again before their DNS TTL expires. Listeners are notified and iptables rules
+ * are updated only when the set of IPs changes.
+ */
 @ModulesServiceScope
 class ConnectivityCheckManager @Inject constructor(
+    private val context: Context,
     private val pathVars: PathVars,
+    private val preferenceRepository: dagger.Lazy<PreferenceRepository>,
     private val dnsInteractor: DnsInteractor,
     @Named(CoroutinesModule.DISPATCHER_IO)
     dispatcherIo: CoroutineDispatcher
@@ -62,140 +82,173 @@ class ConnectivityCheckManager @Inject constructor(
     private val ip4Regex by lazy { Regex(IPv4_REGEX) }
     private val ip6Regex by lazy { Regex(IPv6_REGEX) }
 
+    private val modulesStatus = ModulesStatus.getInstance()
+
+    private val listeners =
+        ConcurrentHashMap<String, WeakReference<OnConnectivityCheckIpsChangedListener>>()
+
     @Volatile
-    private var connectivityCheckTimeToIps = Pair<Long, Set<String>>(0, emptySet())
+    private var connectivityCheckIps: Set<String>? = null
 
-    private val updatingInProgress = AtomicBoolean(false)
+    @Volatile
+    private var refreshJob: Job? = null
 
     fun getConnectivityCheckIps(): Set<String> {
+        val ips = connectivityCheckIps ?: return loadConnectivityCheckIps()
 
-        if (System.currentTimeMillis() - connectivityCheckTimeToIps.first < GET_CONNECTIVITY_CHECK_IPS_TIME_INTERVAL_HRS * 3600 * 1000) {
-            return connectivityCheckTimeToIps.second
+        if (refreshJob?.isActive != true) {
+            startRefreshing()
         }
 
-        val connectivityCheckIps = hashSetOf<String>()
-
-        try {
-            var lines = readDnsCryptCaptivePortalsFile()
+        return ips
+    }
 
-            if (lines.isEmpty()) {
-                createDnsCryptCaptivePortalsFile()
-            }
+    fun <T : OnConnectivityCheckIpsChangedListener> addListener(listener: T) {
+        listeners[listener.javaClass.name] = WeakReference(listener)
+    }
 
-            lines = readDnsCryptCaptivePortalsFile()
+    fun <T : OnConnectivityCheckIpsChangedListener> removeListener(listener: T) {
+        listeners.remove(listener.javaClass.name)
+    }
 
-            if (lines.isEmpty()) {
-                return connectivityCheckIps
-            }
+    @Synchronized
+    private fun loadConnectivityCheckIps(): Set<String> {
 
-            for (line in lines) {
-                if (!line.startsWith("#") && line.contains(GSTATIC_CONNECTIVITY_CHECK_URL)) {
-                    connectivityCheckIps.addAll(
-                        getIpsFromLine(
-                            line,
-                            GSTATIC_CONNECTIVITY_CHECK_URL
-                        )
-                    )
-                } else if (!line.startsWith("#") && line.contains(ANDROID_CONNECTIVITY_CHECK_URL)) {
-                    connectivityCheckIps.addAll(
-                        getIpsFromLine(
-                            line,
-                            ANDROID_CONNECTIVITY_CHECK_URL
-                        )
-                    )
-                }
-            }
+        connectivityCheckIps?.let { return it }
 
-            connectivityCheckTimeToIps = Pair(System.currentTimeMillis(), connectivityCheckIps)
+        val ips = try {
+            getIpsFromLines(readOrCreateDnsCryptCaptivePortalsFile())
         } catch (e: Exception) {
             loge("ConnectivityCheckManager getConnectivityCheckIps", e)
+            emptySet()
         }
 
-        if (updatingInProgress.compareAndSet(false, true)) {
-            coroutineScope.launch { updateCaptivePortalsFile() }
-        }
+        connectivityCheckIps = ips
 
-        return connectivityCheckIps
+        startRefreshing()
+
+        return ips
     }
 
-    private suspend fun updateCaptivePortalsFile() {
-        try {
+    @Synchronized
+    private fun startRefreshing() {
+        if (refreshJob?.isActive != true) {
+            refreshJob = coroutineScope.launch { refreshConnectivityCheckIps() }
+        }
+    }
 
-            val lines = readDnsCryptCaptivePortalsFile()
+    /**
+     * Refreshes the IPs at least once and then keeps them fresh while the modules service is running.
+     */
+    private suspend fun refreshConnectivityCheckIps() {
+        do {
+            val ttlSec = try {
+                updateCaptivePortalsFile()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                loge("ConnectivityCheckManager refreshConnectivityCheckIps", e)
+                0
+            }
 
-            if (lines.isEmpty()) {
-                return
+            val delaySec = if (ttlSec > 0) {
+                (ttlSec * REFRESH_BEFORE_TTL_EXPIRES_FACTOR).toLong()
+                    .coerceIn(REFRESH_MIN_INTERVAL_SEC, REFRESH_MAX_INTERVAL_SEC)
+            } else {
+                REFRESH_RETRY_INTERVAL_SEC
             }
+            delay(delaySec * 1000)
+        } while (ModulesService.serviceIsRunning)
+    }
 
-            val fileNewLines = mutableListOf<String>()
-            for (line in lines) {
-                if (!line.startsWith("#") && line.contains(GSTATIC_CONNECTIVITY_CHECK_URL)) {
-                    getGstaticConnectivityCheckIpsLine(line).also {
-                        fileNewLines.add(it)
-                    }
-                } else if (!line.startsWith("#") && line.contains(ANDROID_CONNECTIVITY_CHECK_URL)) {
-                    getLineAndUpdateAndroidConnectivityCheckIps(line).also {
-                        fileNewLines.add(it)
-                    }
-                } else {
-                    fileNewLines.add(line)
-                }
+    /**
+     * @return minimum TTL of the resolved IPs in seconds or 0 if some host was not resolved.
+     */
+    private suspend fun updateCaptivePortalsFile(): Int {
+
+        val lines = readOrCreateDnsCryptCaptivePortalsFile()
+
+        if (lines.isEmpty()) {
+            return 0
+        }
+
+        var ttlSec = Int.MAX_VALUE
+        val fileNewLines = mutableListOf<String>()
+        for (line in lines) {
+            val url = when {
+                line.startsWith("#") -> null
+                line.contains(GSTATIC_CONNECTIVITY_CHECK_URL) -> GSTATIC_CONNECTIVITY_CHECK_URL
+                line.contains(ANDROID_CONNECTIVITY_CHECK_URL) -> ANDROID_CONNECTIVITY_CHECK_URL
+                else -> null
             }
 
-            if (lines.size != fileNewLines.size || !lines.containsAll(fileNewLines)) {
-                writeDnsCryptCaptivePortalsFile(fileNewLines)
+            if (url == null) {
+                fileNewLines.add(line)
+                continue
             }
 
-        } catch (e: Exception) {
-            loge("ConnectivityCheckManager getIpsAndUpdateCaptivePortalsFile", e)
-        } finally {
-            updatingInProgress.getAndSet(false)
+            val record = resolveIps("https://$url")
+            ttlSec = minOf(ttlSec, record.ttlSeconds)
+            fileNewLines.add(getUpdatedLine(line, url, record.ips))
         }
-    }
 
-    private suspend fun getGstaticConnectivityCheckIpsLine(line: String): String {
+        if (lines.size != fileNewLines.size || !lines.containsAll(fileNewLines)) {
+            writeDnsCryptCaptivePortalsFile(fileNewLines)
+        }
 
-        val ips = resolveIps("https://$GSTATIC_CONNECTIVITY_CHECK_URL")
+        publishConnectivityCheckIps(getIpsFromLines(fileNewLines))
 
-        return when {
+        return if (ttlSec == Int.MAX_VALUE) 0 else ttlSec
+    }
+
+    private fun getUpdatedLine(line: String, url: String, ips: Set<String>): String =
+        when {
             ips.size == 1 -> {
-                val appendedIps = getIpsFromLine(line, GSTATIC_CONNECTIVITY_CHECK_URL)
+                val appendedIps = getIpsFromLine(line, url)
                     .also {
                         it.add(ips.first())
                     }
-                "$GSTATIC_CONNECTIVITY_CHECK_URL   ${appendedIps.joinToString(", ")}"
+                "$url   ${appendedIps.joinToString(", ")}"
             }
             ips.size > 1 -> {
-                "$GSTATIC_CONNECTIVITY_CHECK_URL   ${ips.joinToString(", ")}"
+                "$url   ${ips.joinToString(", ")}"
             }
             else -> {
                 line
             }
         }
-    }
 
-    private suspend fun getLineAndUpdateAndroidConnectivityCheckIps(line: String): String {
+    private fun publishConnectivityCheckIps(ips: Set<String>) {
 
-        val ips = resolveIps("https://$ANDROID_CONNECTIVITY_CHECK_URL")
+        if (ips.isEmpty() || ips == connectivityCheckIps) {
+            return
+        }
 
-        return when {
-            ips.size == 1 -> {
-                val appendedIps =
-                    getIpsFromLine(line, ANDROID_CONNECTIVITY_CHECK_URL)
-                        .also {
-                            it.add(ips.first())
-                        }
+        connectivityCheckIps = ips
 
-                "$ANDROID_CONNECTIVITY_CHECK_URL   ${appendedIps.joinToString(", ")}"
+        logi("ConnectivityCheckManager connectivity check IPs changed")
 
-            }
-            ips.size > 1 -> {
-                "$ANDROID_CONNECTIVITY_CHECK_URL   ${ips.joinToString(", ")}"
-            }
-            else -> {
-                line
-            }
+        listeners.values.forEach {
+            it.get()?.onConnectivityCheckIpsChanged(ips)
+        }
+
+        if (modulesStatus.mode == OperationMode.ROOT_MODE
+            && preferenceRepository.get().getBoolPreference(FIREWALL_ENABLED)
+        ) {
+            modulesStatus.setIptablesRulesUpdateRequested(context, true)
+        }
+    }
+
+    private fun readOrCreateDnsCryptCaptivePortalsFile(): List<String> {
+        val lines = readDnsCryptCaptivePortalsFile()
+
+        if (lines.isNotEmpty()) {
+            return lines
         }
+
+        createDnsCryptCaptivePortalsFile()
+
+        return readDnsCryptCaptivePortalsFile()
     }
 
     private fun readDnsCryptCaptivePortalsFile() =
@@ -234,20 +287,34 @@ class ConnectivityCheckManager @Inject constructor(
             .filter { it.matches(ip4Regex) || it.matches(ip6Regex) }
             .toHashSet()
 
+    private fun getIpsFromLines(lines: List<String>): Set<String> {
+        val ips = hashSetOf<String>()
+        for (line in lines) {
+            if (!line.startsWith("#") && line.contains(GSTATIC_CONNECTIVITY_CHECK_URL)) {
+                ips.addAll(getIpsFromLine(line, GSTATIC_CONNECTIVITY_CHECK_URL))
+            } else if (!line.startsWith("#") && line.contains(ANDROID_CONNECTIVITY_CHECK_URL)) {
+                ips.addAll(getIpsFromLine(line, ANDROID_CONNECTIVITY_CHECK_URL))
+            }
+        }
+        return ips
+    }
+
     private suspend fun resolveIps(
         url: String,
         attempt: Int = 0
-    ): Set<String> = try {
+    ): DomainIpsRecord = try {
         if (attempt < ATTEMPTS_RESOLVE_DOMAIN) {
             if (attempt > 0) {
                 delay(attempt * 1000L)
             }
-            dnsInteractor.resolveDomain(url, RESOLVE_TIMEOUT_SEC)
+            runInterruptible { dnsInteractor.resolveDomainWithTtl(url, RESOLVE_TIMEOUT_SEC) }
         } else {
-            emptySet()
+            DomainIpsRecord(emptySet(), 0)
         }
+    } catch (e: CancellationException) {
+        throw e
     } catch (e: Exception) {
-        loge("IptablesFirewall resolveIps $url attempt:${attempt + 1}", e)
+        loge("ConnectivityCheckManager resolveIps $url attempt:${attempt + 1}", e)
         resolveIps(url, attempt + 1)
     }
 
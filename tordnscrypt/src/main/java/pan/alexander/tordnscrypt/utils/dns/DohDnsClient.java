@@ -0,0 +1,497 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.utils.dns;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * DNS over HTTPS client that keeps a small pool of persistent HTTP/1.1 connections per upstream.
+ * Concurrent queries are spread over up to MAX_CONNECTIONS_PER_UPSTREAM connections,
+ * further queries wait for a connection to become free, so TCP and TLS handshakes
+ * are paid only when the pool grows or the server closes an idle connection.
+ * Both POST and GET (RFC 8484) requests are supported, plain http URLs are accepted as well.
+ */
+@Singleton
+public final class DohDnsClient {
+
+    public enum Method {
+        GET,
+        POST
+    }
+
+    private static final int MAX_CONNECTIONS_PER_UPSTREAM = 4;
+    private static final long IDLE_CONNECTION_TIMEOUT_MS = 30_000;
+    private static final int MAX_RESPONSE_SIZE = 65535;
+    private static final int MAX_HEADER_LINE_LENGTH = 8192;
+    private static final int MESSAGE_ID_COUNT = 0x10000;
+    private static final String DNS_MESSAGE_TYPE = "application/dns-message";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] BASE64_URL_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final Random random = new SecureRandom();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+
+    //Guarded by itself
+    private final Map<String, Upstream> upstreams = new HashMap<>();
+
+    @Inject
+    public DohDnsClient() {
+    }
+
+    DnsResponse query(String server, String host, int recordType, int timeoutSec, Method method)
+            throws IOException {
+
+        Upstream upstream = getUpstream(server);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSec);
+
+        //Message ID 0 keeps GET responses cacheable by HTTP caches
+        short messageId = method == Method.GET ? 0 : (short) random.nextInt(MESSAGE_ID_COUNT);
+        DnsRequest request = new DnsRequest(messageId, recordType, host);
+        byte[] requestData = request.toDnsQuestionData();
+
+        byte[] responseData;
+        while (true) {
+            Connection connection = upstream.acquire(deadline);
+            try {
+                responseData = connection.exchange(upstream, method, requestData, deadline);
+                upstream.release(connection);
+                break;
+            } catch (ErrorResponseException e) {
+                //The error body is read, so the connection stays usable
+                upstream.release(connection);
+                throw e;
+            } catch (IOException e) {
+                upstream.discard(connection);
+                //The server may close an idle connection at any time, retry on a new one
+                if (!connection.reused || e instanceof SocketTimeoutException
+                        || System.nanoTime() >= deadline) {
+                    throw e;
+                }
+            }
+        }
+
+        if (responseData == null) {
+            return null;
+        }
+        return new DnsResponse(server, Record.Source.Doh, request, responseData);
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    public void closeIdleConnections() {
+        synchronized (upstreams) {
+            for (Upstream upstream : upstreams.values()) {
+                upstream.closeIdleConnections(0);
+            }
+        }
+    }
+
+    private Upstream getUpstream(String server) throws MalformedURLException {
+        synchronized (upstreams) {
+            Upstream upstream = upstreams.get(server);
+            if (upstream == null) {
+                upstream = new Upstream(new URL(server));
+                upstreams.put(server, upstream);
+            }
+            return upstream;
+        }
+    }
+
+    private final class Upstream {
+        private final boolean tls;
+        private final String host;
+        private final int port;
+        private final String authority;
+        private final String path;
+
+        //Guarded by this
+        private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();
+        private int connectionsCount;
+
+        private Upstream(URL url) throws MalformedURLException {
+            String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+            if (!protocol.equals("https") && !protocol.equals("http")) {
+                throw new MalformedURLException("DohDnsClient unsupported protocol " + url);
+            }
+            this.tls = protocol.equals("https");
+            this.host = url.getHost();
+            this.port = url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+            this.authority = url.getPort() > 0 ? host + ":" + port : host;
+            this.path = url.getFile().isEmpty() ? "/" : url.getFile();
+        }
+
+        private Connection acquire(long deadline) throws IOException {
+            synchronized (this) {
+                while (true) {
+                    closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MS);
+
+                    Connection connection = idleConnections.pollFirst();
+                    if (connection != null) {
+                        connection.reused = true;
+                        connectionsReused.incrementAndGet();
+                        return connection;
+                    } else if (connectionsCount < MAX_CONNECTIONS_PER_UPSTREAM) {
+                        connectionsCount++;
+                        break;
+                    }
+
+                    long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMs <= 0) {
+                        throw new SocketTimeoutException("DohDnsClient no free connection to " + authority);
+                    }
+                    try {
+                        wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("DohDnsClient query interrupted");
+                    }
+                }
+            }
+
+            try {
+                Connection connection = new Connection(connect(deadline));
+                connectionsOpened.incrementAndGet();
+                return connection;
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    connectionsCount--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        private synchronized void release(Connection connection) {
+            if (connection.keepAlive) {
+                connection.idleSince = System.nanoTime();
+                idleConnections.addFirst(connection);
+            } else {
+                connection.close();
+                connectionsCount--;
+            }
+            notifyAll();
+        }
+
+        private synchronized void discard(Connection connection) {
+            connection.close();
+            connectionsCount--;
+            notifyAll();
+        }
+
+        private synchronized void closeIdleConnections(long idleTimeoutMs) {
+            long now = System.nanoTime();
+            Iterator<Connection> iterator = idleConnections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (now - connection.idleSince >= TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs)) {
+                    iterator.remove();
+                    connection.close();
+                    connectionsCount--;
+                }
+            }
+        }
+
+        private Socket connect(long deadline) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), remainingMillis(deadline));
+                if (!tls) {
+                    return socket;
+                }
+
+                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+                sslSocket.setSoTimeout(remainingMillis(deadline));
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                    sslSocket.close();
+                    throw new IOException("DohDnsClient hostname " + host + " not verified");
+                }
+                return sslSocket;
+            } catch (IOException | RuntimeException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private boolean reused;
+        private boolean keepAlive;
+        private long idleSince;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.inputStream = new BufferedInputStream(socket.getInputStream());
+            this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        //Returns null if the response is too large, throws ErrorResponseException if it is not a DNS message
+        private byte[] exchange(Upstream upstream, Method method, byte[] requestData, long deadline)
+                throws IOException {
+
+            socket.setSoTimeout(remainingMillis(deadline));
+
+            StringBuilder request = new StringBuilder(256);
+            if (method == Method.GET) {
+                String dns = encodeBase64Url(requestData);
+                request.append("GET ").append(upstream.path)
+                        .append(upstream.path.indexOf('?') < 0 ? '?' : '&')
+                        .append("dns=").append(dns).append(" HTTP/1.1\r\n");
+            } else {
+                request.append("POST ").append(upstream.path).append(" HTTP/1.1\r\n")
+                        .append("Content-Type: ").append(DNS_MESSAGE_TYPE).append("\r\n")
+                        .append("Content-Length: ").append(requestData.length).append("\r\n");
+            }
+            request.append("Host: ").append(upstream.authority).append("\r\n")
+                    .append("Accept: ").append(DNS_MESSAGE_TYPE).append("\r\n")
+                    .append("\r\n");
+
+            outputStream.write(request.toString().getBytes(ASCII));
+            if (method == Method.POST) {
+                outputStream.write(requestData);
+            }
+            outputStream.flush();
+
+            return readResponse();
+        }
+
+        private byte[] readResponse() throws IOException {
+            String statusLine = readLine();
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                throw new IOException("DohDnsClient wrong status line " + statusLine);
+            }
+
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("DohDnsClient wrong status line " + statusLine);
+            }
+
+            keepAlive = status[0].equals("HTTP/1.1");
+            long contentLength = -1;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+                switch (name) {
+                    case "content-length":
+                        try {
+                            contentLength = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("DohDnsClient wrong content length " + value);
+                        }
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.contains("chunked");
+                        break;
+                    case "connection":
+                        if (value.contains("close")) {
+                            keepAlive = false;
+                        } else if (value.contains("keep-alive")) {
+                            keepAlive = true;
+                        }
+                        break;
+                }
+            }
+
+            byte[] body;
+            if (chunked) {
+                body = readChunkedBody();
+            } else if (contentLength >= 0) {
+                if (contentLength > MAX_RESPONSE_SIZE) {
+                    keepAlive = false;
+                    return null;
+                }
+                body = readFully((int) contentLength);
+            } else {
+                //The body ends when the server closes the connection
+                keepAlive = false;
+                body = readUntilClosed();
+            }
+
+            if (statusCode != 200 || body.length == 0) {
+                throw new ErrorResponseException("DohDnsClient server responded " + statusLine);
+            }
+            return body;
+        }
+
+        private byte[] readChunkedBody() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String line = readLine();
+                int extension = line.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("DohDnsClient wrong chunk size " + line);
+                }
+
+                if (size == 0) {
+                    //Trailers
+                    while (!readLine().isEmpty()) {
+                    }
+                    return body.toByteArray();
+                } else if (size < 0 || body.size() + size > MAX_RESPONSE_SIZE) {
+                    throw new IOException("DohDnsClient response too large");
+                }
+
+                body.write(readFully(size));
+                readLine();
+            }
+        }
+
+        private byte[] readUntilClosed() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_RESPONSE_SIZE) {
+                    throw new IOException("DohDnsClient response too large");
+                }
+            }
+            return body.toByteArray();
+        }
+
+        private byte[] readFully(int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int read = inputStream.read(data, offset, length - offset);
+                if (read == -1) {
+                    throw new EOFException("DohDnsClient unexpected end of response");
+                }
+                offset += read;
+            }
+            return data;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = inputStream.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException("DohDnsClient connection closed");
+                } else if (line.length() > MAX_HEADER_LINE_LENGTH) {
+                    throw new IOException("DohDnsClient header line too long");
+                } else if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logw("DohDnsClient close connection", e);
+            }
+        }
+    }
+
+    private static final class ErrorResponseException extends IOException {
+        private ErrorResponseException(String message) {
+            super(message);
+        }
+    }
+
+    //Base64url without padding, as RFC 8484 requires for the dns parameter
+    static String encodeBase64Url(byte[] data) {
+        StringBuilder result = new StringBuilder((data.length * 4 + 2) / 3);
+        for (int i = 0; i < data.length; i += 3) {
+            int bytes = Math.min(data.length - i, 3);
+            int chunk = (data[i] & 0xFF) << 16;
+            if (bytes > 1) {
+                chunk |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (bytes > 2) {
+                chunk |= data[i + 2] & 0xFF;
+            }
+            for (int j = 0; j <= bytes; j++) {
+                result.append(BASE64_URL_ALPHABET[(chunk >> (18 - 6 * j)) & 0x3F]);
+            }
+        }
+        return result.toString();
+    }
+
+    private static int remainingMillis(long deadline) throws SocketTimeoutException {
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMs <= 0) {
+            throw new SocketTimeoutException("DohDnsClient timeout");
+        }
+        return (int) Math.min(remainingMs, Integer.MAX_VALUE);
+    }
+}
@@ -19,65 +19,30 @@
 
 package pan.alexander.tordnscrypt.utils.dns;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-import javax.net.ssl.HttpsURLConnection;
 
 import dagger.assisted.Assisted;
 import dagger.assisted.AssistedInject;
 
 public class DohResolver extends DnsResolver {
+    private final DohDnsClient dohDnsClient;
+    private final DohDnsClient.Method method;
 
     @AssistedInject
     public DohResolver(
+            DohDnsClient dohDnsClient,
             @Assisted String server,
             @Assisted("type") int type,
-            @Assisted("timeout") int timeout
+            @Assisted("timeout") int timeout,
+            @Assisted DohDnsClient.Method method
     ) {
         super(server, type, timeout);
+        this.dohDnsClient = dohDnsClient;
+        this.method = method;
     }
 
     @Override
     DnsResponse request(String server, String host, int recordType) throws IOException {
-        double d = Math.random();
-        short messageId = (short) (d * 0xFFFF);
-        DnsRequest request = new DnsRequest(messageId, recordType, host);
-        byte[] requestData = request.toDnsQuestionData();
-
-        HttpsURLConnection httpConn = (HttpsURLConnection) new URL(server).openConnection();
-        httpConn.setConnectTimeout(timeout * 1000);
-        httpConn.setReadTimeout(timeout * 1000);
-        httpConn.setDoOutput(true);
-        httpConn.setRequestMethod("POST");
-        httpConn.setRequestProperty("Content-Type", "application/dns-message");
-        httpConn.setRequestProperty("Accept", "application/dns-message");
-        httpConn.setRequestProperty("Accept-Encoding", "");
-
-        DataOutputStream bodyStream = new DataOutputStream(httpConn.getOutputStream());
-        bodyStream.write(requestData);
-        bodyStream.close();
-
-        int responseCode = httpConn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            return null;
-        }
-
-        int length = httpConn.getContentLength();
-        if (length <= 0 || length > 1024 * 1024) {
-            return null;
-        }
-        InputStream is = httpConn.getInputStream();
-        byte[] responseData = new byte[length];
-        int read = is.read(responseData);
-        is.close();
-        if (read <= 0) {
-            return null;
-        }
-
-        return new DnsResponse(server, Record.Source.Doh, request, responseData);
+        return dohDnsClient.query(server, host, recordType, timeout, method);
     }
 }
@@ -0,0 +1,402 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.utils.dns;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * DNS over UDP client that keeps one non-blocking channel per upstream server.
+ * Responses are matched to outstanding queries by message ID, so any number of threads
+ * can wait for answers sent over the same socket. A single selector thread reads all channels
+ * and exits when the client has been idle for a while.
+ * Queries are retransmitted with exponential backoff until the timeout expires,
+ * answers are cached until the first of their records expires.
+ */
+@Singleton
+public final class UdpDnsClient {
+
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    private static final int MESSAGE_HEADER_SIZE = 12;
+    private static final int MESSAGE_ID_COUNT = 0x10000;
+    private static final long RETRANSMIT_INITIAL_MS = 500;
+    private static final long SELECT_TIMEOUT_MS = 10_000;
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final int CACHE_SIZE = 256;
+    private static final int NEGATIVE_TTL_SEC = 60;
+    private static final int RCODE_NO_ERROR = 0;
+    private static final int RCODE_NAME_ERROR = 3;
+
+    private final Random random = new SecureRandom();
+
+    //Guarded by this
+    private final Map<String, Upstream> upstreams = new HashMap<>();
+    private Selector selector;
+    private long lastQueryTime;
+
+    private final ConcurrentLinkedQueue<Upstream> upstreamsToRegister = new ConcurrentLinkedQueue<>();
+
+    //Guarded by itself
+    private final Map<String, CachedResponse> cache =
+            new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    @Inject
+    public UdpDnsClient() {
+    }
+
+    DnsResponse query(String server, int port, String host, int recordType, int timeoutSec)
+            throws IOException {
+
+        String cacheKey = server + "#" + port + "/" + recordType + "/" + host.toLowerCase(Locale.ROOT);
+        DnsResponse cachedResponse = getCachedResponse(cacheKey);
+        if (cachedResponse != null) {
+            return cachedResponse;
+        }
+
+        Upstream upstream = getUpstream(server, port);
+        PendingQuery query = upstream.newQuery(random, recordType, host);
+        try {
+            ByteBuffer requestData = ByteBuffer.wrap(query.request.toDnsQuestionData());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSec);
+            long retransmitMs = RETRANSMIT_INITIAL_MS;
+
+            while (true) {
+                requestData.rewind();
+                upstream.channel.write(requestData);
+
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    throw new SocketTimeoutException("UdpDnsClient " + host + " timeout");
+                }
+
+                DnsResponse response = query.await(Math.min(retransmitMs, remainingMs));
+                if (response != null) {
+                    putToCache(cacheKey, response);
+                    return response;
+                }
+
+                retransmitMs *= 2;
+            }
+        } finally {
+            upstream.pendingQueries.remove(query.id, query);
+        }
+    }
+
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private DnsResponse getCachedResponse(String key) {
+        synchronized (cache) {
+            CachedResponse cachedResponse = cache.get(key);
+            if (cachedResponse == null) {
+                return null;
+            } else if (cachedResponse.expiresAt < System.currentTimeMillis() / 1000) {
+                cache.remove(key);
+                return null;
+            }
+            return cachedResponse.response;
+        }
+    }
+
+    private void putToCache(String key, DnsResponse response) {
+        long expiresAt;
+        List<Record> answers = response.getAnswerArray();
+        if (response.getRCode() != RCODE_NO_ERROR && response.getRCode() != RCODE_NAME_ERROR) {
+            return;
+        } else if (answers == null || answers.isEmpty()) {
+            expiresAt = System.currentTimeMillis() / 1000 + NEGATIVE_TTL_SEC;
+        } else {
+            expiresAt = Long.MAX_VALUE;
+            for (Record record : answers) {
+                if (record.ttl != Record.TTL_Forever) {
+                    expiresAt = Math.min(expiresAt, record.timeStamp + record.ttl);
+                }
+            }
+        }
+
+        synchronized (cache) {
+            cache.put(key, new CachedResponse(response, expiresAt));
+        }
+    }
+
+    private synchronized Upstream getUpstream(String server, int port) throws IOException {
+        lastQueryTime = System.nanoTime();
+
+        String key = server + "#" + port;
+        Upstream upstream = upstreams.get(key);
+        if (upstream != null) {
+            return upstream;
+        }
+
+        if (selector == null) {
+            selector = Selector.open();
+            Selector threadSelector = selector;
+            Thread thread = new Thread(() -> selectLoop(threadSelector), "UdpDnsClient");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(server, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        upstream = new Upstream(server, channel);
+        upstreams.put(key, upstream);
+        upstreamsToRegister.add(upstream);
+        selector.wakeup();
+
+        return upstream;
+    }
+
+    private void selectLoop(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Upstream upstream;
+                while ((upstream = upstreamsToRegister.poll()) != null) {
+                    upstream.channel.register(selector, SelectionKey.OP_READ, upstream);
+                }
+
+                selector.select(SELECT_TIMEOUT_MS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        readResponses((Upstream) key.attachment(), buffer);
+                    }
+                }
+
+                if (stopIfIdle(selector)) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            loge("UdpDnsClient selectLoop", e);
+        }
+        stop(selector);
+    }
+
+    private void readResponses(Upstream upstream, ByteBuffer buffer) {
+        while (true) {
+            buffer.clear();
+            int length;
+            try {
+                length = upstream.channel.read(buffer);
+            } catch (PortUnreachableException e) {
+                upstream.failPendingQueries(e);
+                return;
+            } catch (IOException e) {
+                logw("UdpDnsClient read from " + upstream.server, e);
+                upstream.failPendingQueries(e);
+                closeUpstream(upstream);
+                return;
+            }
+
+            if (length <= 0) {
+                return;
+            } else if (length < MESSAGE_HEADER_SIZE) {
+                continue;
+            }
+
+            int id = (buffer.get(0) & 0xFF) << 8 | (buffer.get(1) & 0xFF);
+            PendingQuery query = upstream.pendingQueries.get(id);
+            if (query == null) {
+                //Late answer to a retransmitted or timed out query
+                continue;
+            }
+
+            try {
+                byte[] data = Arrays.copyOf(buffer.array(), length);
+                query.complete(new DnsResponse(upstream.server, Record.Source.Udp, query.request, data));
+            } catch (IOException e) {
+                logw("UdpDnsClient malformed response from " + upstream.server, e);
+            }
+        }
+    }
+
+    private synchronized boolean stopIfIdle(Selector selector) {
+        if (System.nanoTime() - lastQueryTime < TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS)) {
+            return false;
+        }
+
+        for (Upstream upstream : upstreams.values()) {
+            if (!upstream.pendingQueries.isEmpty()) {
+                return false;
+            }
+        }
+
+        stop(selector);
+        return true;
+    }
+
+    private synchronized void stop(Selector selector) {
+        if (this.selector != selector) {
+            return;
+        }
+
+        for (Upstream upstream : upstreams.values()) {
+            upstream.failPendingQueries(new IOException("UdpDnsClient stopped"));
+            closeChannel(upstream.channel);
+        }
+        upstreams.clear();
+        upstreamsToRegister.clear();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logw("UdpDnsClient close selector", e);
+        }
+        this.selector = null;
+    }
+
+    private synchronized void closeUpstream(Upstream upstream) {
+        upstreams.values().remove(upstream);
+        closeChannel(upstream.channel);
+    }
+
+    private void closeChannel(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logw("UdpDnsClient close channel", e);
+        }
+    }
+
+    private static final class Upstream {
+        private final String server;
+        private final DatagramChannel channel;
+        private final ConcurrentHashMap<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+
+        private Upstream(String server, DatagramChannel channel) {
+            this.server = server;
+            this.channel = channel;
+        }
+
+        private PendingQuery newQuery(Random random, int recordType, String host) throws IOException {
+            if (pendingQueries.size() >= MESSAGE_ID_COUNT / 2) {
+                throw new IOException("UdpDnsClient too many pending queries to " + server);
+            }
+
+            while (true) {
+                int id = random.nextInt(MESSAGE_ID_COUNT);
+                PendingQuery query = new PendingQuery(id, new DnsRequest((short) id, recordType, host));
+                if (pendingQueries.putIfAbsent(id, query) == null) {
+                    return query;
+                }
+            }
+        }
+
+        private void failPendingQueries(IOException e) {
+            for (PendingQuery query : pendingQueries.values()) {
+                query.fail(e);
+            }
+        }
+    }
+
+    private static final class PendingQuery {
+        private final int id;
+        private final DnsRequest request;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile DnsResponse response;
+        private volatile IOException error;
+
+        private PendingQuery(int id, DnsRequest request) {
+            this.id = id;
+            this.request = request;
+        }
+
+        private void complete(DnsResponse response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        private void fail(IOException error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        //Returns null if there is no answer yet
+        private DnsResponse await(long timeoutMs) throws IOException {
+            try {
+                latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("UdpDnsClient query interrupted");
+            }
+
+            IOException error = this.error;
+            if (response == null && error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+
+    private static final class CachedResponse {
+        private final DnsResponse response;
+        private final long expiresAt;
+
+        private CachedResponse(DnsResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
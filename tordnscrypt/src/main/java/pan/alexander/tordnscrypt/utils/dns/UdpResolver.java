@@ -20,18 +20,17 @@
 package pan.alexander.tordnscrypt.utils.dns;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 
 import dagger.assisted.Assisted;
 import dagger.assisted.AssistedInject;
 
 public class UdpResolver extends DnsResolver {
     private final int dnsUdpPort;
+    private final UdpDnsClient udpDnsClient;
 
     @AssistedInject
     public UdpResolver(
+            UdpDnsClient udpDnsClient,
             @Assisted String serverIP,
             @Assisted("port") int dnsUdpPort,
             @Assisted("type") int type,
@@ -39,24 +38,11 @@ public class UdpResolver extends DnsResolver {
     ) {
         super(serverIP, type, timeout);
         this.dnsUdpPort = dnsUdpPort;
+        this.udpDnsClient = udpDnsClient;
     }
 
     @Override
     DnsResponse request(String server, String host, int recordType) throws IOException {
-        double d = Math.random();
-        short messageId = (short) (d * 0xFFFF);
-        DnsRequest request = new DnsRequest(messageId, recordType, host);
-        byte[] requestData = request.toDnsQuestionData();
-
-        InetAddress address = InetAddress.getByName(server);
-        try (DatagramSocket socket = new DatagramSocket()) {
-            DatagramPacket packet = new DatagramPacket(requestData, requestData.length,
-                    address, dnsUdpPort);
-            socket.setSoTimeout(timeout * 1000);
-            socket.send(packet);
-            packet = new DatagramPacket(new byte[1500], 1500);
-            socket.receive(packet);
-            return new DnsResponse(server, Record.Source.Udp, request, packet.getData());
-        }
+        return udpDnsClient.query(server, dnsUdpPort, host, recordType, timeout);
     }
 }
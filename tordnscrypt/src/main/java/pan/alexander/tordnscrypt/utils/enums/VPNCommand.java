@@ -25,5 +25,6 @@ import androidx.annotation.Keep;
 public enum VPNCommand {
     START,
     RELOAD,
-    STOP
+    STOP,
+    UPDATE_TOR_IPS
 }
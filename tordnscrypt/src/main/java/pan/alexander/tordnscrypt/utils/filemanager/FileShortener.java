@@ -21,18 +21,33 @@ package pan.alexander.tordnscrypt.utils.filemanager;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static pan.alexander.tordnscrypt.utils.root.RootExecService.LOG_TAG;
 
+/**
+ * Keeps module logs below a size limit by moving their last part to the beginning of the file.
+ * Data is moved inside the file with FileChannel.transferTo in small chunks, starting at a line boundary,
+ * and lines appended by the module meanwhile are moved too.
+ */
 public class FileShortener {
     private final static long TOO_TOO_LONG_FILE_LENGTH = 1024 * 500;
     private final static long TOO_TOO_LONG_FILE_LENGTH_HYSTERESIS = 1024 * 100;
+    private final static int TRANSFER_CHUNK_SIZE = 64 * 1024;
+    private final static int LINE_SEARCH_BUFFER_SIZE = 1024;
+    private final static int MAX_LINE_SEARCH_LENGTH = 32 * 1024;
+
+    //Bytes removed from the beginning of files, so that readers can correct their offsets
+    private final static Map<String, Long> removedBytes = new ConcurrentHashMap<>();
 
-    public static void shortenTooTooLongFile(String filePath) {
+    public static synchronized void shortenTooTooLongFile(String filePath) {
         File file = new File(filePath);
         if (!file.exists())
             return;
@@ -41,25 +56,74 @@ public class FileShortener {
 
         if (fileLength > TOO_TOO_LONG_FILE_LENGTH) {
 
-            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try {
+                long removed = compact(file, fileLength - (TOO_TOO_LONG_FILE_LENGTH - TOO_TOO_LONG_FILE_LENGTH_HYSTERESIS));
+                if (removed > 0) {
+                    removedBytes.put(filePath, getRemovedBytes(filePath) + removed);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to rewrite too too long file" + filePath + e.getMessage() + " " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return total number of bytes removed from the beginning of the file by this process.
+     */
+    public static long getRemovedBytes(String filePath) {
+        Long removed = removedBytes.get(filePath);
+        return removed == null ? 0 : removed;
+    }
+
+    private static long compact(File file, long keepFrom) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileInputStream inputStream = new FileInputStream(file)) {
 
-                randomAccessFile.seek(fileLength - (TOO_TOO_LONG_FILE_LENGTH - TOO_TOO_LONG_FILE_LENGTH_HYSTERESIS));
+            FileChannel target = randomAccessFile.getChannel();
+            FileChannel source = inputStream.getChannel();
 
-                byte[] buffer = new byte[1024];
-                int len;
-                while ((len = randomAccessFile.read(buffer)) != -1) {
-                    baos.write(buffer, 0, len);
+            long start = findNextLineStart(source, keepFrom);
+            if (start <= 0) {
+                return 0;
+            }
+
+            //A chunk never exceeds the distance between source and target,
+            //so the data is always read before it is overwritten
+            long chunkSize = Math.min(TRANSFER_CHUNK_SIZE, start);
+            long written = 0;
+            long end;
+            while ((end = source.size()) > start + written) {
+                long count = Math.min(chunkSize, end - start - written);
+                long transferred = source.transferTo(start + written, count, target.position(written));
+                if (transferred <= 0) {
+                    break;
                 }
-                baos.flush();
+                written += transferred;
+            }
 
-                randomAccessFile.seek(0);
-                randomAccessFile.write(baos.toByteArray());
-                randomAccessFile.setLength(baos.size());
+            target.truncate(written);
 
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Unable to rewrite too too long file" + filePath + e.getMessage() + " " + e.getCause());
+            return start;
+        }
+    }
+
+    private static long findNextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LINE_SEARCH_BUFFER_SIZE);
+        long current = position;
+        int read;
+        while (current - position < MAX_LINE_SEARCH_LENGTH
+                && (read = channel.read(buffer, current)) > 0) {
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    return current + i + 1;
+                }
             }
+            current += read;
+            buffer.clear();
         }
+
+        //Not a text file
+        return position;
     }
 }
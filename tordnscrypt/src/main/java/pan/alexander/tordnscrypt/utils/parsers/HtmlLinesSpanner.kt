@@ -0,0 +1,74 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.utils.parsers
+
+import android.os.Build
+import android.text.Html
+import android.text.SpannableStringBuilder
+import android.text.Spanned
+
+private const val LINES_SEPARATOR = "<br />"
+
+/**
+ * Converts log lines that are formatted as html and joined with <br /> into Spanned.
+ * Spanned lines are kept until the next call, so Html.fromHtml
+ * runs only for lines that were appended to the log since then.
+ * Each log view should use its own instance.
+ */
+class HtmlLinesSpanner {
+
+    private var spannedLinesCache = HashMap<String, Spanned>()
+
+    @Synchronized
+    fun toSpanned(html: String): Spanned {
+        val lines = html.split(LINES_SEPARATOR)
+        val spannedLines = HashMap<String, Spanned>(lines.size * 2)
+        val result = SpannableStringBuilder()
+
+        lines.forEachIndexed { index, line ->
+            val spannedLine = spannedLines[line]
+                ?: spannedLinesCache[line]
+                ?: fromHtml(line)
+            spannedLines[line] = spannedLine
+
+            if (index > 0) {
+                result.append('\n')
+            }
+            result.append(spannedLine)
+        }
+
+        spannedLinesCache = spannedLines
+
+        return result
+    }
+
+    @Synchronized
+    fun clear() {
+        spannedLinesCache = HashMap()
+    }
+
+    @Suppress("DEPRECATION")
+    private fun fromHtml(line: String): Spanned =
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Html.fromHtml(line, Html.FROM_HTML_MODE_LEGACY)
+        } else {
+            Html.fromHtml(line)
+        }
+}
@@ -23,22 +23,24 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
 
+import androidx.annotation.Nullable;
 import androidx.preference.PreferenceManager;
 
 import android.os.Handler;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import dagger.Lazy;
 import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor;
+import pan.alexander.tordnscrypt.domain.dns_resolver.DnsResolveResult;
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.executors.CachedExecutor;
@@ -56,7 +58,8 @@ import javax.inject.Inject;
 
 public class TorRefreshIPsWork {
 
-    private final static long DELAY_ERROR_RETRY_MSEC = 500;
+    //Last resolved IPs of each host, used when the host cannot be resolved
+    private static final Map<String, Set<String>> resolvedHostsIPs = new ConcurrentHashMap<>();
 
     @Inject
     public Lazy<PreferenceRepository> preferenceRepository;
@@ -106,18 +109,17 @@ public class TorRefreshIPsWork {
         boolean routeAllThroughTorDevice = shPref.getBoolean(ALL_THROUGH_TOR, true);
         boolean routeAllThroughTorTether = shPref.getBoolean("pref_common_tor_route_all", false);
 
-        boolean settingsChanged = false;
+        IpsDelta deviceDelta = updateDeviceData(routeAllThroughTorDevice);
 
-        if (updateDeviceData(routeAllThroughTorDevice)) {
-            settingsChanged = true;
+        IpsDelta tetherDelta = null;
+        if (torTethering) {
+            tetherDelta = updateTetheringData(routeAllThroughTorTether);
         }
 
-        if (torTethering && updateTetheringData(routeAllThroughTorTether)) {
-            settingsChanged = true;
-        }
-
-        if (settingsChanged) {
+        if (tetherDelta != null) {
             ModulesStatus.getInstance().setIptablesRulesUpdateRequested(context, true);
+        } else if (deviceDelta != null) {
+            ModulesStatus.getInstance().requestTorIpsUpdate(context, deviceDelta.added, deviceDelta.removed);
         }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && getIPsJobService != null) {
@@ -127,7 +129,8 @@ public class TorRefreshIPsWork {
     }
 
 
-    private boolean updateDeviceData(boolean routeAllThroughTorDevice) {
+    @Nullable
+    private IpsDelta updateDeviceData(boolean routeAllThroughTorDevice) {
         PreferenceRepository preferences = preferenceRepository.get();
         Set<String> setUnlockHostsDevice;
         Set<String> setUnlockIPsDevice;
@@ -140,27 +143,18 @@ public class TorRefreshIPsWork {
         }
 
         if (setUnlockHostsDevice.isEmpty() && setUnlockIPsDevice.isEmpty()) {
-            return false;
-        }
-
-        boolean settingsChanged;
-
-        Set<String> unlockIPsReadyDevice = universalGetIPs(setUnlockHostsDevice, setUnlockIPsDevice);
-
-        if (unlockIPsReadyDevice.isEmpty()) {
-            return false;
+            return null;
         }
 
         if (!routeAllThroughTorDevice) {
-            settingsChanged = saveSettings(unlockIPsReadyDevice, IPS_TO_UNLOCK);
+            return updateSettings(setUnlockHostsDevice, setUnlockIPsDevice, IPS_TO_UNLOCK);
         } else {
-            settingsChanged = saveSettings(unlockIPsReadyDevice, IPS_FOR_CLEARNET);
+            return updateSettings(setUnlockHostsDevice, setUnlockIPsDevice, IPS_FOR_CLEARNET);
         }
-
-        return settingsChanged;
     }
 
-    private boolean updateTetheringData(boolean routeAllThroughTorTether) {
+    @Nullable
+    private IpsDelta updateTetheringData(boolean routeAllThroughTorTether) {
         PreferenceRepository preferences = preferenceRepository.get();
         Set<String> setUnlockHostsTether;
         Set<String> setUnlockIPsTether;
@@ -173,85 +167,132 @@ public class TorRefreshIPsWork {
         }
 
         if (setUnlockHostsTether.isEmpty() && setUnlockIPsTether.isEmpty()) {
-            return false;
+            return null;
         }
 
-        boolean settingsChanged;
+        if (!routeAllThroughTorTether) {
+            return updateSettings(setUnlockHostsTether, setUnlockIPsTether, IPS_TO_UNLOCK_TETHER);
+        } else {
+            return updateSettings(setUnlockHostsTether, setUnlockIPsTether, IPS_FOR_CLEARNET_TETHER);
+        }
+    }
 
-        Set<String> unlockIPsReadyTether = universalGetIPs(setUnlockHostsTether, setUnlockIPsTether);
+    /**
+     * Saves IPs only if they differ from the saved ones.
+     * @return added and removed IPs or null if nothing changed.
+     */
+    @Nullable
+    private IpsDelta updateSettings(Set<String> hosts, Set<String> ips, String settingsKey) {
+        Set<String> savedIPs = preferenceRepository.get().getStringSetPreference(settingsKey);
 
-        if (unlockIPsReadyTether.isEmpty()) {
-            return false;
+        Set<String> ipsReady = new HashSet<>();
+        boolean complete = universalGetIPs(hosts, ips, ipsReady);
+
+        if (ipsReady.isEmpty()) {
+            return null;
         }
 
-        if (!routeAllThroughTorTether) {
-            settingsChanged = saveSettings(unlockIPsReadyTether, IPS_TO_UNLOCK_TETHER);
-        } else {
-            settingsChanged = saveSettings(unlockIPsReadyTether, IPS_FOR_CLEARNET_TETHER);
+        Set<String> added = new HashSet<>(ipsReady);
+        added.removeAll(savedIPs);
+
+        //IPs of hosts that were not resolved are unknown, so saved IPs are not removed
+        Set<String> removed = new HashSet<>();
+        if (complete) {
+            removed.addAll(savedIPs);
+            removed.removeAll(ipsReady);
         }
 
-        return settingsChanged;
-    }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
 
-    private Set<String> universalGetIPs(Set<String> hosts, Set<String> ips) {
+        Set<String> newIPs = new HashSet<>(savedIPs);
+        newIPs.removeAll(removed);
+        newIPs.addAll(added);
+        preferenceRepository.get().setStringSetPreference(settingsKey, newIPs);
 
+        Log.i(LOG_TAG, "TorRefreshIPsWork " + settingsKey + " added " + added.size()
+                + " removed " + removed.size() + " IPs");
 
-        Set<String> unlockIPsPrepared = new HashSet<>();
-        Set<String> IPsReady = new HashSet<>();
+        return new IpsDelta(added, removed);
+    }
+
+    /**
+     * Resolves all hosts in parallel.
+     * @return false if IPs of some hosts are unknown.
+     */
+    private boolean universalGetIPs(Set<String> hosts, Set<String> ips, Set<String> ipsReady) {
+
+        boolean complete = true;
 
         if (hosts != null) {
+            Set<String> hostsToResolve = new HashSet<>();
             for (String host : hosts) {
                 if (!host.startsWith("#")) {
-                    ArrayList<String> preparedIPs = handleActionGetIP(host);
-                    unlockIPsPrepared.addAll(preparedIPs);
+                    hostsToResolve.add(host);
                 }
             }
 
-            for (String unlockIPPrepared : unlockIPsPrepared) {
-                Matcher matcher = IP_PATTERN.matcher(unlockIPPrepared);
-                if (matcher.find()) {
-                    IPsReady.add(unlockIPPrepared);
+            for (DnsResolveResult result : dnsInteractor.get().resolveAllBlocking(hostsToResolve)) {
+                String host = result.getName();
+                Set<String> hostIPs;
+                if (result.isSuccessful()) {
+                    hostIPs = getIPv4(result.getValues());
+                    logHostIPsChanges(host, hostIPs, resolvedHostsIPs.put(host, hostIPs));
+                } else {
+                    exceptionWhenResolvingHost = true;
+                    Exception e = result.getError();
+                    Log.e(LOG_TAG, "TorRefreshIPsWork get " + host + " exception "
+                            + (e != null ? e.getMessage() + "\n" + e.getCause() : ""));
+
+                    hostIPs = resolvedHostsIPs.get(host);
+                    if (hostIPs == null) {
+                        complete = false;
+                        continue;
+                    }
                 }
+                ipsReady.addAll(hostIPs);
             }
         }
 
         if (ips != null) {
-            for (String unlockIP : ips) {
-                Matcher matcher = IP_PATTERN.matcher(unlockIP);
-                if (matcher.find()) {
-                    IPsReady.add(unlockIP);
-                }
-            }
-
+            ipsReady.addAll(getIPv4(ips));
         }
 
-        return IPsReady;
+        return complete;
     }
 
-    private ArrayList<String> handleActionGetIP(String host) {
-        ArrayList<String> preparedIPs = new ArrayList<>();
-        try {
-            preparedIPs.addAll(dnsInteractor.get().resolveDomain(host));
-        } catch (Exception ignored) {
-            try {
-                TimeUnit.MILLISECONDS.sleep(DELAY_ERROR_RETRY_MSEC);
-                preparedIPs.addAll(dnsInteractor.get().resolveDomain(host));
-            } catch (Exception e) {
-                exceptionWhenResolvingHost = true;
-                Log.e(LOG_TAG, "TorRefreshIPsWork get " + host + " exception "
-                        + e.getMessage() + "\n" + e.getCause());
+    private Set<String> getIPv4(Set<String> ips) {
+        Set<String> ipv4 = new HashSet<>();
+        for (String ip : ips) {
+            Matcher matcher = IP_PATTERN.matcher(ip);
+            if (matcher.find()) {
+                ipv4.add(ip);
             }
         }
-        return preparedIPs;
+        return ipv4;
     }
 
-    private boolean saveSettings(Set<String> ipsToUnlock, String settingsKey) {
-        Set<String> ips = preferenceRepository.get().getStringSetPreference(settingsKey);
-        if (ips.size() == ipsToUnlock.size() && ips.containsAll(ipsToUnlock)) {
-            return false;
-        } else {
-            preferenceRepository.get().setStringSetPreference(settingsKey, ipsToUnlock);
-            return true;
+    private void logHostIPsChanges(String host, Set<String> ips, @Nullable Set<String> previousIPs) {
+        if (previousIPs == null || previousIPs.equals(ips)) {
+            return;
+        }
+
+        Set<String> added = new HashSet<>(ips);
+        added.removeAll(previousIPs);
+        Set<String> removed = new HashSet<>(previousIPs);
+        removed.removeAll(ips);
+
+        Log.i(LOG_TAG, "TorRefreshIPsWork " + host + " added " + added + " removed " + removed);
+    }
+
+    private static final class IpsDelta {
+        private final Set<String> added;
+        private final Set<String> removed;
+
+        private IpsDelta(Set<String> added, Set<String> removed) {
+            this.added = added;
+            this.removed = removed;
         }
     }
 }
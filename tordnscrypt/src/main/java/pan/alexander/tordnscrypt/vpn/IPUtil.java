@@ -95,6 +95,80 @@ public class IPUtil {
         return long2inet(inet2long(addr) + 1);
     }
 
+    /**
+     * Formats an address passed from native code as two 64-bit halves.
+     * The result is the same as inet_ntop gives, so it can be compared with addresses of Packet.
+     *
+     * @param version 4 or 6. IPv4 address is stored in the lower 32 bits of lo.
+     */
+    public static String toAddressString(int version, long hi, long lo) {
+        if (version == 4) {
+            return ipv4ToString(lo);
+        }
+
+        int[] words = new int[8];
+        for (int i = 0; i < 4; i++) {
+            words[i] = (int) (hi >>> (48 - 16 * i)) & 0xFFFF;
+            words[i + 4] = (int) (lo >>> (48 - 16 * i)) & 0xFFFF;
+        }
+
+        //Find the longest run of zero words, as inet_ntop does
+        int bestBase = -1;
+        int bestLength = 0;
+        int currentBase = -1;
+        for (int i = 0; i <= words.length; i++) {
+            if (i < words.length && words[i] == 0) {
+                if (currentBase < 0) {
+                    currentBase = i;
+                }
+            } else if (currentBase >= 0) {
+                if (i - currentBase > bestLength) {
+                    bestBase = currentBase;
+                    bestLength = i - currentBase;
+                }
+                currentBase = -1;
+            }
+        }
+        if (bestLength < 2) {
+            bestBase = -1;
+        }
+
+        StringBuilder builder = new StringBuilder(39);
+        for (int i = 0; i < words.length; i++) {
+            if (bestBase >= 0 && i >= bestBase && i < bestBase + bestLength) {
+                if (i == bestBase) {
+                    builder.append(':');
+                }
+                continue;
+            }
+
+            if (i != 0) {
+                builder.append(':');
+            }
+
+            //Embedded IPv4 address
+            if (i == 6 && bestBase == 0
+                    && (bestLength == 6 || bestLength == 7 && words[7] != 0x0001
+                    || bestLength == 5 && words[5] == 0xFFFF)) {
+                builder.append(ipv4ToString(lo));
+                return builder.toString();
+            }
+
+            builder.append(Integer.toHexString(words[i]));
+        }
+
+        if (bestBase >= 0 && bestBase + bestLength == words.length) {
+            builder.append(':');
+        }
+
+        return builder.toString();
+    }
+
+    private static String ipv4ToString(long address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
     public static class CIDR implements Comparable<CIDR> {
         public InetAddress address;
         public int prefix;
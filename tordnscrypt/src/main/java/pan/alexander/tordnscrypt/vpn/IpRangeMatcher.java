@@ -0,0 +1,393 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
+
+/**
+ * Immutable set of IPv4/IPv6 networks compiled once from CIDR strings.
+ * IPv4 networks are merged into a sorted interval table and looked up with a binary search,
+ * IPv6 networks are kept as prefix masks. Lookups are lock free and do not allocate,
+ * so the matcher can be used on the VPN packet path.
+ */
+public final class IpRangeMatcher {
+
+    private static final long IPV4_MAPPED_LO_MASK = 0xFFFFFFFF00000000L;
+    private static final long IPV4_MAPPED_LO_PREFIX = 0x0000FFFF00000000L;
+
+    private static final ThreadLocal<long[]> ipv6Scratch = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private final long[] ipv4Starts;
+    private final long[] ipv4Ends;
+
+    private final long[] ipv6NetHi;
+    private final long[] ipv6NetLo;
+    private final long[] ipv6MaskHi;
+    private final long[] ipv6MaskLo;
+
+    private IpRangeMatcher(long[] ipv4Starts, long[] ipv4Ends,
+                           long[] ipv6NetHi, long[] ipv6NetLo,
+                           long[] ipv6MaskHi, long[] ipv6MaskLo) {
+        this.ipv4Starts = ipv4Starts;
+        this.ipv4Ends = ipv4Ends;
+        this.ipv6NetHi = ipv6NetHi;
+        this.ipv6NetLo = ipv6NetLo;
+        this.ipv6MaskHi = ipv6MaskHi;
+        this.ipv6MaskLo = ipv6MaskLo;
+    }
+
+    /**
+     * @param networks networks like "10.0.0.0/8", "fc00::/7" or single addresses.
+     *                 Entries that cannot be parsed are skipped.
+     */
+    public static IpRangeMatcher compile(Iterable<String> networks) {
+        List<String> wrongNetworks = new ArrayList<>();
+        IpRangeMatcher matcher = compile(networks, wrongNetworks);
+        for (String network : wrongNetworks) {
+            logw("IpRangeMatcher wrong network " + network);
+        }
+        return matcher;
+    }
+
+    /**
+     * @param wrongNetworks receives entries that cannot be parsed.
+     */
+    static IpRangeMatcher compile(Iterable<String> networks, List<String> wrongNetworks) {
+        List<long[]> ipv4Ranges = new ArrayList<>();
+        List<long[]> ipv6Prefixes = new ArrayList<>();
+
+        for (String network : networks) {
+            if (network == null || network.trim().isEmpty()) {
+                continue;
+            }
+
+            String net = network.trim();
+            int prefix = -1;
+            int slash = net.indexOf('/');
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(net.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    wrongNetworks.add(network);
+                    continue;
+                }
+                net = net.substring(0, slash);
+            }
+
+            if (net.indexOf(':') < 0) {
+                long address = parseIPv4(net, 0, net.length());
+                if (address < 0 || prefix > 32) {
+                    wrongNetworks.add(network);
+                    continue;
+                }
+                if (prefix < 0) {
+                    prefix = 32;
+                }
+                long mask = prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+                long start = address & mask;
+                long end = start | (~mask & 0xFFFFFFFFL);
+                ipv4Ranges.add(new long[]{start, end});
+            } else {
+                long[] address = new long[2];
+                if (!parseIPv6(net, address) || prefix > 128) {
+                    wrongNetworks.add(network);
+                    continue;
+                }
+                if (prefix < 0) {
+                    prefix = 128;
+                }
+                long maskHi = prefixToMask(Math.min(prefix, 64));
+                long maskLo = prefixToMask(Math.max(prefix - 64, 0));
+                ipv6Prefixes.add(new long[]{address[0] & maskHi, address[1] & maskLo, maskHi, maskLo});
+            }
+        }
+
+        List<long[]> mergedIpv4Ranges = merge(ipv4Ranges);
+
+        return new IpRangeMatcher(
+                column(mergedIpv4Ranges, 0),
+                column(mergedIpv4Ranges, 1),
+                column(ipv6Prefixes, 0),
+                column(ipv6Prefixes, 1),
+                column(ipv6Prefixes, 2),
+                column(ipv6Prefixes, 3)
+        );
+    }
+
+    /**
+     * @param address numeric IPv4 or IPv6 address, for example "192.168.1.1" or "fe80::1%wlan0".
+     * @return false if the address does not belong to any network or cannot be parsed.
+     */
+    public boolean contains(String address) {
+        if (address == null) {
+            return false;
+        }
+
+        int end = address.indexOf('%');
+        if (end < 0) {
+            end = address.length();
+        }
+
+        if (address.indexOf(':') < 0) {
+            long ipv4 = parseIPv4(address, 0, end);
+            return ipv4 >= 0 && containsIPv4Unsigned(ipv4);
+        }
+
+        if (ipv6NetHi.length == 0 && ipv4Starts.length == 0) {
+            return false;
+        }
+
+        long[] scratch = ipv6Scratch.get();
+        if (scratch == null || !parseIPv6(address, end, scratch)) {
+            return false;
+        }
+        return containsIPv6(scratch[0], scratch[1]);
+    }
+
+    /**
+     * @param address IPv4 address with the first octet in the most significant byte.
+     */
+    public boolean containsIPv4(int address) {
+        return containsIPv4Unsigned(address & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param hi first 64 bits of the IPv6 address.
+     * @param lo last 64 bits of the IPv6 address.
+     *           IPv4-mapped addresses are matched against IPv4 networks.
+     */
+    public boolean containsIPv6(long hi, long lo) {
+        if (hi == 0 && (lo & IPV4_MAPPED_LO_MASK) == IPV4_MAPPED_LO_PREFIX) {
+            return containsIPv4Unsigned(lo & 0xFFFFFFFFL);
+        }
+
+        for (int i = 0; i < ipv6NetHi.length; i++) {
+            if ((hi & ipv6MaskHi[i]) == ipv6NetHi[i] && (lo & ipv6MaskLo[i]) == ipv6NetLo[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsIPv4Unsigned(long address) {
+        int low = 0;
+        int high = ipv4Starts.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ipv4Starts[middle] <= address) {
+                if (address <= ipv4Ends[middle]) {
+                    return true;
+                }
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return address as unsigned 32-bit value or -1 if it is not a dotted-decimal IPv4 address.
+     */
+    public static long parseIPv4(String address, int start, int end) {
+        long result = 0;
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return -1;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || ++octets > 3) {
+                    return -1;
+                }
+                result = result << 8 | value;
+                value = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+
+        if (digits == 0 || octets != 3) {
+            return -1;
+        }
+
+        return result << 8 | value;
+    }
+
+    private static boolean parseIPv6(String address, long[] result) {
+        int end = address.indexOf('%');
+        return parseIPv6(address, end < 0 ? address.length() : end, result);
+    }
+
+    /**
+     * Parses a textual IPv6 address, including "::" compression and an embedded IPv4 tail,
+     * into two 64-bit halves without creating intermediate objects.
+     */
+    static boolean parseIPv6(String address, int end, long[] result) {
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int headCount = 0;
+        int tailCount = 0;
+        boolean compressed = false;
+
+        int i = 0;
+        if (end >= 2 && address.charAt(0) == ':') {
+            if (address.charAt(1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i = 2;
+        }
+
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            while (i < end) {
+                int digit = hexDigit(address.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                value = value << 4 | digit;
+                digits++;
+                i++;
+            }
+
+            int groups;
+            int secondValue = 0;
+            if (i < end && address.charAt(i) == '.') {
+                long ipv4 = parseIPv4(address, groupStart, end);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                value = (int) (ipv4 >>> 16);
+                secondValue = (int) (ipv4 & 0xFFFF);
+                groups = 2;
+                i = end;
+            } else if (digits == 0 || digits > 4) {
+                return false;
+            } else {
+                groups = 1;
+            }
+
+            for (int g = 0; g < groups; g++) {
+                long group = g == 0 ? value : secondValue;
+                if (compressed) {
+                    tailHi = tailHi << 16 | tailLo >>> 48;
+                    tailLo = tailLo << 16 | group;
+                    tailCount++;
+                } else if (headCount < 4) {
+                    headHi |= group << (48 - 16 * headCount);
+                    headCount++;
+                } else if (headCount < 8) {
+                    headLo |= group << (48 - 16 * (headCount - 4));
+                    headCount++;
+                } else {
+                    return false;
+                }
+            }
+
+            if (i == end) {
+                break;
+            }
+
+            if (address.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+
+            if (i < end && address.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+
+        int count = headCount + tailCount;
+        if (compressed ? count > 7 : count != 8) {
+            return false;
+        }
+
+        result[0] = headHi | tailHi;
+        result[1] = headLo | tailLo;
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long prefixToMask(int prefix) {
+        return prefix == 0 ? 0 : -1L << (64 - prefix);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        long[][] sorted = ranges.toArray(new long[0][]);
+        Arrays.sort(sorted, (o1, o2) -> Long.compare(o1[0], o2[0]));
+
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    private static long[] column(List<long[]> rows, int index) {
+        long[] result = new long[rows.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rows.get(i)[index];
+        }
+        return result;
+    }
+}
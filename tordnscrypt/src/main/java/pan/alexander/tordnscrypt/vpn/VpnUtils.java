@@ -40,7 +40,6 @@ import java.util.List;
 import pan.alexander.tordnscrypt.App;
 import pan.alexander.tordnscrypt.vpn.service.ServiceVPN;
 
-import static pan.alexander.tordnscrypt.utils.logger.Logger.loge;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.logi;
 import static pan.alexander.tordnscrypt.utils.logger.Logger.logw;
 
@@ -73,6 +72,9 @@ public class VpnUtils {
             "100.64.0.0/10"
     ));
 
+    private static final IpRangeMatcher lanRangeMatcher = IpRangeMatcher.compile(nonTorList);
+    private static final IpRangeMatcher dnsRebindRangeMatcher = IpRangeMatcher.compile(dnsRebindList);
+
     @Keep
     private static native String jni_getprop(String name);
 
@@ -221,33 +223,11 @@ public class VpnUtils {
         return (!"off".equals(dns_mode));
     }
 
-    public synchronized static boolean isIpInSubnet(final String ip, final String network) {
-        boolean result = false;
-
-        try {
-            String net = network;
-            int prefix = 0;
-            if (network.contains("/")) {
-                net = network.substring(0, network.indexOf("/"));
-                prefix = Integer.parseInt(network.substring(network.indexOf("/") + 1));
-            }
-
-            final byte[] ipBin = java.net.InetAddress.getByName(ip).getAddress();
-            final byte[] netBin = java.net.InetAddress.getByName(net).getAddress();
-            if (ipBin.length != netBin.length) return false;
-            int p = prefix;
-            int i = 0;
-            while (p >= 8) {
-                if (ipBin[i] != netBin[i]) return false;
-                ++i;
-                p -= 8;
-            }
-            final int m = (65280 >> p) & 255;
-            result = (ipBin[i] & m) == (netBin[i] & m);
-        } catch (Exception e) {
-            loge("VpnUtils isIpInSubnet", e);
-        }
+    public static boolean isIpInLanRange(String ip) {
+        return lanRangeMatcher.contains(ip);
+    }
 
-        return result;
+    public static boolean isIpInDnsRebindRange(String ip) {
+        return dnsRebindRangeMatcher.contains(ip);
     }
 }
@@ -38,13 +38,10 @@ import android.widget.Toast;
 import androidx.annotation.Keep;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import dagger.Lazy;
@@ -54,7 +51,7 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.arp.DNSRebindProtection;
 import pan.alexander.tordnscrypt.domain.connection_checker.ConnectionCheckerInteractor;
 import pan.alexander.tordnscrypt.domain.connection_checker.OnInternetConnectionCheckedListener;
-import pan.alexander.tordnscrypt.domain.connection_records.entities.ConnectionData;
+import pan.alexander.tordnscrypt.domain.connection_records.ConnectionJournal;
 import pan.alexander.tordnscrypt.domain.connection_records.entities.DnsRecord;
 import pan.alexander.tordnscrypt.domain.connection_records.entities.PacketRecord;
 import pan.alexander.tordnscrypt.domain.dns_resolver.DnsInteractor;
@@ -69,7 +66,6 @@ import pan.alexander.tordnscrypt.utils.enums.VPNCommand;
 import pan.alexander.tordnscrypt.vpn.Allowed;
 import pan.alexander.tordnscrypt.vpn.Packet;
 import pan.alexander.tordnscrypt.vpn.ResourceRecord;
-import pan.alexander.tordnscrypt.vpn.Rule;
 import pan.alexander.tordnscrypt.vpn.Usage;
 import pan.alexander.tordnscrypt.vpn.VpnUtils;
 
@@ -147,11 +143,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
     volatile ParcelFileDescriptor vpn = null;
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-    private final ConcurrentHashMap<ConnectionData, Boolean> connectionDataRecords = new ConcurrentHashMap<>(
-            16,
-            0.75f,
-            2
-    );
+    private final ConnectionJournal connectionJournal = new ConnectionJournal(LINES_IN_DNS_QUERY_RAW_RECORDS);
 
     private volatile Looper commandLooper;
     private volatile ServiceVPNHandler commandHandler;
@@ -198,8 +190,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         vpnPreferences = vpnPreferenceHolder.get();
 
         // Prepare rules
-        vpnRulesHolder.get().prepareUidAllowed(listAllowed, commandHandler.getAppsList());
-        vpnRulesHolder.get().prepareForwarding();
+        vpnRulesHolder.get().prepareRules(listAllowed, commandHandler.getAppsList());
 
         ModulesStatus modulesStatus = ModulesStatus.getInstance();
         if ((modulesStatus.getTorState() == RUNNING
@@ -241,7 +232,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                     jni_run(
                             jni_context,
                             vpn.getFd(),
-                            vpnRulesHolder.get().mapForwardPort.containsKey(PLAINTEXT_DNS_PORT),
+                            vpnRulesHolder.get().getRulesSnapshot().getForwardForPort(PLAINTEXT_DNS_PORT) != null,
                             vpnPreferences.getDnsBlockedResponseCode(),
                             vpnPreferences.getCompatibilityMode(),
                             canFilterSynchronous
@@ -369,25 +360,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                 rr.Resource != null ? rr.Resource.trim() : ""
         );
 
-        connectionDataRecords.remove(dnsRecord);
-        connectionDataRecords.put(dnsRecord, true);
-
-        if (connectionDataRecords.size() >= LINES_IN_DNS_QUERY_RAW_RECORDS) {
-            freeSpaceInConnectionRecords();
-        }
-    }
-
-    private void freeSpaceInConnectionRecords() {
-        List<ConnectionData> connectionDataList = getSortedConnectionDataByTime();
-        for (int i = 0; i < connectionDataList.size() / 3; i++) {
-            connectionDataRecords.remove(connectionDataList.get(i));
-        }
-    }
-
-    private List<ConnectionData> getSortedConnectionDataByTime() {
-        List<ConnectionData> connectionDataList = new ArrayList<>(connectionDataRecords.keySet());
-        Collections.sort(connectionDataList, (o1, o2) -> (int) (o1.getTime() - o2.getTime()));
-        return connectionDataList;
+        connectionJournal.add(dnsRecord);
     }
 
     // Called from native code
@@ -426,38 +399,32 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         }
 
         if (!destAddress.isEmpty()
-                && VpnUtils.isIpInSubnet(destAddress, vpnPreferences.getTorVirtualAddressNetwork())) {
+                && vpnPreferences.getTorVirtualAddressMatcher().contains(destAddress)) {
             return true;
         }
 
-        if (vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID) {
-            for (String address : VpnUtils.nonTorList) {
-                if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                    return false;
-                }
-            }
+        if ((vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID)
+                && VpnUtils.isIpInLanRange(destAddress)) {
+            return false;
         }
 
+        VpnRulesSnapshot rules = vpnRulesHolder.get().getRulesSnapshot();
+
         if (vpnPreferences.getRouteAllThroughTor()
-                && vpnRulesHolder.get().ipsForTor.contains(destAddress)) {
+                && rules.isIpForTor(destAddress)) {
             return false;
-        } else if (vpnRulesHolder.get().ipsForTor.contains(destAddress)) {
+        } else if (rules.isIpForTor(destAddress)) {
             return true;
         }
 
         if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return !(vpnRulesHolder.get().uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || vpnRulesHolder.get().mapUidAllowed.containsKey(1000));
+            return !(rules.isUidSpecialAllowed(SPECIAL_UID_NTP)
+                    || rules.isUidAllowed(1000));
         }
 
-        List<Rule> listRule = commandHandler.getAppsList();
-
-        if (listRule != null) {
-            for (Rule rule : listRule) {
-                if (rule.uid == uid) {
-                    return rule.apply;
-                }
-            }
+        int routing = rules.getUidRouting(uid);
+        if ((routing & VpnRulesSnapshot.UID_ROUTE_RULE_EXISTS) != 0) {
+            return (routing & VpnRulesSnapshot.UID_ROUTE_TOR) != 0;
         }
 
         return vpnPreferences.getRouteAllThroughTor();
@@ -479,29 +446,23 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
             return false;
         }
 
-        if (vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID) {
-            for (String address : VpnUtils.nonTorList) {
-                if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                    return false;
-                }
-            }
+        if ((vpnPreferences.getLan() || uid == NETWORK_STACK_DEFAULT_UID)
+                && VpnUtils.isIpInLanRange(destAddress)) {
+            return false;
         }
 
+        VpnRulesSnapshot rules = vpnRulesHolder.get().getRulesSnapshot();
+
         if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return !(vpnRulesHolder.get().uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || vpnRulesHolder.get().mapUidAllowed.containsKey(1000));
+            return !(rules.isUidSpecialAllowed(SPECIAL_UID_NTP)
+                    || rules.isUidAllowed(1000));
         }
 
-        return !vpnPreferences.getSetBypassProxy().contains(String.valueOf(uid));
+        return (rules.getUidRouting(uid) & VpnRulesSnapshot.UID_ROUTE_BYPASS_PROXY) == 0;
     }
 
     private boolean isIpInDNSRebindRange(String destAddress) {
-        for (String address : VpnUtils.dnsRebindList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true;
-            }
-        }
-        return false;
+        return VpnUtils.isIpInDnsRebindRange(destAddress);
     }
 
     // Called from native code
@@ -537,6 +498,21 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         return vpnRulesHolder.get().isAddressAllowed(this, packet);
     }
 
+    // Called from native code
+    @Keep
+    public long isAddressAllowedPrimitive(int version, int protocol, int uid, int sport, int dport,
+                                          long saddrHi, long saddrLo, long daddrHi, long daddrLo) {
+        return vpnRulesHolder.get().isAddressAllowed(
+                this, version, protocol, uid, sport, dport, saddrHi, saddrLo, daddrHi, daddrLo
+        );
+    }
+
+    // Called from native code
+    @Keep
+    public Allowed takeUnpackedVerdict() {
+        return vpnRulesHolder.get().takeUnpackedVerdict();
+    }
+
     // Called from native code
     @Keep
     public void accountUsage(Usage usage) {
@@ -834,8 +810,8 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
         }
     }
 
-    public ConcurrentHashMap<ConnectionData, Boolean> getDnsQueryRawRecords() {
-        return connectionDataRecords;
+    public ConnectionJournal getDnsQueryRawRecords() {
+        return connectionJournal;
     }
 
     public void clearDnsQueryRawRecords() {
@@ -843,9 +819,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
             try {
                 lock.writeLock().lockInterruptibly();
 
-                if (!connectionDataRecords.isEmpty()) {
-                    connectionDataRecords.clear();
-                }
+                connectionJournal.clear();
 
             } catch (Exception e) {
                 loge("ServiceVPN clearDnsQueryRawRecords", e);
@@ -874,12 +848,7 @@ public class ServiceVPN extends VpnService implements OnInternetConnectionChecke
                         destinationAddress
                 );
 
-                connectionDataRecords.remove(packetRecord);
-                connectionDataRecords.put(packetRecord, true);
-
-                if (connectionDataRecords.size() > LINES_IN_DNS_QUERY_RAW_RECORDS) {
-                    freeSpaceInConnectionRecords();
-                }
+                connectionJournal.add(packetRecord);
             }
 
         } catch (Exception e) {
@@ -153,6 +153,10 @@ public class ServiceVPNHandler extends Handler {
                         stop();
                         break;
 
+                    case UPDATE_TOR_IPS:
+                        updateIpsForTor();
+                        break;
+
                     default:
                         loge("VPN Handler Unknown command=" + cmd);
                 }
@@ -170,6 +174,7 @@ public class ServiceVPNHandler extends Handler {
             loge("ServiceVPNHandler handleIntent", ex, true);
 
             serviceVPN.reloading = false;
+            VpnVerdictCache.invalidate();
 
             if (cmd == VPNCommand.START || cmd == VPNCommand.RELOAD) {
                 if (VpnService.prepare(serviceVPN) == null) {
@@ -213,6 +218,14 @@ public class ServiceVPNHandler extends Handler {
         }
     }
 
+    private void updateIpsForTor() {
+        if (serviceVPN == null || serviceVPN.vpn == null) {
+            return;
+        }
+
+        serviceVPN.vpnRulesHolder.get().updateIpsForTor();
+    }
+
     private void reload() {
 
         if (serviceVPN == null) {
@@ -311,6 +324,7 @@ public class ServiceVPNHandler extends Handler {
         }
 
         serviceVPN.reloading = false;
+        VpnVerdictCache.invalidate();
 
         if (defaultSharedPreferences.get().getBoolean(ARP_SPOOFING_DETECTION, false)) {
             try {
@@ -75,6 +75,22 @@ public class ServiceVPNHelper {
         }
     }
 
+    public static void updateIpsForTor(String reason, Context context) {
+        ModulesStatus modulesStatus = ModulesStatus.getInstance();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean vpnServiceEnabled = prefs.getBoolean(VPN_SERVICE_ENABLED, false);
+
+        boolean fixTTL = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
+                && !modulesStatus.isUseModulesWithRoot();
+
+        if (((modulesStatus.getMode() == VPN_MODE) || fixTTL) && vpnServiceEnabled) {
+            Intent intent = new Intent(context, ServiceVPN.class);
+            intent.putExtra(EXTRA_COMMAND, VPNCommand.UPDATE_TOR_IPS);
+            intent.putExtra(EXTRA_REASON, reason);
+            sendIntent(context, intent);
+        }
+    }
+
     public static void stop(String reason, Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean vpnServiceEnabled = prefs.getBoolean(VPN_SERVICE_ENABLED, false);
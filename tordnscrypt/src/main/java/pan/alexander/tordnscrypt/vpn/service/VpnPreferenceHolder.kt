@@ -25,11 +25,11 @@ import android.util.Log
 import pan.alexander.tordnscrypt.di.SharedPreferencesModule.Companion.DEFAULT_PREFERENCES_NAME
 import pan.alexander.tordnscrypt.domain.preferences.PreferenceRepository
 import pan.alexander.tordnscrypt.modules.ModulesStatus
-import pan.alexander.tordnscrypt.proxy.CLEARNET_APPS_FOR_PROXY
 import pan.alexander.tordnscrypt.settings.PathVars
 import pan.alexander.tordnscrypt.utils.Constants.NUMBER_REGEX
 import pan.alexander.tordnscrypt.utils.enums.OperationMode
 import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.*
+import pan.alexander.tordnscrypt.vpn.IpRangeMatcher
 import javax.inject.Inject
 import javax.inject.Named
 
@@ -47,10 +47,9 @@ class VpnPreferenceHolder @Inject constructor(
     val routeAllThroughTor = defaultPreferences.getBoolean(ALL_THROUGH_TOR, true)
     val torTethering = defaultPreferences.getBoolean(TOR_TETHERING, false)
     val torVirtualAddressNetwork: String = pathVars.torVirtAdrNet ?: "10.192.0.0/10"
+    val torVirtualAddressMatcher: IpRangeMatcher = IpRangeMatcher.compile(listOf(torVirtualAddressNetwork))
     val blockIPv6 = defaultPreferences.getBoolean(BLOCK_IPv6, true)
 
-    val setBypassProxy = preferenceRepository.getStringSetPreference(CLEARNET_APPS_FOR_PROXY)
-
     val compatibilityMode = if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
         true
     } else {
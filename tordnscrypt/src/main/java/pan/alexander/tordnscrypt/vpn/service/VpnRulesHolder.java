@@ -20,6 +20,7 @@
 package pan.alexander.tordnscrypt.vpn.service;
 
 import static pan.alexander.tordnscrypt.di.SharedPreferencesModule.DEFAULT_PREFERENCES_NAME;
+import static pan.alexander.tordnscrypt.proxy.ProxyFragmentKt.CLEARNET_APPS_FOR_PROXY;
 import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_PORT_AGPS1;
 import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_PORT_AGPS2;
 import static pan.alexander.tordnscrypt.settings.tor_apps.ApplicationData.SPECIAL_PORT_NTP;
@@ -44,15 +45,12 @@ import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_FOR
 import static pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.IPS_TO_UNLOCK;
 import static pan.alexander.tordnscrypt.vpn.service.VpnBuilder.vpnDnsSet;
 
-import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import androidx.annotation.NonNull;
+
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -65,34 +63,33 @@ import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.utils.Constants;
 import pan.alexander.tordnscrypt.utils.connectivitycheck.ConnectivityCheckManager;
+import pan.alexander.tordnscrypt.utils.connectivitycheck.OnConnectivityCheckIpsChangedListener;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.vpn.Allowed;
 import pan.alexander.tordnscrypt.vpn.Forward;
+import pan.alexander.tordnscrypt.vpn.IPUtil;
+import pan.alexander.tordnscrypt.vpn.IpRangeMatcher;
 import pan.alexander.tordnscrypt.vpn.Packet;
 import pan.alexander.tordnscrypt.vpn.Rule;
 import pan.alexander.tordnscrypt.vpn.VpnUtils;
 
-public class VpnRulesHolder {
+public class VpnRulesHolder implements OnConnectivityCheckIpsChangedListener {
 
-    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    //Packed verdict layout: bit 0 - allowed, bit 1 - take the redirect with takeUnpackedVerdict,
+    //bits 16-31 - redirect port, bits 32-63 - IPv4 redirect address.
+    //Keep in sync with VERDICT_* in invizible.h
+    static final long VERDICT_BLOCKED = 0;
+    static final long VERDICT_ALLOWED = 1;
+    static final long VERDICT_USE_PACKET = 1 << 1;
 
     private final SharedPreferences defaultPreferences;
     private final PreferenceRepository preferenceRepository;
     private final PathVars pathVars;
     private final Lazy<ConnectivityCheckManager> connectivityCheckManager;
 
-    @SuppressLint("UseSparseArrays")
-    final Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    @SuppressLint("UseSparseArrays")
-    private final Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    @SuppressLint("UseSparseArrays")
-    final Map<Integer, Forward> mapForwardPort = new HashMap<>();
-    private final Map<String, Forward> mapForwardAddress = new HashMap<>();
-    final Set<String> ipsForTor = new HashSet<>();
-    private final Set<Integer> uidLanAllowed = new HashSet<>();
-    final Set<Integer> uidSpecialAllowed = new HashSet<>();
-
-    private final Set<String> connectivityCheckIps = new HashSet<>();
+    private volatile VpnRulesSnapshot rulesSnapshot = VpnRulesSnapshot.EMPTY;
+    private final VpnVerdictCache verdictCache = new VpnVerdictCache();
+    private final ThreadLocal<Allowed> unpackedVerdict = new ThreadLocal<>();
 
     @Inject
     public VpnRulesHolder(@Named(DEFAULT_PREFERENCES_NAME) SharedPreferences defaultPreferences,
@@ -132,8 +129,7 @@ public class VpnRulesHolder {
                     .substring(0, Tethering.usbModemAddressesRange.lastIndexOf("."));
         }
 
-        boolean fixTTLForPacket = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
-                && !modulesStatus.isUseModulesWithRoot()
+        boolean fixTTLForPacket = isFixTTLMode()
                 && (Tethering.apIsOn && packet.saddr.contains(apAddresses)
                 || Tethering.usbTetherOn && packet.saddr.contains(usbModemAddresses)
                 || Tethering.ethernetOn && packet.saddr.contains(Tethering.addressLocalPC));
@@ -142,10 +138,108 @@ public class VpnRulesHolder {
             vpn.addUIDtoDNSQueryRawRecords(packet.uid, packet.daddr, packet.dport, packet.saddr);
         }
 
-        lock.readLock().lock();
+        return getVerdict(vpn, packet, torIsRunning, fixTTLForPacket);
+    }
+
+    /**
+     * Primitive variant of {@link #isAddressAllowed(ServiceVPN, Packet)} for new sessions.
+     * Addresses are passed as two 64-bit halves; IPv4 address is stored in the lower 32 bits of lo.
+     * Cached verdicts are returned without creating any objects, Packet and address strings are built
+     * only to compute a new verdict or to add the connection record when connection logs are enabled.
+     * A redirect that cannot be packed is not cached, native code takes it with {@link #takeUnpackedVerdict()}.
+     *
+     * @return packed verdict, see VERDICT_* constants.
+     */
+    long isAddressAllowed(ServiceVPN vpn, int version, int protocol, int uid, int sport, int dport,
+                          long saddrHi, long saddrLo, long daddrHi, long daddrLo) {
 
         VpnPreferenceHolder vpnPreferences = vpn.vpnPreferences;
 
+        if (sport == 0 || dport == 0 || vpnPreferences == null) {
+            return VERDICT_BLOCKED;
+        }
+
+        //Tethered packets depend on the source address, so only verdicts of own device packets are cached
+        boolean verdictCacheable = vpn.canFilter && !vpn.reloading
+                && !(isFixTTLMode() && (Tethering.apIsOn || Tethering.usbTetherOn || Tethering.ethernetOn));
+
+        int verdictGeneration = VpnVerdictCache.getGeneration();
+
+        if (verdictCacheable) {
+            VpnVerdictCache.Entry entry = verdictCache.get(version, uid, protocol, daddrHi, daddrLo, dport);
+            if (entry != null) {
+                if (uid != vpnPreferences.getOwnUID() && vpnPreferences.getConnectionLogsEnabled()) {
+                    vpn.addUIDtoDNSQueryRawRecords(
+                            uid,
+                            IPUtil.toAddressString(version, daddrHi, daddrLo),
+                            dport,
+                            IPUtil.toAddressString(version, saddrHi, saddrLo)
+                    );
+                }
+                return entry.verdict;
+            }
+        }
+
+        Packet packet = new Packet();
+        packet.time = System.currentTimeMillis();
+        packet.version = version;
+        packet.protocol = protocol;
+        packet.flags = "";
+        packet.saddr = IPUtil.toAddressString(version, saddrHi, saddrLo);
+        packet.sport = sport;
+        packet.daddr = IPUtil.toAddressString(version, daddrHi, daddrLo);
+        packet.dport = dport;
+        packet.data = "";
+        packet.uid = uid;
+
+        Allowed allowed = isAddressAllowed(vpn, packet);
+        long verdict = packVerdict(allowed);
+
+        if ((verdict & VERDICT_USE_PACKET) != 0) {
+            //Native code takes the redirect right after this call, so the packet is not checked twice
+            unpackedVerdict.set(allowed);
+        } else if (verdictCacheable && !vpn.reloading) {
+            verdictCache.put(verdictGeneration, version, uid, protocol, daddrHi, daddrLo, dport, verdict);
+        }
+
+        return verdict;
+    }
+
+    /**
+     * @return verdict with a redirect that could not be packed by the last primitive check of this thread.
+     */
+    Allowed takeUnpackedVerdict() {
+        Allowed allowed = unpackedVerdict.get();
+        unpackedVerdict.remove();
+        return allowed;
+    }
+
+    private long packVerdict(Allowed allowed) {
+        if (allowed == null) {
+            return VERDICT_BLOCKED;
+        } else if (allowed.raddr == null || allowed.raddr.isEmpty() || allowed.rport == 0) {
+            return VERDICT_ALLOWED;
+        }
+
+        long raddr = IpRangeMatcher.parseIPv4(allowed.raddr, 0, allowed.raddr.length());
+        if (raddr < 0) {
+            //Only IPv4 forward addresses can be packed
+            return VERDICT_ALLOWED | VERDICT_USE_PACKET;
+        }
+
+        return VERDICT_ALLOWED | ((long) (allowed.rport & 0xFFFF) << 16) | (raddr << 32);
+    }
+
+    private boolean isFixTTLMode() {
+        return modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
+                && !modulesStatus.isUseModulesWithRoot();
+    }
+
+    private Allowed getVerdict(ServiceVPN vpn, Packet packet, boolean torIsRunning, boolean fixTTLForPacket) {
+
+        VpnRulesSnapshot rules = rulesSnapshot;
+        VpnPreferenceHolder vpnPreferences = vpn.vpnPreferences;
+
         boolean redirectToTor = false;
         if (torIsRunning) {
             redirectToTor = vpn.isRedirectToTor(packet.uid, packet.daddr, packet.dport);
@@ -198,7 +292,7 @@ public class VpnRulesHolder {
                 && (packet.saddr.contains(":") || packet.daddr.contains(":"))) {
             logi("Block ipv6 " + packet);
         } else if (vpnPreferences.getBlockHttp() && packet.dport == 80
-                && !VpnUtils.isIpInSubnet(packet.daddr, vpnPreferences.getTorVirtualAddressNetwork())
+                && !vpnPreferences.getTorVirtualAddressMatcher().contains(packet.daddr)
                 && !packet.daddr.equals(vpnPreferences.getItpdRedirectAddress())
                 && !isIpInLanRange(packet.daddr)) {
             logw("Block http " + packet);
@@ -207,7 +301,7 @@ public class VpnRulesHolder {
                         || vpnPreferences.getTorTethering()
                         || fixTTLForPacket
                         || vpnPreferences.getCompatibilityMode()) &&
-                !mapUidKnown.containsKey(packet.uid)
+                !rules.isUidKnown(packet.uid)
                 && (vpnPreferences.getFixTTL()
                 || !torIsRunning && !vpnPreferences.getUseProxy()
                 || packet.protocol == 6 && packet.dport == PLAINTEXT_DNS_PORT)) {
@@ -229,17 +323,13 @@ public class VpnRulesHolder {
             logw("Disallowing non tcp traffic to proxy " + packet);
         } else if (vpnPreferences.getFirewallEnabled()
                 && isIpInLanRange(packet.daddr)) {
-            packet.allowed = uidLanAllowed.contains(packet.uid);
-        } else if (isDestinationInSpecialRange(packet.uid, packet.daddr, packet.dport)) {
-            packet.allowed = isSpecialAllowed(packet.uid, packet.daddr, packet.dport);
+            packet.allowed = rules.isUidLanAllowed(packet.uid);
+        } else if (isDestinationInSpecialRange(rules, packet.uid, packet.daddr, packet.dport)) {
+            packet.allowed = isSpecialAllowed(rules, packet.uid, packet.daddr, packet.dport);
         } else if (vpnPreferences.getFirewallEnabled()) {
 
-            if (mapUidAllowed.containsKey(packet.uid)) {
-                Boolean allow = mapUidAllowed.get(packet.uid);
-                if (allow != null) {
-                    packet.allowed = allow;
-                    //Log.i(LOG_TAG, "Packet " + packet.toString() + " is allowed " + allow);
-                }
+            if (rules.isUidAllowed(packet.uid)) {
+                packet.allowed = true;
             } else if (packet.dport == PLAINTEXT_DNS_PORT
                     && packet.uid < 2000 && packet.uid != SPECIAL_UID_KERNEL) {
                 //Allow connection check for system apps
@@ -258,25 +348,21 @@ public class VpnRulesHolder {
                     || vpnPreferences.getCompatibilityMode()
                     && isPacketAllowedForCompatibilityMode(packet, fixTTLForPacket)) {
                 allowed = new Allowed();
-            } else if (mapForwardPort.containsKey(packet.dport)) {
-                Forward fwd = mapForwardPort.get(packet.dport);
-                if (fwd != null) {
-                    allowed = new Allowed(fwd.raddr, fwd.rport);
-                    packet.data = "> " + fwd.raddr + "/" + fwd.rport;
+            } else {
+                Forward fwd = rules.getForwardForPort(packet.dport);
+                if (fwd == null) {
+                    fwd = rules.getForwardForAddress(packet.daddr);
                 }
-            } else if (mapForwardAddress.containsKey(packet.daddr)) {
-                Forward fwd = mapForwardAddress.get(packet.daddr);
+
                 if (fwd != null) {
                     allowed = new Allowed(fwd.raddr, fwd.rport);
                     packet.data = "> " + fwd.raddr + "/" + fwd.rport;
+                } else {
+                    allowed = new Allowed();
                 }
-            } else {
-                allowed = new Allowed();
             }
         }
 
-        lock.readLock().unlock();
-
         return allowed;
     }
 
@@ -288,35 +374,30 @@ public class VpnRulesHolder {
     }
 
     private boolean isIpInLanRange(String destAddress) {
-        for (String address : VpnUtils.nonTorList) {
-            if (VpnUtils.isIpInSubnet(destAddress, address)) {
-                return true;
-            }
-        }
-        return false;
+        return VpnUtils.isIpInLanRange(destAddress);
     }
 
-    private boolean isDestinationInSpecialRange(int uid, String destIp, int destPort) {
+    private boolean isDestinationInSpecialRange(VpnRulesSnapshot rules, int uid, String destIp, int destPort) {
         return uid == 0 && destPort == PLAINTEXT_DNS_PORT
                 || uid == SPECIAL_UID_KERNEL
                 || destPort == SPECIAL_PORT_NTP
                 || destPort == SPECIAL_PORT_AGPS1
                 || destPort == SPECIAL_PORT_AGPS2
-                || connectivityCheckIps.contains(destIp);
+                || rules.isConnectivityCheckIp(destIp);
     }
 
-    private boolean isSpecialAllowed(int uid, String destIp, int destPort) {
+    private boolean isSpecialAllowed(VpnRulesSnapshot rules, int uid, String destIp, int destPort) {
         if (uid == 0 && destPort == PLAINTEXT_DNS_PORT) {
             return true;
         } else if (uid == SPECIAL_UID_KERNEL) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_KERNEL);
+            return rules.isUidSpecialAllowed(SPECIAL_UID_KERNEL);
         } else if (uid == 1000 && destPort == SPECIAL_PORT_NTP) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_NTP)
-                    || mapUidAllowed.containsKey(1000);
+            return rules.isUidSpecialAllowed(SPECIAL_UID_NTP)
+                    || rules.isUidAllowed(1000);
         } else if (destPort == SPECIAL_PORT_AGPS1 || destPort == SPECIAL_PORT_AGPS2) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_AGPS);
-        } else if (connectivityCheckIps.contains(destIp)) {
-            return uidSpecialAllowed.contains(SPECIAL_UID_CONNECTIVITY_CHECK);
+            return rules.isUidSpecialAllowed(SPECIAL_UID_AGPS);
+        } else if (rules.isConnectivityCheckIp(destIp)) {
+            return rules.isUidSpecialAllowed(SPECIAL_UID_CONNECTIVITY_CHECK);
         }
         return false;
     }
@@ -345,54 +426,99 @@ public class VpnRulesHolder {
     }
 
 
-    void prepareUidAllowed(
+    VpnRulesSnapshot getRulesSnapshot() {
+        return rulesSnapshot;
+    }
+
+    /**
+     * Builds all rules tables on the calling thread and publishes them with a single write,
+     * so packet verdicts never wait for a reload and never see partially filled tables.
+     */
+    synchronized void prepareRules(
             List<String> listAllowed,
             List<Rule> listRule
     ) {
-        lock.writeLock().lock();
+        VpnRulesSnapshot.Builder builder = new VpnRulesSnapshot.Builder();
+        prepareUidAllowed(builder, listAllowed, listRule);
+        prepareForwarding(builder);
+        rulesSnapshot = builder.build();
+        VpnVerdictCache.invalidate();
+    }
 
-        mapUidAllowed.clear();
-        uidSpecialAllowed.clear();
+    private void prepareUidAllowed(
+            VpnRulesSnapshot.Builder builder,
+            List<String> listAllowed,
+            List<Rule> listRule
+    ) {
         for (String uid : listAllowed) {
             if (uid != null && uid.matches("\\d+")) {
-                mapUidAllowed.put(Integer.valueOf(uid), true);
+                builder.addAllowedUid(Integer.parseInt(uid));
             } else if (uid != null && uid.matches("-\\d+")) {
-                uidSpecialAllowed.add(Integer.valueOf(uid));
+                builder.addSpecialAllowedUid(Integer.parseInt(uid));
             }
         }
 
-        mapUidKnown.clear();
         for (Rule rule : listRule) {
             if (rule.uid >= 0) {
-                mapUidKnown.put(rule.uid, rule.uid);
+                builder.addKnownUid(rule.uid);
+            }
+            builder.addRuleRouting(rule.uid, rule.apply);
+        }
+
+        for (String uid : preferenceRepository.getStringSetPreference(CLEARNET_APPS_FOR_PROXY)) {
+            if (uid != null && uid.matches("-?\\d+")) {
+                builder.addProxyBypassUid(Integer.parseInt(uid));
             }
         }
 
-        uidLanAllowed.clear();
         for (String uid : preferenceRepository.getStringSetPreference(APPS_ALLOW_LAN_PREF)) {
             if (uid != null && uid.matches("\\d+")) {
-                uidLanAllowed.add(Integer.valueOf(uid));
+                builder.addLanAllowedUid(Integer.parseInt(uid));
             }
         }
 
-        ipsForTor.clear();
+        builder.addIpsForTor(getIpsForTor());
+
+        ConnectivityCheckManager checkManager = connectivityCheckManager.get();
+        checkManager.addListener(this);
+        builder.addConnectivityCheckIps(checkManager.getConnectivityCheckIps());
+    }
+
+    private Set<String> getIpsForTor() {
         boolean routeAllThroughTor = defaultPreferences.getBoolean(ALL_THROUGH_TOR, true);
         if (routeAllThroughTor) {
-            ipsForTor.addAll(preferenceRepository.getStringSetPreference(IPS_FOR_CLEARNET));
+            return preferenceRepository.getStringSetPreference(IPS_FOR_CLEARNET);
         } else {
-            ipsForTor.addAll(preferenceRepository.getStringSetPreference(IPS_TO_UNLOCK));
+            return preferenceRepository.getStringSetPreference(IPS_TO_UNLOCK);
         }
+    }
 
-        connectivityCheckIps.clear();
-        connectivityCheckIps.addAll(connectivityCheckManager.get().getConnectivityCheckIps());
+    /**
+     * Publishes refreshed Tor unlock or clearnet IPs without rebuilding other rules and reloading the VPN.
+     */
+    synchronized void updateIpsForTor() {
+        if (rulesSnapshot == VpnRulesSnapshot.EMPTY) {
+            return;
+        }
 
-        lock.writeLock().unlock();
+        rulesSnapshot = rulesSnapshot.withIpsForTor(getIpsForTor());
+        VpnVerdictCache.invalidate();
     }
 
-    void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForwardPort.clear();
-        mapForwardAddress.clear();
+    /**
+     * Publishes refreshed connectivity check IPs without rebuilding other rules and reloading the VPN.
+     */
+    @Override
+    public synchronized void onConnectivityCheckIpsChanged(@NonNull Set<String> ips) {
+        if (rulesSnapshot == VpnRulesSnapshot.EMPTY) {
+            return;
+        }
+
+        rulesSnapshot = rulesSnapshot.withConnectivityCheckIps(ips);
+        VpnVerdictCache.invalidate();
+    }
+
+    private void prepareForwarding(VpnRulesSnapshot.Builder builder) {
 
         ModuleState dnsCryptState = modulesStatus.getDnsCryptState();
         ModuleState torState = modulesStatus.getTorState();
@@ -417,57 +543,53 @@ public class VpnRulesHolder {
 
         //If Tor is ready and DNSCrypt is not, app will use Tor Exit node DNS in VPN mode
         if (dnsCryptState == RUNNING && (dnsCryptReady || !systemDNSAllowed)) {
-            addForwardPortRule(17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
-            addForwardPortRule(6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
+            addForwardPortRule(builder, 17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
+            addForwardPortRule(builder, 6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
 
             if (itpdState == RUNNING) {
-                addForwardAddressRule(17, "10.191.0.1", LOOPBACK_ADDRESS, itpdHttpPort, ownUID);
-                addForwardAddressRule(6, "10.191.0.1", LOOPBACK_ADDRESS, itpdHttpPort, ownUID);
+                addForwardAddressRule(builder, 17, "10.191.0.1", LOOPBACK_ADDRESS, itpdHttpPort, ownUID);
+                addForwardAddressRule(builder, 6, "10.191.0.1", LOOPBACK_ADDRESS, itpdHttpPort, ownUID);
             }
         } else if (torState == RUNNING && (torReady || !systemDNSAllowed)) {
-            addForwardPortRule(17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, torDNSPort, ownUID);
-            addForwardPortRule(6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, torDNSPort, ownUID);
+            addForwardPortRule(builder, 17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, torDNSPort, ownUID);
+            addForwardPortRule(builder, 6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, torDNSPort, ownUID);
         } else {
-            addForwardPortRule(17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
-            addForwardPortRule(6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
+            addForwardPortRule(builder, 17, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
+            addForwardPortRule(builder, 6, PLAINTEXT_DNS_PORT, LOOPBACK_ADDRESS, dnsCryptPort, ownUID);
         }
-
-        lock.writeLock().unlock();
     }
 
     @SuppressWarnings("SameParameterValue")
-    private void addForwardPortRule(int protocol, int dport, String raddr, int rport, int ruid) {
+    private void addForwardPortRule(VpnRulesSnapshot.Builder builder, int protocol, int dport, String raddr, int rport, int ruid) {
         Forward fwd = new Forward();
         fwd.protocol = protocol;
         fwd.dport = dport;
         fwd.raddr = raddr;
         fwd.rport = rport;
         fwd.ruid = ruid;
-        mapForwardPort.put(fwd.dport, fwd);
+        builder.addForwardPort(fwd);
         logi("VPN Forward " + fwd);
     }
 
     @SuppressWarnings("SameParameterValue")
-    private void addForwardAddressRule(int protocol, String daddr, String raddr, int rport, int ruid) {
+    private void addForwardAddressRule(VpnRulesSnapshot.Builder builder, int protocol, String daddr, String raddr, int rport, int ruid) {
         Forward fwd = new Forward();
         fwd.protocol = protocol;
         fwd.daddr = daddr;
         fwd.raddr = raddr;
         fwd.rport = rport;
         fwd.ruid = ruid;
-        mapForwardAddress.put(fwd.daddr, fwd);
+        builder.addForwardAddress(fwd);
         logi("VPN Forward " + fwd);
     }
 
-    void unPrepare() {
-        lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        ipsForTor.clear();
-        uidLanAllowed.clear();
-        uidSpecialAllowed.clear();
-        mapForwardPort.clear();
-        mapForwardAddress.clear();
-        lock.writeLock().unlock();
+    synchronized void unPrepare() {
+        rulesSnapshot = VpnRulesSnapshot.EMPTY;
+        VpnVerdictCache.invalidate();
+        logi("VPN verdict cache hits=" + verdictCache.getHits() + " misses=" + verdictCache.getMisses());
+    }
+
+    public VpnVerdictCache getVerdictCache() {
+        return verdictCache;
     }
 }
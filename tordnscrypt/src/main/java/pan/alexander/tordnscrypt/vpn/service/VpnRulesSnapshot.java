@@ -0,0 +1,211 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pan.alexander.tordnscrypt.vpn.Forward;
+
+/**
+ * Immutable VPN rules tables. A snapshot is completely built before it is published
+ * by {@link VpnRulesHolder}, so packet verdicts can read it without any locking.
+ */
+final class VpnRulesSnapshot {
+
+    static final VpnRulesSnapshot EMPTY = new Builder().build();
+
+    //Routing flags of uid, combined with bitwise OR
+    static final int UID_ROUTE_UNKNOWN = 0;
+    static final int UID_ROUTE_RULE_EXISTS = 1;
+    static final int UID_ROUTE_TOR = 1 << 1;
+    static final int UID_ROUTE_BYPASS_PROXY = 1 << 2;
+
+    private final SparseBooleanArray uidAllowed;
+    private final SparseBooleanArray uidKnown;
+    private final SparseBooleanArray uidLanAllowed;
+    private final SparseBooleanArray uidSpecialAllowed;
+    private final SparseIntArray uidRouting;
+    private final SparseArray<Forward> forwardPort;
+    private final Map<String, Forward> forwardAddress;
+    private final Set<String> ipsForTor;
+    private final Set<String> connectivityCheckIps;
+
+    private VpnRulesSnapshot(Builder builder) {
+        this.uidAllowed = builder.uidAllowed;
+        this.uidKnown = builder.uidKnown;
+        this.uidLanAllowed = builder.uidLanAllowed;
+        this.uidSpecialAllowed = builder.uidSpecialAllowed;
+        this.uidRouting = builder.uidRouting;
+        this.forwardPort = builder.forwardPort;
+        this.forwardAddress = Collections.unmodifiableMap(builder.forwardAddress);
+        this.ipsForTor = Collections.unmodifiableSet(builder.ipsForTor);
+        this.connectivityCheckIps = Collections.unmodifiableSet(builder.connectivityCheckIps);
+    }
+
+    private VpnRulesSnapshot(VpnRulesSnapshot snapshot, Set<String> ipsForTor, Set<String> connectivityCheckIps) {
+        this.uidAllowed = snapshot.uidAllowed;
+        this.uidKnown = snapshot.uidKnown;
+        this.uidLanAllowed = snapshot.uidLanAllowed;
+        this.uidSpecialAllowed = snapshot.uidSpecialAllowed;
+        this.uidRouting = snapshot.uidRouting;
+        this.forwardPort = snapshot.forwardPort;
+        this.forwardAddress = snapshot.forwardAddress;
+        this.ipsForTor = Collections.unmodifiableSet(ipsForTor);
+        this.connectivityCheckIps = Collections.unmodifiableSet(connectivityCheckIps);
+    }
+
+    /**
+     * @return copy of this snapshot with other Tor IPs, the tables are shared as they are never changed.
+     */
+    VpnRulesSnapshot withIpsForTor(Collection<String> ips) {
+        return new VpnRulesSnapshot(this, new HashSet<>(ips), connectivityCheckIps);
+    }
+
+    /**
+     * @return copy of this snapshot with other connectivity check IPs.
+     */
+    VpnRulesSnapshot withConnectivityCheckIps(Collection<String> ips) {
+        return new VpnRulesSnapshot(this, ipsForTor, new HashSet<>(ips));
+    }
+
+    boolean isUidAllowed(int uid) {
+        return uidAllowed.get(uid);
+    }
+
+    boolean isUidKnown(int uid) {
+        return uidKnown.get(uid);
+    }
+
+    boolean isUidLanAllowed(int uid) {
+        return uidLanAllowed.get(uid);
+    }
+
+    boolean isUidSpecialAllowed(int uid) {
+        return uidSpecialAllowed.get(uid);
+    }
+
+    /**
+     * @return combination of UID_ROUTE_* flags or UID_ROUTE_UNKNOWN.
+     */
+    int getUidRouting(int uid) {
+        return uidRouting.get(uid, UID_ROUTE_UNKNOWN);
+    }
+
+    Forward getForwardForPort(int port) {
+        return forwardPort.get(port);
+    }
+
+    Forward getForwardForAddress(String address) {
+        return forwardAddress.get(address);
+    }
+
+    boolean isIpForTor(String address) {
+        return ipsForTor.contains(address);
+    }
+
+    boolean isConnectivityCheckIp(String address) {
+        return connectivityCheckIps.contains(address);
+    }
+
+    static final class Builder {
+        private final SparseBooleanArray uidAllowed = new SparseBooleanArray();
+        private final SparseBooleanArray uidKnown = new SparseBooleanArray();
+        private final SparseBooleanArray uidLanAllowed = new SparseBooleanArray();
+        private final SparseBooleanArray uidSpecialAllowed = new SparseBooleanArray();
+        private final SparseIntArray uidRouting = new SparseIntArray();
+        private final SparseArray<Forward> forwardPort = new SparseArray<>();
+        private final Map<String, Forward> forwardAddress = new HashMap<>();
+        private final Set<String> ipsForTor = new HashSet<>();
+        private final Set<String> connectivityCheckIps = new HashSet<>();
+
+        Builder addAllowedUid(int uid) {
+            uidAllowed.put(uid, true);
+            return this;
+        }
+
+        Builder addKnownUid(int uid) {
+            uidKnown.put(uid, true);
+            return this;
+        }
+
+        Builder addLanAllowedUid(int uid) {
+            uidLanAllowed.put(uid, true);
+            return this;
+        }
+
+        Builder addSpecialAllowedUid(int uid) {
+            uidSpecialAllowed.put(uid, true);
+            return this;
+        }
+
+        /**
+         * Only the first rule of a shared uid is applied, as it was with the apps list scan.
+         */
+        Builder addRuleRouting(int uid, boolean routeThroughTor) {
+            int routing = uidRouting.get(uid, UID_ROUTE_UNKNOWN);
+            if ((routing & UID_ROUTE_RULE_EXISTS) == 0) {
+                routing |= UID_ROUTE_RULE_EXISTS;
+                if (routeThroughTor) {
+                    routing |= UID_ROUTE_TOR;
+                }
+                uidRouting.put(uid, routing);
+            }
+            return this;
+        }
+
+        Builder addProxyBypassUid(int uid) {
+            uidRouting.put(uid, uidRouting.get(uid, UID_ROUTE_UNKNOWN) | UID_ROUTE_BYPASS_PROXY);
+            return this;
+        }
+
+        Builder addForwardPort(Forward forward) {
+            forwardPort.put(forward.dport, forward);
+            return this;
+        }
+
+        Builder addForwardAddress(Forward forward) {
+            forwardAddress.put(forward.daddr, forward);
+            return this;
+        }
+
+        Builder addIpsForTor(Collection<String> ips) {
+            ipsForTor.addAll(ips);
+            return this;
+        }
+
+        Builder addConnectivityCheckIps(Collection<String> ips) {
+            connectivityCheckIps.addAll(ips);
+            return this;
+        }
+
+        VpnRulesSnapshot build() {
+            return new VpnRulesSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded direct-mapped cache of packed packet verdicts keyed by uid, protocol, destination address and port.
+ * Destination address is kept as two 64-bit halves, so neither lookups nor hits allocate.
+ * Every entry remembers the generation it was computed in; {@link #invalidate()} bumps the generation
+ * when rules, modules states or ARP attack states change, so stale verdicts are never returned.
+ */
+public final class VpnVerdictCache {
+
+    private static final int CACHE_SIZE = 1024;
+
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final Entry[] entries = new Entry[CACHE_SIZE];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    static int getGeneration() {
+        return generation.get();
+    }
+
+    Entry get(int version, int uid, int protocol, long daddrHi, long daddrLo, int dport) {
+        int currentGeneration = generation.get();
+        Entry entry = entries[index(uid, protocol, daddrHi, daddrLo, dport)];
+        if (entry != null
+                && entry.generation == currentGeneration
+                && entry.matches(version, uid, protocol, daddrHi, daddrLo, dport)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(int generation, int version, int uid, int protocol, long daddrHi, long daddrLo, int dport, long verdict) {
+        entries[index(uid, protocol, daddrHi, daddrLo, dport)] =
+                new Entry(generation, version, uid, protocol, daddrHi, daddrLo, dport, verdict);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static int index(int uid, int protocol, long daddrHi, long daddrLo, int dport) {
+        long address = daddrHi ^ daddrLo;
+        int hash = (int) (address ^ (address >>> 32));
+        hash = 31 * hash + uid;
+        hash = 31 * hash + dport;
+        hash = 31 * hash + protocol;
+        hash ^= (hash >>> 16);
+        return hash & (CACHE_SIZE - 1);
+    }
+
+    static final class Entry {
+        private final int generation;
+        private final int version;
+        private final int uid;
+        private final int protocol;
+        private final long daddrHi;
+        private final long daddrLo;
+        private final int dport;
+        final long verdict;
+
+        private Entry(int generation, int version, int uid, int protocol,
+                      long daddrHi, long daddrLo, int dport, long verdict) {
+            this.generation = generation;
+            this.version = version;
+            this.uid = uid;
+            this.protocol = protocol;
+            this.daddrHi = daddrHi;
+            this.daddrLo = daddrLo;
+            this.dport = dport;
+            this.verdict = verdict;
+        }
+
+        private boolean matches(int version, int uid, int protocol, long daddrHi, long daddrLo, int dport) {
+            return this.uid == uid
+                    && this.dport == dport
+                    && this.daddrLo == daddrLo
+                    && this.daddrHi == daddrHi
+                    && this.protocol == protocol
+                    && this.version == version;
+        }
+    }
+}
@@ -768,6 +768,36 @@ jfieldID fidRaddr = NULL;
 jfieldID fidRport = NULL;
 struct allowed allowed;
 
+// Copies the redirect of the Allowed object, returns NULL if there is no object
+static struct allowed *get_allowed(const struct arguments *args, jobject jallowed) {
+    if (jallowed == NULL)
+        return NULL;
+
+    if (fidRaddr == NULL) {
+        const char *string = "Ljava/lang/String;";
+        fidRaddr = jniGetFieldID(args->env, clsAllowed, "raddr", string);
+        fidRport = jniGetFieldID(args->env, clsAllowed, "rport", "I");
+    }
+
+    jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
+    ng_add_alloc(jraddr, "jraddr");
+    if (jraddr == NULL)
+        *allowed.raddr = 0;
+    else {
+        const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
+        ng_add_alloc(raddr, "raddr");
+        strcpy(allowed.raddr, raddr);
+        (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
+        ng_delete_alloc(raddr, __FILE__, __LINE__);
+    }
+    allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
+
+    (*args->env)->DeleteLocalRef(args->env, jraddr);
+    ng_delete_alloc(jraddr, __FILE__, __LINE__);
+
+    return &allowed;
+}
+
 struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
 #ifdef PROFILE_JNI
     float mselapsed;
@@ -787,30 +817,7 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     ng_add_alloc(jallowed, "jallowed");
     int exceptionOccurred = jniCheckException(args->env);
 
-    if (jallowed != NULL && exceptionOccurred == 0) {
-        if (fidRaddr == NULL) {
-            const char *string = "Ljava/lang/String;";
-            fidRaddr = jniGetFieldID(args->env, clsAllowed, "raddr", string);
-            fidRport = jniGetFieldID(args->env, clsAllowed, "rport", "I");
-        }
-
-        jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
-        ng_add_alloc(jraddr, "jraddr");
-        if (jraddr == NULL)
-            *allowed.raddr = 0;
-        else {
-            const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
-            ng_add_alloc(raddr, "raddr");
-            strcpy(allowed.raddr, raddr);
-            (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
-            ng_delete_alloc(raddr, __FILE__, __LINE__);
-        }
-        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
-
-        (*args->env)->DeleteLocalRef(args->env, jraddr);
-        ng_delete_alloc(jraddr, __FILE__, __LINE__);
-    }
-
+    struct allowed *result = (exceptionOccurred == 0 ? get_allowed(args, jallowed) : NULL);
 
     (*args->env)->DeleteLocalRef(args->env, jpacket);
     (*args->env)->DeleteLocalRef(args->env, clsService);
@@ -827,7 +834,105 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
         log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
 #endif
 
-    return (jallowed == NULL || exceptionOccurred > 0 ? NULL : &allowed);
+    return result;
+}
+
+static jmethodID midIsAddressAllowedPrimitive = NULL;
+static jmethodID midTakeUnpackedVerdict = NULL;
+
+static void address_to_jlongs(jint version, const void *addr, jlong *hi, jlong *lo) {
+    if (version == 4) {
+        uint32_t ip4;
+        memcpy(&ip4, addr, sizeof(ip4));
+        *hi = 0;
+        *lo = (jlong) ntohl(ip4);
+    } else {
+        const uint8_t *b = (const uint8_t *) addr;
+        uint64_t h = 0;
+        uint64_t l = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | b[i];
+            l = (l << 8) | b[i + 8];
+        }
+        *hi = (jlong) h;
+        *lo = (jlong) l;
+    }
+}
+
+// Same as is_address_allowed, but the common case does not create any Java objects
+struct allowed *is_address_allowed_primitive(const struct arguments *args,
+                                             jint version,
+                                             jint protocol,
+                                             jint uid,
+                                             const void *saddr,
+                                             jint sport,
+                                             const void *daddr,
+                                             jint dport) {
+#ifdef PROFILE_JNI
+    float mselapsed;
+    struct timeval start, end;
+    gettimeofday(&start, NULL);
+#endif
+
+    jlong saddrHi, saddrLo, daddrHi, daddrLo;
+    address_to_jlongs(version, saddr, &saddrHi, &saddrLo);
+    address_to_jlongs(version, daddr, &daddrHi, &daddrLo);
+
+    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+    ng_add_alloc(clsService, "clsService");
+
+    if (midIsAddressAllowedPrimitive == NULL)
+        midIsAddressAllowedPrimitive = jniGetMethodID(
+                args->env, clsService, "isAddressAllowedPrimitive", "(IIIIIJJJJ)J");
+
+    jlong verdict = (*args->env)->CallLongMethod(
+            args->env, args->instance, midIsAddressAllowedPrimitive,
+            version, protocol, uid, sport, dport, saddrHi, saddrLo, daddrHi, daddrLo);
+    int exceptionOccurred = jniCheckException(args->env);
+
+    struct allowed *result = NULL;
+    if (exceptionOccurred > 0 || !(verdict & VERDICT_ALLOWED)) {
+        // Blocked
+    } else if (verdict & VERDICT_USE_PACKET) {
+        // Redirect address cannot be packed into the verdict, take the Allowed of the same check
+        if (midTakeUnpackedVerdict == NULL)
+            midTakeUnpackedVerdict = jniGetMethodID(
+                    args->env, clsService, "takeUnpackedVerdict",
+                    "()Lpan/alexander/tordnscrypt/vpn/Allowed;");
+
+        jobject jallowed = (*args->env)->CallObjectMethod(
+                args->env, args->instance, midTakeUnpackedVerdict);
+        ng_add_alloc(jallowed, "jallowed");
+        if (jniCheckException(args->env) == 0)
+            result = get_allowed(args, jallowed);
+
+        (*args->env)->DeleteLocalRef(args->env, jallowed);
+        ng_delete_alloc(jallowed, __FILE__, __LINE__);
+    } else {
+        uint16_t rport = (uint16_t) ((verdict >> VERDICT_RPORT_SHIFT) & 0xFFFF);
+        if (rport == 0) {
+            *allowed.raddr = 0;
+            allowed.rport = 0;
+        } else {
+            uint32_t raddr = htonl((uint32_t) ((uint64_t) verdict >> VERDICT_RADDR_SHIFT));
+            inet_ntop(AF_INET, &raddr, allowed.raddr, sizeof(allowed.raddr));
+            allowed.rport = rport;
+        }
+        result = &allowed;
+    }
+
+    (*args->env)->DeleteLocalRef(args->env, clsService);
+    ng_delete_alloc(clsService, __FILE__, __LINE__);
+
+#ifdef PROFILE_JNI
+    gettimeofday(&end, NULL);
+    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                (end.tv_usec - start.tv_usec) / 1000.0;
+    if (mselapsed > PROFILE_JNI)
+        log_android(ANDROID_LOG_WARN, "is_address_allowed_primitive %f", mselapsed);
+#endif
+
+    return result;
 }
 
 jmethodID midInitPacket = NULL;
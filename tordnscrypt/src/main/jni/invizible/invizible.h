@@ -254,6 +254,12 @@ typedef int32_t gint32_t;
 
 #define LINKTYPE_RAW 101
 
+// Packed verdict of ServiceVPN.isAddressAllowedPrimitive, keep in sync with VpnRulesHolder
+#define VERDICT_ALLOWED 1
+#define VERDICT_USE_PACKET 2
+#define VERDICT_RPORT_SHIFT 16
+#define VERDICT_RADDR_SHIFT 32
+
 // DNS
 
 #define DNS_QCLASS_IN 1
@@ -545,6 +551,15 @@ jint get_uid_q(const struct arguments *args,
 
 struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
 
+struct allowed *is_address_allowed_primitive(const struct arguments *args,
+                                             jint version,
+                                             jint protocol,
+                                             jint uid,
+                                             const void *saddr,
+                                             jint sport,
+                                             const void *daddr,
+                                             jint dport);
+
 jobject create_packet(const struct arguments *args,
                       jint version,
                       jint protocol,
@@ -331,9 +331,8 @@ void handle_ip(const struct arguments *args,
                && (!syn || (!args->fwd53 && uid == 0 && dport == 53))) {
         allowed = 1; // assume existing session
     } else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
-        redirect = is_address_allowed(args, objPacket);
+        redirect = is_address_allowed_primitive(
+                args, version, protocol, uid, saddr, sport, daddr, dport);
         allowed = (redirect != NULL);
         if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
             redirect = NULL;
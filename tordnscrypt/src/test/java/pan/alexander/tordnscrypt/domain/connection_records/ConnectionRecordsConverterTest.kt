@@ -0,0 +1,410 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.domain.connection_records
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+import pan.alexander.tordnscrypt.utils.Constants.LOOPBACK_ADDRESS
+import pan.alexander.tordnscrypt.utils.Constants.META_ADDRESS
+import pan.alexander.tordnscrypt.utils.preferences.PreferenceKeys.BLOCK_IPv6
+import kotlin.random.Random
+
+private const val EVENTS_PER_BATCH = 50
+private const val APPS = 20
+private const val MAX_CONVERTED_RECORDS = 512
+private const val DNS_REVERSE_LOOKUP_SUFFIX = ".in-addr.arpa"
+
+/**
+ * Feeds the same synthetic traces to [ConnectionRecordsConverter] and to the list based
+ * record handling it used before [IndexedConnectionRecords], and checks that both produce
+ * the same records after every batch.
+ *
+ * The converter is created with the firewall and the root mode disabled and without reverse DNS results,
+ * as these depend on Android. All addresses have the same length, as the list version matched them
+ * as substrings, so that 10.0.0.1 matched a record for 10.0.0.12, which the index no longer does.
+ */
+class ConnectionRecordsConverterTest {
+
+    @Test
+    fun cNameChains_sameRecordsAsListConverter() {
+        val trace = TraceParameters(events = 10_000, hosts = 100, cNames = true, unknownIps = 200)
+        compare(trace)
+    }
+
+    @Test
+    fun trimmedCNameChains_sameRecordsAsListConverter() {
+        val trace = TraceParameters(events = 20_000, hosts = 400, cNames = true, unknownIps = 1_000_000)
+        compare(trace)
+    }
+
+    @Test
+    fun resetTrace_sameRecordsAsListConverter() {
+        val trace = TraceParameters(events = 10_000, hosts = 400, cNames = true, unknownIps = 1_000, resetEvery = 37)
+        compare(trace)
+    }
+
+    @Ignore("Benchmark, run manually")
+    @Test
+    fun syntheticTrace_indexedConverterIsFaster() {
+        val trace = TraceParameters(events = 200_000, hosts = 400, cNames = true, unknownIps = 1_000_000)
+        val legacyConverter = ListConverter()
+        val converter = getConverter()
+        val legacyTrace = generateTrace(trace)
+        val indexedTrace = generateTrace(trace)
+
+        var legacyNs = 0L
+        var indexedNs = 0L
+        for (batch in legacyTrace.indices) {
+            var start = System.nanoTime()
+            legacyConverter.convertRecords(legacyTrace[batch])
+            legacyNs += System.nanoTime() - start
+
+            start = System.nanoTime()
+            converter.convertRecords(indexedTrace[batch])
+            indexedNs += System.nanoTime() - start
+        }
+
+        assertTrue(
+            "list ${legacyNs / 1_000_000} ms, indexed ${indexedNs / 1_000_000} ms",
+            indexedNs < legacyNs
+        )
+    }
+
+    @Test
+    fun convertRecords_cNameChainIsFoundForAppConnection() {
+        val converter = getConverter()
+        val parent = ConnectionRecord("www.example.com", "www.example.com", "cdn.example.net")
+        val answer = ConnectionRecord("www.example.com", "cdn.example.net", daddr = "10.100.100.100")
+        val connection = ConnectionRecord(saddr = "10.200.200.200", daddr = "10.100.100.100", uid = 10100)
+
+        val records = converter.convertRecords(
+            RawConnectionRecords(
+                listOf(parent, answer, ConnectionRecord("other.com", "other.com", daddr = "10.100.100.101"), connection),
+                false
+            )
+        )
+
+        assertEquals(4, records.size)
+        assertEquals("other.com", records[0].aName)
+        assertEquals("www.example.com", records[1].aName)
+        assertEquals(10100, records[1].uid)
+        assertEquals(parent, records[2])
+        assertEquals(answer, records[3])
+        assertEquals(false, records[2].unused)
+        assertEquals(false, records[3].unused)
+    }
+
+    @Test
+    fun indexedRecords_ipIsMatchedExactly() {
+        val records = IndexedConnectionRecords()
+        val record = ConnectionRecord("example.com", "example.com", daddr = "10.0.0.12")
+        records.add(record)
+
+        assertEquals(null, records.findLastDnsRecordWithIp("10.0.0.1"))
+        assertEquals(record, records.findLastDnsRecordWithIp("10.0.0.12"))
+
+        records.appendAddress(record, "10.0.0.1")
+
+        assertEquals(record, records.findLastDnsRecordWithIp("10.0.0.1"))
+        assertEquals(true, records.hasAddress(record, "10.0.0.12"))
+        assertEquals(false, records.hasAddress(record, "10.0.0.2"))
+    }
+
+    @Test
+    fun indexedRecords_cNameParentMustBeAdjacent() {
+        val records = IndexedConnectionRecords()
+        val parent = ConnectionRecord("www.example.com", "www.example.com", "cdn.example.net")
+        val other = ConnectionRecord("other.com", "other.com", daddr = "10.0.0.2")
+        val answer = ConnectionRecord("www.example.com", "cdn.example.net", daddr = "10.0.0.1")
+        records.add(parent)
+        records.add(answer)
+
+        assertEquals(parent, records.findCNameParent(answer))
+
+        records.add(other)
+        records.add(answer)
+
+        assertEquals(null, records.findCNameParent(answer))
+    }
+
+    private fun compare(parameters: TraceParameters) {
+        val legacyConverter = ListConverter()
+        val converter = getConverter()
+        val legacyTrace = generateTrace(parameters)
+        val indexedTrace = generateTrace(parameters)
+
+        for (batch in legacyTrace.indices) {
+            val legacyRecords = legacyConverter.convertRecords(legacyTrace[batch])
+            val records = converter.convertRecords(indexedTrace[batch])
+
+            assertEquals("batch $batch", legacyRecords.toString(), records.toString())
+        }
+    }
+
+    private fun getConverter() = ConnectionRecordsConverter(
+        ConnectionRecordsConverter.Settings(
+            blockIPv6 = true,
+            meteredNetwork = false,
+            vpnDNS = null,
+            fixTTL = false,
+            compatibilityMode = false,
+            firewallEnabled = false,
+            appsAllowed = emptySet(),
+            appsLanAllowed = emptySet()
+        ),
+        { null },
+        {},
+        { emptySet() }
+    )
+
+    private fun generateTrace(parameters: TraceParameters): List<RawConnectionRecords> {
+        val random = Random(42)
+        val hosts = List(parameters.hosts) { generateHost(it, parameters.cNames, random) }
+        val knownIps = hosts.flatMap { it.ips }
+
+        val trace = ArrayList<RawConnectionRecords>()
+        var batch = ArrayList<ConnectionRecord>()
+        for (event in 0 until parameters.events) {
+            val chance = random.nextInt(100)
+            when {
+                chance < 35 -> batch.addAll(hosts[random.nextInt(hosts.size)].resolve(random))
+                chance < 90 -> batch.add(
+                    connection(knownIps[random.nextInt(knownIps.size)], random)
+                )
+                else -> batch.add(connection(address(20, random.nextInt(parameters.unknownIps)), random))
+            }
+
+            if (batch.size >= EVENTS_PER_BATCH) {
+                trace.add(RawConnectionRecords(batch, parameters.resetEvery > 0 && trace.size % parameters.resetEvery == 0))
+                batch = ArrayList()
+            }
+        }
+        if (batch.isNotEmpty()) {
+            trace.add(RawConnectionRecords(batch, false))
+        }
+        return trace
+    }
+
+    private fun generateHost(index: Int, cNames: Boolean, random: Random): Host {
+        val name = "host$index.example.com"
+        val chance = random.nextInt(100)
+        return when {
+            chance < 5 -> Host(name, emptyList(), emptyList(), rCode = 3)
+            chance < 8 -> Host(name, emptyList(), listOf("2001:db8::${index.toString(16)}"))
+            else -> Host(
+                name,
+                List(if (cNames) random.nextInt(3) else 0) { "cdn$it.host$index.example.net" },
+                List(1 + random.nextInt(3)) { address(10, index * 4 + it) }
+            )
+        }
+    }
+
+    private fun connection(ip: String, random: Random) = ConnectionRecord(
+        saddr = "10.200.200.200",
+        daddr = ip,
+        uid = 10_000 + random.nextInt(APPS)
+    )
+
+    //Fixed length dotted addresses, so that no address is a substring of another one
+    private fun address(firstOctet: Int, index: Int) =
+        "$firstOctet.${100 + index / 10_000 % 100}.${100 + index / 100 % 100}.${100 + index % 100}"
+
+    private class TraceParameters(
+        val events: Int,
+        val hosts: Int,
+        val cNames: Boolean,
+        val unknownIps: Int,
+        val resetEvery: Int = 0
+    )
+
+    private class Host(
+        val name: String,
+        val cNames: List<String>,
+        val ips: List<String>,
+        val rCode: Int = 0
+    ) {
+        fun resolve(random: Random): List<ConnectionRecord> {
+            val records = ArrayList<ConnectionRecord>()
+            var aName = name
+            for (cName in cNames) {
+                records.add(ConnectionRecord(name, aName, cName, rCode = rCode))
+                aName = cName
+            }
+            if (ips.isEmpty()) {
+                records.add(ConnectionRecord(name, aName, rCode = rCode))
+            } else {
+                ips.shuffled(random).forEach {
+                    records.add(ConnectionRecord(name, aName, rCode = rCode, daddr = it))
+                }
+            }
+            return records
+        }
+    }
+
+    //Record handling of ConnectionRecordsConverter before IndexedConnectionRecords,
+    //without the firewall, the root mode and the reverse DNS
+    private class ListConverter {
+        private val blockIPv6 = true
+        private val dnsQueryLogRecords = ArrayList<ConnectionRecord>()
+        private val dnsQueryLogRecordsSublist = ArrayList<ConnectionRecord>()
+
+        fun convertRecords(rawRecords: RawConnectionRecords): List<ConnectionRecord> {
+
+            if (rawRecords.reset) {
+                dnsQueryLogRecords.clear()
+            }
+
+            rawRecords.records.forEach { addRecord(it) }
+
+            if (dnsQueryLogRecords.size > MAX_CONVERTED_RECORDS + MAX_CONVERTED_RECORDS / 4) {
+                dnsQueryLogRecords.subList(0, dnsQueryLogRecords.size - MAX_CONVERTED_RECORDS).clear()
+            }
+
+            return dnsQueryLogRecords
+        }
+
+        private fun addRecord(dnsQueryRawRecord: ConnectionRecord) {
+
+            if (dnsQueryLogRecords.isNotEmpty()) {
+                if (dnsQueryRawRecord.uid != -1000) {
+                    addUID(dnsQueryRawRecord)
+                    return
+                } else if (isIdenticalRecord(dnsQueryRawRecord)) {
+                    return
+                }
+            }
+
+            setQueryBlocked(dnsQueryRawRecord)
+
+            if (dnsQueryRawRecord.blocked) {
+                dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
+            }
+
+            dnsQueryLogRecords.add(dnsQueryRawRecord)
+        }
+
+        private fun isIdenticalRecord(dnsQueryRawRecord: ConnectionRecord): Boolean {
+
+            for (i in dnsQueryLogRecords.size - 1 downTo 0) {
+                val record = dnsQueryLogRecords[i]
+
+                if (dnsQueryRawRecord.aName == record.aName
+                    && dnsQueryRawRecord.qName == record.qName
+                    && dnsQueryRawRecord.hInfo == record.hInfo
+                    && dnsQueryRawRecord.rCode == record.rCode
+                    && dnsQueryRawRecord.saddr == record.saddr
+                ) {
+
+                    if (dnsQueryRawRecord.daddr.isNotEmpty() && record.daddr.isNotEmpty()) {
+                        if (!record.daddr.contains(dnsQueryRawRecord.daddr.trim())) {
+                            dnsQueryLogRecords[i] =
+                                record.apply { daddr = daddr + ", " + dnsQueryRawRecord.daddr.trim() }
+                        }
+                        return true
+                    }
+                }
+            }
+
+            return false
+        }
+
+        private fun addUID(dnsQueryRawRecord: ConnectionRecord) {
+            var savedRecord: ConnectionRecord? = null
+            dnsQueryLogRecordsSublist.clear()
+
+            val uidBlocked = false
+
+            for (index in dnsQueryLogRecords.size - 1 downTo 0) {
+                val record = dnsQueryLogRecords[index]
+                if (savedRecord == null && record.daddr.contains(dnsQueryRawRecord.daddr) && record.uid == -1000) {
+                    record.blocked = uidBlocked
+                    record.unused = false
+                    dnsQueryLogRecordsSublist.add(record)
+                    savedRecord = record
+                } else if (savedRecord != null && savedRecord.aName == record.cName) {
+                    record.blocked = uidBlocked
+                    record.unused = false
+                    dnsQueryLogRecordsSublist.add(record)
+                    savedRecord = record
+                } else if (savedRecord != null && savedRecord.aName != record.cName) {
+                    break
+                }
+            }
+
+            if (savedRecord != null) {
+
+                val dnsQueryNewRecord = ConnectionRecord(
+                    savedRecord.qName, savedRecord.aName, savedRecord.cName,
+                    savedRecord.hInfo, -1, dnsQueryRawRecord.saddr, "", dnsQueryRawRecord.uid
+                )
+                dnsQueryNewRecord.blocked = uidBlocked
+                dnsQueryNewRecord.unused = false
+
+                dnsQueryLogRecordsSublist.add(dnsQueryNewRecord)
+
+            } else {
+
+                dnsQueryRawRecord.blocked = uidBlocked
+
+                dnsQueryRawRecord.unused = false
+
+                dnsQueryLogRecords.removeAll { it == dnsQueryRawRecord }
+                dnsQueryLogRecords.add(dnsQueryRawRecord)
+            }
+
+            if (dnsQueryLogRecordsSublist.isNotEmpty()) {
+                dnsQueryLogRecords.removeAll(dnsQueryLogRecordsSublist.toSet())
+                dnsQueryLogRecords.addAll(dnsQueryLogRecordsSublist.reversed())
+            }
+        }
+
+        private fun setQueryBlocked(dnsQueryRawRecord: ConnectionRecord): Boolean {
+
+            if (dnsQueryRawRecord.daddr == META_ADDRESS
+                || dnsQueryRawRecord.daddr == LOOPBACK_ADDRESS
+                || dnsQueryRawRecord.daddr == "::"
+                || dnsQueryRawRecord.daddr.contains(":") && blockIPv6
+                || dnsQueryRawRecord.hInfo.contains("dnscrypt")
+                || dnsQueryRawRecord.rCode != 0
+            ) {
+
+                dnsQueryRawRecord.blockedByIpv6 = (dnsQueryRawRecord.hInfo.contains(BLOCK_IPv6)
+                        || dnsQueryRawRecord.daddr == "::"
+                        || dnsQueryRawRecord.daddr.contains(":") && blockIPv6)
+
+                dnsQueryRawRecord.blocked = true
+                dnsQueryRawRecord.unused = false
+
+            } else if (dnsQueryRawRecord.daddr.isBlank()
+                && dnsQueryRawRecord.cName.isBlank()
+                && !dnsQueryRawRecord.aName.contains(DNS_REVERSE_LOOKUP_SUFFIX)
+            ) {
+                dnsQueryRawRecord.blocked = true
+                dnsQueryRawRecord.unused = false
+            } else {
+                dnsQueryRawRecord.unused = true
+            }
+
+            return dnsQueryRawRecord.blocked
+        }
+    }
+}
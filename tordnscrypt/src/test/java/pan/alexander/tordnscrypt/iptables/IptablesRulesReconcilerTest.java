@@ -0,0 +1,187 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.iptables;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_FILTER;
+import static pan.alexander.tordnscrypt.iptables.IptablesConstants.TABLE_NAT;
+
+public class IptablesRulesReconcilerTest {
+
+    private static final String IPTABLES = "iptables ";
+    private static final String CHAIN = "tordnscrypt";
+    private static final String HOOK = IPTABLES + "-D OUTPUT -j " + CHAIN + " 2> /dev/null || true; "
+            + IPTABLES + "-I OUTPUT -j " + CHAIN;
+
+    private static final String LOOPBACK = " -d 127.0.0.1 -p all -j RETURN";
+    private static final String LOOPBACK_LIVE = "-d 127.0.0.1/32 -j RETURN";
+    private static final String APP = " -p tcp --dport 53 -m owner --uid-owner 1000 -j REJECT";
+    private static final String APP_LIVE = "-p tcp -m tcp --dport 53 -m owner --uid-owner 1000 -j REJECT --reject-with icmp-port-unreachable";
+    private static final String STATE = " -m state --state ESTABLISHED,RELATED -j RETURN";
+    private static final String STATE_LIVE = "-m state --state RELATED,ESTABLISHED -j RETURN";
+    private static final String SYSTEM = " -m owner ! --uid-owner 0:999999999 -j MARK --set-mark 500";
+    private static final String SYSTEM_LIVE = "-m owner ! --uid-owner 0-999999999 -j MARK --set-xmark 0x1f4/0xffffffff";
+    private static final String ONION = " -p udp --dport 53 -m string --algo bm --from 16 --to 128"
+            + " --hex-string |056f6e696f6e00| -j DNAT --to-destination 127.0.0.1:5400";
+    private static final String ONION_LIVE = "-p udp -m udp --dport 53 -m string --hex-string \"|056f6e696f6e00|\""
+            + " --algo bm --from 16 --to 128 -j DNAT --to-destination 127.0.0.1:5400";
+    private static final String COMMENT = " -m comment --comment \"InviZible rule\" -j RETURN";
+
+    @Test
+    public void getChanges_deletesFromEndAndInsertsIntoFinalPositions() {
+        IptablesRestoreTransaction applied = getTransaction(TABLE_FILTER, LOOPBACK, APP, STATE, SYSTEM);
+        IptablesRestoreTransaction desired = getTransaction(TABLE_FILTER, LOOPBACK, COMMENT, STATE, APP);
+        List<String> live = getLiveRules(TABLE_FILTER, LOOPBACK_LIVE, APP_LIVE, STATE_LIVE, SYSTEM_LIVE);
+
+        List<String> changes = IptablesRulesReconciler.getChanges(IPTABLES, applied, desired, live);
+
+        assertEquals(Arrays.asList(
+                IPTABLES + "-D " + CHAIN + " 4",
+                IPTABLES + "-D " + CHAIN + " 2",
+                IPTABLES + "-I " + CHAIN + " 2 -m comment --comment 'InviZible rule' -j RETURN",
+                IPTABLES + "-I " + CHAIN + " 4 -p tcp --dport 53 -m owner --uid-owner 1000 -j REJECT"
+        ), changes);
+    }
+
+    @Test
+    public void getChanges_quotesStringMatchForShell() {
+        IptablesRestoreTransaction applied = getTransaction(TABLE_NAT, LOOPBACK);
+        IptablesRestoreTransaction desired = getTransaction(TABLE_NAT, ONION, LOOPBACK);
+        List<String> live = getLiveRules(TABLE_NAT, LOOPBACK_LIVE);
+
+        List<String> changes = IptablesRulesReconciler.getChanges(IPTABLES, applied, desired, live);
+
+        assertEquals(Collections.singletonList(
+                IPTABLES + "-t nat -I " + CHAIN + " 1 -p udp --dport 53 -m string --algo bm --from 16 --to 128"
+                        + " --hex-string '|056f6e696f6e00|' -j DNAT --to-destination 127.0.0.1:5400"
+        ), changes);
+    }
+
+    @Test
+    public void getChanges_sameRulesInIptablesSaveForm() {
+        IptablesRestoreTransaction applied = getTransaction(TABLE_NAT, LOOPBACK, APP, STATE, SYSTEM, ONION, COMMENT);
+        IptablesRestoreTransaction desired = getTransaction(TABLE_NAT, LOOPBACK, APP, STATE, SYSTEM, ONION, COMMENT);
+        List<String> live = getLiveRules(TABLE_NAT, LOOPBACK_LIVE, APP_LIVE, STATE_LIVE, SYSTEM_LIVE, ONION_LIVE,
+                "-m comment --comment \"InviZible rule\" -j RETURN");
+
+        assertEquals(Collections.emptyList(), IptablesRulesReconciler.getChanges(IPTABLES, applied, desired, live));
+    }
+
+    @Test
+    public void getChanges_rebuildIfLiveRulesDiffer() {
+        IptablesRestoreTransaction applied = getTransaction(TABLE_FILTER, LOOPBACK, APP, STATE);
+        IptablesRestoreTransaction desired = getTransaction(TABLE_FILTER, LOOPBACK, STATE);
+
+        String[][] changedLiveRules = {
+                {LOOPBACK_LIVE, APP_LIVE.replace("--uid-owner 1000", "--uid-owner 1001"), STATE_LIVE},
+                {LOOPBACK_LIVE, APP_LIVE.replace("-p tcp -m tcp", "-p udp -m udp"), STATE_LIVE},
+                {LOOPBACK_LIVE, APP_LIVE.replace("--dport 53", "--dport 853"), STATE_LIVE},
+                {LOOPBACK_LIVE, "-o wlan0 " + APP_LIVE, STATE_LIVE},
+                {LOOPBACK_LIVE, "! " + APP_LIVE, STATE_LIVE},
+                {LOOPBACK_LIVE, STATE_LIVE, APP_LIVE},
+                {LOOPBACK_LIVE, APP_LIVE},
+                {"-d 127.0.0.2/32 -j RETURN", APP_LIVE, STATE_LIVE}
+        };
+        for (String[] liveRules : changedLiveRules) {
+            List<String> live = getLiveRules(TABLE_FILTER, liveRules);
+            assertNull(Arrays.toString(liveRules), IptablesRulesReconciler.getChanges(IPTABLES, applied, desired, live));
+        }
+
+        assertNull(IptablesRulesReconciler.getChanges(IPTABLES, applied, desired, getLiveRules(TABLE_NAT,
+                LOOPBACK_LIVE, APP_LIVE, STATE_LIVE)));
+    }
+
+    @Test
+    public void normalizeRule_addsHostMaskToAddresses() {
+        assertEquals(
+                IptablesRulesReconciler.normalizeRule(" -d 127.0.0.1 -j RETURN"),
+                IptablesRulesReconciler.normalizeRule(" -d 127.0.0.1/32 -j RETURN")
+        );
+        assertEquals(
+                IptablesRulesReconciler.normalizeRule(" ! -s 10.191.0.1 -j RETURN"),
+                IptablesRulesReconciler.normalizeRule(" ! -s 10.191.0.1/32 -j RETURN")
+        );
+        assertNotEquals(
+                IptablesRulesReconciler.normalizeRule(" -d 10.0.0.0/8 -j RETURN"),
+                IptablesRulesReconciler.normalizeRule(" -d 10.0.0.0/32 -j RETURN")
+        );
+        assertNotEquals(
+                IptablesRulesReconciler.normalizeRule(" -d 127.0.0.1 -j RETURN"),
+                IptablesRulesReconciler.normalizeRule(" ! -d 127.0.0.1/32 -j RETURN")
+        );
+    }
+
+    @Test
+    public void toShellArguments_quotesRestoreArguments() {
+        assertEquals(" -m comment --comment 'InviZible rule' -j RETURN",
+                IptablesRestoreTransaction.toShellArguments(COMMENT));
+        assertEquals(" --hex-string '|0a746f7270726f6a656374036f726700|'",
+                IptablesRestoreTransaction.toShellArguments(" --hex-string |0a746f7270726f6a656374036f726700|"));
+        assertEquals(" -m owner ! --uid-owner 0:999999999 -j RETURN",
+                IptablesRestoreTransaction.toShellArguments(" -m owner ! --uid-owner 0:999999999 -j RETURN"));
+    }
+
+    @Test
+    public void getCommands_keepsOtherCommands() {
+        IptablesRestoreTransaction desired = getTransaction(TABLE_FILTER, LOOPBACK);
+        String change = IPTABLES + "-D " + CHAIN + " 1";
+
+        assertEquals(Arrays.asList(change, HOOK), desired.getCommands(Collections.singletonList(change)));
+        assertEquals(Collections.singletonList(HOOK), desired.getCommands(Collections.<String>emptyList()));
+    }
+
+    private static IptablesRestoreTransaction getTransaction(String table, String... rules) {
+        IptablesRestoreTransaction.Builder builder = new IptablesRestoreTransaction.Builder(IPTABLES);
+        List<String> commands = new ArrayList<>();
+        commands.add(builder.newChain(table, CHAIN) + "; " + builder.flushChain(table, CHAIN));
+        for (String rule : rules) {
+            commands.add(builder.appendRule(table, CHAIN, rule));
+        }
+        commands.add(HOOK);
+
+        IptablesRestoreTransaction transaction = builder.build(commands);
+        assertNotNull(transaction);
+        return transaction;
+    }
+
+    private static List<String> getLiveRules(String table, String... rules) {
+        List<String> live = new ArrayList<>();
+        live.add("# Generated by iptables-save");
+        live.add("*" + table);
+        live.add(":OUTPUT ACCEPT [0:0]");
+        live.add(":" + CHAIN + " - [0:0]");
+        live.add("-A OUTPUT -j " + CHAIN);
+        for (String rule : rules) {
+            live.add("-A " + CHAIN + " " + rule);
+        }
+        live.add("COMMIT");
+        return live;
+    }
+}
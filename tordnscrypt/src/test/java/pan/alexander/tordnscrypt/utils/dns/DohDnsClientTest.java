@@ -0,0 +1,393 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.utils.dns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DohDnsClientTest {
+
+    private static final String HOST = "example.com";
+    private static final byte[] ANSWER_IP = {10, 1, 2, 3};
+    private static final int TIMEOUT_SEC = 5;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private LoopbackDohServer server;
+    private DohDnsClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LoopbackDohServer();
+        client = new DohDnsClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.closeIdleConnections();
+        server.close();
+    }
+
+    @Test
+    public void postWithContentLength_reusesKeepAliveConnection() throws IOException {
+        server.mode = Mode.CONTENT_LENGTH;
+
+        for (int i = 0; i < 3; i++) {
+            assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST));
+        }
+
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(2, client.getConnectionsReused());
+        assertEquals(1, server.connections.get());
+
+        Request request = server.getRequests().get(0);
+        assertEquals("POST /dns-query HTTP/1.1", request.line);
+        assertTrue(request.headers.contains("content-type: application/dns-message"));
+        assertTrue(request.headers.contains("host: 127.0.0.1:" + server.getPort()));
+        assertQuestion(request.body);
+    }
+
+    @Test
+    public void getWithChunkedBody_reusesKeepAliveConnection() throws IOException {
+        server.mode = Mode.CHUNKED;
+
+        for (int i = 0; i < 2; i++) {
+            assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.GET));
+        }
+
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(1, client.getConnectionsReused());
+
+        Request request = server.getRequests().get(0);
+        assertTrue(request.line, request.line.startsWith("GET /dns-query?dns="));
+        assertTrue(request.line, request.line.endsWith(" HTTP/1.1"));
+        assertEquals(0, request.body.length);
+
+        //Message ID 0 for GET requests
+        byte[] question = request.getQuestion();
+        assertArrayEquals(new DnsRequest((short) 0, Record.TYPE_A, HOST).toDnsQuestionData(), question);
+    }
+
+    @Test
+    public void staleReusedConnection_retriedOnNewConnection() throws IOException {
+        server.mode = Mode.CLOSE_AFTER_RESPONSE;
+
+        assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST));
+        assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST));
+
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(1, client.getConnectionsReused());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void connectionClose_connectionIsNotReused() throws IOException {
+        server.mode = Mode.CONNECTION_CLOSE;
+
+        for (int i = 0; i < 2; i++) {
+            assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.GET));
+        }
+
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(0, client.getConnectionsReused());
+    }
+
+    @Test
+    public void bodyWithoutLength_readUntilClosed() throws IOException {
+        server.mode = Mode.UNTIL_CLOSED;
+
+        assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST));
+        assertAnswer(client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST));
+
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(0, client.getConnectionsReused());
+    }
+
+    @Test
+    public void errorStatus_throwsWithStatusLine() {
+        server.mode = Mode.NOT_FOUND;
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.query(server.getUrl(), HOST, Record.TYPE_A, TIMEOUT_SEC, DohDnsClient.Method.POST);
+                fail("IOException expected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith("HTTP/1.1 404 Not Found"));
+            }
+        }
+
+        //The error body is read, so the connection stays usable
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(1, client.getConnectionsReused());
+    }
+
+    @Test
+    public void encodeBase64Url_matchesJavaEncoder() {
+        Random random = new Random(42);
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertEquals(
+                    Base64.getUrlEncoder().withoutPadding().encodeToString(data),
+                    DohDnsClient.encodeBase64Url(data)
+            );
+        }
+    }
+
+    private static void assertAnswer(DnsResponse response) {
+        assertNotNull(response);
+        List<Record> answers = response.getAnswerArray();
+        assertEquals(1, answers.size());
+        assertEquals("10.1.2.3", answers.get(0).value);
+    }
+
+    private static void assertQuestion(byte[] question) throws IOException {
+        short messageId = (short) ((question[0] & 0xFF) << 8 | question[1] & 0xFF);
+        assertArrayEquals(new DnsRequest(messageId, Record.TYPE_A, HOST).toDnsQuestionData(), question);
+    }
+
+    private enum Mode {
+        CONTENT_LENGTH,
+        CHUNKED,
+        CONNECTION_CLOSE,
+        CLOSE_AFTER_RESPONSE,
+        UNTIL_CLOSED,
+        NOT_FOUND
+    }
+
+    private static final class Request {
+        private final String line;
+        private final List<String> headers;
+        private final byte[] body;
+
+        private Request(String line, List<String> headers, byte[] body) {
+            this.line = line;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        private byte[] getQuestion() {
+            if (body.length > 0) {
+                return body;
+            }
+            String path = line.split(" ")[1];
+            String dns = path.substring(path.indexOf("dns=") + 4);
+            return Base64.getUrlDecoder().decode(dns);
+        }
+    }
+
+    private static final class LoopbackDohServer {
+        private final ServerSocket serverSocket;
+        private final List<Request> requests = new ArrayList<>();
+        private final List<Socket> sockets = new ArrayList<>();
+        private final AtomicInteger connections = new AtomicInteger();
+        private volatile Mode mode = Mode.CONTENT_LENGTH;
+
+        private LoopbackDohServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this::accept, "LoopbackDohServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private String getUrl() {
+            return "http://127.0.0.1:" + getPort() + "/dns-query";
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private List<Request> getRequests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+
+        private void accept() {
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    Thread thread = new Thread(() -> serve(socket), "LoopbackDohConnection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket ignored = socket) {
+                InputStream inputStream = socket.getInputStream();
+                OutputStream outputStream = socket.getOutputStream();
+                while (true) {
+                    Request request = readRequest(inputStream);
+                    synchronized (requests) {
+                        requests.add(request);
+                    }
+
+                    byte[] response = getResponse(request.getQuestion());
+                    Mode mode = this.mode;
+                    writeResponse(outputStream, response, mode);
+
+                    if (mode == Mode.CONNECTION_CLOSE
+                            || mode == Mode.CLOSE_AFTER_RESPONSE
+                            || mode == Mode.UNTIL_CLOSED) {
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static Request readRequest(InputStream inputStream) throws IOException {
+            String line = readLine(inputStream);
+            List<String> headers = new ArrayList<>();
+            int contentLength = 0;
+            String header;
+            while (!(header = readLine(inputStream)).isEmpty()) {
+                header = header.toLowerCase(Locale.ROOT);
+                headers.add(header);
+                if (header.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(header.substring(15).trim());
+                }
+            }
+
+            byte[] body = new byte[contentLength];
+            int offset = 0;
+            while (offset < contentLength) {
+                int read = inputStream.read(body, offset, contentLength - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            return new Request(line, headers, body);
+        }
+
+        private static String readLine(InputStream inputStream) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = inputStream.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                } else if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        //Echoes the question with one A record in the answer section
+        private static byte[] getResponse(byte[] question) {
+            byte[] response = Arrays.copyOf(question, question.length + 16);
+            response[2] |= (byte) 0x80;
+            response[3] = (byte) 0x80;
+            response[7] = 1;
+            int index = question.length;
+            byte[] answer = {
+                    (byte) 0xC0, 0x0C,
+                    0, (byte) Record.TYPE_A,
+                    0, 1,
+                    0, 0, 0, 60,
+                    0, 4,
+                    ANSWER_IP[0], ANSWER_IP[1], ANSWER_IP[2], ANSWER_IP[3]
+            };
+            System.arraycopy(answer, 0, response, index, answer.length);
+            return response;
+        }
+
+        private static void writeResponse(OutputStream outputStream, byte[] body, Mode mode) throws IOException {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            switch (mode) {
+                case CHUNKED:
+                    write(response, "HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/dns-message\r\n"
+                            + "Transfer-Encoding: chunked\r\n\r\n");
+                    int half = body.length / 2;
+                    write(response, Integer.toHexString(half) + ";name=value\r\n");
+                    response.write(body, 0, half);
+                    write(response, "\r\n" + Integer.toHexString(body.length - half) + "\r\n");
+                    response.write(body, half, body.length - half);
+                    write(response, "\r\n0\r\nX-Trailer: 1\r\n\r\n");
+                    break;
+                case UNTIL_CLOSED:
+                    write(response, "HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/dns-message\r\n\r\n");
+                    response.write(body);
+                    break;
+                case NOT_FOUND:
+                    write(response, "HTTP/1.1 404 Not Found\r\n"
+                            + "Content-Length: 9\r\n\r\n"
+                            + "Not Found");
+                    break;
+                default:
+                    write(response, "HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/dns-message\r\n"
+                            + (mode == Mode.CONNECTION_CLOSE ? "Connection: close\r\n" : "")
+                            + "Content-Length: " + body.length + "\r\n\r\n");
+                    response.write(body);
+            }
+            outputStream.write(response.toByteArray());
+            outputStream.flush();
+        }
+
+        private static void write(ByteArrayOutputStream outputStream, String text) {
+            byte[] data = text.getBytes(ASCII);
+            outputStream.write(data, 0, data.length);
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares IpRangeMatcher with the InetAddress based subnet check it replaced,
+ * on random addresses and on the edges of every network.
+ */
+public class IpRangeMatcherLegacyCheckTest {
+
+    private static final int RANDOM_ADDRESSES = 20_000;
+    private static final int BENCHMARK_ADDRESSES = 200_000;
+    private static final int WARM_UP_ROUNDS = 2;
+
+    @Test
+    public void nonTorList_sameResultsAsLegacyCheck() throws Exception {
+        compare(VpnUtils.nonTorList);
+    }
+
+    @Test
+    public void dnsRebindList_sameResultsAsLegacyCheck() throws Exception {
+        compare(VpnUtils.dnsRebindList);
+    }
+
+    @Ignore("Benchmark, run manually")
+    @Test
+    public void nonTorList_matcherIsFasterThanLegacyCheck() throws Exception {
+        List<String> networks = VpnUtils.nonTorList;
+        IpRangeMatcher matcher = IpRangeMatcher.compile(networks);
+        String[] addresses = getAddresses(networks, BENCHMARK_ADDRESSES);
+
+        long legacyNs = 0;
+        long matcherNs = 0;
+        int matches = 0;
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (String address : addresses) {
+                if (isIpInSubnetsLegacy(address, networks)) {
+                    matches++;
+                }
+            }
+            legacyNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String address : addresses) {
+                if (matcher.contains(address)) {
+                    matches--;
+                }
+            }
+            matcherNs = System.nanoTime() - start;
+        }
+
+        assertEquals(0, matches);
+
+        String timings = String.format(Locale.ROOT,
+                "%d networks, %d addresses: legacy %.3f us, matcher %.3f us per lookup",
+                networks.size(),
+                addresses.length,
+                legacyNs / 1000.0 / addresses.length,
+                matcherNs / 1000.0 / addresses.length
+        );
+        assertTrue(timings, matcherNs < legacyNs);
+    }
+
+    private void compare(List<String> networks) throws Exception {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(networks);
+
+        for (String address : getAddresses(networks, RANDOM_ADDRESSES)) {
+            assertEquals(address, isIpInSubnetsLegacy(address, networks), matcher.contains(address));
+        }
+    }
+
+    private static String[] getAddresses(List<String> networks, int randomAddresses) {
+        Random random = new Random(42);
+        String[] addresses = new String[randomAddresses + networks.size() * 4];
+        int index = 0;
+
+        for (int i = 0; i < randomAddresses; i++) {
+            addresses[index++] = toString(random.nextInt());
+        }
+
+        for (String network : networks) {
+            int slash = network.indexOf('/');
+            int start = (int) IpRangeMatcher.parseIPv4(network, 0, slash);
+            int prefix = Integer.parseInt(network.substring(slash + 1));
+            int end = start | (prefix == 0 ? -1 : (1 << (32 - prefix)) - 1);
+            addresses[index++] = toString(start - 1);
+            addresses[index++] = toString(start);
+            addresses[index++] = toString(end);
+            addresses[index++] = toString(end + 1);
+        }
+
+        return addresses;
+    }
+
+    private static String toString(int address) {
+        return (address >>> 24) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private static boolean isIpInSubnetsLegacy(String ip, List<String> networks) throws Exception {
+        for (String network : networks) {
+            if (isIpInSubnetLegacy(ip, network)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //VpnUtils.isIpInSubnet before IpRangeMatcher
+    private static boolean isIpInSubnetLegacy(final String ip, final String network) throws Exception {
+        String net = network;
+        int prefix = 0;
+        if (network.contains("/")) {
+            net = network.substring(0, network.indexOf("/"));
+            prefix = Integer.parseInt(network.substring(network.indexOf("/") + 1));
+        }
+
+        final byte[] ipBin = InetAddress.getByName(ip).getAddress();
+        final byte[] netBin = InetAddress.getByName(net).getAddress();
+        if (ipBin.length != netBin.length) return false;
+        int p = prefix;
+        int i = 0;
+        while (p >= 8) {
+            if (ipBin[i] != netBin[i]) return false;
+            ++i;
+            p -= 8;
+        }
+        //The legacy check threw here and never matched /32 networks, IpRangeMatcher does match them
+        if (i == ipBin.length) return true;
+        final int m = (65280 >> p) & 255;
+        return (ipBin[i] & m) == (netBin[i] & m);
+    }
+}
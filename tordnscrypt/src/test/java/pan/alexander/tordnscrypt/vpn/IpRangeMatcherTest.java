@@ -0,0 +1,215 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2023 by Garmatin Oleksandr invizible.soft@gmail.com
+ */
+
+package pan.alexander.tordnscrypt.vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IpRangeMatcherTest {
+
+    @Test
+    public void parseIPv4_validAddresses() {
+        assertEquals(0xC0A80101L, IpRangeMatcher.parseIPv4("192.168.1.1", 0, 11));
+        assertEquals(0L, IpRangeMatcher.parseIPv4("0.0.0.0", 0, 7));
+        assertEquals(0xFFFFFFFFL, IpRangeMatcher.parseIPv4("255.255.255.255", 0, 15));
+        assertEquals(0x0A000001L, IpRangeMatcher.parseIPv4("x10.0.0.1%", 1, 9));
+    }
+
+    @Test
+    public void parseIPv4_malformedAddresses() {
+        String[] malformed = {
+                "", "1.2.3", "1.2.3.4.5", "1..2.3", "1.2.3.", ".1.2.3",
+                "256.1.1.1", "1.2.3.a", "0001.2.3.4", "1.2.3.4 ", "-1.2.3.4"
+        };
+        for (String address : malformed) {
+            assertEquals(address, -1L, IpRangeMatcher.parseIPv4(address, 0, address.length()));
+        }
+    }
+
+    @Test
+    public void parseIPv6_validAddresses() {
+        assertIPv6(0, 0, "::");
+        assertIPv6(0, 1, "::1");
+        assertIPv6(0x0001000000000000L, 0, "1::");
+        assertIPv6(0xFE80000000000000L, 1, "fe80::1");
+        assertIPv6(0x20010DB800000000L, 0x00008A2E03707334L, "2001:db8::8a2e:370:7334");
+        assertIPv6(0x20010DB800000000L, 0x00008A2E03707334L, "2001:0DB8:0000:0000:0000:8A2E:0370:7334");
+        assertIPv6(0x0001000200030004L, 0x0005000600000008L, "1:2:3:4:5:6::8");
+        assertIPv6(0x0001000000000000L, 0x0005000600070008L, "1::5:6:7:8");
+        assertIPv6(0, 0x0000FFFFC0A80101L, "::ffff:192.168.1.1");
+        assertIPv6(0x0064FF9B00000000L, 0x00000000C000020AL, "64:ff9b::192.0.2.10");
+        assertIPv6(0x0001000200030004L, 0x00050006C0A80101L, "1:2:3:4:5:6:192.168.1.1");
+    }
+
+    @Test
+    public void parseIPv6_malformedAddresses() {
+        String[] malformed = {
+                "", ":", ":::", ":1", "1:", "1:::2", "1::2::3", "12345::", "g::1",
+                "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "1:2:3:4::5:6:7:8",
+                "::ffff:1.2.3", "::ffff:1.2.3.256", "::1.2.3.4:5", "1:2:3:4:5:6:7:1.2.3.4"
+        };
+        long[] result = new long[2];
+        for (String address : malformed) {
+            assertFalse(address, IpRangeMatcher.parseIPv6(address, address.length(), result));
+        }
+    }
+
+    @Test
+    public void contains_ipv4Networks() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList(
+                "10.0.0.0/8", "192.168.0.0/16", "1.2.3.4", "0.0.0.0/32"
+        ));
+
+        assertTrue(matcher.contains("10.0.0.0"));
+        assertTrue(matcher.contains("10.255.255.255"));
+        assertTrue(matcher.contains("192.168.100.1"));
+        assertTrue(matcher.contains("1.2.3.4"));
+        assertTrue(matcher.contains("0.0.0.0"));
+        assertTrue(matcher.containsIPv4(0xC0A80101));
+
+        assertFalse(matcher.contains("9.255.255.255"));
+        assertFalse(matcher.contains("11.0.0.0"));
+        assertFalse(matcher.contains("192.169.0.0"));
+        assertFalse(matcher.contains("1.2.3.5"));
+        assertFalse(matcher.contains("0.0.0.1"));
+        assertFalse(matcher.contains("10.0.0"));
+        assertFalse(matcher.contains("example.com"));
+        assertFalse(matcher.contains(null));
+    }
+
+    @Test
+    public void contains_hostBitsOfNetworkAreIgnored() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Collections.singletonList("10.1.2.3/8"));
+
+        assertTrue(matcher.contains("10.0.0.0"));
+        assertTrue(matcher.contains("10.255.255.255"));
+        assertFalse(matcher.contains("11.0.0.0"));
+    }
+
+    @Test
+    public void contains_wholeAddressSpace() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList("0.0.0.0/0", "::/0"));
+
+        assertTrue(matcher.contains("0.0.0.0"));
+        assertTrue(matcher.contains("255.255.255.255"));
+        assertTrue(matcher.containsIPv4(-1));
+        assertTrue(matcher.contains("::"));
+        assertTrue(matcher.contains("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    }
+
+    @Test
+    public void compile_mergesOverlappingNestedAndAdjacentRanges() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList(
+                "10.2.0.0/16",
+                "10.0.0.0/8",
+                "10.1.0.0/16",
+                "11.0.0.0/9",
+                "11.128.0.0/9",
+                "20.0.0.0/24",
+                "20.0.0.128/25",
+                "20.0.2.0/24",
+                "255.255.255.255/32"
+        ));
+
+        //Nested ranges must not shrink the range that contains them
+        assertTrue(matcher.contains("10.3.0.0"));
+        assertTrue(matcher.contains("10.255.255.255"));
+
+        //Adjacent ranges are merged without gaps
+        assertTrue(matcher.contains("11.127.255.255"));
+        assertTrue(matcher.contains("11.128.0.0"));
+        assertTrue(matcher.contains("11.255.255.255"));
+        assertFalse(matcher.contains("12.0.0.0"));
+
+        assertTrue(matcher.contains("20.0.0.255"));
+        assertFalse(matcher.contains("20.0.1.0"));
+        assertFalse(matcher.contains("20.0.1.255"));
+        assertTrue(matcher.contains("20.0.2.0"));
+        assertFalse(matcher.contains("20.0.3.0"));
+
+        assertTrue(matcher.contains("255.255.255.255"));
+        assertFalse(matcher.contains("255.255.255.254"));
+    }
+
+    @Test
+    public void contains_ipv6Networks() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList(
+                "fe80::/10", "fc00::/7", "2001:db8::1", "2001:db8:0:1::/64"
+        ));
+
+        assertTrue(matcher.contains("fe80::1"));
+        assertTrue(matcher.contains("febf:ffff::1"));
+        assertTrue(matcher.contains("fe80::1%wlan0"));
+        assertTrue(matcher.contains("fd12:3456::1"));
+        assertTrue(matcher.contains("2001:db8::1"));
+        assertTrue(matcher.contains("2001:db8:0:1:ffff:ffff:ffff:ffff"));
+
+        assertFalse(matcher.contains("fec0::1"));
+        assertFalse(matcher.contains("2001:db8::2"));
+        assertFalse(matcher.contains("2001:db8:0:2::"));
+        assertFalse(matcher.contains("::1"));
+        assertFalse(matcher.contains("fe80::1::1"));
+    }
+
+    @Test
+    public void contains_ipv4MappedAddressesMatchIPv4Networks() {
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList("10.0.0.0/8", "fe80::/10"));
+
+        assertTrue(matcher.contains("::ffff:10.1.2.3"));
+        assertTrue(matcher.contains("::ffff:a01:203"));
+        assertTrue(matcher.containsIPv6(0, 0x0000FFFF0A010203L));
+
+        assertFalse(matcher.contains("::ffff:11.0.0.1"));
+        assertFalse(matcher.contains("::10.1.2.3"));
+        assertFalse(matcher.contains("64:ff9b::10.1.2.3"));
+    }
+
+    @Test
+    public void compile_skipsMalformedNetworks() {
+        List<String> wrongNetworks = new ArrayList<>();
+        IpRangeMatcher matcher = IpRangeMatcher.compile(Arrays.asList(
+                null, "", " ", "abc", "10.0.0.0/33", "10.0.0.0/x", "10.0.0/8",
+                "fe80::/129", "fe80:::/10", " 192.168.0.0/16 "
+        ), wrongNetworks);
+
+        assertEquals(
+                Arrays.asList("abc", "10.0.0.0/33", "10.0.0.0/x", "10.0.0/8", "fe80::/129", "fe80:::/10"),
+                wrongNetworks
+        );
+        assertTrue(matcher.contains("192.168.1.1"));
+        assertFalse(matcher.contains("10.0.0.1"));
+        assertFalse(matcher.contains("fe80::1"));
+    }
+
+    private static void assertIPv6(long expectedHi, long expectedLo, String address) {
+        long[] result = new long[2];
+        assertTrue(address, IpRangeMatcher.parseIPv6(address, address.length(), result));
+        assertArrayEquals(address, new long[]{expectedHi, expectedLo}, result);
+    }
+}